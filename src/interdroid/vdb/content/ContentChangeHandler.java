@@ -30,8 +30,8 @@
  */
 package interdroid.vdb.content;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import android.content.ContentValues;
 
@@ -48,8 +48,8 @@ public class ContentChangeHandler {
 	/**
 	 * The registered handlers.
 	 */
-	private static Map<String, ContentChangeHandler>handlers =
-			new HashMap<String, ContentChangeHandler>();
+	private static final ConcurrentMap<String, ContentChangeHandler> handlers =
+			new ConcurrentHashMap<String, ContentChangeHandler>();
 
 	/**
 	 * Returns a handler for the given name in the given namespace.
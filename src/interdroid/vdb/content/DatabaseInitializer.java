@@ -38,6 +38,9 @@ import interdroid.vdb.persistence.api.VdbInitializer;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -116,119 +119,155 @@ public class DatabaseInitializer implements VdbInitializer {
 	 */
 	private void buildTables(final SQLiteDatabase db,
 			final EntityInfo entity, final HashMap<String, String> built) {
-		boolean firstField = true;
-		ArrayList<EntityInfo>children = new ArrayList<EntityInfo>();
-
 		if (built.containsKey(entity.name())) {
 			LOG.debug("Already built: {}", entity.name());
 			return;
 		}
 
+		String table = GenericContentProvider.escapeName(mNamespace, entity);
 		if (LOG.isDebugEnabled()) {
 			LOG.debug("Creating table for: "
 					+ entity.namespace() + " : " + entity.name()
-					+ ":"
-					+ GenericContentProvider.escapeName(mNamespace, entity));
+					+ ":" + table);
 		}
 
-		db.execSQL("DROP TABLE IF EXISTS "
-				+ GenericContentProvider.escapeName(mNamespace, entity));
+		// First we need to build the child tables so we can
+		// do the foreign keys on this one
+		for (FieldInfo field : entity.getFields()) {
+			if (field.dbType == DatabaseFieldType.ONE_TO_ONE) {
+				LOG.debug("Building child table: ", field.targetEntity);
+				buildTables(db, field.targetEntity, built);
+			}
+		}
 
-		StringBuilder createSql = new StringBuilder("CREATE TABLE ");
-		createSql.append(GenericContentProvider.escapeName(mNamespace, entity));
-		createSql.append('(');
+		db.execSQL("DROP TABLE IF EXISTS " + table);
+		String createSql = createTableSql(mNamespace, entity, table);
+		if (LOG.isDebugEnabled()) {
+			LOG.debug("Creating: " + createSql);
+		}
+		db.execSQL(createSql);
+
+		// Now process any remaining children. These hold the
+		// key for this one so they are built after this table.
+		for (FieldInfo field : entity.getFields()) {
+			if (field.dbType == DatabaseFieldType.ONE_TO_MANY_INT
+					|| field.dbType == DatabaseFieldType.ONE_TO_MANY_STRING) {
+				LOG.debug("Building target entity: ", field.targetEntity);
+				buildTables(db, field.targetEntity, built);
+			}
+		}
+
+		// Now fill in any enumeration values
+		fillEnumValues(db, entity, table);
+		built.put(entity.name(), entity.name());
+	}
+
+	/**
+	 * Returns the columns of the table for an entity, in order. One to
+	 * many fields have no column, they are handled by putting the key for
+	 * this entity in the target entity.
+	 * @param namespace the namespace of the database
+	 * @param entity the entity to return the columns of
+	 * @return the column definitions keyed by sanitized column name
+	 */
+	static LinkedHashMap<String, String> getColumns(final String namespace,
+			final EntityInfo entity) {
+		LinkedHashMap<String, String> columns =
+				new LinkedHashMap<String, String>();
 		for (FieldInfo field : entity.getFields()) {
+			StringBuilder definition = new StringBuilder();
 			switch (field.dbType) {
 			case ONE_TO_MANY_INT:
 			case ONE_TO_MANY_STRING:
-				// Skip these since they are handled by putting the
-				// key for this one in the targetEntity
-				// but queue the child to be handled when we are
-				// done with this table.
-				LOG.debug("Queueing Target Entity: ", field.targetEntity);
-				children.add(field.targetEntity);
-				break;
+				continue;
 			case ONE_TO_ONE:
-				LOG.debug("Building child table: ", field.targetEntity);
-				// First we need to build the child table so we can
-				// do the foreign key on this one
-				buildTables(db, field.targetEntity, built);
-
-				if (!firstField) {
-					createSql.append(",\n");
-				} else {
-					firstField = false;
-				}
-				createSql.append(
-						GenericContentProvider.sanitize(field.fieldName));
-				createSql.append(' ');
-				createSql.append(DatabaseFieldType.INTEGER);
-				createSql.append(" REFERENCES ");
-				createSql.append(
-						GenericContentProvider.escapeName(mNamespace,
-								field.targetEntity));
-				createSql.append('(');
-				createSql.append(GenericContentProvider.sanitize(field.targetField.fieldName));
-				createSql.append(')');
-				createSql.append(" DEFERRABLE");
-				LOG.debug("Create SQL now: {}", createSql);
+				definition.append(DatabaseFieldType.INTEGER);
 				break;
 			default:
-				if (!firstField) {
-					createSql.append(",\n");
-				} else {
-					firstField = false;
-				}
-				createSql.append(GenericContentProvider.sanitize(
-						field.fieldName));
-				createSql.append(' ');
-				createSql.append(field.dbTypeName());
-				if (field.targetEntity != null) {
-					createSql.append(" REFERENCES ");
-					createSql.append(
-							GenericContentProvider.escapeName(mNamespace,
-									field.targetEntity));
-					createSql.append('(');
-					createSql.append(GenericContentProvider.sanitize(
-							field.targetField.fieldName));
-					createSql.append(") DEFERRABLE");
-				}
-				LOG.debug("Create SQL Default: {}",
-						createSql);
+				definition.append(field.dbTypeName());
 				break;
 			}
+			if (field.targetEntity != null) {
+				definition.append(" REFERENCES ");
+				definition.append(
+						GenericContentProvider.escapeName(namespace,
+								field.targetEntity));
+				definition.append('(');
+				definition.append(GenericContentProvider.sanitize(
+						field.targetField.fieldName));
+				definition.append(") DEFERRABLE");
+			}
+			columns.put(GenericContentProvider.sanitize(field.fieldName),
+					definition.toString());
+		}
+		return columns;
+	}
+
+	/**
+	 * Returns the key columns of the table for an entity.
+	 * @param entity the entity to return the key of
+	 * @return the sanitized names of the key columns
+	 */
+	static List<String> getKeyColumns(final EntityInfo entity) {
+		List<String> key = new ArrayList<String>();
+		for (FieldInfo field : entity.key) {
+			key.add(GenericContentProvider.sanitize(field.fieldName));
+		}
+		return key;
+	}
+
+	/**
+	 * Builds the statement creating the table for an entity.
+	 * @param namespace the namespace of the database
+	 * @param entity the entity to create the table for
+	 * @param table the escaped name of the table to create
+	 * @return the create statement
+	 */
+	static String createTableSql(final String namespace,
+			final EntityInfo entity, final String table) {
+		StringBuilder createSql = new StringBuilder("CREATE TABLE ");
+		createSql.append(table);
+		createSql.append('(');
+		boolean firstField = true;
+		for (Map.Entry<String, String> column
+				: getColumns(namespace, entity).entrySet()) {
+			if (!firstField) {
+				createSql.append(",\n");
+			} else {
+				firstField = false;
+			}
+			createSql.append(column.getKey());
+			createSql.append(' ');
+			createSql.append(column.getValue());
 		}
 
 		// Now add the primary key constraint
 		createSql.append(", ");
 		createSql.append(" PRIMARY KEY (");
 		firstField = true;
-		for (FieldInfo field : entity.key) {
+		for (String key : getKeyColumns(entity)) {
 			if (!firstField) {
 				createSql.append(", ");
 			} else {
 				firstField = false;
 			}
-			createSql.append(
-					GenericContentProvider.sanitize(field.fieldName));
+			createSql.append(key);
 		}
 		createSql.append(')');
 
 		// Close the table
 		createSql.append(")");
+		return createSql.toString();
+	}
 
-		if (LOG.isDebugEnabled()) {
-			LOG.debug("Creating: "
-					+ createSql.toString());
-		}
-		db.execSQL(createSql.toString());
-
-		// Now process any remaining children
-		for (EntityInfo child : children) {
-			buildTables(db, child, built);
-		}
-
-		// Now fill in any enumeration values
+	/**
+	 * Fills in the values of an enumeration entity.
+	 * @param db the database to fill in
+	 * @param entity the entity, which may not be an enumeration
+	 * @param table the escaped name of the table to fill
+	 */
+	static void fillEnumValues(final SQLiteDatabase db,
+			final EntityInfo entity, final String table) {
 		if (entity.enumValues != null) {
 			ContentValues values = new ContentValues();
 			for (Integer ordinal : entity.enumValues.keySet()) {
@@ -236,119 +275,13 @@ public class DatabaseInitializer implements VdbInitializer {
 				values.clear();
 				values.put("_id", ordinal);
 				values.put("_value", value);
-				db.insert(GenericContentProvider.escapeName(mNamespace, entity),
-						"_id", values);
+				db.insert(table, "_id", values);
 			}
 		}
-		built.put(entity.name(), entity.name());
 	}
 
 	@Override
 	public final String getSchema() {
 		return mSchema;
 	}
-
-	public void updateCopy(SQLiteDatabase updateDb, Metadata masterMetadata) {
-		// Keep track of what has been copied as we go so as not to duplicate
-		HashMap<String, String> built = new HashMap<String, String>();
-
-		for (EntityInfo entity : mDbMetadata.getEntities()) {
-			// Only handle root entities.
-			// Children get recursed
-			if (entity.parentEntity == null) {
-				updateCopyImpl(entity, updateDb,
-						masterMetadata, built);
-			}
-		}
-	}
-
-	private void updateCopyImpl(EntityInfo entity, SQLiteDatabase updateDb,
-			Metadata masterMetadata,
-			HashMap<String, String> built) {
-		LOG.debug("Copying entity: {}", entity.name())
-		;
-		if (built.containsKey(entity.name())) {
-			LOG.debug("Already copied: {}", entity.name());
-			return;
-		}
-
-		// An array to hold fields to copy
-		ArrayList<String>copyFields = new ArrayList<String>();
-
-		// Build up a hashMap of other fields
-		HashMap<String, FieldInfo>otherFields =
-				new HashMap<String, FieldInfo>();
-
-		EntityInfo other = masterMetadata.getEntity(entity.name());
-
-		if (null != other) {
-			for (FieldInfo otherField : other.getFields()) {
-				otherFields.put(otherField.fieldName, otherField);
-			}
-		}
-
-		ArrayList<EntityInfo>children = new ArrayList<EntityInfo>();
-
-		for (FieldInfo field : entity.getFields()) {
-			switch (field.dbType) {
-			case ONE_TO_MANY_INT:
-			case ONE_TO_MANY_STRING:
-				// Skip these since they are handled by putting the
-				// key for this one in the targetEntity
-				// but queue the child to be handled when we are
-				// done with this table so we don't violate
-				// the up pointing references.
-				LOG.debug("Queueing Target Entity: ", field.targetEntity);
-				children.add(field.targetEntity);
-				break;
-			case ONE_TO_ONE:
-				// These point down so first copy the child table.
-				// then do this table.
-				updateCopyImpl(field.targetEntity, updateDb,
-						masterMetadata, built);
-				break;
-			default:
-				// Check if the field existed in the old metadata
-				// and if so then set it to be copied.
-				if (otherFields.containsKey(field.fieldName)) {
-					copyFields.add(field.fieldName);
-				}
-				break;
-			}
-		}
-
-		// Prepare the INSERT copying SQL
-		StringBuffer insertSql = new StringBuffer();
-		insertSql.append("INSERT INTO ");
-		insertSql.append(entity.name());
-		insertSql.append(" VALUES (");
-		StringBuffer selectSql = new StringBuffer();
-		selectSql.append("SELECT ");
-
-		boolean first = true;
-		for (String field : copyFields) {
-			if (!first) {
-				insertSql.append(", ");
-				selectSql.append(", ");
-			} else {
-				first = false;
-			}
-			insertSql.append(field);
-			selectSql.append(field);
-		}
-		insertSql.append(") ");
-		selectSql.append(" FROM old.");
-		selectSql.append(entity.name());
-		insertSql.append(selectSql.toString());
-
-		LOG.debug("Insert SQL: {}", insertSql.toString());
-		updateDb.execSQL(insertSql.toString());
-
-		// Now process any remaining children
-		for (EntityInfo child : children) {
-			updateCopyImpl(child, updateDb, masterMetadata, built);
-		}
-
-		built.put(entity.name(), entity.name());
-	}
 }
@@ -0,0 +1,889 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.content;
+
+import interdroid.vdb.content.avro.MigrationPlan;
+import interdroid.vdb.content.metadata.DatabaseFieldType;
+import interdroid.vdb.content.metadata.EntityInfo;
+import interdroid.vdb.content.metadata.FieldInfo;
+import interdroid.vdb.content.metadata.Metadata;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Migrates a live database from one version of its metadata to another,
+ * touching only the tables which changed.
+ * <ul>
+ * <li>New tables are created.</li>
+ * <li>Tables which only gained columns are altered in place.</li>
+ * <li>Other changed tables are rebuilt beside the old table, copying the
+ * rows in small transactions so readers keep using the old table until
+ * it is swapped out. Triggers on the old table keep the copy up to date
+ * with writes made while copying.</li>
+ * <li>Enumeration values whose ordinals moved are rewritten in the
+ * columns referring to the enumeration, as found in the
+ * {@link MigrationPlan}. Each column is rewritten in one transaction
+ * which also records it as done, so a migration which is retried after
+ * the process died does not remap a column twice.</li>
+ * <li>Tables which are no longer used are dropped.</li>
+ * </ul>
+ * The steps can be listed with their cost before anything is changed
+ * using {@link #estimate(SQLiteDatabase)}.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+public class DatabaseMigrator {
+	/**
+	 * Access to logger.
+	 */
+	private static final Logger LOG =
+			LoggerFactory.getLogger(DatabaseMigrator.class);
+
+	/**
+	 * The number of rows copied per transaction.
+	 */
+	private static final int BATCH_ROWS = 500;
+
+	/**
+	 * The table recording the columns whose enumeration ordinals were
+	 * rewritten, until the migration is finished.
+	 */
+	private static final String REMAPPED_TABLE = "_vdb_remapped";
+
+	/**
+	 * The suffix of the table a changed table is rebuilt in.
+	 */
+	private static final String REBUILD_SUFFIX = "_migrating";
+
+	/**
+	 * The rough number of rows copied or rewritten per second, used to
+	 * estimate how long a migration takes.
+	 */
+	private static final int ESTIMATED_ROWS_PER_SECOND = 2000;
+
+	/**
+	 * The rough milliseconds each step takes besides touching rows.
+	 */
+	private static final int ESTIMATED_STEP_MILLIS = 20;
+
+	/**
+	 * A step in migrating a database.
+	 */
+	public static final class Step {
+		/**
+		 * The things a step can do.
+		 */
+		public enum Action {
+			/** Create a new table. */
+			CREATE,
+			/** Add columns to a table in place. */
+			ALTER,
+			/** Rebuild a table and copy the rows over. */
+			REBUILD,
+			/** Replace the values of an enumeration table. */
+			REFILL,
+			/** Rewrite the enumeration ordinals stored in a column. */
+			REMAP,
+			/** Drop a table which is no longer used. */
+			DROP
+		}
+
+		/** What the step does. */
+		private final Action mAction;
+		/** The escaped name of the table. */
+		private final String mTable;
+		/** The entity the table was built for or null. */
+		private final EntityInfo mOld;
+		/** The entity the table is migrated to or null. */
+		private final EntityInfo mNew;
+		/** The column to remap or null. */
+		private final String mColumn;
+		/** The new ordinal of each old one when remapping or null. */
+		private final Map<Integer, Integer> mRemap;
+		/** The number of rows the step touches. */
+		private final long mRows;
+
+		/**
+		 * Construct a step.
+		 * @param action what the step does
+		 * @param table the escaped name of the table
+		 * @param old the entity the table was built for or null
+		 * @param entity the entity the table is migrated to or null
+		 * @param column the column to remap or null
+		 * @param remap the new ordinal of each old one or null
+		 * @param rows the number of rows the step touches
+		 */
+		private Step(final Action action, final String table,
+				final EntityInfo old, final EntityInfo entity,
+				final String column, final Map<Integer, Integer> remap,
+				final long rows) {
+			mAction = action;
+			mTable = table;
+			mOld = old;
+			mNew = entity;
+			mColumn = column;
+			mRemap = remap;
+			mRows = rows;
+		}
+
+		/**
+		 * @return what the step does
+		 */
+		public Action getAction() {
+			return mAction;
+		}
+
+		/**
+		 * @return the escaped name of the table the step works on
+		 */
+		public String getTable() {
+			return mTable;
+		}
+
+		/**
+		 * @return the number of rows the step touches
+		 */
+		public long getRows() {
+			return mRows;
+		}
+
+		/**
+		 * @return this step as a string
+		 */
+		public String toString() {
+			StringBuilder buffer = new StringBuilder();
+			buffer.append(mAction).append(' ').append(mTable);
+			if (mColumn != null) {
+				buffer.append('.').append(mColumn);
+			}
+			buffer.append(" (").append(mRows).append(" rows)");
+			return buffer.toString();
+		}
+	}
+
+	/**
+	 * The result of a dry run: what a migration would do and roughly how
+	 * long it would take.
+	 */
+	public static final class Estimate {
+		/** The steps the migration would take. */
+		private final List<Step> mSteps;
+		/** The number of rows the migration would touch. */
+		private final long mRows;
+		/** The rough number of milliseconds the migration would take. */
+		private final long mMillis;
+
+		/**
+		 * Construct an estimate.
+		 * @param steps the steps the migration would take
+		 */
+		private Estimate(final List<Step> steps) {
+			mSteps = Collections.unmodifiableList(steps);
+			long rows = 0;
+			for (Step step : steps) {
+				rows += step.getRows();
+			}
+			mRows = rows;
+			mMillis = steps.size() * ESTIMATED_STEP_MILLIS
+					+ rows * 1000 / ESTIMATED_ROWS_PER_SECOND;
+		}
+
+		/**
+		 * @return the steps the migration would take
+		 */
+		public List<Step> getSteps() {
+			return mSteps;
+		}
+
+		/**
+		 * @return the number of rows the migration would touch
+		 */
+		public long getRows() {
+			return mRows;
+		}
+
+		/**
+		 * @return the rough number of milliseconds the migration would take
+		 */
+		public long getEstimatedMillis() {
+			return mMillis;
+		}
+
+		/**
+		 * @return the estimate as a string, one step per line
+		 */
+		public String toString() {
+			StringBuilder buffer = new StringBuilder();
+			for (Step step : mSteps) {
+				buffer.append(step).append('\n');
+			}
+			buffer.append(mRows).append(" rows, about ").append(mMillis)
+					.append("ms");
+			return buffer.toString();
+		}
+	}
+
+	/** The namespace of the database. */
+	private final String mNamespace;
+	/** The tables of the current database, by escaped name. */
+	private final Map<String, EntityInfo> mOldTables;
+	/** The tables of the new database, by escaped name, in build order. */
+	private final Map<String, EntityInfo> mNewTables;
+	/** The changes between the schemas of the two versions. */
+	private final MigrationPlan mPlan;
+
+	/**
+	 * Construct a migrator.
+	 * @param namespace the namespace of the database
+	 * @param oldMetadata the metadata the database was built with
+	 * @param newMetadata the metadata to migrate the database to
+	 * @param plan the changes between the schemas of the two versions
+	 */
+	public DatabaseMigrator(final String namespace,
+			final Metadata oldMetadata, final Metadata newMetadata,
+			final MigrationPlan plan) {
+		mNamespace = namespace;
+		mOldTables = getTables(namespace, oldMetadata);
+		mNewTables = getTables(namespace, newMetadata);
+		mPlan = plan;
+	}
+
+	/**
+	 * Collects the tables for some metadata in the order the initializer
+	 * builds them.
+	 * @param namespace the namespace of the database
+	 * @param metadata the metadata to collect the tables of
+	 * @return the entities by escaped table name
+	 */
+	private static Map<String, EntityInfo> getTables(final String namespace,
+			final Metadata metadata) {
+		Map<String, EntityInfo> tables =
+				new LinkedHashMap<String, EntityInfo>();
+		for (EntityInfo entity : metadata.getEntities()) {
+			// Children get recursed so foreign key constraints all point up
+			if (entity.parentEntity == null) {
+				addTables(namespace, entity, tables);
+			}
+		}
+		return tables;
+	}
+
+	/**
+	 * Adds the table for an entity and its children.
+	 * @param namespace the namespace of the database
+	 * @param entity the entity to add
+	 * @param tables the tables collected so far
+	 */
+	private static void addTables(final String namespace,
+			final EntityInfo entity, final Map<String, EntityInfo> tables) {
+		String table = GenericContentProvider.escapeName(namespace, entity);
+		if (tables.containsKey(table)) {
+			return;
+		}
+		for (FieldInfo field : entity.getFields()) {
+			if (field.dbType == DatabaseFieldType.ONE_TO_ONE) {
+				addTables(namespace, field.targetEntity, tables);
+			}
+		}
+		tables.put(table, entity);
+		for (FieldInfo field : entity.getFields()) {
+			if (field.dbType == DatabaseFieldType.ONE_TO_MANY_INT
+					|| field.dbType == DatabaseFieldType.ONE_TO_MANY_STRING) {
+				addTables(namespace, field.targetEntity, tables);
+			}
+		}
+	}
+
+	/**
+	 * Works out the steps of the migration without changing anything.
+	 * @param db the database to migrate
+	 * @return the steps with the number of rows they touch
+	 */
+	public final Estimate estimate(final SQLiteDatabase db) {
+		return new Estimate(getSteps(db));
+	}
+
+	/**
+	 * Migrates the database. The database must not be inside a
+	 * transaction, each step runs in transactions of its own.
+	 * @param db the database to migrate
+	 * @param monitor the monitor to report progress to
+	 */
+	public final void migrate(final SQLiteDatabase db,
+			final ProgressMonitor monitor) {
+		List<Step> steps = getSteps(db);
+		monitor.start(steps.size());
+		for (Step step : steps) {
+			LOG.debug("Migration step: {}", step);
+			switch (step.mAction) {
+			case CREATE:
+				createTable(db, step.mTable, step.mNew, monitor);
+				break;
+			case ALTER:
+				addColumns(db, step.mTable, step.mOld, step.mNew, monitor);
+				break;
+			case REBUILD:
+				rebuildTable(db, step.mTable, step.mOld, step.mNew,
+						step.mRows, monitor);
+				break;
+			case REFILL:
+				refillEnumValues(db, step.mTable, step.mNew, monitor);
+				break;
+			case REMAP:
+				remapColumn(db, step.mTable, step.mColumn, step.mRemap,
+						monitor);
+				break;
+			case DROP:
+				monitor.beginTask("Dropping " + step.mTable,
+						ProgressMonitor.UNKNOWN);
+				db.execSQL("DROP TABLE IF EXISTS " + step.mTable);
+				monitor.endTask();
+				break;
+			default:
+				throw new IllegalStateException("Unknown step: " + step);
+			}
+		}
+	}
+
+	/**
+	 * Drops what the migration recorded about its progress. This is
+	 * called once the database is marked as migrated, so a retry of an
+	 * interrupted migration still finds the progress.
+	 * @param db the migrated database
+	 */
+	public final void finish(final SQLiteDatabase db) {
+		db.execSQL("DROP TABLE IF EXISTS " + REMAPPED_TABLE);
+	}
+
+	/**
+	 * Works out the steps of the migration.
+	 * @param db the database to migrate
+	 * @return the steps in the order they are taken
+	 */
+	private List<Step> getSteps(final SQLiteDatabase db) {
+		List<Step> steps = new ArrayList<Step>();
+		for (Map.Entry<String, EntityInfo> entry : mNewTables.entrySet()) {
+			String table = entry.getKey();
+			EntityInfo entity = entry.getValue();
+			EntityInfo old = mOldTables.get(table);
+			if (old == null) {
+				steps.add(new Step(Step.Action.CREATE, table, null, entity,
+						null, null, enumSize(entity)));
+			} else {
+				Step.Action action = getAction(old, entity);
+				if (action == Step.Action.REBUILD) {
+					steps.add(new Step(action, table, old, entity, null, null,
+							DatabaseUtils.queryNumEntries(db, table)));
+				} else if (action == Step.Action.REFILL) {
+					steps.add(new Step(action, table, old, entity, null, null,
+							enumSize(entity)));
+				} else if (action != null) {
+					steps.add(new Step(action, table, old, entity, null, null,
+							0));
+				} else {
+					LOG.debug("Table unchanged: {}", table);
+				}
+			}
+		}
+		addRemapSteps(db, steps);
+		for (Map.Entry<String, EntityInfo> entry : mOldTables.entrySet()) {
+			if (!mNewTables.containsKey(entry.getKey())) {
+				steps.add(new Step(Step.Action.DROP, entry.getKey(),
+						entry.getValue(), null, null, null, 0));
+			}
+		}
+		return steps;
+	}
+
+	/**
+	 * Adds a step for each column holding an enumeration whose ordinals
+	 * moved.
+	 * @param db the database to migrate
+	 * @param steps the steps so far
+	 */
+	private void addRemapSteps(final SQLiteDatabase db,
+			final List<Step> steps) {
+		for (String enumName : mPlan.getRemappedEnums()) {
+			Map<Integer, Integer> remap = mPlan.getEnumRemap(enumName);
+			for (Map.Entry<String, EntityInfo> entry
+					: mNewTables.entrySet()) {
+				EntityInfo old = mOldTables.get(entry.getKey());
+				if (old == null) {
+					continue;
+				}
+				Map<String, String> oldColumns =
+						DatabaseInitializer.getColumns(mNamespace, old);
+				for (FieldInfo field : entry.getValue().getFields()) {
+					String column =
+							GenericContentProvider.sanitize(field.fieldName);
+					if (field.dbType == DatabaseFieldType.ONE_TO_ONE
+							&& field.targetEntity.enumValues != null
+							&& enumName.equals(
+									field.targetEntity.getFullName())
+							&& oldColumns.containsKey(column)) {
+						steps.add(new Step(Step.Action.REMAP, entry.getKey(),
+								old, entry.getValue(), column, remap,
+								DatabaseUtils.queryNumEntries(db,
+										entry.getKey())));
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param entity an entity
+	 * @return the number of enumeration values of the entity
+	 */
+	private static long enumSize(final EntityInfo entity) {
+		if (entity.enumValues == null) {
+			return 0;
+		}
+		return entity.enumValues.size();
+	}
+
+	/**
+	 * Creates a new table.
+	 * @param db the database to create in
+	 * @param table the escaped name of the table
+	 * @param entity the entity the table is for
+	 * @param monitor the monitor to report progress to
+	 */
+	private void createTable(final SQLiteDatabase db, final String table,
+			final EntityInfo entity, final ProgressMonitor monitor) {
+		monitor.beginTask("Creating " + table, ProgressMonitor.UNKNOWN);
+		LOG.debug("Creating table: {}", table);
+		db.beginTransaction();
+		try {
+			db.execSQL("DROP TABLE IF EXISTS " + table);
+			db.execSQL(DatabaseInitializer.createTableSql(mNamespace, entity,
+					table));
+			DatabaseInitializer.fillEnumValues(db, entity, table);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		monitor.endTask();
+	}
+
+	/**
+	 * Decides how to migrate a table which exists in both versions.
+	 * @param old the entity the table was built for
+	 * @param entity the entity the table is migrated to
+	 * @return the action to take or null if the table is unchanged
+	 */
+	private Step.Action getAction(final EntityInfo old,
+			final EntityInfo entity) {
+		Map<String, String> oldColumns =
+				DatabaseInitializer.getColumns(mNamespace, old);
+		Map<String, String> newColumns =
+				DatabaseInitializer.getColumns(mNamespace, entity);
+		boolean sameKey = DatabaseInitializer.getKeyColumns(old).equals(
+				DatabaseInitializer.getKeyColumns(entity));
+
+		if (sameKey && oldColumns.equals(newColumns)) {
+			if (!sameEnumValues(old, entity)) {
+				return Step.Action.REFILL;
+			}
+			return null;
+		} else if (sameKey && isAdditive(oldColumns, newColumns)) {
+			return Step.Action.ALTER;
+		}
+		return Step.Action.REBUILD;
+	}
+
+	/**
+	 * @param old the entity the table was built for
+	 * @param entity the entity the table is migrated to
+	 * @return true if neither or both are enumerations with equal values
+	 */
+	private static boolean sameEnumValues(final EntityInfo old,
+			final EntityInfo entity) {
+		if (old.enumValues == null || entity.enumValues == null) {
+			return old.enumValues == entity.enumValues;
+		}
+		return old.enumValues.equals(entity.enumValues);
+	}
+
+	/**
+	 * Checks if the new columns only add to the old ones.
+	 * @param oldColumns the columns of the current table
+	 * @param newColumns the columns of the new table
+	 * @return true if the old columns are kept unchanged
+	 */
+	private static boolean isAdditive(final Map<String, String> oldColumns,
+			final Map<String, String> newColumns) {
+		for (Map.Entry<String, String> column : oldColumns.entrySet()) {
+			if (!column.getValue().equals(newColumns.get(column.getKey()))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Replaces the values of an enumeration table.
+	 * @param db the database to migrate
+	 * @param table the escaped name of the table
+	 * @param entity the entity the table is migrated to
+	 * @param monitor the monitor to report progress to
+	 */
+	private void refillEnumValues(final SQLiteDatabase db, final String table,
+			final EntityInfo entity, final ProgressMonitor monitor) {
+		monitor.beginTask("Updating " + table, ProgressMonitor.UNKNOWN);
+		LOG.debug("Replacing enumeration values in: {}", table);
+		db.beginTransaction();
+		try {
+			db.delete(table, null, null);
+			DatabaseInitializer.fillEnumValues(db, entity, table);
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		monitor.endTask();
+	}
+
+	/**
+	 * Adds the new columns to a table in place. Columns the table already
+	 * has are skipped, since an interrupted migration may have added them
+	 * before the schema it started from was replaced.
+	 * @param db the database to migrate
+	 * @param table the escaped name of the table
+	 * @param old the entity the table was built for
+	 * @param entity the entity the table is migrated to
+	 * @param monitor the monitor to report progress to
+	 */
+	private void addColumns(final SQLiteDatabase db, final String table,
+			final EntityInfo old, final EntityInfo entity,
+			final ProgressMonitor monitor) {
+		Map<String, String> oldColumns =
+				DatabaseInitializer.getColumns(mNamespace, old);
+		Map<String, String> newColumns =
+				DatabaseInitializer.getColumns(mNamespace, entity);
+		monitor.beginTask("Altering " + table, ProgressMonitor.UNKNOWN);
+		db.beginTransaction();
+		try {
+			Set<String> existing = getTableColumns(db, table);
+			for (Map.Entry<String, String> column : newColumns.entrySet()) {
+				if (!oldColumns.containsKey(column.getKey())
+						&& !existing.contains(unquote(column.getKey())
+								.toLowerCase(Locale.US))) {
+					LOG.debug("Adding column {} to {}", column.getKey(), table);
+					db.execSQL("ALTER TABLE " + table + " ADD COLUMN "
+							+ column.getKey() + " " + column.getValue());
+				}
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		monitor.endTask();
+	}
+
+	/**
+	 * @param db the database
+	 * @param table the escaped name of the table
+	 * @return the names of the columns the table has, in lower case
+	 */
+	private static Set<String> getTableColumns(final SQLiteDatabase db,
+			final String table) {
+		Set<String> columns = new HashSet<String>();
+		Cursor cursor = db.rawQuery("PRAGMA table_info(" + table + ")",
+				null);
+		try {
+			int name = cursor.getColumnIndexOrThrow("name");
+			while (cursor.moveToNext()) {
+				columns.add(cursor.getString(name).toLowerCase(Locale.US));
+			}
+		} finally {
+			cursor.close();
+		}
+		return columns;
+	}
+
+	/**
+	 * Rebuilds a table beside the current one, copying the columns both
+	 * versions have, then swaps the new table in.
+	 * @param db the database to migrate
+	 * @param table the escaped name of the table
+	 * @param old the entity the table was built for
+	 * @param entity the entity the table is migrated to
+	 * @param rows the number of rows in the table
+	 * @param monitor the monitor to report progress to
+	 */
+	private void rebuildTable(final SQLiteDatabase db, final String table,
+			final EntityInfo old, final EntityInfo entity, final long rows,
+			final ProgressMonitor monitor) {
+		String rebuild = quote(unquote(table) + REBUILD_SUFFIX);
+		List<String> columns = new ArrayList<String>(
+				DatabaseInitializer.getColumns(mNamespace, entity).keySet());
+		columns.retainAll(
+				DatabaseInitializer.getColumns(mNamespace, old).keySet());
+		List<String> key = DatabaseInitializer.getKeyColumns(entity);
+		// Writes can only be followed if the key is copied over.
+		boolean online = columns.containsAll(key);
+
+		monitor.beginTask("Rebuilding " + table, (int) Math.min(rows,
+				Integer.MAX_VALUE));
+		LOG.debug("Rebuilding table {} with {} rows", table, rows);
+
+		db.beginTransaction();
+		try {
+			db.execSQL("DROP TABLE IF EXISTS " + rebuild);
+			db.execSQL(DatabaseInitializer.createTableSql(mNamespace, entity,
+					rebuild));
+			if (online) {
+				createTriggers(db, table, rebuild, columns, key);
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+
+		String copy = "INSERT OR REPLACE INTO " + rebuild + " ("
+				+ join(columns, ", ") + ") SELECT " + join(columns, ", ")
+				+ " FROM " + table;
+		if (online && !columns.isEmpty()) {
+			long maxRowId = DatabaseUtils.longForQuery(db,
+					"SELECT ifnull(max(rowid), 0) FROM " + table, null);
+			for (long low = 0; low < maxRowId; low += BATCH_ROWS) {
+				db.beginTransaction();
+				try {
+					db.execSQL(copy + " WHERE rowid > " + low
+							+ " AND rowid <= " + (low + BATCH_ROWS));
+					monitor.update((int) DatabaseUtils.longForQuery(db,
+							"SELECT changes()", null));
+					db.setTransactionSuccessful();
+				} finally {
+					db.endTransaction();
+				}
+			}
+		}
+
+		db.beginTransaction();
+		try {
+			if (online) {
+				dropTriggers(db, rebuild);
+			} else if (!columns.isEmpty()) {
+				// Copy everything while the swap holds off writers.
+				db.execSQL(copy);
+				monitor.update((int) Math.min(rows, Integer.MAX_VALUE));
+			}
+			db.execSQL("DROP TABLE " + table);
+			db.execSQL("ALTER TABLE " + rebuild + " RENAME TO " + table);
+			if (entity.enumValues != null) {
+				db.delete(table, null, null);
+				DatabaseInitializer.fillEnumValues(db, entity, table);
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		monitor.endTask();
+	}
+
+	/**
+	 * Rewrites the enumeration ordinals stored in a column. Unlike a copy
+	 * this can not be repeated safely, so the whole column is rewritten in
+	 * one transaction which also records that it was done.
+	 * @param db the database to migrate
+	 * @param table the escaped name of the table
+	 * @param column the sanitized name of the column
+	 * @param remap the new ordinal of each old one, null for removed ones
+	 * @param monitor the monitor to report progress to
+	 */
+	private void remapColumn(final SQLiteDatabase db,
+			final String table, final String column,
+			final Map<Integer, Integer> remap, final ProgressMonitor monitor) {
+		StringBuilder update = new StringBuilder("UPDATE ");
+		update.append(table).append(" SET ").append(column);
+		update.append(" = CASE ").append(column);
+		for (Map.Entry<Integer, Integer> ordinal : remap.entrySet()) {
+			update.append(" WHEN ").append(ordinal.getKey());
+			update.append(" THEN ").append(ordinal.getValue() == null
+					? "NULL" : ordinal.getValue().toString());
+		}
+		update.append(" ELSE ").append(column).append(" END");
+
+		String[] done = new String[] {table, column, mPlan.getTarget()};
+		monitor.beginTask("Remapping " + table + "." + column, 1);
+		db.beginTransaction();
+		try {
+			db.execSQL("CREATE TABLE IF NOT EXISTS " + REMAPPED_TABLE
+					+ " (tbl TEXT, col TEXT, target TEXT,"
+					+ " PRIMARY KEY (tbl, col, target))");
+			if (DatabaseUtils.longForQuery(db, "SELECT count(*) FROM "
+					+ REMAPPED_TABLE
+					+ " WHERE tbl = ? AND col = ? AND target = ?",
+					done) > 0) {
+				LOG.debug("Already remapped: {}.{}", table, column);
+			} else {
+				db.execSQL(update.toString());
+				db.execSQL("INSERT INTO " + REMAPPED_TABLE
+						+ " (tbl, col, target) VALUES (?, ?, ?)", done);
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		monitor.update(1);
+		monitor.endTask();
+	}
+
+	/**
+	 * Creates the triggers copying writes to the current table into the
+	 * table it is rebuilt in. They are temporary, so they go away with the
+	 * connection if the migration is interrupted.
+	 * @param db the database to migrate
+	 * @param table the escaped name of the current table
+	 * @param rebuild the escaped name of the table being built
+	 * @param columns the columns being copied
+	 * @param key the key columns, a subset of the copied columns
+	 */
+	private static void createTriggers(final SQLiteDatabase db,
+			final String table, final String rebuild,
+			final List<String> columns, final List<String> key) {
+		String insert = "INSERT OR REPLACE INTO " + rebuild + " ("
+				+ join(columns, ", ") + ") VALUES ("
+				+ join(prefix("NEW.", columns), ", ") + ");";
+		String delete = "DELETE FROM " + rebuild + " WHERE "
+				+ join(matchOld(key), " AND ") + ";";
+		db.execSQL("CREATE TEMP TRIGGER " + trigger(rebuild, "insert")
+				+ " AFTER INSERT ON main." + table + " BEGIN " + insert
+				+ " END");
+		db.execSQL("CREATE TEMP TRIGGER " + trigger(rebuild, "update")
+				+ " AFTER UPDATE ON main." + table + " BEGIN " + delete + " "
+				+ insert + " END");
+		db.execSQL("CREATE TEMP TRIGGER " + trigger(rebuild, "delete")
+				+ " AFTER DELETE ON main." + table + " BEGIN " + delete
+				+ " END");
+	}
+
+	/**
+	 * Drops the triggers made by
+	 * {@link #createTriggers(SQLiteDatabase, String, String, List, List)}.
+	 * @param db the database being migrated
+	 * @param rebuild the escaped name of the table being built
+	 */
+	private static void dropTriggers(final SQLiteDatabase db,
+			final String rebuild) {
+		for (String event : new String[] {"insert", "update", "delete"}) {
+			db.execSQL("DROP TRIGGER IF EXISTS " + trigger(rebuild, event));
+		}
+	}
+
+	/**
+	 * @param rebuild the escaped name of the table being built
+	 * @param event the event the trigger fires on
+	 * @return the escaped name of the trigger
+	 */
+	private static String trigger(final String rebuild, final String event) {
+		return quote(unquote(rebuild) + "_" + event);
+	}
+
+	/**
+	 * @param key the key columns
+	 * @return conditions matching the key of the old row
+	 */
+	private static List<String> matchOld(final List<String> key) {
+		List<String> conditions = new ArrayList<String>();
+		for (String column : key) {
+			conditions.add(column + " = OLD." + column);
+		}
+		return conditions;
+	}
+
+	/**
+	 * @param prefix the prefix to add
+	 * @param values the values to prefix
+	 * @return the prefixed values
+	 */
+	private static List<String> prefix(final String prefix,
+			final List<String> values) {
+		List<String> result = new ArrayList<String>();
+		for (String value : values) {
+			result.add(prefix + value);
+		}
+		return result;
+	}
+
+	/**
+	 * @param values the values to join
+	 * @param separator the separator to put between them
+	 * @return the joined values
+	 */
+	private static String join(final List<String> values,
+			final String separator) {
+		StringBuilder result = new StringBuilder();
+		for (String value : values) {
+			if (result.length() > 0) {
+				result.append(separator);
+			}
+			result.append(value);
+		}
+		return result.toString();
+	}
+
+	/**
+	 * @param name an escaped name
+	 * @return the name without the surrounding quotes
+	 */
+	private static String unquote(final String name) {
+		if (name.startsWith("\"") && name.endsWith("\"")) {
+			return name.substring(1, name.length() - 1);
+		}
+		return name;
+	}
+
+	/**
+	 * @param name a name without quotes
+	 * @return the escaped name
+	 */
+	private static String quote(final String name) {
+		return "\"" + name + "\"";
+	}
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.content;
+
+import interdroid.vdb.content.metadata.DatabaseFieldType;
+import interdroid.vdb.content.metadata.EntityInfo;
+import interdroid.vdb.content.metadata.FieldInfo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.database.Cursor;
+
+/**
+ * Maps the rows of a cursor over an entity to objects. The column of each
+ * field is looked up once when the mapper is bound to a cursor instead of
+ * once per row, and {@link #scan(RowHandler)} fills a single object for
+ * every row so large results can be read without allocating per row.
+ *
+ * Subclasses create the objects and copy a single field into them. The
+ * fields are numbered in the order they were given to the constructor so
+ * subclasses can switch on the number.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ * @param <T> the type of object rows are mapped to
+ */
+public abstract class RowMapper<T> {
+
+	/**
+	 * Receives the rows of a scan.
+	 *
+	 * @param <T> the type of object rows are mapped to
+	 */
+	public interface RowHandler<T> {
+		/**
+		 * Called for each row. The row object is reused for the next row
+		 * so it must be copied if it is kept.
+		 * @param row the mapped row
+		 * @return false to stop the scan
+		 */
+		boolean onRow(T row);
+	}
+
+	/**
+	 * The fields being mapped.
+	 */
+	private final FieldInfo[] mFields;
+
+	/**
+	 * The column of each field in the bound cursor, -1 if missing.
+	 */
+	private final int[] mColumns;
+
+	/**
+	 * The cursor being mapped or null.
+	 */
+	private Cursor mCursor;
+
+	/**
+	 * Construct a mapper for the given fields of an entity.
+	 * @param entity the entity the rows belong to
+	 * @param fieldNames the fields to map, or none to map every field
+	 * which has a column
+	 */
+	protected RowMapper(final EntityInfo entity, final String... fieldNames) {
+		List<FieldInfo> fields = new ArrayList<FieldInfo>();
+		if (fieldNames.length == 0) {
+			for (FieldInfo field : entity.getFields()) {
+				if (field.dbType != DatabaseFieldType.ONE_TO_MANY_INT
+						&& field.dbType
+						!= DatabaseFieldType.ONE_TO_MANY_STRING) {
+					fields.add(field);
+				}
+			}
+		} else {
+			for (String name : fieldNames) {
+				FieldInfo field = entity.fields.get(name);
+				if (field == null) {
+					throw new IllegalArgumentException("No field " + name
+							+ " in " + entity.getFullName());
+				}
+				fields.add(field);
+			}
+		}
+		mFields = fields.toArray(new FieldInfo[fields.size()]);
+		mColumns = new int[mFields.length];
+	}
+
+	/**
+	 * @return the number of fields being mapped
+	 */
+	public final int getFieldCount() {
+		return mFields.length;
+	}
+
+	/**
+	 * @param field the number of a field
+	 * @return the information on the field
+	 */
+	public final FieldInfo getField(final int field) {
+		return mFields[field];
+	}
+
+	/**
+	 * Binds this mapper to a cursor, looking up the column of each field.
+	 * Fields the cursor lacks are skipped.
+	 * @param cursor the cursor to map
+	 * @return this mapper
+	 */
+	public final RowMapper<T> bind(final Cursor cursor) {
+		mCursor = cursor;
+		for (int i = 0; i < mFields.length; i++) {
+			mColumns[i] = cursor.getColumnIndex(mFields[i].fieldName);
+		}
+		return this;
+	}
+
+	/**
+	 * Checks this mapper is bound to a cursor.
+	 */
+	private void checkBound() {
+		if (mCursor == null) {
+			throw new IllegalStateException("Not bound to a cursor.");
+		}
+	}
+
+	/**
+	 * Creates an object to map a row to.
+	 * @return the new object
+	 */
+	protected abstract T newRow();
+
+	/**
+	 * Copies a field of the current row into an object.
+	 * @param row the object to fill
+	 * @param field the number of the field
+	 * @param cursor the cursor, positioned on the row
+	 * @param column the column of the field in the cursor
+	 */
+	protected abstract void readField(T row, int field, Cursor cursor,
+			int column);
+
+	/**
+	 * Maps the row the bound cursor is positioned on.
+	 * @param reuse an object to fill or null to create one
+	 * @return the filled object
+	 */
+	public final T read(final T reuse) {
+		checkBound();
+		T row = reuse;
+		if (row == null) {
+			row = newRow();
+		}
+		for (int i = 0; i < mFields.length; i++) {
+			if (mColumns[i] >= 0) {
+				readField(row, i, mCursor, mColumns[i]);
+			}
+		}
+		return row;
+	}
+
+	/**
+	 * Maps the remaining rows of the bound cursor to new objects.
+	 * @return the mapped rows
+	 */
+	public final List<T> readAll() {
+		checkBound();
+		List<T> rows = new ArrayList<T>();
+		while (mCursor.moveToNext()) {
+			rows.add(read(null));
+		}
+		return rows;
+	}
+
+	/**
+	 * Maps the remaining rows of the bound cursor into a single object
+	 * which is handed to the handler for each row.
+	 * @param handler the handler for the rows
+	 * @return the number of rows handled
+	 */
+	public final int scan(final RowHandler<T> handler) {
+		checkBound();
+		T row = null;
+		int count = 0;
+		while (mCursor.moveToNext()) {
+			row = read(row);
+			count++;
+			if (!handler.onRow(row)) {
+				break;
+			}
+		}
+		return count;
+	}
+}
@@ -89,6 +89,11 @@ public class VdbConfig {
 		 * The avro schema for the repository if there is one.
 		 */
 		private String mAvroSchema = null;
+		/**
+		 * True if the repository should be opened in the background at
+		 * startup instead of on first use.
+		 */
+		private boolean mPrewarm;
 
 		/**
 		 * Can only be constructed with no arguments here.
@@ -139,6 +144,8 @@ public class VdbConfig {
 			obj.mName = xpp.getAttributeValue(/* namespace */ null, "name");
 			obj.mContentProvider = xpp.getAttributeValue(/* namespace */ null,
 					"contentProvider");
+			obj.mPrewarm = Boolean.parseBoolean(xpp.getAttributeValue(
+					/* namespace */ null, "prewarm"));
 			if (obj.getName() == null || obj.getContentProvider() == null) {
 				throw new XmlPullParserException("Missing mandatory attributes"
 						+ " for repository.");
@@ -172,6 +179,14 @@ public class VdbConfig {
 			return mAvroSchema;
 		}
 
+		/**
+		 * @return true if the repository should be opened in the
+		 * background at startup
+		 */
+		public final boolean isPrewarm() {
+			return mPrewarm;
+		}
+
 	}
 
 	/**
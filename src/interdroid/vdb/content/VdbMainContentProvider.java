@@ -32,8 +32,6 @@ package interdroid.vdb.content;
 
 import interdroid.vdb.Authority;
 
-import java.io.IOException;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -84,12 +82,9 @@ public class VdbMainContentProvider extends ContentProvider {
 			final ProviderInfo info) {
 		super.attachInfo(context, info);
 
-		try {
-			mRegistry = new VdbProviderRegistry(context);
-		} catch (IOException e) {
-			LOG.error("Caught an exception while building registry", e);
-			e.printStackTrace();
-		}
+		mRegistry = VdbProviderRegistry.getInstance(context);
+		// Everything else is built on first use or in the background.
+		mRegistry.prewarmConfigured();
 	}
 
 	@Override
@@ -38,14 +38,24 @@ import interdroid.vdb.content.avro.AvroContentProvider;
 import interdroid.vdb.content.avro.AvroProviderRegistry;
 import interdroid.vdb.content.avro.AvroSchemaRegistrationHandler;
 import interdroid.vdb.persistence.api.VdbInitializer;
-import interdroid.vdb.persistence.api.VdbRepository;
 import interdroid.vdb.persistence.api.VdbRepositoryRegistry;
+import interdroid.vdb.persistence.impl.RepositoryListing;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -57,6 +67,14 @@ import android.net.Uri;
 /**
  * This class acts as a registry for content providers within the VDB system.
  *
+ * Startup is kept cheap: constructing the registry only records the
+ * repositories named in the configuration file. The Avro repositories are
+ * read from the schema registry the first time they are needed, and the
+ * provider and repository for each are only built on first access.
+ * Repositories which are known to be needed soon can be built ahead of
+ * time on background threads with {@link #prewarm(Collection)}. The time
+ * taken by each step is available from {@link #getStartupTimings()}.
+ *
  * @author nick &lt;palmer@cs.vu.nl&gt;
  *
  */
@@ -80,8 +98,71 @@ public class VdbProviderRegistry {
 	/**
 	 * Hash of information about the repositories we know about.
 	 */
-	private static final Map<String, RepositoryInfo> REPOS =
-			new HashMap<String, RepositoryInfo>();
+	private static final ConcurrentMap<String, RepositoryInfo> REPOS =
+			new ConcurrentHashMap<String, RepositoryInfo>();
+
+	/**
+	 * The number of threads building providers in the background.
+	 */
+	private static final int PREWARM_THREADS = 2;
+
+	/**
+	 * Seconds an idle background thread is kept around.
+	 */
+	private static final int PREWARM_KEEP_ALIVE = 30;
+
+	/**
+	 * The name of the timing for reading the configuration file.
+	 */
+	private static final String TIMING_CONFIG = "config";
+
+	/**
+	 * The name of the timing for reading the Avro repositories.
+	 */
+	private static final String TIMING_AVRO = "avro";
+
+	/**
+	 * The prefix of the timings for building providers.
+	 */
+	private static final String TIMING_PROVIDER = "provider ";
+
+	/**
+	 * Guards reading the configuration file.
+	 */
+	private static final Object CONFIG_LOCK = new Object();
+
+	/**
+	 * Guards reading the Avro repositories.
+	 */
+	private static final Object AVRO_LOCK = new Object();
+
+	/**
+	 * True once the configuration file was read.
+	 */
+	private static volatile boolean sConfigLoaded;
+
+	/**
+	 * True once the Avro repositories were read.
+	 */
+	private static volatile boolean sAvroLoaded;
+
+	/**
+	 * True while the Avro repositories are being read. Only the loading
+	 * thread, which holds AVRO_LOCK, can see this set, so lookups it
+	 * makes while loading do not recurse. Guarded by AVRO_LOCK.
+	 */
+	private static boolean sAvroLoading;
+
+	/**
+	 * The milliseconds taken by each step of starting up, in order.
+	 */
+	private static final Map<String, Long> TIMINGS =
+			Collections.synchronizedMap(new LinkedHashMap<String, Long>());
+
+	/**
+	 * The executor building providers in the background.
+	 */
+	private static ThreadPoolExecutor sPrewarmExecutor;
 
 	/**
 	 * Constant for the key of the repository name.
@@ -112,9 +193,10 @@ public class VdbProviderRegistry {
 		private final RepositoryConf mConf;
 
 		/**
-		 * The generic content provider for this repository.
+		 * The generic content provider for this repository. Only set once
+		 * the provider is fully built.
 		 */
-		private GenericContentProvider mProvider = null;
+		private volatile GenericContentProvider mProvider = null;
 
 		/**
 		 * Constructs with the given configuration.
@@ -137,34 +219,138 @@ public class VdbProviderRegistry {
 		}
 	}
 
+	/**
+	 * The registry shared by everything in this process.
+	 */
+	private static volatile VdbProviderRegistry sInstance;
+
 	/**
 	 * Constructs the provider registry for use in the given context.
 	 * @param context the context to work in
-	 * @throws IOException if the database can not be accessed
 	 */
-	public VdbProviderRegistry(final Context context) throws IOException {
+	private VdbProviderRegistry(final Context context) {
 		mContext = context;
+		loadConfig();
+	}
 
-		if (REPOS.size() == 0) {
+	/**
+	 * Returns the provider registry, constructing it on first use. The
+	 * registry holds on to the application context and lives as long as
+	 * the process.
+	 * @param context a context to take the application context from
+	 * @return the provider registry
+	 */
+	public static VdbProviderRegistry getInstance(final Context context) {
+		VdbProviderRegistry registry = sInstance;
+		if (registry == null) {
+			synchronized (VdbProviderRegistry.class) {
+				registry = sInstance;
+				if (registry == null) {
+					Context application = context.getApplicationContext();
+					if (application == null) {
+						application = context;
+					}
+					registry = new VdbProviderRegistry(application);
+					sInstance = registry;
+				}
+			}
+		}
+		return registry;
+	}
+
+	/**
+	 * Registers the repositories in the configuration file, once.
+	 */
+	private void loadConfig() {
+		if (sConfigLoaded) {
+			return;
+		}
+		synchronized (CONFIG_LOCK) {
+			if (sConfigLoaded) {
+				return;
+			}
 			LOG.debug("Initializing static repositories.");
+			long start = System.currentTimeMillis();
 			try {
-				VdbConfig config = new VdbConfig(context);
+				VdbConfig config = new VdbConfig(mContext);
 				initializeAll(config.getRepositories());
 			} catch (Exception e) {
 				// Ignore.
 				LOG.warn("Ignoring error while fetching ORM repositories.", e);
 			}
+			sConfigLoaded = true;
+			recordTiming(TIMING_CONFIG, start);
+		}
+	}
 
+	/**
+	 * Registers the repositories in the Avro schema registry, once. This
+	 * builds the provider of the schema registry itself.
+	 */
+	private void loadAvroRepositories() {
+		if (sAvroLoaded) {
+			return;
+		}
+		// Other threads wait here until loading is done.
+		synchronized (AVRO_LOCK) {
+			if (sAvroLoaded || sAvroLoading) {
+				return;
+			}
+			// Looking up the schema registry must not recurse.
+			sAvroLoading = true;
 			LOG.debug("Initializing Avro Repos.");
-			List<RepositoryConf> infos =
-					((AvroProviderRegistry) get(
-							AvroSchemaRegistrationHandler.URI))
-							.getAllRepositories();
-			initializeAll(infos);
+			long start = System.currentTimeMillis();
+			try {
+				List<RepositoryConf> infos =
+						((AvroProviderRegistry) get(
+								AvroSchemaRegistrationHandler.URI))
+								.getAllRepositories();
+				initializeAll(infos);
+				sAvroLoaded = true;
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			} finally {
+				sAvroLoading = false;
+			}
+			recordTiming(TIMING_AVRO, start);
 			LOG.debug("All repositories registered.");
 		}
 	}
 
+	/**
+	 * Records the time a step of starting up took.
+	 * @param step the name of the step
+	 * @param start the time the step started
+	 */
+	private static void recordTiming(final String step, final long start) {
+		long millis = System.currentTimeMillis() - start;
+		TIMINGS.put(step, millis);
+		LOG.info("Startup step {} took {}ms", step, millis);
+	}
+
+	/**
+	 * @return the milliseconds taken by each step of starting up so far,
+	 * in the order the steps finished
+	 */
+	public static Map<String, Long> getStartupTimings() {
+		synchronized (TIMINGS) {
+			return new LinkedHashMap<String, Long>(TIMINGS);
+		}
+	}
+
+	/**
+	 * @param name the name of a repository
+	 * @return the information on the repository or null if it is not known
+	 */
+	private RepositoryInfo getInfo(final String name) {
+		RepositoryInfo info = REPOS.get(name);
+		if (info == null) {
+			loadAvroRepositories();
+			info = REPOS.get(name);
+		}
+		return info;
+	}
+
 	/**
 	 * Initializes all repositories in the given list.
 	 * @param repositories the list of repositories
@@ -184,9 +370,8 @@ public class VdbProviderRegistry {
 	 */
 	public final void registerRepository(final RepositoryConf repoConf) {
 		RepositoryInfo repoInfo = new RepositoryInfo(repoConf);
-		if (!REPOS.containsKey(repoInfo.getConf().getName())) {
+		if (REPOS.putIfAbsent(repoConf.getName(), repoInfo) == null) {
 			LOG.debug("Storing into repoInfos: {}", repoInfo.getConf());
-			REPOS.put(repoInfo.getConf().getName(), repoInfo);
 		}
 	}
 
@@ -212,25 +397,36 @@ public class VdbProviderRegistry {
 	 */
 	private void buildProvider(final Context context, final RepositoryInfo info)
 			throws IOException {
+		if (info.getProvider() != null) {
+			return;
+		}
 		LOG.debug("Building provider for: {}", info.getConf());
 		try {
-			if (info.getProvider() == null) {
+			// Built once, even if several threads want it at the same time.
+			synchronized (info) {
+				if (info.getProvider() != null) {
+					return;
+				}
+				long start = System.currentTimeMillis();
+				GenericContentProvider provider;
 				if (info.getConf().getAvroSchema() != null) {
-					info.setProvider(
-							new AvroContentProvider(info.getConf().getAvroSchema()));
+					provider = new AvroContentProvider(
+							info.getConf().getAvroSchema());
 				} else {
-					info.setProvider((GenericContentProvider)
+					provider = (GenericContentProvider)
 							Class.forName(
 									info.getConf().getContentProvider())
-									.newInstance());
+									.newInstance();
 				}
 				initializeRepo(mContext, info.getConf().getName(),
-						info.getProvider().buildInitializer());
+						provider.buildInitializer());
 
 				// Do this at the end, since onCreate will be called in child
 				// We want everything to be registered prior to this happening.
 				LOG.debug("Attaching context: {} to provider.", context);
-				info.getProvider().attachInfo(context, null);
+				provider.attachInfo(context, null);
+				info.setProvider(provider);
+				recordTiming(TIMING_PROVIDER + info.getConf().getName(), start);
 				LOG.debug("Initialized Repository: " + info.getConf().getName());
 			}
 		} catch (IllegalAccessException e) {
@@ -248,7 +444,7 @@ public class VdbProviderRegistry {
 	 */
 	public final ContentProvider get(final Uri uri) {
 		UriMatch match = EntityUriMatcher.getMatch(uri);
-		RepositoryInfo info = REPOS.get(match.repositoryName);
+		RepositoryInfo info = getInfo(match.repositoryName);
 		validateUri(uri, info, match);
 		try {
 			buildProvider(mContext, info);
@@ -283,7 +479,7 @@ public class VdbProviderRegistry {
 	 */
 	public final String getType(final Uri uri) {
 		UriMatch match = EntityUriMatcher.getMatch(uri);
-		RepositoryInfo info = REPOS.get(match.repositoryName);
+		RepositoryInfo info = getInfo(match.repositoryName);
 		String type = null;
 
 		if (info == null) {
@@ -328,7 +524,11 @@ public class VdbProviderRegistry {
 	 * @param name the name of the repository to initialize
 	 */
 	public final void initByName(final String name) {
-		RepositoryInfo info = REPOS.get(name);
+		RepositoryInfo info = getInfo(name);
+		if (info == null) {
+			throw new IllegalArgumentException(
+					"Unregistered repository: " + name);
+		}
 		try {
 			buildProvider(mContext, info);
 		} catch (IOException e) {
@@ -336,10 +536,80 @@ public class VdbProviderRegistry {
 		}
 	}
 
+	/**
+	 * Builds the providers of the given repositories on background
+	 * threads, so they are ready by the time they are first used.
+	 * Repositories which are already built are skipped.
+	 * @param names the names of the repositories
+	 */
+	public final void prewarm(final Collection<String> names) {
+		ThreadPoolExecutor executor = getPrewarmExecutor();
+		for (final String name : names) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						initByName(name);
+					} catch (RuntimeException e) {
+						LOG.warn("Unable to prewarm " + name, e);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Reads the Avro repositories and builds the providers of the
+	 * repositories marked for prewarming in the configuration file, all on
+	 * background threads.
+	 */
+	public final void prewarmConfigured() {
+		getPrewarmExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					loadAvroRepositories();
+				} catch (RuntimeException e) {
+					LOG.warn("Unable to read Avro repositories", e);
+				}
+			}
+		});
+		List<String> names = new ArrayList<String>();
+		for (RepositoryInfo info : REPOS.values()) {
+			if (info.getConf().isPrewarm()) {
+				names.add(info.getConf().getName());
+			}
+		}
+		prewarm(names);
+	}
+
+	/**
+	 * @return the executor building providers in the background
+	 */
+	private static synchronized ThreadPoolExecutor getPrewarmExecutor() {
+		if (sPrewarmExecutor == null) {
+			final AtomicInteger count = new AtomicInteger();
+			sPrewarmExecutor = new ThreadPoolExecutor(PREWARM_THREADS,
+					PREWARM_THREADS, PREWARM_KEEP_ALIVE, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				@Override
+				public Thread newThread(final Runnable r) {
+					Thread thread = new Thread(r,
+							"vdb-prewarm-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			sPrewarmExecutor.allowCoreThreadTimeOut(true);
+		}
+		return sPrewarmExecutor;
+	}
+
 	/**
 	 * @return all repositories we know of.
 	 */
 	public final List<Map<String, Object>> getAllRepositories() {
+		loadAvroRepositories();
 		ArrayList<Map<String, Object>> repositories =
 				new ArrayList<Map<String, Object>>();
 		for (RepositoryInfo info : REPOS.values()) {
@@ -360,6 +630,7 @@ public class VdbProviderRegistry {
 	 * @return a list of all repository names
 	 */
 	public final List<String> getAllRepositoryNames() {
+		loadAvroRepositories();
 		ArrayList<String> repositories = new ArrayList<String>();
 		for (RepositoryInfo info : REPOS.values()) {
 			// We exclude all interdroid repositories
@@ -377,6 +648,7 @@ public class VdbProviderRegistry {
 	 */
 	public final List<Map<String, Object>> getAllRepositories(
 			final String email) throws IOException {
+		loadAvroRepositories();
 		List<Map<String, Object>> result = new ArrayList<Map<String, Object>>();
 		LOG.debug("Getting repos for: {}", email);
 		for (RepositoryInfo info : REPOS.values()) {
@@ -384,18 +656,13 @@ public class VdbProviderRegistry {
 			if (!info.getConf().getName().startsWith("interdroid.vdb")) {
 				Map<String, Object> map = new HashMap<String, Object>();
 				map.put(REPOSITORY_NAME, info.getConf().getName());
-				// Make sure it is initialized
-				initByName(info.getConf().getName());
-				// Pull the repo out
-				VdbRepository repo = VdbRepositoryRegistry.getInstance()
-						.getRepository(mContext, info.getConf().getName());
-				// Is it a peer?
-				if (null != repo.getRemoteInfo(email)) {
-					map.put(REPOSITORY_IS_PEER, true);
-				} else {
-					map.put(REPOSITORY_IS_PEER, false);
-				}
-				map.put(REPOSITORY_IS_PUBLIC, repo.isPublic());
+				// The listing is kept up to date by the repositories so the
+				// providers do not need to be initialized for this.
+				RepositoryListing.Entry listing = VdbRepositoryRegistry
+						.getInstance().getListing(mContext,
+								info.getConf().getName());
+				map.put(REPOSITORY_IS_PEER, listing.isPeer(email));
+				map.put(REPOSITORY_IS_PUBLIC, listing.isPublic());
 				result.add(map);
 			}
 		}
@@ -405,5 +672,6 @@ public class VdbProviderRegistry {
 
 	public void unregister(String string) {
 		REPOS.remove(string);
+		RepositoryListing.getInstance().remove(string);
 	}
 }
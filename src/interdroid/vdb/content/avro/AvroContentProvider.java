@@ -113,12 +113,13 @@ public class AvroContentProvider extends GenericContentProvider {
 	}
 
 	/**
-	 * Constructs the metadata for this schema.
+	 * Constructs the metadata for this schema, or returns the metadata
+	 * built for the same schema before.
 	 * @param schema the schema to build metdata for
 	 * @return the metadata for this schema
 	 */
 	public static Metadata makeMetadata(final Schema schema) {
-		return new AvroMetadata(schema);
+		return AvroSchemaCache.getMetadata(schema);
 	}
 
 	/**
@@ -126,7 +127,7 @@ public class AvroContentProvider extends GenericContentProvider {
 	 * @param schema the schema as a string.
 	 */
 	public AvroContentProvider(final String schema) {
-		this(Schema.parse(schema));
+		this(AvroSchemaCache.parse(schema));
 	}
 
 	/**
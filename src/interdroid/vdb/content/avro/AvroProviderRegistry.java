@@ -39,9 +39,10 @@ import interdroid.vdb.content.EntityUriBuilder;
 import interdroid.vdb.content.VdbConfig.RepositoryConf;
 import interdroid.vdb.content.VdbProviderRegistry;
 import interdroid.vdb.content.metadata.DatabaseFieldType;
-import interdroid.vdb.content.orm.DbEntity;
-import interdroid.vdb.content.orm.DbField;
+import interdroid.vdb.content.orm.ORMEntityInfo;
+import interdroid.vdb.content.orm.ORMFieldInfo;
 import interdroid.vdb.content.orm.ORMGenericContentProvider;
+import interdroid.vdb.content.orm.ORMMetadata;
 import interdroid.vdb.persistence.api.VdbRepository;
 import interdroid.vdb.persistence.api.VdbRepositoryRegistry;
 
@@ -75,15 +76,11 @@ public class AvroProviderRegistry extends ORMGenericContentProvider {
 			.getLogger(AvroProviderRegistry.class);
 
 	/**
-	 * The registry configuration.
+	 * The registry configuration. The table itself is declared by
+	 * {@link AvroProviderRegistry#buildMetadata()}.
 	 * @author nick &lt;palmer@cs.vu.nl&gt;
 	 *
 	 */
-	@DbEntity(name = AvroSchemaRegistrationHandler.NAME,
-			itemContentType = "vnd.android.cursor.item/"
-					+ AvroSchemaRegistrationHandler.FULL_NAME,
-					contentType = "vnd.android.cursor.dir/"
-							+ AvroSchemaRegistrationHandler.FULL_NAME)
 	public static final class RegistryConf {
 		/**
 		 * No construction.
@@ -106,27 +103,23 @@ public class AvroProviderRegistry extends ORMGenericContentProvider {
 		/**
 		 * The ID field.
 		 */
-		@DbField(isID = true, dbType = DatabaseFieldType.INTEGER)
 		public static final String ID = "_id";
 
 		/**
 		 * The key field.
 		 */
-		@DbField(dbType = DatabaseFieldType.TEXT)
 		public static final String NAME =
 		AvroSchemaRegistrationHandler.KEY_NAME;
 
 		/**
 		 * The namespace field.
 		 */
-		@DbField(dbType = DatabaseFieldType.TEXT)
 		public static final String NAMESPACE =
 		AvroSchemaRegistrationHandler.KEY_NAMESPACE;
 
 		/**
 		 * The schema field.
 		 */
-		@DbField(dbType = DatabaseFieldType.TEXT)
 		public static final String SCHEMA =
 		AvroSchemaRegistrationHandler.KEY_SCHEMA;
 
@@ -141,7 +134,32 @@ public class AvroProviderRegistry extends ORMGenericContentProvider {
 	 * Construct a provider registry.
 	 */
 	public AvroProviderRegistry() {
-		super(AvroSchemaRegistrationHandler.NAMESPACE, RegistryConf.class);
+		super(AvroSchemaRegistrationHandler.NAMESPACE, buildMetadata());
+	}
+
+	/**
+	 * Declares the registry table. The registry is built on every start,
+	 * so this is spelled out rather than reflected from an annotated
+	 * class. The columns are named after the RegistryConf constants, as
+	 * they always have been.
+	 * @return the metadata for the registry
+	 */
+	private static ORMMetadata buildMetadata() {
+		return new ORMMetadata(AvroSchemaRegistrationHandler.NAMESPACE,
+				new ORMEntityInfo(AvroSchemaRegistrationHandler.NAMESPACE,
+						AvroSchemaRegistrationHandler.NAME,
+						"vnd.android.cursor.dir/"
+								+ AvroSchemaRegistrationHandler.FULL_NAME,
+						"vnd.android.cursor.item/"
+								+ AvroSchemaRegistrationHandler.FULL_NAME,
+						new ORMFieldInfo("ID", DatabaseFieldType.INTEGER,
+								true),
+						new ORMFieldInfo("NAME", DatabaseFieldType.TEXT,
+								false),
+						new ORMFieldInfo("NAMESPACE", DatabaseFieldType.TEXT,
+								false),
+						new ORMFieldInfo("SCHEMA", DatabaseFieldType.TEXT,
+								false)));
 	}
 
 	/**
@@ -185,6 +203,7 @@ public class AvroProviderRegistry extends ORMGenericContentProvider {
 	@Override
 	public final void onPostUpdate(final Uri uri, final ContentValues values,
 			final String where, final String[] whereArgs) {
+		AvroSchemaRegistrationHandler.invalidate();
 		// TODO: Finish implementation of schema migration.
 //		try {
 //			LOG.debug("Migrating DB: {} {}", values, whereArgs);
@@ -200,6 +219,7 @@ public class AvroProviderRegistry extends ORMGenericContentProvider {
 	public final void onPostInsert(final Uri uri,
 			final ContentValues userValues) {
 		LOG.debug("On post insert: {}", userValues);
+		AvroSchemaRegistrationHandler.invalidate();
 		String name = userValues.getAsString(
 				AvroSchemaRegistrationHandler.KEY_NAMESPACE);
 		String schema = userValues.getAsString(
@@ -212,27 +232,17 @@ public class AvroProviderRegistry extends ORMGenericContentProvider {
 	public final void onPostDelete(final Uri uri,
 			final String where, final String[] whereArgs) {
 		LOG.debug("Deleted avro repo: {}", whereArgs[0]);
+		AvroSchemaRegistrationHandler.invalidate();
 		VdbRepositoryRegistry.getInstance().deleteRepository(getContext(),
 				whereArgs[0]);
-		try {
-			new VdbProviderRegistry(getContext()).unregister(whereArgs[0]);
-		} catch (IOException e) {
-			// TODO: Auto-generated catch block
-			e.printStackTrace();
-		}
+		VdbProviderRegistry.getInstance(getContext()).unregister(whereArgs[0]);
 	}
 
 
 	private void registerRepository(final String namespace, final String schema) {
-		VdbProviderRegistry registry;
-		try {
-			LOG.debug("Registering avro repo: {} {}", namespace, schema);
-			registry = new VdbProviderRegistry(mContext);
-			registry.registerRepository(
-					new RepositoryConf(namespace, schema));
-		} catch (IOException e) {
-			throw new RuntimeException("Unable to build registry: ", e);
-		}
+		LOG.debug("Registering avro repo: {} {}", namespace, schema);
+		VdbProviderRegistry.getInstance(mContext).registerRepository(
+				new RepositoryConf(namespace, schema));
 	}
 
 	/**
@@ -247,7 +257,7 @@ public class AvroProviderRegistry extends ORMGenericContentProvider {
 		registerRepository(namespace, schemaString);
 
 		// Parse the schema
-		Schema newSchema = Schema.parse(schemaString);
+		Schema newSchema = AvroSchemaCache.parse(schemaString);
 
 		VdbRepository repo = VdbRepositoryRegistry.getInstance()
 				.getRepository(getContext(), namespace);
@@ -256,7 +266,8 @@ public class AvroProviderRegistry extends ORMGenericContentProvider {
 	}
 
 	/**
-	 * Queries for the schema for the given URI.
+	 * Queries for the schema for the given URI. Schemas are cached until
+	 * the registry changes.
 	 *
 	 * @param context the context to query in
 	 * @param uri the uri to retrieve the schema for
@@ -272,17 +283,25 @@ public class AvroProviderRegistry extends ORMGenericContentProvider {
 				LOG.debug("Mapping to native: {}", uri);
 				dbUri = EntityUriBuilder.toInternal(uri);
 			}
-			LOG.debug("Querying for schema for: {} {}", dbUri,
-					dbUri.getPathSegments().get(0));
+			String namespace = dbUri.getPathSegments().get(0);
+			schema = AvroSchemaRegistrationHandler.getCachedSchema(context,
+					namespace);
+			if (schema != null) {
+				return schema;
+			}
+			int generation = AvroSchemaRegistrationHandler.getGeneration();
+			LOG.debug("Querying for schema for: {} {}", dbUri, namespace);
 			c = context.getContentResolver().query(
 					AvroSchemaRegistrationHandler.URI,
 					new String[]{AvroSchemaRegistrationHandler.KEY_SCHEMA},
 					AvroSchemaRegistrationHandler.KEY_NAMESPACE + "=?",
-					new String[] {dbUri.getPathSegments().get(0)}, null);
+					new String[] {namespace}, null);
 			if (c != null && c.moveToFirst()) {
 				String schemaString = c.getString(0);
 				LOG.debug("Got schema: {}", schemaString);
-				schema = Schema.parse(schemaString);
+				schema = AvroSchemaCache.parse(schemaString);
+				AvroSchemaRegistrationHandler.cacheSchema(context, namespace,
+						schema, generation);
 			} else {
 				LOG.error("Schema not found.");
 			}
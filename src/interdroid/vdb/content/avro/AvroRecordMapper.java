@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.content.avro;
+
+import interdroid.vdb.content.RowMapper;
+import interdroid.vdb.content.metadata.EntityInfo;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.avro.Schema;
+import org.apache.avro.Schema.Field;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+
+import android.database.Cursor;
+
+/**
+ * Maps the rows of a cursor over an Avro entity to generic records. Only
+ * fields which are stored in a column of the entity's own table are
+ * filled: primitives, bytes, fixed and enumerations. Records, arrays,
+ * maps and unions live elsewhere and are left unset.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+public class AvroRecordMapper extends RowMapper<GenericRecord> {
+
+	/**
+	 * The record schema rows are mapped to.
+	 */
+	private final Schema mSchema;
+
+	/**
+	 * The schema field of each mapped field.
+	 */
+	private final Field[] mSchemaFields;
+
+	/**
+	 * The symbols of each mapped enumeration field by ordinal, shared by
+	 * all rows, or null for other fields.
+	 */
+	private final GenericData.EnumSymbol[][] mSymbols;
+
+	/**
+	 * Construct a mapper for the root record of a schema.
+	 * @param schema the record schema of the repository
+	 */
+	public AvroRecordMapper(final Schema schema) {
+		this(AvroContentProvider.makeMetadata(schema).getEntity(
+				schema.getFullName()), schema);
+	}
+
+	/**
+	 * Construct a mapper for an entity.
+	 * @param entity the entity the rows belong to
+	 * @param schema the record schema of the entity
+	 */
+	public AvroRecordMapper(final EntityInfo entity, final Schema schema) {
+		super(entity, getColumnFields(entity, schema));
+		mSchema = schema;
+		mSchemaFields = new Field[getFieldCount()];
+		mSymbols = new GenericData.EnumSymbol[getFieldCount()][];
+		for (int i = 0; i < mSchemaFields.length; i++) {
+			mSchemaFields[i] = schema.getField(getField(i).fieldName);
+			Schema fieldSchema = mSchemaFields[i].schema();
+			if (fieldSchema.getType() == Schema.Type.ENUM) {
+				List<String> symbols = fieldSchema.getEnumSymbols();
+				mSymbols[i] = new GenericData.EnumSymbol[symbols.size()];
+				for (int ordinal = 0; ordinal < symbols.size(); ordinal++) {
+					mSymbols[i][ordinal] = new GenericData.EnumSymbol(
+							fieldSchema, symbols.get(ordinal));
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param entity the entity the rows belong to
+	 * @param schema the record schema of the entity
+	 * @return the names of the fields stored in columns of the entity
+	 */
+	private static String[] getColumnFields(final EntityInfo entity,
+			final Schema schema) {
+		if (entity == null) {
+			throw new IllegalArgumentException("No entity for "
+					+ schema.getFullName());
+		}
+		List<String> names = new ArrayList<String>();
+		for (Field field : schema.getFields()) {
+			if (entity.fields.containsKey(field.name())
+					&& isColumn(field.schema())) {
+				names.add(field.name());
+			}
+		}
+		return names.toArray(new String[names.size()]);
+	}
+
+	/**
+	 * @param schema the schema of a field
+	 * @return true if values of the schema are stored in a column
+	 */
+	private static boolean isColumn(final Schema schema) {
+		switch (schema.getType()) {
+		case ARRAY:
+		case MAP:
+		case RECORD:
+		case UNION:
+			return false;
+		default:
+			return true;
+		}
+	}
+
+	@Override
+	protected final GenericRecord newRow() {
+		return new GenericData.Record(mSchema);
+	}
+
+	@Override
+	protected final void readField(final GenericRecord row, final int field,
+			final Cursor cursor, final int column) {
+		Field schemaField = mSchemaFields[field];
+		Schema schema = schemaField.schema();
+		Object value;
+		if (cursor.isNull(column)) {
+			value = null;
+		} else {
+			switch (schema.getType()) {
+			case BOOLEAN:
+				value = cursor.getInt(column) != 0;
+				break;
+			case INT:
+				value = cursor.getInt(column);
+				break;
+			case LONG:
+				value = cursor.getLong(column);
+				break;
+			case FLOAT:
+				value = cursor.getFloat(column);
+				break;
+			case DOUBLE:
+				value = cursor.getDouble(column);
+				break;
+			case STRING:
+				value = cursor.getString(column);
+				break;
+			case BYTES:
+				value = ByteBuffer.wrap(cursor.getBlob(column));
+				break;
+			case FIXED:
+				value = new GenericData.Fixed(schema, cursor.getBlob(column));
+				break;
+			case ENUM:
+				value = mSymbols[field][cursor.getInt(column)];
+				break;
+			default:
+				value = null;
+				break;
+			}
+		}
+		row.put(schemaField.pos(), value);
+	}
+}
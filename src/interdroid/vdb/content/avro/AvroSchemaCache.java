@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.content.avro;
+
+import interdroid.vdb.content.metadata.Metadata;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.avro.Schema;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A process wide cache of parsed schemas and the metadata built from them,
+ * keyed by the fingerprint of the schema text. Parsing a schema and walking
+ * it to build the metadata is done once per schema instead of once per
+ * provider, migration or schema check.
+ *
+ * The cached schemas and metadata are shared and must not be modified.
+ * The metadata is frozen before it is cached, so adding an entity to it
+ * fails.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+public final class AvroSchemaCache {
+	/**
+	 * Access to logger.
+	 */
+	private static final Logger LOG =
+			LoggerFactory.getLogger(AvroSchemaCache.class);
+
+	/**
+	 * The number of fingerprints after which the cache is emptied. Schemas
+	 * only change through migrations so this is rarely reached.
+	 */
+	private static final int MAX_ENTRIES = 64;
+
+	/**
+	 * The seed of the 64 bit Rabin fingerprint, as used by Avro.
+	 */
+	private static final long FP_EMPTY = 0xc15d213aa4d7a795L;
+
+	/**
+	 * The table driving the 64 bit Rabin fingerprint.
+	 */
+	private static final long[] FP_TABLE = new long[256];
+
+	static {
+		for (int i = 0; i < FP_TABLE.length; i++) {
+			long fp = i;
+			for (int j = 0; j < 8; j++) {
+				fp = (fp >>> 1) ^ (FP_EMPTY & -(fp & 1L));
+			}
+			FP_TABLE[i] = fp;
+		}
+	}
+
+	/**
+	 * The cached schemas by fingerprint of their text. A schema is stored
+	 * under the fingerprint of the text it was parsed from and of its
+	 * canonical text, so both lookups find the same entry.
+	 */
+	private static final ConcurrentMap<String, Entry> CACHE =
+			new ConcurrentHashMap<String, Entry>();
+
+	/**
+	 * A parsed schema with its metadata, built on first use.
+	 */
+	private static final class Entry {
+		/** The parsed schema. */
+		private final Schema mSchema;
+		/** The metadata of the schema or null if not built yet. */
+		private volatile Metadata mMetadata;
+
+		/**
+		 * Construct an entry.
+		 * @param schema the parsed schema
+		 */
+		private Entry(final Schema schema) {
+			mSchema = schema;
+		}
+
+		/**
+		 * @return the metadata of the schema, built once
+		 */
+		private Metadata getMetadata() {
+			Metadata metadata = mMetadata;
+			if (metadata == null) {
+				synchronized (this) {
+					metadata = mMetadata;
+					if (metadata == null) {
+						metadata = new AvroMetadata(mSchema).freeze();
+						mMetadata = metadata;
+					}
+				}
+			}
+			return metadata;
+		}
+	}
+
+	/**
+	 * Prevent construction.
+	 */
+	private AvroSchemaCache() {
+		// Utility class
+	}
+
+	/**
+	 * Computes the fingerprint of a schema text.
+	 * @param schema the text of the schema
+	 * @return the fingerprint as a hex string
+	 */
+	public static String fingerprint(final String schema) {
+		return ObjectId.fromRaw(Constants.newMessageDigest().digest(
+				Constants.encode(schema))).name();
+	}
+
+	/**
+	 * Computes the 64 bit Rabin fingerprint of the canonical text of a
+	 * schema. Two schemas which parse to the same schema have the same
+	 * fingerprint, whatever the layout of the text they came from.
+	 * @param schema the schema
+	 * @return the fingerprint
+	 */
+	public static long fingerprint64(final Schema schema) {
+		long fp = FP_EMPTY;
+		for (byte b : Constants.encode(schema.toString())) {
+			fp = (fp >>> 8) ^ FP_TABLE[(int) (fp ^ b) & 0xff];
+		}
+		return fp;
+	}
+
+	/**
+	 * Parses a schema, or returns the schema parsed from the same text
+	 * before.
+	 * @param schema the text of the schema
+	 * @return the parsed schema
+	 */
+	public static Schema parse(final String schema) {
+		return getEntry(schema).mSchema;
+	}
+
+	/**
+	 * Returns the metadata for a schema, building it if this schema was
+	 * not seen before.
+	 * @param schema the schema
+	 * @return the metadata for the schema
+	 */
+	public static Metadata getMetadata(final Schema schema) {
+		String canonical = schema.toString();
+		String fingerprint = fingerprint(canonical);
+		Entry entry = CACHE.get(fingerprint);
+		if (entry == null) {
+			entry = put(fingerprint, new Entry(schema));
+		}
+		return entry.getMetadata();
+	}
+
+	/**
+	 * Returns the entry for a schema text, parsing it on a miss.
+	 * @param schema the text of the schema
+	 * @return the entry for the schema
+	 */
+	private static Entry getEntry(final String schema) {
+		String fingerprint = fingerprint(schema);
+		Entry entry = CACHE.get(fingerprint);
+		if (entry == null) {
+			Schema parsed = Schema.parse(schema);
+			String canonical = fingerprint(parsed.toString());
+			entry = put(canonical, new Entry(parsed));
+			if (!canonical.equals(fingerprint)) {
+				entry = put(fingerprint, entry);
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * Stores an entry unless another thread stored one first.
+	 * @param fingerprint the fingerprint to store under
+	 * @param entry the entry to store
+	 * @return the entry stored under the fingerprint
+	 */
+	private static Entry put(final String fingerprint, final Entry entry) {
+		if (CACHE.size() >= MAX_ENTRIES) {
+			LOG.debug("Emptying schema cache.");
+			CACHE.clear();
+		}
+		Entry existing = CACHE.putIfAbsent(fingerprint, entry);
+		if (existing != null) {
+			return existing;
+		}
+		return entry;
+	}
+}
@@ -39,6 +39,9 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.avro.Schema;
 import org.slf4j.Logger;
@@ -46,6 +49,7 @@ import org.slf4j.LoggerFactory;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
 
@@ -108,6 +112,100 @@ public final class AvroSchemaRegistrationHandler {
 			EntityUriBuilder.branchUri(Authority.VDB,
 					NAMESPACE, "master"), NAME);
 
+	/**
+	 * The registered schemas by namespace, as far as they were looked up.
+	 * Emptied whenever the registry changes.
+	 */
+	private static final ConcurrentMap<String, Schema> SCHEMAS =
+			new ConcurrentHashMap<String, Schema>();
+
+	/**
+	 * Counts the changes to the registry, so a lookup which raced with a
+	 * change does not cache what it read.
+	 */
+	private static final AtomicInteger GENERATION = new AtomicInteger();
+
+	/**
+	 * The observer emptying the cache when the registry changes, or null
+	 * if not registered yet.
+	 */
+	private static ContentObserver sObserver;
+
+	/**
+	 * Empties the cache when the registry changes.
+	 */
+	private static final class RegistryObserver extends ContentObserver {
+		/**
+		 * Construct an observer delivering on the binder thread.
+		 */
+		private RegistryObserver() {
+			super(null);
+		}
+
+		@Override
+		public void onChange(final boolean selfChange) {
+			invalidate();
+		}
+	}
+
+	/**
+	 * Makes sure the cache is emptied when the registry changes in any
+	 * process.
+	 * @param context the context to observe in
+	 */
+	private static synchronized void observe(final Context context) {
+		if (sObserver == null) {
+			sObserver = new RegistryObserver();
+			context.getContentResolver().registerContentObserver(URI, true,
+					sObserver);
+		}
+	}
+
+	/**
+	 * Drops every cached schema. Called when the registry changes.
+	 */
+	public static void invalidate() {
+		GENERATION.incrementAndGet();
+		SCHEMAS.clear();
+	}
+
+	/**
+	 * @return the current generation of the cache, for
+	 * {@link #cacheSchema(Context, String, Schema, int)}
+	 */
+	static int getGeneration() {
+		return GENERATION.get();
+	}
+
+	/**
+	 * Returns the cached schema for a namespace.
+	 * @param context the context to observe changes in
+	 * @param namespace the namespace of the schema
+	 * @return the schema or null if it is not cached
+	 */
+	static Schema getCachedSchema(final Context context,
+			final String namespace) {
+		observe(context);
+		return SCHEMAS.get(namespace);
+	}
+
+	/**
+	 * Caches a schema read from the registry, unless the registry changed
+	 * since it was read.
+	 * @param context the context to observe changes in
+	 * @param namespace the namespace of the schema
+	 * @param schema the schema
+	 * @param generation the generation from before the schema was read
+	 */
+	static void cacheSchema(final Context context, final String namespace,
+			final Schema schema, final int generation) {
+		observe(context);
+		SCHEMAS.put(namespace, schema);
+		if (GENERATION.get() != generation) {
+			SCHEMAS.remove(namespace);
+		}
+	}
+
 	/**
 	 * This returns a list of maps with data about the various providers
 	 * perfect for use in an android ListView.
@@ -168,6 +266,13 @@ public final class AvroSchemaRegistrationHandler {
 	public static void registerSchema(final Context context,
 			final Schema schema) throws IOException {
 		// Have we already registered?
+		Schema cached = getCachedSchema(context, schema.getNamespace());
+		if (cached != null && cached.getName().equals(schema.getName())
+				&& cached.toString().equals(schema.toString())) {
+			LOG.debug("Already registered.");
+			return;
+		}
+		int generation = getGeneration();
 		Cursor c = null;
 		try {
 			LOG.debug("Checking for registration of {} {}", schema.getName(),
@@ -187,6 +292,8 @@ public final class AvroSchemaRegistrationHandler {
 					values.put(KEY_NAME, schema.getName());
 					values.put(KEY_NAMESPACE, schema.getNamespace());
 					context.getContentResolver().insert(URI, values);
+					cacheSchema(context, schema.getNamespace(), schema,
+							getGeneration());
 				} else {
 					// Do we need to update the schema then?
 					LOG.debug("Checking if we need to update: {}", c.getCount());
@@ -195,7 +302,10 @@ public final class AvroSchemaRegistrationHandler {
 					LOG.debug("Checking: {} against {}",
 							curString, schema.toString());
 
-					if (!curString.equals(schema.toString())) {
+					if (curString.equals(schema.toString())) {
+						cacheSchema(context, schema.getNamespace(), schema,
+								generation);
+					} else {
 						LOG.debug("Update required.");
 
 						ContentValues values = new ContentValues();
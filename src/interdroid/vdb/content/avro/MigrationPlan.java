@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.content.avro;
+
+import interdroid.vdb.content.avro.SchemaEvolutionValidator.FieldName;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The changes needed to move data from one schema to another, as found by
+ * {@link SchemaEvolutionValidator#validateProjection(
+ * org.apache.avro.Schema, org.apache.avro.Schema)}.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+public final class MigrationPlan {
+
+	/**
+	 * The kinds of change in a plan.
+	 */
+	public enum Kind {
+		/** A field was added and gets its default. */
+		ADDED,
+		/** A field was removed and its data is dropped. */
+		REMOVED,
+		/** A field changed to a type the old values are promoted to. */
+		RETYPED,
+		/** The symbols of an enumeration changed, stored values move. */
+		ENUM_REMAPPED,
+		/** The branches of a union changed. */
+		UNION_CHANGED,
+		/** A field was added which is stored in a table of its own. */
+		CHILD_ADDED
+	}
+
+	/**
+	 * A single change to a field.
+	 */
+	public static final class Change {
+		/** The kind of change. */
+		private final Kind mKind;
+		/** The field which changed. */
+		private final FieldName mField;
+		/** A description of the change. */
+		private final String mDetail;
+
+		/**
+		 * Construct a change.
+		 * @param kind the kind of change
+		 * @param field the field which changed
+		 * @param detail a description of the change
+		 */
+		private Change(final Kind kind, final FieldName field,
+				final String detail) {
+			mKind = kind;
+			mField = field;
+			mDetail = detail;
+		}
+
+		/**
+		 * @return the kind of change
+		 */
+		public Kind getKind() {
+			return mKind;
+		}
+
+		/**
+		 * @return the field which changed
+		 */
+		public FieldName getField() {
+			return mField;
+		}
+
+		/**
+		 * @return a description of the change
+		 */
+		public String getDetail() {
+			return mDetail;
+		}
+
+		/**
+		 * @return this change as a string
+		 */
+		public String toString() {
+			return mKind + " " + mField + ": " + mDetail;
+		}
+	}
+
+	/**
+	 * The changes in the order they were found.
+	 */
+	private final List<Change> mChanges = new ArrayList<Change>();
+
+	/**
+	 * The fingerprint of the schema the plan migrates to.
+	 */
+	private String mTarget;
+
+	/**
+	 * The new ordinal of each old ordinal, by full name of the enumeration.
+	 * Symbols which were removed map to null. A removed symbol is a
+	 * warning, so these only reach a migration when the validator was
+	 * told not to fail on warnings.
+	 */
+	private final Map<String, Map<Integer, Integer>> mEnumRemaps =
+			new HashMap<String, Map<Integer, Integer>>();
+
+	/**
+	 * Construct an empty plan.
+	 */
+	MigrationPlan() { }
+
+	/**
+	 * Adds a change to the plan.
+	 * @param kind the kind of change
+	 * @param field the field which changed
+	 * @param detail a description of the change
+	 */
+	void add(final Kind kind, final FieldName field, final String detail) {
+		mChanges.add(new Change(kind, field, detail));
+	}
+
+	/**
+	 * Sets the schema the plan migrates to.
+	 * @param target the fingerprint of the schema
+	 */
+	void setTarget(final String target) {
+		mTarget = target;
+	}
+
+	/**
+	 * @return the fingerprint of the schema the plan migrates to, which
+	 * identifies the migration
+	 */
+	public String getTarget() {
+		return mTarget;
+	}
+
+	/**
+	 * Adds the remapping of an enumeration to the plan.
+	 * @param fullName the full name of the enumeration
+	 * @param remap the new ordinal of each old ordinal
+	 */
+	void addEnumRemap(final String fullName,
+			final Map<Integer, Integer> remap) {
+		mEnumRemaps.put(fullName, remap);
+	}
+
+	/**
+	 * @return the changes in the plan
+	 */
+	public List<Change> getChanges() {
+		return Collections.unmodifiableList(mChanges);
+	}
+
+	/**
+	 * @return the full names of the enumerations whose ordinals moved
+	 */
+	public Set<String> getRemappedEnums() {
+		return Collections.unmodifiableSet(mEnumRemaps.keySet());
+	}
+
+	/**
+	 * @param fullName the full name of an enumeration
+	 * @return the new ordinal of each old ordinal, null for removed
+	 * symbols, or null if the ordinals did not move
+	 */
+	public Map<Integer, Integer> getEnumRemap(final String fullName) {
+		Map<Integer, Integer> remap = mEnumRemaps.get(fullName);
+		if (remap == null) {
+			return null;
+		}
+		return Collections.unmodifiableMap(remap);
+	}
+
+	/**
+	 * @return true if the plan has no changes
+	 */
+	public boolean isEmpty() {
+		return mChanges.isEmpty();
+	}
+
+	/**
+	 * @return the plan as a string, one change per line
+	 */
+	public String toString() {
+		StringBuilder buffer = new StringBuilder();
+		for (Change change : mChanges) {
+			buffer.append(change).append('\n');
+		}
+		return buffer.toString();
+	}
+}
@@ -150,6 +150,11 @@ public final class SchemaEvolutionValidator {
 	 */
 	private boolean mFailOnWarning = true;
 
+	/**
+	 * The changes found by the last validation.
+	 */
+	private MigrationPlan mPlan = new MigrationPlan();
+
 	/**
 	 * Construct an evolution validator.
 	 */
@@ -169,7 +174,8 @@ public final class SchemaEvolutionValidator {
 	 * Validates that the readerSchema can read the data written with the
 	 * writerSchema. Note that this clears all errors and warnings before
 	 * running so that getErrors and getWarnings always only return
-	 * warnings and errors for the last call to this method.
+	 * warnings and errors for the last call to this method. The changes
+	 * found are available from {@link #getMigrationPlan()} afterwards.
 	 *
 	 * @param readerSchema the schema the reader will use
 	 * @param writerSchema the schema the writer used
@@ -181,6 +187,8 @@ public final class SchemaEvolutionValidator {
 		// Clear any existing warnings from last run.
 		mWarnings.clear();
 		mErrors.clear();
+		mPlan = new MigrationPlan();
+		mPlan.setTarget(AvroSchemaCache.fingerprint(readerSchema.toString()));
 
 		// Are the schemas the same? Shortcut the whole deal.
 		if (readerSchema.toString().equals(writerSchema.toString())) {
@@ -199,6 +207,14 @@ public final class SchemaEvolutionValidator {
 		return hasErrorsOrWarnings();
 	}
 
+	/**
+	 * @return the changes needed to move data from the writer's schema to
+	 * the reader's schema in the last validation
+	 */
+	public MigrationPlan getMigrationPlan() {
+		return mPlan;
+	}
+
 	/**
 	 * @return true if there are warnings.
 	 */
@@ -275,6 +291,11 @@ public final class SchemaEvolutionValidator {
 		// Recursive validator.
 		SchemaEvolutionValidator validator = new SchemaEvolutionValidator();
 
+		if (!readerSchema.toString().equals(writerSchema.toString())) {
+			mPlan.add(MigrationPlan.Kind.UNION_CHANGED, new FieldName(names),
+					writerSchema + " -> " + readerSchema);
+		}
+
 		// Are we testing the readers or writers side union?
 		if (readerSchema.getType().equals(Type.UNION)) {
 			// Is the writers type also a union?
@@ -363,6 +384,22 @@ public final class SchemaEvolutionValidator {
 		mErrors.put(fieldName, message);
 	}
 
+	/**
+	 * @param type the type to be checked
+	 * @return true if fields of this type are stored in a table of their own
+	 */
+	private boolean isChildType(final Type type) {
+		switch (type) {
+		case ARRAY:
+		case ENUM:
+		case MAP:
+		case RECORD:
+			return true;
+		default:
+			return false;
+		}
+	}
+
 	/**
 	 * @param type the type to be checked
 	 * @return true if this type is named
@@ -405,6 +442,15 @@ public final class SchemaEvolutionValidator {
 						error(new FieldName(names),
 								"New field without a default.");
 					}
+					if (isChildType(readerField.schema().getType())) {
+						mPlan.add(MigrationPlan.Kind.CHILD_ADDED,
+								new FieldName(names),
+								readerField.schema().getType().toString());
+					} else {
+						mPlan.add(MigrationPlan.Kind.ADDED,
+								new FieldName(names),
+								readerField.schema().getType().toString());
+					}
 
 				} else {
 					// Run recursive validation
@@ -413,6 +459,17 @@ public final class SchemaEvolutionValidator {
 				}
 				names.pop();
 			}
+
+			// Writer fields the reader lacks are dropped
+			for (Field writerField : writerSchema.getFields()) {
+				if (readerSchema.getField(writerField.name()) == null) {
+					names.push(writerField.name());
+					mPlan.add(MigrationPlan.Kind.REMOVED,
+							new FieldName(names),
+							writerField.schema().getType().toString());
+					names.pop();
+				}
+			}
 		} else if (writerSchema.getType().equals(Type.UNION)) {
 			validateUnionProjection(readerSchema, writerSchema, names);
 		} else {
@@ -473,15 +530,31 @@ public final class SchemaEvolutionValidator {
 
 			// Validate the enumeration symbols
 			List<String> readerSymbols = readerSchema.getEnumSymbols();
-			for (String symbol : writerSchema.getEnumSymbols()) {
+			List<String> writerSymbols = writerSchema.getEnumSymbols();
+			Map<Integer, Integer> remap = new HashMap<Integer, Integer>();
+			boolean moved = false;
+			for (int ordinal = 0; ordinal < writerSymbols.size(); ordinal++) {
+				String symbol = writerSymbols.get(ordinal);
 				names.push(symbol);
-				if (!readerSymbols.contains(symbol)) {
+				int readerOrdinal = readerSymbols.indexOf(symbol);
+				if (readerOrdinal < 0) {
 					warning(new FieldName(names),
 							"Writer has an enumeration symbol"
 									+ " which the reader lacks.");
+					remap.put(ordinal, null);
+					moved = true;
+				} else {
+					remap.put(ordinal, readerOrdinal);
+					moved |= readerOrdinal != ordinal;
 				}
 				names.pop();
 			}
+			if (moved) {
+				mPlan.addEnumRemap(readerSchema.getFullName(), remap);
+				mPlan.add(MigrationPlan.Kind.ENUM_REMAPPED,
+						new FieldName(names), writerSymbols + " -> "
+								+ readerSymbols);
+			}
 		} else if (writerSchema.getType().equals(Type.UNION)) {
 			validateUnionProjection(readerSchema, writerSchema, names);
 		} else {
@@ -576,6 +649,9 @@ public final class SchemaEvolutionValidator {
 		if (!isPromotable) {
 			error(new FieldName(names),
 					"Primitive types do not match and cannot be promoted.");
+		} else if (!readerType.equals(writerType)) {
+			mPlan.add(MigrationPlan.Kind.RETYPED, new FieldName(names),
+					writerType + " -> " + readerType);
 		}
 
 	}
@@ -33,6 +33,7 @@ package interdroid.vdb.content.metadata;
 import interdroid.vdb.content.EntityUriMatcher.UriMatch;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -68,6 +69,11 @@ public abstract class Metadata {
 	 */
 	private final String mNamespace;
 
+	/**
+	 * True once this metadata may no longer be changed.
+	 */
+	private volatile boolean mFrozen;
+
 	/**
 	 * Construct a new metadata for the given namespace.
 	 * @param namespace the namespace for this database
@@ -148,6 +154,10 @@ public abstract class Metadata {
 	 * @param entityInfo the information on the entity
 	 */
 	public final void put(final EntityInfo entityInfo) {
+		if (mFrozen) {
+			throw new IllegalStateException("Metadata for " + mNamespace
+					+ " is shared and can not be changed.");
+		}
 		if (getEntity(entityInfo.getFullName()) == null) {
 			if (LOG.isDebugEnabled()) {
 				LOG.debug("Adding entity: " + entityInfo.getFullName());
@@ -158,5 +168,18 @@ public abstract class Metadata {
 			}
 		}
 	}
-}
 
+	/**
+	 * Stops this metadata from being changed so it can be shared. Any
+	 * later attempt to add an entity fails.
+	 * @return this metadata
+	 */
+	public final Metadata freeze() {
+		if (!mFrozen) {
+			entities = Collections.unmodifiableMap(entities);
+			namespaces = Collections.unmodifiableMap(namespaces);
+			mFrozen = true;
+		}
+		return this;
+	}
+}
@@ -43,41 +43,51 @@ import interdroid.vdb.content.metadata.FieldInfo;
  */
 public class ORMEntityInfo extends EntityInfo {
 	/**
-	 * The information on this entity.
+	 * The name of this entity.
 	 */
-	private final DbEntity options;
+	private final String mName;
 
 	/**
-	 * The class for this entity.
+	 * The namespace of this entity.
 	 */
-	private final Class<?> clazz;
+	private final String mNamespace;
+
+	/**
+	 * The list content type of this entity.
+	 */
+	private final String mContentType;
+
+	/**
+	 * The item content type of this entity.
+	 */
+	private final String mItemContentType;
 
 	/**
 	 * @return the name for this entity
 	 */
 	public final String name() {
-		return options.name();
+		return mName;
 	}
 
 	/**
 	 * @return the namespace for this entity
 	 */
 	public final String namespace() {
-		return clazz.getPackage().getName();
+		return mNamespace;
 	}
 
 	/**
 	 * @return the content type for this entity
 	 */
 	public final String contentType() {
-		return options.contentType();
+		return mContentType;
 	}
 
 	/**
 	 * @return the item content type for this entity
 	 */
 	public final String itemContentType() {
-		return options.itemContentType();
+		return mItemContentType;
 	}
 
 	/**
@@ -85,24 +95,63 @@ public class ORMEntityInfo extends EntityInfo {
 	 * @param table the class to get table information from
 	 */
 	public ORMEntityInfo(final Class<?> table) {
-		this.clazz = table;
-
-		DbEntity entityOptions = clazz.getAnnotation(DbEntity.class);
+		DbEntity entityOptions = table.getAnnotation(DbEntity.class);
 		if (entityOptions == null) {
 			throw new IllegalArgumentException(
 					"The class is not annotated with EntityOptions.");
 		}
-		this.options = entityOptions;
-
-		for (Field f : clazz.getFields()) {
-			FieldInfo fieldInfo = ORMFieldInfo.buildInfo(f);
-			if (fieldInfo != null) {
-				fields.put(fieldInfo.fieldName, fieldInfo);
-				if (fieldInfo.isKey) {
-					this.key.add(fieldInfo);
-				}
+		mName = entityOptions.name();
+		mNamespace = table.getPackage().getName();
+		mContentType = entityOptions.contentType();
+		mItemContentType = entityOptions.itemContentType();
+
+		for (Field f : table.getFields()) {
+			addField(ORMFieldInfo.buildInfo(f));
+		}
+		checkKey();
+	}
+
+	/**
+	 * Construct entity information from a declaration, without reflecting
+	 * over an annotated class. Providers which are built at every startup
+	 * should declare their entities this way.
+	 * @param namespace the namespace of the entity
+	 * @param name the name of the entity
+	 * @param contentType the list content type of the entity
+	 * @param itemContentType the item content type of the entity
+	 * @param fieldInfos the fields of the entity
+	 */
+	public ORMEntityInfo(final String namespace, final String name,
+			final String contentType, final String itemContentType,
+			final ORMFieldInfo... fieldInfos) {
+		mName = name;
+		mNamespace = namespace;
+		mContentType = contentType;
+		mItemContentType = itemContentType;
+
+		for (ORMFieldInfo fieldInfo : fieldInfos) {
+			addField(fieldInfo);
+		}
+		checkKey();
+	}
+
+	/**
+	 * Adds a field to this entity.
+	 * @param fieldInfo the field or null
+	 */
+	private void addField(final FieldInfo fieldInfo) {
+		if (fieldInfo != null) {
+			fields.put(fieldInfo.fieldName, fieldInfo);
+			if (fieldInfo.isKey) {
+				this.key.add(fieldInfo);
 			}
 		}
+	}
+
+	/**
+	 * Checks that this entity has a key.
+	 */
+	private void checkKey() {
 		if (key.size() == 0) {
 			throw new IllegalArgumentException(
 					"The class did not specify an id field.");
@@ -31,6 +31,7 @@
 package interdroid.vdb.content.orm;
 
 
+import interdroid.vdb.content.metadata.DatabaseFieldType;
 import interdroid.vdb.content.metadata.FieldInfo;
 
 import java.lang.reflect.Field;
@@ -52,6 +53,17 @@ public final class ORMFieldInfo extends FieldInfo {
 		super(f.getName(), fieldOpt.dbType(), fieldOpt.isID());
 	}
 
+	/**
+	 * Constructs a field info without reflection.
+	 * @param name the name of the field
+	 * @param dbType the type of the field
+	 * @param isID true if this is the id field
+	 */
+	public ORMFieldInfo(final String name, final DatabaseFieldType dbType,
+			final boolean isID) {
+		super(name, dbType, isID);
+	}
+
 	/**
 	 * Build information for a field.
 	 * @param f the field to build for
@@ -56,6 +56,16 @@ public class ORMGenericContentProvider extends GenericContentProvider {
 		super(namespace, new ORMMetadata(namespace, schemaClasses));
 	}
 
+	/**
+	 * Construct an ORM content provider for declared metadata.
+	 * @param namespace the namespace for the database.
+	 * @param metadata the metadata for the database.
+	 */
+	public ORMGenericContentProvider(final String namespace,
+			final ORMMetadata metadata) {
+		super(namespace, metadata);
+	}
+
 	@Override
 	public final VdbInitializer buildInitializer() {
 		return new DatabaseInitializer(mNamespace, mMetadata);
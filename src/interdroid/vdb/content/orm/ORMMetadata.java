@@ -32,6 +32,9 @@ package interdroid.vdb.content.orm;
 
 import interdroid.vdb.content.metadata.Metadata;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 /**
  * Represents metadata for a database using the ORM system.
  *
@@ -40,6 +43,13 @@ import interdroid.vdb.content.metadata.Metadata;
  */
 public class ORMMetadata extends Metadata {
 
+	/**
+	 * The entities reflected from annotated classes, so each class is
+	 * only reflected over once per process.
+	 */
+	private static final ConcurrentMap<Class<?>, ORMEntityInfo> ENTITIES =
+			new ConcurrentHashMap<Class<?>, ORMEntityInfo>();
+
 	/**
 	 * Construct metadata from the given schema class.
 	 * @param namespace the namespace for the database.
@@ -50,8 +60,38 @@ public class ORMMetadata extends Metadata {
 		super(namespace);
 		// TODO: Make sure all classes are in the same namespace?
 		for (Class<?> clazz : schemaClasses) {
-			ORMEntityInfo entityInfo = new ORMEntityInfo(clazz);
+			put(getEntity(clazz));
+		}
+	}
+
+	/**
+	 * Construct metadata from declared entities, without reflection.
+	 * @param namespace the namespace for the database.
+	 * @param entities the entities in the database.
+	 */
+	public ORMMetadata(final String namespace,
+			final ORMEntityInfo... entities) {
+		super(namespace);
+		for (ORMEntityInfo entityInfo : entities) {
 			put(entityInfo);
 		}
 	}
+
+	/**
+	 * Returns the entity for an annotated class, reflecting over it the
+	 * first time.
+	 * @param clazz the annotated class
+	 * @return the entity for the class
+	 */
+	/* package */ static ORMEntityInfo getEntity(final Class<?> clazz) {
+		ORMEntityInfo entityInfo = ENTITIES.get(clazz);
+		if (entityInfo == null) {
+			entityInfo = new ORMEntityInfo(clazz);
+			ORMEntityInfo existing = ENTITIES.putIfAbsent(clazz, entityInfo);
+			if (existing != null) {
+				entityInfo = existing;
+			}
+		}
+		return entityInfo;
+	}
 }
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.content.orm;
+
+import interdroid.vdb.content.RowMapper;
+
+import java.lang.reflect.Field;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+
+/**
+ * Maps the rows of a cursor over an ORM entity to plain objects, and
+ * objects back to the values for an insert or update. Each field of the
+ * entity is stored in the public field of the same name, which is looked
+ * up once when the mapper is constructed. Fields may be primitives, their
+ * wrappers, strings or byte arrays.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ * @param <T> the type of object rows are mapped to
+ */
+public class ORMRowMapper<T> extends RowMapper<T> {
+
+	/**
+	 * The class rows are mapped to.
+	 */
+	private final Class<T> mType;
+
+	/**
+	 * The object field of each mapped field.
+	 */
+	private final Field[] mObjectFields;
+
+	/**
+	 * Construct a mapper for a class annotated with {@link DbEntity}.
+	 * @param type the annotated class
+	 * @param fieldNames the fields to map, or none to map every field
+	 */
+	public ORMRowMapper(final Class<T> type, final String... fieldNames) {
+		this(ORMMetadata.getEntity(type), type, fieldNames);
+	}
+
+	/**
+	 * Construct a mapper for a declared entity.
+	 * @param entity the entity the rows belong to
+	 * @param type the class with a public field for each mapped field
+	 * @param fieldNames the fields to map, or none to map every field
+	 */
+	public ORMRowMapper(final ORMEntityInfo entity, final Class<T> type,
+			final String... fieldNames) {
+		super(entity, fieldNames);
+		mType = type;
+		mObjectFields = new Field[getFieldCount()];
+		for (int i = 0; i < mObjectFields.length; i++) {
+			String name = getField(i).fieldName;
+			try {
+				mObjectFields[i] = type.getField(name);
+			} catch (NoSuchFieldException e) {
+				throw new IllegalArgumentException("No public field "
+						+ name + " in " + type.getName(), e);
+			}
+		}
+	}
+
+	@Override
+	protected final T newRow() {
+		try {
+			return mType.newInstance();
+		} catch (InstantiationException e) {
+			throw new IllegalArgumentException("Unable to construct "
+					+ mType.getName(), e);
+		} catch (IllegalAccessException e) {
+			throw new IllegalArgumentException("Unable to construct "
+					+ mType.getName(), e);
+		}
+	}
+
+	@Override
+	protected final void readField(final T row, final int field,
+			final Cursor cursor, final int column) {
+		Field objectField = mObjectFields[field];
+		Class<?> type = objectField.getType();
+		try {
+			if (cursor.isNull(column)) {
+				clearField(row, objectField, type);
+			} else if (type == int.class) {
+				objectField.setInt(row, cursor.getInt(column));
+			} else if (type == long.class) {
+				objectField.setLong(row, cursor.getLong(column));
+			} else if (type == short.class) {
+				objectField.setShort(row, cursor.getShort(column));
+			} else if (type == float.class) {
+				objectField.setFloat(row, cursor.getFloat(column));
+			} else if (type == double.class) {
+				objectField.setDouble(row, cursor.getDouble(column));
+			} else if (type == boolean.class) {
+				objectField.setBoolean(row, cursor.getInt(column) != 0);
+			} else if (type == Integer.class) {
+				objectField.set(row, cursor.getInt(column));
+			} else if (type == Long.class) {
+				objectField.set(row, cursor.getLong(column));
+			} else if (type == Short.class) {
+				objectField.set(row, cursor.getShort(column));
+			} else if (type == Float.class) {
+				objectField.set(row, cursor.getFloat(column));
+			} else if (type == Double.class) {
+				objectField.set(row, cursor.getDouble(column));
+			} else if (type == Boolean.class) {
+				objectField.set(row, cursor.getInt(column) != 0);
+			} else if (type == byte[].class) {
+				objectField.set(row, cursor.getBlob(column));
+			} else {
+				objectField.set(row, cursor.getString(column));
+			}
+		} catch (IllegalAccessException e) {
+			throw new IllegalArgumentException("Unable to set "
+					+ objectField.getName(), e);
+		}
+	}
+
+	/**
+	 * Resets a field for a null column so a reused object does not keep
+	 * the value of the previous row.
+	 * @param row the object to clear the field of
+	 * @param objectField the field to clear
+	 * @param type the type of the field
+	 * @throws IllegalAccessException if the field can not be set
+	 */
+	private static void clearField(final Object row, final Field objectField,
+			final Class<?> type) throws IllegalAccessException {
+		if (!type.isPrimitive()) {
+			objectField.set(row, null);
+		} else if (type == boolean.class) {
+			objectField.setBoolean(row, false);
+		} else if (type == float.class) {
+			objectField.setFloat(row, 0f);
+		} else if (type == double.class) {
+			objectField.setDouble(row, 0d);
+		} else if (type == long.class) {
+			objectField.setLong(row, 0L);
+		} else if (type == short.class) {
+			objectField.setShort(row, (short) 0);
+		} else {
+			objectField.setInt(row, 0);
+		}
+	}
+
+	/**
+	 * Builds the values for inserting or updating an object, with an
+	 * entry of the matching type for each mapped field.
+	 * @param row the object to get values from
+	 * @return the values of the mapped fields
+	 */
+	public final ContentValues toValues(final T row) {
+		ContentValues values = new ContentValues(mObjectFields.length);
+		for (Field objectField : mObjectFields) {
+			String name = objectField.getName();
+			Object value;
+			try {
+				value = objectField.get(row);
+			} catch (IllegalAccessException e) {
+				throw new IllegalArgumentException("Unable to get "
+						+ name, e);
+			}
+			if (value == null) {
+				values.putNull(name);
+			} else if (value instanceof Integer) {
+				values.put(name, (Integer) value);
+			} else if (value instanceof Long) {
+				values.put(name, (Long) value);
+			} else if (value instanceof Short) {
+				values.put(name, (Short) value);
+			} else if (value instanceof Float) {
+				values.put(name, (Float) value);
+			} else if (value instanceof Double) {
+				values.put(name, (Double) value);
+			} else if (value instanceof Boolean) {
+				values.put(name, (Boolean) value);
+			} else if (value instanceof byte[]) {
+				values.put(name, (byte[]) value);
+			} else {
+				values.put(name, value.toString());
+			}
+		}
+		return values;
+	}
+}
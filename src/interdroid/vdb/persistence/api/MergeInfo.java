@@ -31,10 +31,15 @@
 package interdroid.vdb.persistence.api;
 
 import java.io.Serializable;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
 
 /**
  * Container for the information we hold about an ongoing merge.
  * It is written to disc as a marker that a checkout is in merging mode.
+ * The tables which have already been merged are recorded as well so that
+ * a merge interrupted by the death of the process can be resumed.
  */
 public final class MergeInfo implements Serializable {
 	/**
@@ -62,6 +67,13 @@ public final class MergeInfo implements Serializable {
 	 */
 	private boolean mResolved = false;
 
+	/**
+	 * The tables which have been completely merged so far.
+	 * This is transient since older versions wrote this class using
+	 * java serialization, which must still be readable.
+	 */
+	private transient Set<String> mMergedTables;
+
 	/**
 	 * Construct a merge info.
 	 * @param base the base commit SHA1
@@ -79,6 +91,9 @@ public final class MergeInfo implements Serializable {
 	public MergeInfo clone() {
 		MergeInfo copy = new MergeInfo(mBase, mTheirs, mOurs);
 		copy.mResolved = mResolved;
+		if (mMergedTables != null) {
+			copy.mMergedTables = new LinkedHashSet<String>(mMergedTables);
+		}
 		return copy;
 	}
 
@@ -116,4 +131,34 @@ public final class MergeInfo implements Serializable {
 	public void setResolved() {
 		this.mResolved = true;
 	}
+
+	/**
+	 * Records that the given table has been completely merged.
+	 * @param tableName the name of the merged table
+	 */
+	public void setTableMerged(final String tableName) {
+		if (mMergedTables == null) {
+			mMergedTables = new LinkedHashSet<String>();
+		}
+		mMergedTables.add(tableName);
+	}
+
+	/**
+	 * @param tableName the name of the table to check
+	 * @return true if the table has already been merged
+	 */
+	public boolean isTableMerged(final String tableName) {
+		return mMergedTables != null && mMergedTables.contains(tableName);
+	}
+
+	/**
+	 * @return the tables which have been merged, in the order they were
+	 * merged.
+	 */
+	public Set<String> getMergedTables() {
+		if (mMergedTables == null) {
+			return Collections.emptySet();
+		}
+		return Collections.unmodifiableSet(mMergedTables);
+	}
 }
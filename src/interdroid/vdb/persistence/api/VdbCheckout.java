@@ -30,9 +30,12 @@
  */
 package interdroid.vdb.persistence.api;
 
+import interdroid.vdb.content.DatabaseMigrator;
+
 import java.io.IOException;
 
 import org.apache.avro.Schema;
+import org.eclipse.jgit.lib.ProgressMonitor;
 
 import android.database.sqlite.SQLiteDatabase;
 
@@ -167,6 +170,17 @@ public interface VdbCheckout {
 	 */
 	void doneMerge();
 
+	/**
+	 * Records that the given table has been completely merged. This is
+	 * saved with the merge information so that a merge which is
+	 * interrupted can be resumed without merging the table again.
+	 * See {@link MergeInfo#isTableMerged(String)}.
+	 *
+	 * @param tableName the name of the table which has been merged
+	 * @throws IllegalStateException if the checkout is not in merge mode
+	 */
+	void setTableMerged(String tableName);
+
 	/**
 	 * Deletes the checkout and invalidates this object. An exclusive write
 	 * lock will be obtained on the database and all files on disc will
@@ -191,6 +205,15 @@ public interface VdbCheckout {
 	 */
 	String getSchema() throws IOException;
 
+	/**
+	 * Returns the 64 bit fingerprint of the canonical form of the schema
+	 * of this checkout. The fingerprint is stored next to the schema so
+	 * checking for a schema change does not read or parse the schema.
+	 * @throws IOException if there is a problem reading or writing.
+	 * @return the fingerprint of the schema
+	 */
+	long getSchemaFingerprint() throws IOException;
+
 	/**
 	 * Update the database for this checkout to the given schema.
 	 * @param newSchema the new schema for the database.
@@ -198,4 +221,25 @@ public interface VdbCheckout {
 	 */
 	void updateDatabase(Schema newSchema) throws IOException;
 
+	/**
+	 * Update the database for this checkout to the given schema, in place.
+	 * Only changed tables are touched and readers may keep using the
+	 * database while it is updated.
+	 * @param newSchema the new schema for the database.
+	 * @param monitor the monitor to report progress to
+	 * @throws IOException  if there is a problem reading or writing.
+	 */
+	void updateDatabase(Schema newSchema, ProgressMonitor monitor)
+			throws IOException;
+
+	/**
+	 * Works out what updating the database to the given schema would do,
+	 * without changing anything.
+	 * @param newSchema the new schema for the database.
+	 * @return the steps of the update and their estimated cost
+	 * @throws IOException  if there is a problem reading.
+	 */
+	DatabaseMigrator.Estimate estimateUpdate(Schema newSchema)
+			throws IOException;
+
 }
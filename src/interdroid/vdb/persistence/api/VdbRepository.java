@@ -30,6 +30,8 @@
  */
 package interdroid.vdb.persistence.api;
 
+import interdroid.vdb.content.DatabaseMigrator;
+
 import java.io.IOException;
 import java.util.Set;
 
@@ -176,6 +178,25 @@ public interface VdbRepository {
 	void pullFromRemote(String remoteName, ProgressMonitor monitor)
 		throws IOException;
 
+	/**
+	 * Fetches the current state of a single branch of the given remote
+	 * without any of its history. This lets a new peer read the data
+	 * in a large repository long before a full
+	 * {@link #pullFromRemote(String, ProgressMonitor)} would finish.
+	 *
+	 * As with {@link #getRemoteBranch(String)} the returned checkout is
+	 * only for read access. The snapshot is discarded by the next
+	 * successful pull from the remote.
+	 *
+	 * @param remoteName the name of the remote device.
+	 * @param branchName the name of the branch on the remote.
+	 * @param monitor callback object for monitoring.
+	 * @return a checkout with the current state of the remote branch
+	 * @throws IOException if there is a problem reading or writing
+	 */
+	VdbCheckout fetchSnapshot(String remoteName, String branchName,
+			ProgressMonitor monitor) throws IOException;
+
 	/**
 	 * Pushes all the local branches to the given remote. The destination
 	 * is configured by the type and parameters in the {@link RemoteInfo}
@@ -239,4 +260,26 @@ public interface VdbRepository {
 	 */
 	void updateDatabase(String branch, Schema newSchema) throws IOException;
 
+	/**
+	 * Update this database to a new schema, reporting progress.
+	 * @param branch the branch to update
+	 * @param newSchema the new schema for the database.
+	 * @param monitor the monitor to report progress to
+	 * @throws IOException If there is a problem with the update.
+	 */
+	void updateDatabase(String branch, Schema newSchema,
+			ProgressMonitor monitor) throws IOException;
+
+	/**
+	 * Works out what updating this database to a new schema would do,
+	 * without changing anything.
+	 * @param branch the branch to update
+	 * @param newSchema the new schema for the database.
+	 * @return the steps of the update and their estimated cost, or null
+	 * if the schema is unchanged
+	 * @throws IOException If the schema does not project or reading fails.
+	 */
+	DatabaseMigrator.Estimate estimateDatabaseUpdate(String branch,
+			Schema newSchema) throws IOException;
+
 }
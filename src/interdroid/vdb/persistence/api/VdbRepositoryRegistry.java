@@ -30,19 +30,35 @@
  */
 package interdroid.vdb.persistence.api;
 
+import ibis.smartsockets.virtual.InitializationException;
 import interdroid.util.FSUtil;
 import interdroid.vdb.content.VdbProviderRegistry;
+import interdroid.vdb.persistence.impl.RepositoryListing;
 import interdroid.vdb.persistence.impl.VdbRepositoryImpl;
+import interdroid.vdb.transport.BatchFetch;
+import interdroid.vdb.transport.ChangeNotifier;
+import interdroid.vdb.transport.SmartSocketsTransport;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 //import org.eclipse.jgit.transport.SshConfigSessionFactory;
 //import org.eclipse.jgit.transport.SshSessionFactory;
 //import org.eclipse.jgit.transport.OpenSshConfig.Host;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ProgressMonitor;
 import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.transport.RemoteConfig;
+import org.eclipse.jgit.transport.URIish;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -73,6 +89,15 @@ public final class VdbRepositoryRegistry {
 	 * Prevent construction.
 	 */
 	private VdbRepositoryRegistry() {
+		ChangeNotifier.getInstance().setListener(
+				new ChangeNotifier.Listener() {
+			@Override
+			public void onRefsChanged(final String repositoryName,
+					final String remoteName,
+					final Map<String, ObjectId> refs) {
+				fetchAnnounced(repositoryName, remoteName, refs);
+			}
+		});
 //        // disable strict host checking for push/pull ssh connections
 //        SshSessionFactory.setInstance( new SshConfigSessionFactory() {
 //            @Override
@@ -93,8 +118,15 @@ public final class VdbRepositoryRegistry {
 	/**
 	 * The repositories known to this instance.
 	 */
-	private Map<String, VdbRepositoryImpl> mRepositories
-		= new HashMap<String, VdbRepositoryImpl>();
+	private final ConcurrentMap<String, VdbRepositoryImpl> mRepositories
+		= new ConcurrentHashMap<String, VdbRepositoryImpl>();
+
+	/**
+	 * The locks held while opening a repository, one per name, so a
+	 * repository is opened once without holding up the others.
+	 */
+	private final ConcurrentMap<String, Object> mOpenLocks
+		= new ConcurrentHashMap<String, Object>();
 
 	/**
 	 * Adds the repository to the registry and constructs it.
@@ -104,20 +136,29 @@ public final class VdbRepositoryRegistry {
 	 * @return the constructed repository
 	 * @throws IOException if reading or writing fails.
 	 */
-	public synchronized VdbRepository addRepository(final Context context,
+	public VdbRepository addRepository(final Context context,
 			final String repositoryName, final VdbInitializer initializer)
 	throws IOException {
 		LOG.debug("Adding repo: {}", repositoryName);
 
-		VdbRepositoryImpl repo;
-		if (mRepositories.containsKey(repositoryName)) {
+		VdbRepositoryImpl repo = mRepositories.get(repositoryName);
+		if (repo != null) {
+			return repo;
+		}
+		Object lock = new Object();
+		Object existing = mOpenLocks.putIfAbsent(repositoryName, lock);
+		if (existing != null) {
+			lock = existing;
+		}
+		synchronized (lock) {
 			repo = mRepositories.get(repositoryName);
-		} else {
-			File repoDir = getRepositoryDir(context, repositoryName);
-			// If it does not exist, it will be initialized
-			repo = new VdbRepositoryImpl(repositoryName,
-					repoDir, initializer);
-			mRepositories.put(repositoryName, repo);
+			if (repo == null) {
+				File repoDir = getRepositoryDir(context, repositoryName);
+				// If it does not exist, it will be initialized
+				repo = new VdbRepositoryImpl(repositoryName,
+						repoDir, initializer);
+				mRepositories.put(repositoryName, repo);
+			}
 		}
 		return repo;
 	}
@@ -136,6 +177,19 @@ public final class VdbRepositoryRegistry {
 		return repoDir;
 	}
 
+	/**
+	 * Returns the sharing state of a repository without opening it or
+	 * initializing its content provider.
+	 * @param context the context being requested from
+	 * @param repositoryName the name of the repository
+	 * @return the listing entry for the repository
+	 */
+	public RepositoryListing.Entry getListing(final Context context,
+			final String repositoryName) {
+		return RepositoryListing.getInstance().get(repositoryName,
+				getRepositoryDir(context, repositoryName));
+	}
+
 	/**
 	 * Returns a repository with the given name.
 	 * @param context the context being requested from
@@ -143,14 +197,18 @@ public final class VdbRepositoryRegistry {
 	 * @return the requested repository
 	 * @throws IOException if reading or writing fails
 	 */
-	public synchronized VdbRepository getRepository(final Context context,
+	public VdbRepository getRepository(final Context context,
 			final String repositoryName) throws IOException {
 		if (LOG.isDebugEnabled()) {
 			LOG.debug("Getting repository: {} : {}", repositoryName,
 					mRepositories.size());
 		}
+		VdbRepositoryImpl open = mRepositories.get(repositoryName);
+		if (open != null) {
+			return open;
+		}
 		// Make sure the repository has been initialized.
-		new VdbProviderRegistry(context).initByName(repositoryName);
+		VdbProviderRegistry.getInstance(context).initByName(repositoryName);
 		if (LOG.isDebugEnabled()) {
 			for (String repo : mRepositories.keySet()) {
 				LOG.debug("Repo: {}", repo);
@@ -176,6 +234,190 @@ public final class VdbRepositoryRegistry {
 		return null;
 	}
 
+	/**
+	 * A remote of an open repository which lives on a peer.
+	 */
+	private static final class PeerRemote {
+		/** The repository the remote belongs to. */
+		private final VdbRepositoryImpl mRepository;
+		/** The remote configuration. */
+		private final RemoteConfig mRemote;
+		/** The uri of the remote. */
+		private final URIish mUri;
+		/** The email of the peer. */
+		private final String mPeer;
+
+		/**
+		 * Construct a peer remote.
+		 * @param repository the repository the remote belongs to
+		 * @param remote the remote configuration
+		 * @param uri the uri of the remote
+		 */
+		private PeerRemote(final VdbRepositoryImpl repository,
+				final RemoteConfig remote, final URIish uri) {
+			mRepository = repository;
+			mRemote = remote;
+			mUri = uri;
+			mPeer = uri.getUser() + "@" + uri.getHost();
+		}
+	}
+
+	/**
+	 * @return the remotes of the open repositories which live on a peer.
+	 */
+	private List<PeerRemote> listPeerRemotes() {
+		List<VdbRepositoryImpl> repositories =
+				new ArrayList<VdbRepositoryImpl>(mRepositories.values());
+
+		List<PeerRemote> remotes = new ArrayList<PeerRemote>();
+		for (VdbRepositoryImpl repo : repositories) {
+			Repository git = repo.getGitRepository();
+			try {
+				for (String remoteName : repo.listRemotes()) {
+					RemoteConfig remote = new RemoteConfig(git.getConfig(),
+							remoteName);
+					if (remote.getURIs().isEmpty()) {
+						continue;
+					}
+					URIish uri = remote.getURIs().get(0);
+					if (SmartSocketsTransport.SMARTSOCKETS_TRANSPORT_SCHEME
+							.equals(uri.getScheme())) {
+						remotes.add(new PeerRemote(repo, remote, uri));
+					}
+				}
+			} catch (IOException e) {
+				LOG.warn("Unable to list remotes of " + repo.getName(), e);
+			} catch (URISyntaxException e) {
+				LOG.warn("Bad remote in " + repo.getName(), e);
+			}
+		}
+		return remotes;
+	}
+
+	/**
+	 * Subscribes to the updates of every remote of the open repositories
+	 * which lives on a peer, so the peers push their changes to us
+	 * instead of us polling for them. Subscriptions expire after
+	 * {@link ChangeNotifier#SUBSCRIPTION_LEASE} so this has to be
+	 * repeated within that time.
+	 *
+	 * @param localEmail the email the peers know us by
+	 * @return the number of peers which accepted the subscriptions
+	 */
+	public int subscribeToAllPeers(final String localEmail) {
+		Map<String, List<ChangeNotifier.Subscription>> subscriptions =
+				new LinkedHashMap<String,
+				List<ChangeNotifier.Subscription>>();
+		for (PeerRemote remote : listPeerRemotes()) {
+			List<ChangeNotifier.Subscription> peer =
+					subscriptions.get(remote.mPeer);
+			if (peer == null) {
+				peer = new ArrayList<ChangeNotifier.Subscription>();
+				subscriptions.put(remote.mPeer, peer);
+			}
+			String path = remote.mUri.getPath();
+			if (path.startsWith("/")) {
+				path = path.substring(1);
+			}
+			peer.add(new ChangeNotifier.Subscription(path,
+					remote.mRepository.getName(), remote.mRemote.getName()));
+		}
+
+		int subscribed = 0;
+		for (Map.Entry<String, List<ChangeNotifier.Subscription>> peer
+				: subscriptions.entrySet()) {
+			try {
+				for (String answer : ChangeNotifier.subscribe(localEmail,
+						peer.getKey(), peer.getValue())) {
+					LOG.debug("Subscription: {}", answer);
+				}
+				subscribed++;
+			} catch (IOException e) {
+				LOG.warn("Unable to subscribe to " + peer.getKey(), e);
+			} catch (InitializationException e) {
+				LOG.warn("Unable to subscribe to " + peer.getKey(), e);
+			}
+		}
+		return subscribed;
+	}
+
+	/**
+	 * Pulls every remote of the open repositories which lives on a peer.
+	 * All repositories on the same peer are fetched in a single exchange
+	 * instead of one connection and negotiation per repository.
+	 *
+	 * @param localEmail the email the peers know us by
+	 * @param monitor callback object for monitoring
+	 * @return the request made for each remote, with its outcome
+	 */
+	public List<BatchFetch.Request> pullFromAllPeers(final String localEmail,
+			final ProgressMonitor monitor) {
+		Map<String, BatchFetch> batches =
+				new LinkedHashMap<String, BatchFetch>();
+		Map<BatchFetch.Request, VdbRepositoryImpl> owners =
+				new HashMap<BatchFetch.Request, VdbRepositoryImpl>();
+		for (PeerRemote remote : listPeerRemotes()) {
+			BatchFetch batch = batches.get(remote.mPeer);
+			if (batch == null) {
+				batch = new BatchFetch(localEmail, remote.mUri);
+				batches.put(remote.mPeer, batch);
+			}
+			BatchFetch.Request request = new BatchFetch.Request(
+					remote.mRepository.getGitRepository(), remote.mRemote);
+			batch.add(request);
+			owners.put(request, remote.mRepository);
+		}
+
+		List<BatchFetch.Request> results =
+				new ArrayList<BatchFetch.Request>();
+		for (Map.Entry<String, BatchFetch> batch : batches.entrySet()) {
+			LOG.debug("Syncing with peer: {}", batch.getKey());
+			try {
+				batch.getValue().run(monitor);
+			} catch (IOException e) {
+				LOG.warn("Sync with " + batch.getKey() + " failed.", e);
+			} catch (InitializationException e) {
+				LOG.warn("Sync with " + batch.getKey() + " failed.", e);
+			}
+			for (BatchFetch.Request request : batch.getValue().getRequests()) {
+				results.add(request);
+				if (request.isAnswered() && request.getError() == null) {
+					try {
+						owners.get(request).deleteSnapshots(
+								request.getRemoteName());
+					} catch (IOException e) {
+						LOG.warn("Unable to drop snapshots.", e);
+					}
+				}
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Fetches refs a peer announced. Announcements for repositories which
+	 * are not open, or remotes we do not have, are ignored; those are
+	 * picked up by the next pull.
+	 * @param repositoryName the local repository
+	 * @param remoteName the remote the peer is known as
+	 * @param refs the updated refs
+	 */
+	private void fetchAnnounced(final String repositoryName,
+			final String remoteName, final Map<String, ObjectId> refs) {
+		VdbRepositoryImpl repo = mRepositories.get(repositoryName);
+		try {
+			if (repo == null || !repo.listRemotes().contains(remoteName)) {
+				LOG.debug("Ignoring announcement for {} {}", repositoryName,
+						remoteName);
+				return;
+			}
+			repo.fetchRefs(remoteName, refs, NullProgressMonitor.INSTANCE);
+		} catch (IOException e) {
+			LOG.warn("Unable to fetch announced refs of " + repositoryName,
+					e);
+		}
+	}
+
 	/**
 	 * Delete a repository.
 	 * @param context the context to work in
@@ -183,7 +425,17 @@ public final class VdbRepositoryRegistry {
 	 */
 	public void deleteRepository(final Context context, String string) {
 		LOG.debug("Removing repo: {}", string);
-		VdbRepositoryImpl impl = mRepositories.remove(string);
+		VdbRepositoryImpl impl;
+		// Not while the repository is being opened.
+		Object lock = mOpenLocks.remove(string);
+		if (lock != null) {
+			synchronized (lock) {
+				impl = mRepositories.remove(string);
+			}
+		} else {
+			impl = mRepositories.remove(string);
+		}
+		ChangeNotifier.getInstance().removeSubscribers(string);
 		// Make sure to close the db.
 		if (impl != null) {
 			impl.close();
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.persistence.impl;
+
+/**
+ * The outcome of one maintenance pass over a repository.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+public final class MaintenanceReport {
+	/**
+	 * The object database before maintenance.
+	 */
+	private final RepositoryStatistics mBefore;
+	/**
+	 * The object database after maintenance.
+	 */
+	private RepositoryStatistics mAfter;
+	/**
+	 * True if the repository was repacked.
+	 */
+	private boolean mRepacked;
+	/**
+	 * The number of commit checkouts removed.
+	 */
+	private int mPrunedCheckouts;
+	/**
+	 * The bytes used by the commit checkouts removed.
+	 */
+	private long mCheckoutBytes;
+	/**
+	 * The time the pass took in milliseconds.
+	 */
+	private long mMillis;
+
+	/**
+	 * Construct a report.
+	 * @param before the object database before maintenance
+	 */
+	MaintenanceReport(final RepositoryStatistics before) {
+		mBefore = before;
+		mAfter = before;
+	}
+
+	/**
+	 * Records the state after maintenance.
+	 * @param after the object database after maintenance
+	 * @param millis the time the pass took
+	 */
+	void finish(final RepositoryStatistics after, final long millis) {
+		mAfter = after;
+		mMillis = millis;
+	}
+
+	/**
+	 * Records that the repository was repacked.
+	 */
+	void setRepacked() {
+		mRepacked = true;
+	}
+
+	/**
+	 * Records a removed commit checkout.
+	 * @param bytes the bytes the checkout used
+	 */
+	void addPrunedCheckout(final long bytes) {
+		mPrunedCheckouts++;
+		mCheckoutBytes += bytes;
+	}
+
+	/**
+	 * @return the object database before maintenance
+	 */
+	public RepositoryStatistics getBefore() {
+		return mBefore;
+	}
+
+	/**
+	 * @return the object database after maintenance
+	 */
+	public RepositoryStatistics getAfter() {
+		return mAfter;
+	}
+
+	/**
+	 * @return true if the repository was repacked
+	 */
+	public boolean isRepacked() {
+		return mRepacked;
+	}
+
+	/**
+	 * @return the number of commit checkouts removed
+	 */
+	public int getPrunedCheckouts() {
+		return mPrunedCheckouts;
+	}
+
+	/**
+	 * @return the bytes reclaimed from objects and checkouts. This may be
+	 * negative if new objects arrived during the pass.
+	 */
+	public long getReclaimedBytes() {
+		return mBefore.getTotalBytes() - mAfter.getTotalBytes()
+				+ mCheckoutBytes;
+	}
+
+	/**
+	 * @return the time the pass took in milliseconds
+	 */
+	public long getMillis() {
+		return mMillis;
+	}
+
+	@Override
+	public String toString() {
+		return "repacked: " + mRepacked
+				+ " pruned checkouts: " + mPrunedCheckouts
+				+ " reclaimed: " + getReclaimedBytes() + " bytes"
+				+ " in " + mMillis + "ms, now " + mAfter;
+	}
+}
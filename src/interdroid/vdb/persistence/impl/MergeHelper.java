@@ -30,9 +30,15 @@
  */
 package interdroid.vdb.persistence.impl;
 
+import interdroid.vdb.persistence.api.MergeInfo;
+import interdroid.vdb.persistence.api.VdbCheckout;
+
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Map;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
@@ -44,26 +50,62 @@ import android.database.sqlite.SQLiteDatabase;
  *
  */
 public class MergeHelper {
+	/**
+	 * Access to logger.
+	 */
+	private static final Logger LOG = LoggerFactory
+			.getLogger(MergeHelper.class);
+
 	/**
 	 * The name of the column with a diff result.
 	 */
 	static final String COL_DIFF_RESULT = "diff_result";
 
 	/**
-	 * The checkout this merge helper is working in.
+	 * The checkout this merge helper is working in or null if merged
+	 * tables are not recorded.
 	 */
-	//    private final VdbCheckout parentCheckout_;
+	private final VdbCheckout mCheckout;
 
 	/**
 	 * A cache of table metadata.
 	 */
-	private Map<String, TableMetadata> mMetadataCache;
+	private final Map<String, TableMetadata> mMetadataCache =
+			new HashMap<String, TableMetadata>();
+
+	/**
+	 * Construct a merge helper which does not record merged tables.
+	 */
+	public MergeHelper() {
+		this(null);
+	}
 
 	/**
-	 * Construct a merge helper.
+	 * Construct a merge helper working in the given checkout. Tables
+	 * merged with {@link #mergeTables} are recorded in the merge
+	 * information of the checkout.
+	 * @param checkout the checkout in merge mode
+	 */
+	public MergeHelper(final VdbCheckout checkout) {
+		mCheckout = checkout;
+	}
+
+	/**
+	 * Merges a single table.
+	 *
+	 * @author nick &lt;palmer@cs.vu.nl&gt;
+	 *
 	 */
-	public MergeHelper(/* VdbCheckout checkout */) {
-		//        parentCheckout_ = checkout;
+	public interface TableMerger {
+		/**
+		 * Merges the differences of one table into the master database.
+		 * This runs inside a transaction on the database.
+		 * @param db the database with the merge databases attached
+		 * @param table the table to merge
+		 * @param diff the three way diff of the table
+		 */
+		void mergeTable(SQLiteDatabase db, String table,
+				ThreeWayDiffCursor diff);
 	}
 
 	/**
@@ -334,6 +376,52 @@ public class MergeHelper {
 		return db.rawQuery(qb.toString(), null);
 	}
 
+	/**
+	 * Merges the given tables one at a time. Each table is merged in its
+	 * own transaction and then recorded as merged in the checkout, so a
+	 * merge resumed after the process died skips the tables which were
+	 * already completed. A table whose transaction committed but which
+	 * was not yet recorded is merged again, so the merger must be able to
+	 * apply a table twice.
+	 * @param db the database with the merge databases attached
+	 * @param tables the tables to merge
+	 * @param merger the merger to apply to each table
+	 * @return the number of tables which were merged by this call
+	 */
+	public final int mergeTables(final SQLiteDatabase db,
+			final Iterable<String> tables, final TableMerger merger) {
+		MergeInfo info = null;
+		if (mCheckout != null) {
+			info = mCheckout.getMergeInfo();
+			if (info == null) {
+				throw new IllegalStateException(
+						"Branch was not in merge mode.");
+			}
+		}
+
+		int merged = 0;
+		for (String table : tables) {
+			if (info != null && info.isTableMerged(table)) {
+				LOG.debug("Skipping merged table: {}", table);
+				continue;
+			}
+			ThreeWayDiffCursor diff = diff3(db, table);
+			db.beginTransaction();
+			try {
+				merger.mergeTable(db, table, diff);
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+				diff.close();
+			}
+			if (mCheckout != null) {
+				mCheckout.setTableMerged(table);
+			}
+			merged++;
+		}
+		return merged;
+	}
+
 	/**
 	 * Construct a diff3 cursor.
 	 * @param db the database to work in
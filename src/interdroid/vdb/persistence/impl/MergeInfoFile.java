@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.persistence.impl;
+
+import interdroid.vdb.persistence.api.MergeInfo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.zip.CRC32;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads and writes the merge information for a checkout.
+ *
+ * The information is stored as a small fixed format record:
+ * a magic number, a version, a flags byte, the raw base, theirs and ours
+ * commit ids, the list of tables merged so far and a CRC32 over all
+ * of the above. The record is written to a temporary file which is
+ * synced and then renamed over the existing file so a crash part way
+ * through a write never leaves a corrupt file behind.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+final class MergeInfoFile {
+	/**
+	 * Access to logger.
+	 */
+	private static final Logger LOG = LoggerFactory
+			.getLogger(MergeInfoFile.class);
+
+	/**
+	 * The magic number at the start of the file ("VDMI").
+	 */
+	private static final int MAGIC = 0x56444d49;
+
+	/**
+	 * The current version of the record format.
+	 */
+	private static final byte VERSION = 1;
+
+	/**
+	 * The flag set when the merge has been resolved.
+	 */
+	private static final int FLAG_RESOLVED = 0x01;
+
+	/**
+	 * The first two bytes of a java serialization stream, which is
+	 * what older versions wrote.
+	 */
+	private static final int LEGACY_MAGIC = 0xACED;
+
+	/**
+	 * The size of the checksum at the end of the record.
+	 */
+	private static final int CHECKSUM_LENGTH = 8;
+
+	/**
+	 * The suffix for the temporary file we write to.
+	 */
+	private static final String TMP_SUFFIX = ".tmp";
+
+	/**
+	 * The file we read and write.
+	 */
+	private final File mFile;
+
+	/**
+	 * Construct for the given file.
+	 * @param file the file holding the merge information
+	 */
+	MergeInfoFile(final File file) {
+		mFile = file;
+	}
+
+	/**
+	 * Reads the merge information.
+	 * @return the merge information or null if there is no merge in progress
+	 * @throws IOException if the file can not be read or is corrupt
+	 */
+	MergeInfo read() throws IOException {
+		File tmp = getTempFile();
+		if (tmp.exists() && !tmp.delete()) {
+			LOG.warn("Error deleting stale: {}", tmp);
+		}
+
+		byte[] data;
+		try {
+			data = readFully(mFile);
+		} catch (FileNotFoundException e) {
+			return null;
+		}
+
+		if (data.length >= 2
+				&& ((data[0] & 0xff) << 8 | (data[1] & 0xff)) == LEGACY_MAGIC) {
+			MergeInfo info = readLegacy(data);
+			// Rewrite it so we never have to read it this way again
+			write(info);
+			return info;
+		}
+
+		if (data.length < CHECKSUM_LENGTH) {
+			throw new IOException("Truncated merge information: " + mFile);
+		}
+		int bodyLength = data.length - CHECKSUM_LENGTH;
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, bodyLength);
+		DataInputStream in = new DataInputStream(
+				new ByteArrayInputStream(data));
+		in.skipBytes(bodyLength);
+		if (in.readLong() != crc.getValue()) {
+			throw new IOException("Corrupt merge information: " + mFile);
+		}
+
+		in = new DataInputStream(
+				new ByteArrayInputStream(data, 0, bodyLength));
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Not a merge information file: " + mFile);
+		}
+		byte version = in.readByte();
+		if (version != VERSION) {
+			throw new IOException("Unsupported merge information version "
+					+ version + " in " + mFile);
+		}
+		int flags = in.readUnsignedByte();
+		String base = readId(in);
+		String theirs = readId(in);
+		String ours = readId(in);
+		MergeInfo info = new MergeInfo(base, theirs, ours);
+		if ((flags & FLAG_RESOLVED) != 0) {
+			info.setResolved();
+		}
+		int tables = in.readInt();
+		for (int i = 0; i < tables; i++) {
+			info.setTableMerged(in.readUTF());
+		}
+		return info;
+	}
+
+	/**
+	 * Writes the merge information, or removes the file if info is null.
+	 * @param info the information to write
+	 * @throws IOException if the file can not be written
+	 */
+	void write(final MergeInfo info) throws IOException {
+		if (info == null) {
+			if (mFile.exists() && !mFile.delete()) {
+				throw new IOException("Error deleting: " + mFile);
+			}
+			return;
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeByte(VERSION);
+		out.writeByte(info.isResolved() ? FLAG_RESOLVED : 0);
+		writeId(out, info.getBase());
+		writeId(out, info.getTheirs());
+		writeId(out, info.getOurs());
+		out.writeInt(info.getMergedTables().size());
+		for (String table : info.getMergedTables()) {
+			out.writeUTF(table);
+		}
+		out.flush();
+
+		CRC32 crc = new CRC32();
+		crc.update(bytes.toByteArray());
+		out.writeLong(crc.getValue());
+		out.flush();
+
+		File tmp = getTempFile();
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			bytes.writeTo(fos);
+			fos.flush();
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		if (!tmp.renameTo(mFile)) {
+			if (!tmp.delete()) {
+				LOG.warn("Error deleting: {}", tmp);
+			}
+			throw new IOException("Unable to move merge information into "
+					+ "place: " + mFile);
+		}
+	}
+
+	/**
+	 * @return the temporary file new records are written to.
+	 */
+	private File getTempFile() {
+		return new File(mFile.getParentFile(), mFile.getName() + TMP_SUFFIX);
+	}
+
+	/**
+	 * Writes a commit id in raw form.
+	 * @param out the stream to write to
+	 * @param sha1 the id as a hex string
+	 * @throws IOException if writing fails
+	 */
+	private static void writeId(final DataOutputStream out, final String sha1)
+			throws IOException {
+		byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+		ObjectId.fromString(sha1).copyRawTo(raw, 0);
+		out.write(raw);
+	}
+
+	/**
+	 * Reads a commit id in raw form.
+	 * @param in the stream to read from
+	 * @return the id as a hex string
+	 * @throws IOException if reading fails
+	 */
+	private static String readId(final DataInputStream in)
+			throws IOException {
+		byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+		in.readFully(raw);
+		return ObjectId.fromRaw(raw).name();
+	}
+
+	/**
+	 * Reads merge information written with java serialization.
+	 * @param data the contents of the file
+	 * @return the merge information
+	 * @throws IOException if the data can not be read
+	 */
+	private MergeInfo readLegacy(final byte[] data) throws IOException {
+		LOG.debug("Converting legacy merge information: {}", mFile);
+		ObjectInputStream ois = new ObjectInputStream(
+				new ByteArrayInputStream(data));
+		try {
+			return (MergeInfo) ois.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Error while reading MergeInformation from "
+					+ mFile + ": " + e.getMessage());
+		} finally {
+			ois.close();
+		}
+	}
+
+	/**
+	 * Reads the whole of a file.
+	 * @param file the file to read
+	 * @return the contents of the file
+	 * @throws IOException if reading fails
+	 */
+	private static byte[] readFully(final File file) throws IOException {
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			byte[] data = new byte[(int) file.length()];
+			int off = 0;
+			while (off < data.length) {
+				int read = fis.read(data, off, data.length - off);
+				if (read < 0) {
+					throw new IOException("Unexpected end of file: " + file);
+				}
+				off += read;
+			}
+			return data;
+		} finally {
+			fis.close();
+		}
+	}
+}
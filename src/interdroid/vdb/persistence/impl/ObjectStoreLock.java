@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.persistence.impl;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.eclipse.jgit.lib.Repository;
+
+/**
+ * The process wide locks guarding the object stores of repositories.
+ *
+ * Anything which writes objects or moves references holds the read lock,
+ * so any number of commits, fetches and pushes run side by side. The
+ * repacker holds the write lock while it walks the references and
+ * deletes packs and loose objects, so no object it is about to delete
+ * can become referenced while it runs. Transfers hold the read lock
+ * for as long as they talk to the peer, so the repacker only tries the
+ * write lock and skips its run if it is taken. It never waits for it,
+ * which would make new readers queue behind it.
+ *
+ * The lock is found by the directory of the repository, so the daemon
+ * and transports which only have a jgit repository share it with the
+ * VDB repository.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+public final class ObjectStoreLock {
+	/**
+	 * The locks by repository directory.
+	 */
+	private static final ConcurrentMap<File, ReadWriteLock> LOCKS =
+			new ConcurrentHashMap<File, ReadWriteLock>();
+
+	/**
+	 * Prevent construction.
+	 */
+	private ObjectStoreLock() {
+		// Utility class
+	}
+
+	/**
+	 * Returns the lock for the object store of a repository.
+	 * @param repo the repository
+	 * @return the lock for the repository
+	 */
+	public static ReadWriteLock get(final Repository repo) {
+		File dir = repo.getDirectory().getAbsoluteFile();
+		ReadWriteLock lock = LOCKS.get(dir);
+		if (lock == null) {
+			lock = new ReentrantReadWriteLock();
+			ReadWriteLock existing = LOCKS.putIfAbsent(dir, lock);
+			if (existing != null) {
+				lock = existing;
+			}
+		}
+		return lock;
+	}
+}
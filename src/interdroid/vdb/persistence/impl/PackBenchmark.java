@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.persistence.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.storage.file.FileRepository;
+import org.eclipse.jgit.storage.pack.PackConfig;
+import org.eclipse.jgit.storage.pack.PackWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures how well a pack configuration does for a repository.
+ *
+ * The benchmark reports the size of the object database, the bytes a
+ * peer would receive when fetching the whole branch and the bytes it
+ * would receive fetching each of the last commits on the branch one at
+ * a time. Packs are generated in memory and discarded, nothing in the
+ * repository is changed.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+public final class PackBenchmark {
+	/**
+	 * Access to logger.
+	 */
+	private static final Logger LOG =
+			LoggerFactory.getLogger(PackBenchmark.class);
+
+	/**
+	 * The cost of fetching a single commit.
+	 */
+	public static final class CommitCost {
+		/** The commit fetched. */
+		private final String mCommit;
+		/** The size of the pack sent. */
+		private final long mBytes;
+		/** The number of objects in the pack. */
+		private final long mObjects;
+		/** The time taken to build the pack. */
+		private final long mMillis;
+
+		/**
+		 * Construct a cost.
+		 * @param commit the commit fetched
+		 * @param bytes the size of the pack
+		 * @param objects the number of objects in the pack
+		 * @param millis the time taken to build the pack
+		 */
+		private CommitCost(final String commit, final long bytes,
+				final long objects, final long millis) {
+			mCommit = commit;
+			mBytes = bytes;
+			mObjects = objects;
+			mMillis = millis;
+		}
+
+		/** @return the commit fetched */
+		public String getCommit() {
+			return mCommit;
+		}
+
+		/** @return the size of the pack sent */
+		public long getBytes() {
+			return mBytes;
+		}
+
+		/** @return the number of objects in the pack */
+		public long getObjects() {
+			return mObjects;
+		}
+
+		/** @return the time taken to build the pack */
+		public long getMillis() {
+			return mMillis;
+		}
+
+		@Override
+		public String toString() {
+			return mCommit + ": " + mBytes + " bytes, " + mObjects
+					+ " objects, " + mMillis + "ms";
+		}
+	}
+
+	/**
+	 * The results of a benchmark run.
+	 */
+	public static final class Report {
+		/** The state of the object database. */
+		private final RepositoryStatistics mStatistics;
+		/** The cost of fetching the whole branch. */
+		private final CommitCost mFullFetch;
+		/** The cost of fetching each commit, newest first. */
+		private final List<CommitCost> mIncremental;
+
+		/**
+		 * Construct a report.
+		 * @param statistics the state of the object database
+		 * @param fullFetch the cost of fetching the whole branch
+		 * @param incremental the cost of fetching each commit
+		 */
+		private Report(final RepositoryStatistics statistics,
+				final CommitCost fullFetch,
+				final List<CommitCost> incremental) {
+			mStatistics = statistics;
+			mFullFetch = fullFetch;
+			mIncremental = Collections.unmodifiableList(incremental);
+		}
+
+		/** @return the state of the object database */
+		public RepositoryStatistics getStatistics() {
+			return mStatistics;
+		}
+
+		/** @return the cost of fetching the whole branch */
+		public CommitCost getFullFetch() {
+			return mFullFetch;
+		}
+
+		/** @return the cost of fetching each commit, newest first */
+		public List<CommitCost> getIncremental() {
+			return mIncremental;
+		}
+
+		/** @return the total bytes fetching every commit one at a time */
+		public long getIncrementalBytes() {
+			long total = 0;
+			for (CommitCost cost : mIncremental) {
+				total += cost.getBytes();
+			}
+			return total;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append("repository: ").append(mStatistics).append('\n');
+			sb.append("full fetch: ").append(mFullFetch).append('\n');
+			sb.append("incremental fetch of ").append(mIncremental.size())
+				.append(" commits: ").append(getIncrementalBytes())
+				.append(" bytes\n");
+			for (CommitCost cost : mIncremental) {
+				sb.append("  ").append(cost).append('\n');
+			}
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * An output stream which only counts what is written to it.
+	 */
+	private static final class CountingOutputStream extends OutputStream {
+		/** The number of bytes written. */
+		private long mCount;
+
+		@Override
+		public void write(final int b) {
+			mCount++;
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) {
+			mCount += len;
+		}
+	}
+
+	/**
+	 * No construction.
+	 */
+	private PackBenchmark() {
+		// Utility class
+	}
+
+	/**
+	 * Runs the benchmark against a branch of a repository.
+	 * @param repository the repository to measure
+	 * @param branchName the branch to measure
+	 * @param commits the number of commits to measure
+	 * @param config the pack configuration to measure
+	 * @return the report for the run
+	 * @throws IOException if reading the repository fails
+	 */
+	public static Report run(final VdbRepositoryImpl repository,
+			final String branchName, final int commits,
+			final PackConfig config) throws IOException {
+		Repository repo = repository.getGitRepository();
+		Ref ref = repo.getRef(Constants.R_HEADS + branchName);
+		if (ref == null || ref.getObjectId() == null) {
+			throw new IOException("No such branch: " + branchName);
+		}
+
+		CommitCost full = measure(repo, config, ref.getObjectId(), null);
+
+		List<CommitCost> incremental = new ArrayList<CommitCost>();
+		RevWalk walk = new RevWalk(repo);
+		try {
+			RevCommit commit = walk.parseCommit(ref.getObjectId());
+			while (commit != null && incremental.size() < commits) {
+				RevCommit parent = null;
+				if (commit.getParentCount() > 0) {
+					parent = walk.parseCommit(commit.getParent(0));
+				}
+				incremental.add(measure(repo, config, commit, parent));
+				commit = parent;
+			}
+		} finally {
+			walk.release();
+		}
+
+		Report report = new Report(RepositoryStatistics.scan(
+				((FileRepository) repo).getObjectsDirectory()),
+				full, incremental);
+		LOG.info("Pack benchmark for {} {}:\n{}",
+				new Object[] {repository.getName(), branchName, report});
+		return report;
+	}
+
+	/**
+	 * Measures the pack sent to a peer which wants one commit and has
+	 * another.
+	 * @param repo the repository
+	 * @param config the pack configuration
+	 * @param want the commit the peer wants
+	 * @param have the commit the peer has or null
+	 * @return the cost of the fetch
+	 * @throws IOException if reading the repository fails
+	 */
+	private static CommitCost measure(final Repository repo,
+			final PackConfig config, final ObjectId want,
+			final ObjectId have) throws IOException {
+		long start = System.currentTimeMillis();
+		Collection<ObjectId> haves;
+		if (have == null) {
+			haves = Collections.emptySet();
+		} else {
+			haves = Collections.singleton(have);
+		}
+		PackWriter writer = new PackWriter(config, repo.newObjectReader());
+		try {
+			writer.preparePack(NullProgressMonitor.INSTANCE,
+					Collections.singleton(want), haves);
+			CountingOutputStream out = new CountingOutputStream();
+			writer.writePack(NullProgressMonitor.INSTANCE,
+					NullProgressMonitor.INSTANCE, out);
+			return new CommitCost(want.name(), out.mCount,
+					writer.getObjectCount(),
+					System.currentTimeMillis() - start);
+		} finally {
+			writer.release();
+		}
+	}
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.persistence.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepository;
+import org.eclipse.jgit.storage.file.PackLock;
+import org.eclipse.jgit.storage.pack.PackConfig;
+import org.eclipse.jgit.storage.pack.PackWriter;
+import org.eclipse.jgit.transport.PackParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Measures what it costs a peer to receive a branch of a repository.
+ *
+ * The pack a peer would be sent for the whole branch is written to a
+ * file and then indexed into an empty scratch repository, the same work
+ * receive-pack does for a push. While indexing, the heap is sampled so
+ * the peak can be compared against the memory a hub or device has to
+ * spare. The scratch repository is removed afterwards and nothing in
+ * the measured repository is changed.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+public final class ReceiveBenchmark {
+	/**
+	 * Access to logger.
+	 */
+	private static final Logger LOG =
+			LoggerFactory.getLogger(ReceiveBenchmark.class);
+
+	/**
+	 * Milliseconds between samples of the heap.
+	 */
+	private static final long SAMPLE_INTERVAL = 10;
+
+	/**
+	 * The name of the scratch directory in the repository directory.
+	 */
+	private static final String SCRATCH_DIR = "receive-benchmark";
+
+	/**
+	 * The results of a benchmark run.
+	 */
+	public static final class Report {
+		/** The size of the pack received. */
+		private final long mPackBytes;
+		/** The number of objects in the pack. */
+		private final long mObjects;
+		/** The time taken to index the pack. */
+		private final long mMillis;
+		/** The most heap used above the baseline while indexing. */
+		private final long mPeakHeap;
+		/** The heap the receiver may use. */
+		private final long mCeiling;
+
+		/**
+		 * Construct a report.
+		 * @param packBytes the size of the pack
+		 * @param objects the number of objects in the pack
+		 * @param millis the time taken to index the pack
+		 * @param peakHeap the most heap used while indexing
+		 * @param ceiling the heap the receiver may use
+		 */
+		private Report(final long packBytes, final long objects,
+				final long millis, final long peakHeap, final long ceiling) {
+			mPackBytes = packBytes;
+			mObjects = objects;
+			mMillis = millis;
+			mPeakHeap = peakHeap;
+			mCeiling = ceiling;
+		}
+
+		/** @return the size of the pack received */
+		public long getPackBytes() {
+			return mPackBytes;
+		}
+
+		/** @return the number of objects in the pack */
+		public long getObjects() {
+			return mObjects;
+		}
+
+		/** @return the time taken to index the pack */
+		public long getMillis() {
+			return mMillis;
+		}
+
+		/** @return the most heap used above the baseline while indexing */
+		public long getPeakHeap() {
+			return mPeakHeap;
+		}
+
+		/** @return the heap the receiver may use */
+		public long getCeiling() {
+			return mCeiling;
+		}
+
+		/** @return true if indexing stayed below the ceiling */
+		public boolean isWithinCeiling() {
+			return mPeakHeap <= mCeiling;
+		}
+
+		@Override
+		public String toString() {
+			return mPackBytes + " bytes, " + mObjects + " objects, "
+					+ mMillis + "ms, peak heap " + mPeakHeap + " of "
+					+ mCeiling + (isWithinCeiling() ? "" : " EXCEEDED");
+		}
+	}
+
+	/**
+	 * Samples the heap in the background, keeping the highest value.
+	 */
+	private static final class HeapSampler extends Thread {
+		/** The heap in use when sampling started. */
+		private final long mBaseline;
+		/** The highest heap in use seen. */
+		private volatile long mPeak;
+		/** True while sampling. */
+		private volatile boolean mRunning = true;
+
+		/**
+		 * Construct a sampler.
+		 */
+		private HeapSampler() {
+			super("vdb-receive-benchmark");
+			setDaemon(true);
+			mBaseline = used();
+			mPeak = mBaseline;
+		}
+
+		/**
+		 * @return the heap currently in use.
+		 */
+		private static long used() {
+			Runtime runtime = Runtime.getRuntime();
+			return runtime.totalMemory() - runtime.freeMemory();
+		}
+
+		@Override
+		public void run() {
+			while (mRunning) {
+				sample();
+				try {
+					Thread.sleep(SAMPLE_INTERVAL);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Takes a sample.
+		 */
+		private void sample() {
+			long used = used();
+			if (used > mPeak) {
+				mPeak = used;
+			}
+		}
+
+		/**
+		 * Stops sampling.
+		 * @return the most heap used above the baseline
+		 */
+		private long finish() {
+			mRunning = false;
+			interrupt();
+			try {
+				join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			sample();
+			return Math.max(0, mPeak - mBaseline);
+		}
+	}
+
+	/**
+	 * No construction.
+	 */
+	private ReceiveBenchmark() {
+		// Utility class
+	}
+
+	/**
+	 * Runs the benchmark against a branch of a repository.
+	 * @param repository the repository to measure
+	 * @param branchName the branch to measure
+	 * @param config the pack configuration of the sender
+	 * @param ceiling the heap in bytes the receiver may use
+	 * @return the report for the run
+	 * @throws IOException if reading or writing fails
+	 */
+	public static Report run(final VdbRepositoryImpl repository,
+			final String branchName, final PackConfig config,
+			final long ceiling) throws IOException {
+		Repository repo = repository.getGitRepository();
+		Ref ref = repo.getRef(Constants.R_HEADS + branchName);
+		if (ref == null || ref.getObjectId() == null) {
+			throw new IOException("No such branch: " + branchName);
+		}
+
+		VdbPackConfig.configureWindowCache();
+		File scratch = new File(repository.getRepositoryDir(), SCRATCH_DIR);
+		RepositoryMaintenance.delete(scratch);
+		try {
+			File pack = new File(scratch, "incoming.pack");
+			File scratchGit = new File(scratch, Constants.DOT_GIT);
+			FileRepository target = new FileRepository(scratchGit);
+			target.create(true);
+			try {
+				long objects = writePack(repo, config, ref.getObjectId(),
+						pack);
+				Report report = new Report(pack.length(), objects,
+						0, 0, ceiling);
+				report = receive(target, pack, report);
+				LOG.info("Receive benchmark for {} {}: {}",
+						new Object[] {repository.getName(), branchName,
+						report});
+				return report;
+			} finally {
+				target.close();
+			}
+		} finally {
+			RepositoryMaintenance.delete(scratch);
+		}
+	}
+
+	/**
+	 * Writes the pack a peer fetching the whole branch would receive.
+	 * @param repo the repository
+	 * @param config the pack configuration
+	 * @param want the tip of the branch
+	 * @param pack the file to write to
+	 * @return the number of objects in the pack
+	 * @throws IOException if reading or writing fails
+	 */
+	private static long writePack(final Repository repo,
+			final PackConfig config, final ObjectId want, final File pack)
+					throws IOException {
+		PackWriter writer = new PackWriter(config, repo.newObjectReader());
+		try {
+			writer.preparePack(NullProgressMonitor.INSTANCE,
+					Collections.singleton(want),
+					Collections.<ObjectId>emptySet());
+			OutputStream out = new BufferedOutputStream(
+					new FileOutputStream(pack));
+			try {
+				writer.writePack(NullProgressMonitor.INSTANCE,
+						NullProgressMonitor.INSTANCE, out);
+			} finally {
+				out.close();
+			}
+			return writer.getObjectCount();
+		} finally {
+			writer.release();
+		}
+	}
+
+	/**
+	 * Indexes a pack into the target, sampling the heap meanwhile.
+	 * @param target the repository receiving the pack
+	 * @param pack the pack
+	 * @param sent the report with the pack details filled in
+	 * @return the report for the run
+	 * @throws IOException if indexing fails
+	 */
+	private static Report receive(final Repository target, final File pack,
+			final Report sent) throws IOException {
+		// Start from a clean heap so the peak is ours.
+		System.gc();
+		HeapSampler sampler = new HeapSampler();
+		sampler.start();
+		long start = System.currentTimeMillis();
+		long peak;
+		ObjectInserter inserter = target.newObjectInserter();
+		try {
+			InputStream in = new BufferedInputStream(
+					new FileInputStream(pack));
+			try {
+				PackParser parser = inserter.newPackParser(in);
+				parser.setAllowThin(false);
+				PackLock lock = parser.parse(NullProgressMonitor.INSTANCE);
+				inserter.flush();
+				if (lock != null) {
+					lock.unlock();
+				}
+			} finally {
+				in.close();
+			}
+		} finally {
+			inserter.release();
+			peak = sampler.finish();
+		}
+		return new Report(sent.getPackBytes(), sent.getObjects(),
+				System.currentTimeMillis() - start, peak, sent.getCeiling());
+	}
+}
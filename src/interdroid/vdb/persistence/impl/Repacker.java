@@ -0,0 +1,369 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.persistence.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.FileRepository;
+import org.eclipse.jgit.storage.file.PackIndex;
+import org.eclipse.jgit.storage.pack.PackConfig;
+import org.eclipse.jgit.storage.pack.PackWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Repacks all objects reachable from the references of a repository
+ * into a single pack.
+ *
+ * Once the new pack is in place the loose objects it contains are removed,
+ * as are the packs which existed before the repack started and whose
+ * objects are all in the new pack. Packs which are younger than
+ * {@link #PACK_EXPIRY} are kept, since a push may have written one whose
+ * references have not been updated yet. When pruning is enabled loose
+ * objects and packs which hold objects that are not reachable are removed
+ * once they are older than the prune time.
+ *
+ * The repack runs under the write lock of the {@link ObjectStoreLock}, so
+ * no commit, fetch or push can reference an object while it is deleted.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+final class Repacker {
+	/**
+	 * Access to logger.
+	 */
+	private static final Logger LOG = LoggerFactory.getLogger(Repacker.class);
+
+	/**
+	 * Packs younger than this many milliseconds are never removed.
+	 */
+	static final long PACK_EXPIRY = 60 * 60 * 1000L;
+
+	/**
+	 * The prefix for pack file names.
+	 */
+	private static final String PACK_PREFIX = "pack-";
+
+	/**
+	 * The extension for a pack.
+	 */
+	private static final String PACK_EXT = ".pack";
+
+	/**
+	 * The extension for a pack index.
+	 */
+	private static final String INDEX_EXT = ".idx";
+
+	/**
+	 * The extension for a pack which must be kept.
+	 */
+	private static final String KEEP_EXT = ".keep";
+
+	/**
+	 * The repository we repack.
+	 */
+	private final FileRepository mRepo;
+
+	/**
+	 * The configuration for the pack we write.
+	 */
+	private final PackConfig mConfig;
+
+	/**
+	 * Unreachable loose objects older than this time are removed.
+	 */
+	private long mPruneBefore;
+
+	/**
+	 * Construct a repacker.
+	 * @param repo the repository to repack
+	 * @param config the configuration for the new pack
+	 */
+	Repacker(final Repository repo, final PackConfig config) {
+		mRepo = (FileRepository) repo;
+		mConfig = config;
+	}
+
+	/**
+	 * Enables removal of unreachable loose objects.
+	 * @param pruneBefore loose objects modified before this time which are
+	 * not reachable are removed, 0 to keep them all
+	 */
+	void setPruneBefore(final long pruneBefore) {
+		mPruneBefore = pruneBefore;
+	}
+
+	/**
+	 * Runs the repack, unless objects are being written. Transfers write
+	 * objects while they talk to a slow peer, so waiting for them would
+	 * hold up every commit queued behind the repack instead.
+	 * @param monitor the monitor for progress
+	 * @return statistics for the repository after the repack, or null if
+	 * the repack was skipped
+	 * @throws IOException if reading or writing fails
+	 */
+	RepositoryStatistics repack(final ProgressMonitor monitor)
+			throws IOException {
+		Lock lock = ObjectStoreLock.get(mRepo).writeLock();
+		if (!lock.tryLock()) {
+			LOG.debug("Objects are being written, skipping repack.");
+			return null;
+		}
+		try {
+			return repackLocked(monitor);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Runs the repack while holding the object store lock.
+	 * @param monitor the monitor for progress
+	 * @return statistics for the repository after the repack
+	 * @throws IOException if reading or writing fails
+	 */
+	private RepositoryStatistics repackLocked(final ProgressMonitor monitor)
+			throws IOException {
+		final long started = System.currentTimeMillis();
+		final File objectsDir = mRepo.getObjectsDirectory();
+		final File packDir = new File(objectsDir, "pack");
+
+		Set<ObjectId> want = new HashSet<ObjectId>();
+		for (Ref ref : mRepo.getAllRefs().values()) {
+			if (ref.getObjectId() != null) {
+				want.add(ref.getObjectId());
+			}
+		}
+
+		PackWriter writer = new PackWriter(mConfig, mRepo.newObjectReader());
+		try {
+			writer.preparePack(monitor, want,
+					Collections.<ObjectId>emptySet());
+			if (writer.getObjectCount() == 0) {
+				LOG.debug("Nothing to repack.");
+				return RepositoryStatistics.scan(objectsDir);
+			}
+			String name = writePack(writer, packDir, monitor);
+			deleteOldPacks(packDir, name, started - PACK_EXPIRY, writer);
+			deleteLooseObjects(objectsDir, writer);
+		} finally {
+			writer.release();
+		}
+
+		RepositoryStatistics stats = RepositoryStatistics.scan(objectsDir);
+		LOG.debug("Repacked {} in {}ms: {}", new Object[] {
+				mRepo.getDirectory(),
+				System.currentTimeMillis() - started, stats});
+		return stats;
+	}
+
+	/**
+	 * Writes the pack and index and moves them into place.
+	 * @param writer the prepared writer
+	 * @param packDir the pack directory
+	 * @param monitor the monitor for progress
+	 * @return the base name of the new pack
+	 * @throws IOException if writing fails
+	 */
+	private String writePack(final PackWriter writer, final File packDir,
+			final ProgressMonitor monitor) throws IOException {
+		if (!packDir.isDirectory() && !packDir.mkdirs()) {
+			throw new IOException("Unable to create: " + packDir);
+		}
+		File tmpPack = File.createTempFile("repack_", PACK_EXT, packDir);
+		File tmpIdx = new File(packDir, tmpPack.getName() + INDEX_EXT);
+		try {
+			FileOutputStream out = new FileOutputStream(tmpPack);
+			try {
+				BufferedOutputStream buf = new BufferedOutputStream(out);
+				writer.writePack(monitor, monitor, buf);
+				buf.flush();
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+
+			out = new FileOutputStream(tmpIdx);
+			try {
+				BufferedOutputStream buf = new BufferedOutputStream(out);
+				writer.writeIndex(buf);
+				buf.flush();
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+
+			String name = PACK_PREFIX + writer.computeName().name();
+			File realPack = new File(packDir, name + PACK_EXT);
+			File realIdx = new File(packDir, name + INDEX_EXT);
+			if (realPack.exists() && realIdx.exists()) {
+				// Identical to a pack we already have.
+				return name;
+			}
+			// The index goes last since it makes the pack visible.
+			if (!tmpPack.renameTo(realPack)) {
+				throw new IOException("Unable to move pack into place: "
+						+ realPack);
+			}
+			if (!tmpIdx.renameTo(realIdx)) {
+				if (!realPack.delete()) {
+					LOG.warn("Error deleting: {}", realPack);
+				}
+				throw new IOException("Unable to move index into place: "
+						+ realIdx);
+			}
+			return name;
+		} finally {
+			if (tmpPack.exists() && !tmpPack.delete()) {
+				LOG.warn("Error deleting: {}", tmpPack);
+			}
+			if (tmpIdx.exists() && !tmpIdx.delete()) {
+				LOG.warn("Error deleting: {}", tmpIdx);
+			}
+		}
+	}
+
+	/**
+	 * Deletes the packs which were replaced by the new pack.
+	 * @param packDir the pack directory
+	 * @param keepName the name of the new pack
+	 * @param olderThan only packs modified before this time are deleted
+	 * @param writer the writer which wrote the new pack
+	 */
+	private void deleteOldPacks(final File packDir, final String keepName,
+			final long olderThan, final PackWriter writer) {
+		File[] files = packDir.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File pack : files) {
+			String fileName = pack.getName();
+			if (!fileName.startsWith(PACK_PREFIX)
+					|| !fileName.endsWith(PACK_EXT)) {
+				continue;
+			}
+			String name = fileName.substring(0,
+					fileName.length() - PACK_EXT.length());
+			if (name.equals(keepName)
+					|| pack.lastModified() >= olderThan
+					|| new File(packDir, name + KEEP_EXT).exists()) {
+				continue;
+			}
+			File idx = new File(packDir, name + INDEX_EXT);
+			if (pack.lastModified() >= mPruneBefore
+					&& !isContained(idx, writer)) {
+				LOG.debug("Keeping pack with unreachable objects: {}", name);
+				continue;
+			}
+			LOG.debug("Deleting old pack: {}", name);
+			// Remove the index first so the pack is no longer used.
+			if (idx.exists() && !idx.delete()) {
+				LOG.warn("Error deleting: {}", idx);
+				continue;
+			}
+			if (!pack.delete()) {
+				LOG.warn("Error deleting: {}", pack);
+			}
+		}
+	}
+
+	/**
+	 * Checks if every object of a pack is in the new pack.
+	 * @param idx the index of the old pack
+	 * @param writer the writer which wrote the new pack
+	 * @return true if the new pack holds all objects of the old pack
+	 */
+	private boolean isContained(final File idx, final PackWriter writer) {
+		if (!idx.exists()) {
+			// Without an index the pack is not used anyway.
+			return true;
+		}
+		try {
+			for (PackIndex.MutableEntry entry : PackIndex.open(idx)) {
+				if (!writer.willInclude(entry.toObjectId())) {
+					return false;
+				}
+			}
+			return true;
+		} catch (IOException e) {
+			LOG.warn("Error reading: " + idx, e);
+			return false;
+		}
+	}
+
+	/**
+	 * Deletes the loose objects which are now in the new pack and those
+	 * which are due to be pruned.
+	 * @param objectsDir the objects directory
+	 * @param writer the writer which wrote the pack
+	 */
+	private void deleteLooseObjects(final File objectsDir,
+			final PackWriter writer) {
+		File[] dirs = objectsDir.listFiles();
+		if (dirs == null) {
+			return;
+		}
+		for (File dir : dirs) {
+			if (!RepositoryStatistics.isLooseObjectDir(dir)) {
+				continue;
+			}
+			File[] objects = dir.listFiles();
+			if (objects == null) {
+				continue;
+			}
+			for (File object : objects) {
+				String id = dir.getName() + object.getName();
+				if (!ObjectId.isId(id)) {
+					continue;
+				}
+				if ((writer.willInclude(ObjectId.fromString(id))
+						|| object.lastModified() < mPruneBefore)
+						&& !object.delete()) {
+					LOG.warn("Error deleting: {}", object);
+				}
+			}
+			// Only succeeds when the directory is now empty.
+			dir.delete();
+		}
+	}
+}
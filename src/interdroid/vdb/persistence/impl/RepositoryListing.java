@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.persistence.impl;
+
+import interdroid.vdb.persistence.api.RemoteInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.eclipse.jgit.errors.ConfigInvalidException;
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.storage.file.FileBasedConfig;
+import org.eclipse.jgit.util.FS;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An in-memory index of the sharing state of every repository: whether
+ * it is public and which remotes it has. Listing the repositories visible
+ * to a peer is answered from this index, so it costs a map lookup per
+ * repository instead of opening each repository and its content provider.
+ *
+ * Entries are loaded from the git configuration the first time a
+ * repository is listed and replaced whenever the repository changes its
+ * remotes or its public flag.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+public final class RepositoryListing {
+	/**
+	 * Access to logger.
+	 */
+	private static final Logger LOG = LoggerFactory
+			.getLogger(RepositoryListing.class);
+
+	/**
+	 * The singleton of this in the system.
+	 */
+	private static final RepositoryListing SINGLETON =
+			new RepositoryListing();
+
+	/**
+	 * The listing entries keyed by repository name.
+	 */
+	private final ConcurrentMap<String, Entry> mEntries =
+			new ConcurrentHashMap<String, Entry>();
+
+	/**
+	 * The sharing state of a single repository.
+	 *
+	 * @author nick &lt;palmer@cs.vu.nl&gt;
+	 *
+	 */
+	public static final class Entry {
+		/**
+		 * True if the repository is public.
+		 */
+		private final boolean mIsPublic;
+		/**
+		 * The names of the remotes of the repository.
+		 */
+		private final Set<String> mRemotes;
+
+		/**
+		 * Construct an entry.
+		 * @param isPublic true if the repository is public
+		 * @param remotes the names of the remotes of the repository
+		 */
+		private Entry(final boolean isPublic, final Set<String> remotes) {
+			mIsPublic = isPublic;
+			mRemotes = Collections.unmodifiableSet(
+					new HashSet<String>(remotes));
+		}
+
+		/**
+		 * @return true if the repository is public.
+		 */
+		public boolean isPublic() {
+			return mIsPublic;
+		}
+
+		/**
+		 * @param email the email of the peer
+		 * @return true if the repository has a remote for the given peer.
+		 */
+		public boolean isPeer(final String email) {
+			return mRemotes.contains(email);
+		}
+	}
+
+	/**
+	 * An entry for repositories which do not exist yet.
+	 */
+	private static final Entry EMPTY =
+			new Entry(false, Collections.<String>emptySet());
+
+	/**
+	 * Prevent construction.
+	 */
+	private RepositoryListing() {
+	}
+
+	/**
+	 * @return the instance of the listing.
+	 */
+	public static RepositoryListing getInstance() {
+		return SINGLETON;
+	}
+
+	/**
+	 * Returns the listing entry for a repository, reading its configuration
+	 * if the repository has not been listed before.
+	 *
+	 * @param name the name of the repository
+	 * @param repoDir the directory of the repository
+	 * @return the entry for the repository
+	 */
+	public Entry get(final String name, final File repoDir) {
+		Entry entry = mEntries.get(name);
+		if (entry == null) {
+			entry = load(repoDir);
+			Entry current = mEntries.putIfAbsent(name, entry);
+			if (current != null) {
+				entry = current;
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * Replaces the entry for a repository with the given configuration.
+	 * @param name the name of the repository
+	 * @param config the configuration of the repository
+	 */
+	void update(final String name, final Config config) {
+		mEntries.put(name, read(config));
+	}
+
+	/**
+	 * Drops the entry for a repository.
+	 * @param name the name of the repository
+	 */
+	public void remove(final String name) {
+		mEntries.remove(name);
+	}
+
+	/**
+	 * Reads the entry for a repository which is not open.
+	 * @param repoDir the directory of the repository
+	 * @return the entry for the repository
+	 */
+	private static Entry load(final File repoDir) {
+		File configFile = new File(new File(repoDir, ".git"), "config");
+		if (!configFile.exists()) {
+			return EMPTY;
+		}
+		FileBasedConfig config = new FileBasedConfig(configFile, FS.DETECTED);
+		try {
+			config.load();
+		} catch (IOException e) {
+			LOG.warn("Unable to read " + configFile, e);
+			return EMPTY;
+		} catch (ConfigInvalidException e) {
+			LOG.warn("Invalid configuration " + configFile, e);
+			return EMPTY;
+		}
+		return read(config);
+	}
+
+	/**
+	 * Builds an entry from a repository configuration.
+	 * @param config the configuration of the repository
+	 * @return the entry for the repository
+	 */
+	private static Entry read(final Config config) {
+		return new Entry(config.getBoolean(
+				VdbRepositoryImpl.VDB_PREFERENCES_SECTION,
+				VdbRepositoryImpl.PREF_IS_PUBLIC, false),
+				config.getSubsections(RemoteInfo.SECTION));
+	}
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.persistence.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.eclipse.jgit.lib.Config;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.storage.file.FileRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the on disk state of a repository in shape.
+ *
+ * A maintenance pass repacks the object database once there are too many
+ * loose objects or packs, pruning unreachable loose objects which are old
+ * enough, and removes commit checkouts which are no longer open. Passes
+ * run on a single low priority thread shared by all repositories, either
+ * periodically or when requested after commits.
+ *
+ * The thresholds are read from the vdb section of the repository
+ * configuration each pass so they can be tuned without a restart.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+final class RepositoryMaintenance {
+	/**
+	 * Access to logger.
+	 */
+	private static final Logger LOG =
+			LoggerFactory.getLogger(RepositoryMaintenance.class);
+
+	/**
+	 * The minutes between periodic passes, 0 to disable them.
+	 */
+	private static final String PREF_INTERVAL = "maintenanceinterval";
+	/**
+	 * The default minutes between periodic passes.
+	 */
+	private static final int DEFAULT_INTERVAL = 60;
+
+	/**
+	 * The number of loose objects which triggers a repack.
+	 */
+	private static final String PREF_LOOSE_LIMIT = "looseobjectlimit";
+	/**
+	 * The default number of loose objects which triggers a repack.
+	 */
+	private static final int DEFAULT_LOOSE_LIMIT = 256;
+
+	/**
+	 * The number of packs which triggers a repack.
+	 */
+	private static final String PREF_PACK_LIMIT = "packlimit";
+	/**
+	 * The default number of packs which triggers a repack.
+	 */
+	private static final int DEFAULT_PACK_LIMIT = 8;
+
+	/**
+	 * Minutes a closed commit checkout is kept before it is removed.
+	 */
+	private static final String PREF_CHECKOUT_EXPIRY = "checkoutexpiry";
+	/**
+	 * The default minutes a closed commit checkout is kept.
+	 */
+	private static final int DEFAULT_CHECKOUT_EXPIRY = 24 * 60;
+
+	/**
+	 * Minutes an unreachable loose object is kept before it is pruned.
+	 */
+	private static final String PREF_PRUNE_EXPIRY = "pruneexpiry";
+	/**
+	 * The default minutes an unreachable loose object is kept.
+	 */
+	private static final int DEFAULT_PRUNE_EXPIRY = 14 * 24 * 60;
+
+	/**
+	 * The executor shared by all repositories.
+	 */
+	private static ScheduledExecutorService sExecutor;
+
+	/**
+	 * The repository we maintain.
+	 */
+	private final VdbRepositoryImpl mRepository;
+
+	/**
+	 * The periodic pass if one is scheduled.
+	 */
+	private ScheduledFuture<?> mPeriodic;
+
+	/**
+	 * True while a requested pass is waiting to run.
+	 */
+	private final AtomicBoolean mPending = new AtomicBoolean();
+
+	/**
+	 * Construct maintenance for a repository.
+	 * @param repository the repository to maintain
+	 */
+	RepositoryMaintenance(final VdbRepositoryImpl repository) {
+		mRepository = repository;
+	}
+
+	/**
+	 * @return the executor shared by all repositories.
+	 */
+	private static synchronized ScheduledExecutorService getExecutor() {
+		if (sExecutor == null) {
+			ScheduledThreadPoolExecutor executor =
+					new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				@Override
+				public Thread newThread(final Runnable r) {
+					Thread thread = new Thread(r, "vdb-maintenance");
+					thread.setDaemon(true);
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				}
+			});
+			executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(
+					false);
+			sExecutor = executor;
+		}
+		return sExecutor;
+	}
+
+	/**
+	 * Starts periodic passes if they are enabled.
+	 */
+	synchronized void start() {
+		if (mPeriodic != null) {
+			return;
+		}
+		int interval = getConfig().getInt(VdbRepositoryImpl.
+				VDB_PREFERENCES_SECTION, PREF_INTERVAL, DEFAULT_INTERVAL);
+		if (interval <= 0) {
+			return;
+		}
+		mPeriodic = getExecutor().scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				runQuietly();
+			}
+		}, interval, interval, TimeUnit.MINUTES);
+	}
+
+	/**
+	 * Stops periodic passes.
+	 */
+	synchronized void stop() {
+		if (mPeriodic != null) {
+			mPeriodic.cancel(false);
+			mPeriodic = null;
+		}
+	}
+
+	/**
+	 * Requests a pass in the background. Requests made while one is
+	 * already waiting are folded into it.
+	 */
+	void request() {
+		if (!mPending.compareAndSet(false, true)) {
+			return;
+		}
+		getExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				mPending.set(false);
+				runQuietly();
+			}
+		});
+	}
+
+	/**
+	 * Runs a pass, logging rather than throwing failures.
+	 */
+	private void runQuietly() {
+		try {
+			run(NullProgressMonitor.INSTANCE);
+		} catch (IOException e) {
+			LOG.warn("Maintenance of " + mRepository.getName() + " failed.",
+					e);
+		} catch (RuntimeException e) {
+			LOG.warn("Maintenance of " + mRepository.getName() + " failed.",
+					e);
+		}
+	}
+
+	/**
+	 * Runs a maintenance pass now.
+	 * @param monitor the monitor to report progress to
+	 * @return the report for the pass
+	 * @throws IOException if reading or writing fails
+	 */
+	synchronized MaintenanceReport run(final ProgressMonitor monitor)
+			throws IOException {
+		final long started = System.currentTimeMillis();
+		final Config config = getConfig();
+		final String section = VdbRepositoryImpl.VDB_PREFERENCES_SECTION;
+		final File objectsDir = getObjectsDirectory();
+
+		MaintenanceReport report = new MaintenanceReport(
+				RepositoryStatistics.scan(objectsDir));
+
+		RepositoryStatistics before = report.getBefore();
+		if (before.getLooseObjects() > config.getInt(section,
+					PREF_LOOSE_LIMIT, DEFAULT_LOOSE_LIMIT)
+				|| before.getPacks() > config.getInt(section,
+					PREF_PACK_LIMIT, DEFAULT_PACK_LIMIT)) {
+			long pruneBefore = expiredBefore(started, config.getInt(section,
+					PREF_PRUNE_EXPIRY, DEFAULT_PRUNE_EXPIRY));
+			if (repack(monitor, pruneBefore) != null) {
+				report.setRepacked();
+			}
+		}
+
+		long checkoutsBefore = expiredBefore(started, config.getInt(section,
+				PREF_CHECKOUT_EXPIRY, DEFAULT_CHECKOUT_EXPIRY));
+		mRepository.pruneCommitCheckouts(checkoutsBefore, report);
+
+		report.finish(RepositoryStatistics.scan(objectsDir),
+				System.currentTimeMillis() - started);
+		LOG.info("Maintenance of {}: {}", mRepository.getName(), report);
+		return report;
+	}
+
+	/**
+	 * Repacks the repository.
+	 * @param monitor the monitor to report progress to
+	 * @param pruneBefore unreachable loose objects modified before this
+	 * time are removed, 0 to keep them all
+	 * @return the statistics after the repack, or null if objects were
+	 * being written and the repack was skipped
+	 * @throws IOException if reading or writing fails
+	 */
+	synchronized RepositoryStatistics repack(final ProgressMonitor monitor,
+			final long pruneBefore) throws IOException {
+		Repacker repacker = new Repacker(mRepository.getGitRepository(),
+				VdbPackConfig.create(mRepository.getGitRepository()));
+		repacker.setPruneBefore(pruneBefore);
+		return repacker.repack(monitor);
+	}
+
+	/**
+	 * @return the configuration of the repository
+	 */
+	private Config getConfig() {
+		return mRepository.getGitRepository().getConfig();
+	}
+
+	/**
+	 * @return the objects directory of the repository
+	 */
+	private File getObjectsDirectory() {
+		return ((FileRepository) mRepository.getGitRepository())
+				.getObjectsDirectory();
+	}
+
+	/**
+	 * @param now the current time
+	 * @param minutes the expiry in minutes
+	 * @return the time before which things have expired, or 0 if the
+	 * expiry is not positive so that nothing expires
+	 */
+	private static long expiredBefore(final long now, final int minutes) {
+		if (minutes <= 0) {
+			return 0;
+		}
+		return now - TimeUnit.MINUTES.toMillis(minutes);
+	}
+
+	/**
+	 * Computes the bytes used by a file or directory.
+	 * @param path the path to measure
+	 * @return the bytes used
+	 */
+	static long sizeOf(final File path) {
+		long size = 0;
+		File[] children = path.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				size += sizeOf(child);
+			}
+		} else {
+			size = path.length();
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the time a file or anything in a directory was last
+	 * modified. Writing to a file in place does not change the time of
+	 * the directory holding it, so the directory alone is not enough.
+	 * @param path the file or directory
+	 * @return the newest modification time found
+	 */
+	static long lastModified(final File path) {
+		long newest = path.lastModified();
+		File[] children = path.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				newest = Math.max(newest, lastModified(child));
+			}
+		}
+		return newest;
+	}
+
+	/**
+	 * Deletes a file or directory and everything in it.
+	 * @param path the path to delete
+	 * @throws IOException if deleting fails
+	 */
+	static void delete(final File path) throws IOException {
+		File[] children = path.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		if (!path.delete()) {
+			throw new IOException("Could not delete " + path);
+		}
+	}
+}
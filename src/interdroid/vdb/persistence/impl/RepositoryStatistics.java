@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.persistence.impl;
+
+import java.io.File;
+
+/**
+ * A snapshot of the on disk size of the object database of a repository.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+public final class RepositoryStatistics {
+	/**
+	 * The length of the directory part of a loose object name.
+	 */
+	private static final int LOOSE_DIR_LENGTH = 2;
+
+	/**
+	 * The length of the file part of a loose object name.
+	 */
+	private static final int LOOSE_FILE_LENGTH = 38;
+
+	/**
+	 * The number of loose objects.
+	 */
+	private long mLooseObjects;
+	/**
+	 * The bytes used by loose objects.
+	 */
+	private long mLooseBytes;
+	/**
+	 * The number of packs.
+	 */
+	private int mPacks;
+	/**
+	 * The bytes used by packs and their indexes.
+	 */
+	private long mPackBytes;
+
+	/**
+	 * Use scan to construct.
+	 */
+	private RepositoryStatistics() {
+		// Filled in by scan
+	}
+
+	/**
+	 * Scans the given object directory.
+	 * @param objectsDir the objects directory of the repository
+	 * @return the statistics for the directory
+	 */
+	public static RepositoryStatistics scan(final File objectsDir) {
+		RepositoryStatistics stats = new RepositoryStatistics();
+		File[] dirs = objectsDir.listFiles();
+		if (dirs == null) {
+			return stats;
+		}
+		for (File dir : dirs) {
+			if (isLooseObjectDir(dir)) {
+				File[] objects = dir.listFiles();
+				if (objects != null) {
+					for (File object : objects) {
+						if (isHex(object.getName(), LOOSE_FILE_LENGTH)) {
+							stats.mLooseObjects++;
+							stats.mLooseBytes += object.length();
+						}
+					}
+				}
+			}
+		}
+		File[] packFiles = new File(objectsDir, "pack").listFiles();
+		if (packFiles != null) {
+			for (File pack : packFiles) {
+				String name = pack.getName();
+				if (name.endsWith(".pack")) {
+					stats.mPacks++;
+					stats.mPackBytes += pack.length();
+				} else if (name.endsWith(".idx")) {
+					stats.mPackBytes += pack.length();
+				}
+			}
+		}
+		return stats;
+	}
+
+	/**
+	 * @param dir the file to check
+	 * @return true if this is one of the fan out directories of loose objects
+	 */
+	static boolean isLooseObjectDir(final File dir) {
+		return dir.isDirectory() && isHex(dir.getName(), LOOSE_DIR_LENGTH);
+	}
+
+	/**
+	 * @param name the name to check
+	 * @param length the expected length
+	 * @return true if name is a hex string of the given length
+	 */
+	static boolean isHex(final String name, final int length) {
+		if (name.length() != length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			char c = name.charAt(i);
+			if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of loose objects
+	 */
+	public long getLooseObjects() {
+		return mLooseObjects;
+	}
+
+	/**
+	 * @return the bytes used by loose objects
+	 */
+	public long getLooseBytes() {
+		return mLooseBytes;
+	}
+
+	/**
+	 * @return the number of packs
+	 */
+	public int getPacks() {
+		return mPacks;
+	}
+
+	/**
+	 * @return the bytes used by packs
+	 */
+	public long getPackBytes() {
+		return mPackBytes;
+	}
+
+	/**
+	 * @return the total bytes used by the object database
+	 */
+	public long getTotalBytes() {
+		return mLooseBytes + mPackBytes;
+	}
+
+	@Override
+	public String toString() {
+		return "loose: " + mLooseObjects + " (" + mLooseBytes + " bytes)"
+				+ " packs: " + mPacks + " (" + mPackBytes + " bytes)";
+	}
+}
@@ -0,0 +1,481 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.persistence.impl;
+
+import interdroid.vdb.content.GenericContentProvider;
+import interdroid.vdb.content.avro.AvroContentProvider;
+import interdroid.vdb.content.avro.AvroSchemaCache;
+import interdroid.vdb.content.metadata.DatabaseFieldType;
+import interdroid.vdb.content.metadata.EntityInfo;
+import interdroid.vdb.content.metadata.FieldInfo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Encodes the rows which differ between two versions of a database as
+ * Avro binary, and applies such changes to a database.
+ *
+ * The tables and their columns come from the Avro schema of the
+ * repository, just as when the database is created. Each table gets a
+ * record schema for its rows and one for its keys. Rows which are new
+ * or changed are sent whole and rows which are gone only by key, so a
+ * small edit to a large database is only a few bytes.
+ *
+ * The change set is a sequence of tables, each given by name and
+ * followed by its changes. A change is an int giving the kind, followed
+ * by the row or key record. A zero int ends the changes of a table and
+ * an empty table name ends the change set.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+public final class RowChangeSet {
+	/**
+	 * Access to logger.
+	 */
+	private static final Logger LOG =
+			LoggerFactory.getLogger(RowChangeSet.class);
+
+	/** The namespace of the row schemas. */
+	private static final String ROW_NAMESPACE = "interdroid.vdb.rows";
+
+	/** The name of the attached database with the old rows. */
+	static final String BASE = "base";
+
+	/** Ends the changes of a table. */
+	private static final int END = 0;
+	/** A row which was added or changed. */
+	private static final int UPSERT = 1;
+	/** A row which was removed. */
+	private static final int DELETE = 2;
+
+	/**
+	 * A table of the database and the schemas of its rows.
+	 */
+	private static final class Table {
+		/** The name of the table. */
+		private final String mName;
+		/** The names of the columns. */
+		private final List<String> mColumns = new ArrayList<String>();
+		/** The types of the columns. */
+		private final List<DatabaseFieldType> mTypes =
+				new ArrayList<DatabaseFieldType>();
+		/** The names of the key columns. */
+		private final List<String> mKeys = new ArrayList<String>();
+		/** The schema for a row. */
+		private Schema mRow;
+		/** The schema for the key of a row. */
+		private Schema mKey;
+
+		/**
+		 * Construct a table.
+		 * @param name the name of the table
+		 */
+		private Table(final String name) {
+			mName = name;
+		}
+
+		/**
+		 * @return the quoted name of the table
+		 */
+		private String quoted() {
+			return quote(mName);
+		}
+	}
+
+	/**
+	 * No construction.
+	 */
+	private RowChangeSet() {
+		// Utility class
+	}
+
+	/**
+	 * Computes the digest of a schema. Change sets can only be applied
+	 * to a database with the same schema they were written with.
+	 * @param schema the text of the schema
+	 * @return the digest
+	 */
+	public static String schemaDigest(final String schema) {
+		return AvroSchemaCache.fingerprint(schema);
+	}
+
+	/**
+	 * Writes the rows which differ between two versions of a database.
+	 * @param db the new version, with the old one attached as base
+	 * @param schema the schema of both versions
+	 * @param out the stream to write to
+	 * @return the number of changed rows
+	 * @throws IOException if writing fails
+	 */
+	static int write(final SQLiteDatabase db, final Schema schema,
+			final OutputStream out) throws IOException {
+		BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(out, null);
+		int changes = 0;
+		for (Table table : getTables(schema).values()) {
+			encoder.writeString(table.mName);
+			String columns = join(table.mColumns);
+			changes += writeRows(db, table, table.mColumns, table.mRow,
+					UPSERT, "SELECT " + columns + " FROM main."
+							+ table.quoted() + " EXCEPT SELECT " + columns
+							+ " FROM " + BASE + "." + table.quoted(),
+							encoder);
+			String keys = join(table.mKeys);
+			changes += writeRows(db, table, table.mKeys, table.mKey, DELETE,
+					"SELECT " + keys + " FROM " + BASE + "."
+							+ table.quoted() + " EXCEPT SELECT " + keys
+							+ " FROM main." + table.quoted(), encoder);
+			encoder.writeInt(END);
+		}
+		encoder.writeString("");
+		encoder.flush();
+		LOG.debug("Wrote {} changed rows", changes);
+		return changes;
+	}
+
+	/**
+	 * Writes the rows returned by a query.
+	 * @param db the database
+	 * @param table the table the rows are from
+	 * @param columns the columns selected by the query
+	 * @param rowSchema the schema of the records
+	 * @param kind the kind of change
+	 * @param sql the query
+	 * @param encoder the encoder to write to
+	 * @return the number of rows written
+	 * @throws IOException if writing fails
+	 */
+	private static int writeRows(final SQLiteDatabase db, final Table table,
+			final List<String> columns, final Schema rowSchema,
+			final int kind, final String sql, final BinaryEncoder encoder)
+					throws IOException {
+		GenericDatumWriter<GenericRecord> writer =
+				new GenericDatumWriter<GenericRecord>(rowSchema);
+		GenericData.Record record = new GenericData.Record(rowSchema);
+		int rows = 0;
+		Cursor c = db.rawQuery(sql, null);
+		try {
+			while (c.moveToNext()) {
+				for (int i = 0; i < columns.size(); i++) {
+					record.put(i, readColumn(c, i, table.mTypes.get(
+							table.mColumns.indexOf(columns.get(i)))));
+				}
+				encoder.writeInt(kind);
+				writer.write(record, encoder);
+				rows++;
+			}
+		} finally {
+			c.close();
+		}
+		return rows;
+	}
+
+	/**
+	 * Applies a change set to a database in a single transaction.
+	 * @param db the database, which must have the schema the change set
+	 * was written with
+	 * @param schema the schema of the database
+	 * @param in the stream to read the change set from
+	 * @return the number of changed rows
+	 * @throws IOException if reading fails or the change set does not
+	 * match the schema
+	 */
+	static int apply(final SQLiteDatabase db, final Schema schema,
+			final InputStream in) throws IOException {
+		Map<String, Table> tables = getTables(schema);
+		BinaryDecoder decoder =
+				DecoderFactory.get().directBinaryDecoder(in, null);
+		int changes = 0;
+		db.beginTransaction();
+		try {
+			for (String name = decoder.readString(null).toString();
+					name.length() > 0;
+					name = decoder.readString(null).toString()) {
+				Table table = tables.get(name);
+				if (table == null) {
+					throw new IOException("Unknown table: " + name);
+				}
+				changes += applyRows(db, table, decoder);
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		LOG.debug("Applied {} changed rows", changes);
+		return changes;
+	}
+
+	/**
+	 * Applies the changes to one table.
+	 * @param db the database
+	 * @param table the table
+	 * @param decoder the decoder to read the changes from
+	 * @return the number of changed rows
+	 * @throws IOException if reading fails
+	 */
+	private static int applyRows(final SQLiteDatabase db, final Table table,
+			final BinaryDecoder decoder) throws IOException {
+		GenericDatumReader<GenericRecord> rowReader =
+				new GenericDatumReader<GenericRecord>(table.mRow);
+		GenericDatumReader<GenericRecord> keyReader =
+				new GenericDatumReader<GenericRecord>(table.mKey);
+		StringBuilder where = new StringBuilder();
+		for (String key : table.mKeys) {
+			if (where.length() > 0) {
+				where.append(" AND ");
+			}
+			where.append(quote(key)).append(" = ?");
+		}
+		int rows = 0;
+		GenericRecord record = null;
+		for (int kind = decoder.readInt(); kind != END;
+				kind = decoder.readInt()) {
+			if (kind == UPSERT) {
+				record = rowReader.read(record, decoder);
+				ContentValues values = new ContentValues();
+				for (int i = 0; i < table.mColumns.size(); i++) {
+					putColumn(values, table.mColumns.get(i), record.get(i));
+				}
+				String[] args = keyArgs(table, record);
+				if (db.update(table.quoted(), values, where.toString(),
+						args) == 0) {
+					db.insertOrThrow(table.quoted(), null, values);
+				}
+			} else if (kind == DELETE) {
+				record = keyReader.read(null, decoder);
+				db.delete(table.quoted(), where.toString(),
+						keyArgs(table, record));
+				record = null;
+			} else {
+				throw new IOException("Unknown change: " + kind);
+			}
+			rows++;
+		}
+		return rows;
+	}
+
+	/**
+	 * @param table the table
+	 * @param record a row or key record of the table
+	 * @return the values of the key columns as query arguments
+	 */
+	private static String[] keyArgs(final Table table,
+			final GenericRecord record) {
+		String[] args = new String[table.mKeys.size()];
+		for (int i = 0; i < args.length; i++) {
+			Object value = record.get(table.mKeys.get(i));
+			args[i] = value == null ? null : value.toString();
+		}
+		return args;
+	}
+
+	/**
+	 * Reads a column from a cursor as the value Avro expects.
+	 * @param c the cursor
+	 * @param index the index of the column
+	 * @param type the type of the column
+	 * @return the value
+	 */
+	private static Object readColumn(final Cursor c, final int index,
+			final DatabaseFieldType type) {
+		if (c.isNull(index)) {
+			return null;
+		}
+		switch (type) {
+		case REAL_NUMBER:
+			return c.getDouble(index);
+		case TEXT:
+			return c.getString(index);
+		case BLOB:
+			return ByteBuffer.wrap(c.getBlob(index));
+		default:
+			return c.getLong(index);
+		}
+	}
+
+	/**
+	 * Puts a value read by Avro into content values.
+	 * @param values the values to put into
+	 * @param column the name of the column
+	 * @param value the value
+	 */
+	private static void putColumn(final ContentValues values,
+			final String column, final Object value) {
+		String key = quote(column);
+		if (value == null) {
+			values.putNull(key);
+		} else if (value instanceof Long) {
+			values.put(key, (Long) value);
+		} else if (value instanceof Double) {
+			values.put(key, (Double) value);
+		} else if (value instanceof ByteBuffer) {
+			ByteBuffer buffer = (ByteBuffer) value;
+			byte[] bytes = new byte[buffer.remaining()];
+			buffer.get(bytes);
+			values.put(key, bytes);
+		} else {
+			values.put(key, value.toString());
+		}
+	}
+
+	/**
+	 * Builds the tables of a database from its schema.
+	 * @param schema the schema
+	 * @return the tables by name in name order
+	 */
+	private static Map<String, Table> getTables(final Schema schema) {
+		Map<String, Table> tables = new TreeMap<String, Table>();
+		for (EntityInfo entity
+				: AvroContentProvider.makeMetadata(schema).getEntities()) {
+			String name = GenericContentProvider.escapeName(
+					schema.getNamespace(), entity.namespace(), entity.name());
+			if (tables.containsKey(name)) {
+				continue;
+			}
+			Table table = new Table(name);
+			Map<String, FieldInfo> fields = new TreeMap<String, FieldInfo>();
+			for (FieldInfo field : entity.getFields()) {
+				if (field.dbType != DatabaseFieldType.ONE_TO_MANY_INT
+						&& field.dbType
+						!= DatabaseFieldType.ONE_TO_MANY_STRING) {
+					fields.put(columnName(field), field);
+				}
+			}
+			for (Map.Entry<String, FieldInfo> field : fields.entrySet()) {
+				table.mColumns.add(field.getKey());
+				table.mTypes.add(field.getValue().dbType);
+			}
+			for (FieldInfo field : entity.key) {
+				table.mKeys.add(columnName(field));
+			}
+			table.mRow = recordSchema(name, table, table.mColumns);
+			table.mKey = recordSchema(name + "_key", table, table.mKeys);
+			tables.put(name, table);
+		}
+		return tables;
+	}
+
+	/**
+	 * Builds a record schema for some columns of a table. Every field
+	 * may be null as any column may hold null.
+	 * @param name the name of the record
+	 * @param table the table
+	 * @param columns the columns
+	 * @return the schema
+	 */
+	private static Schema recordSchema(final String name, final Table table,
+			final List<String> columns) {
+		List<Schema.Field> fields = new ArrayList<Schema.Field>();
+		for (String column : columns) {
+			DatabaseFieldType type =
+					table.mTypes.get(table.mColumns.indexOf(column));
+			List<Schema> union = new ArrayList<Schema>();
+			union.add(Schema.create(Schema.Type.NULL));
+			union.add(Schema.create(avroType(type)));
+			fields.add(new Schema.Field(column, Schema.createUnion(union),
+					null, null));
+		}
+		Schema record = Schema.createRecord(name, null, ROW_NAMESPACE, false);
+		record.setFields(fields);
+		return record;
+	}
+
+	/**
+	 * @param type the type of a column
+	 * @return the Avro type for values of the column
+	 */
+	private static Schema.Type avroType(final DatabaseFieldType type) {
+		switch (type) {
+		case REAL_NUMBER:
+			return Schema.Type.DOUBLE;
+		case TEXT:
+			return Schema.Type.STRING;
+		case BLOB:
+			return Schema.Type.BYTES;
+		default:
+			return Schema.Type.LONG;
+		}
+	}
+
+	/**
+	 * @param field a field
+	 * @return the name of the column for the field in the database
+	 */
+	private static String columnName(final FieldInfo field) {
+		return field.fieldName.replace('"', '_');
+	}
+
+	/**
+	 * @param name a table or column name
+	 * @return the name quoted for use in SQL
+	 */
+	private static String quote(final String name) {
+		return "\"" + name + "\"";
+	}
+
+	/**
+	 * @param columns column names
+	 * @return the quoted names separated by commas
+	 */
+	private static String join(final List<String> columns) {
+		StringBuilder sb = new StringBuilder();
+		for (String column : columns) {
+			if (sb.length() > 0) {
+				sb.append(", ");
+			}
+			sb.append(quote(column));
+		}
+		return sb.toString();
+	}
+}
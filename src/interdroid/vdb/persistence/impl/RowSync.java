@@ -0,0 +1,329 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.persistence.impl;
+
+import interdroid.vdb.content.avro.AvroSchemaCache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.locks.Lock;
+
+import org.apache.avro.Schema;
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.CommitBuilder;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.RefUpdate.Result;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevTree;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.util.RawParseUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Moves commits between peers as changed rows instead of packs.
+ *
+ * The sender writes the rows which differ between the commit the peer
+ * has and the commit to send. The peer applies them to a copy of the
+ * database of its commit and records the result as a new commit on top,
+ * with the author and message of the commit sent. The databases are
+ * worked on in scratch files, so checkouts are never touched.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+final class RowSync {
+	/**
+	 * Access to logger.
+	 */
+	private static final Logger LOG = LoggerFactory.getLogger(RowSync.class);
+
+	/** The prefix of scratch database files. */
+	private static final String SCRATCH_PREFIX = "rowsync";
+
+	/**
+	 * No construction.
+	 */
+	private RowSync() {
+		// Utility class
+	}
+
+	/**
+	 * Parses a commit.
+	 * @param repo the repository
+	 * @param id the id of the commit
+	 * @return the commit
+	 * @throws IOException if reading fails
+	 */
+	static RevCommit parseCommit(final Repository repo, final AnyObjectId id)
+			throws IOException {
+		RevWalk walk = new RevWalk(repo);
+		try {
+			return walk.parseCommit(id);
+		} finally {
+			walk.release();
+		}
+	}
+
+	/**
+	 * Reads the schema stored in a commit.
+	 * @param repo the repository
+	 * @param commit the commit
+	 * @return the text of the schema
+	 * @throws IOException if reading fails
+	 */
+	static String readSchema(final Repository repo, final RevCommit commit)
+			throws IOException {
+		ObjectId id = findEntry(repo, commit.getTree(),
+				VdbCheckoutImpl.SCHEMA_FILE);
+		return RawParseUtils.decode(repo.open(id, Constants.OBJ_BLOB)
+				.getCachedBytes());
+	}
+
+	/**
+	 * Writes the rows which differ between two commits.
+	 * @param repo the repository
+	 * @param base the commit the receiver has
+	 * @param tip the commit to send
+	 * @param out the stream to write to
+	 * @return the number of changed rows
+	 * @throws IOException if reading or writing fails
+	 */
+	static int writeChanges(final Repository repo, final RevCommit base,
+			final RevCommit tip, final OutputStream out) throws IOException {
+		Schema schema = AvroSchemaCache.parse(readSchema(repo, tip));
+		File baseDb = extractDatabase(repo, base.getTree());
+		try {
+			File tipDb = extractDatabase(repo, tip.getTree());
+			try {
+				SQLiteDatabase db = SQLiteDatabase.openDatabase(
+						tipDb.getAbsolutePath(), null,
+						SQLiteDatabase.OPEN_READWRITE);
+				try {
+					db.execSQL("ATTACH DATABASE '" + baseDb.getAbsolutePath()
+							+ "' AS " + RowChangeSet.BASE);
+					return RowChangeSet.write(db, schema, out);
+				} finally {
+					db.close();
+				}
+			} finally {
+				delete(tipDb);
+			}
+		} finally {
+			delete(baseDb);
+		}
+	}
+
+	/**
+	 * Applies changed rows on top of the tip of a branch and commits the
+	 * result to the branch.
+	 * @param repository the repository
+	 * @param branchName the branch
+	 * @param base the commit the rows were written against, which must be
+	 * the tip of the branch
+	 * @param author the author of the commit the rows were written for
+	 * @param message the message of the commit the rows were written for
+	 * @param in the stream to read the rows from
+	 * @return the new commit
+	 * @throws IOException if reading or writing fails or the branch moved
+	 */
+	static ObjectId applyChanges(final VdbRepositoryImpl repository,
+			final String branchName, final ObjectId base,
+			final PersonIdent author, final String message,
+			final InputStream in) throws IOException {
+		Repository repo = repository.getGitRepository();
+		RevCommit baseCommit = parseCommit(repo, base);
+		Schema schema = AvroSchemaCache.parse(readSchema(repo, baseCommit));
+
+		// Nothing may be repacked away while the commit is built.
+		Lock objectLock = ObjectStoreLock.get(repo).readLock();
+		ObjectId commitId;
+		RefUpdate update;
+		Result res;
+		objectLock.lock();
+		try {
+			File scratch = extractDatabase(repo, baseCommit.getTree());
+			try {
+				SQLiteDatabase db = SQLiteDatabase.openDatabase(
+						scratch.getAbsolutePath(), null,
+						SQLiteDatabase.OPEN_READWRITE);
+				try {
+					RowChangeSet.apply(db, schema, in);
+				} finally {
+					db.close();
+				}
+
+				ObjectInserter inserter = repo.newObjectInserter();
+				try {
+					ObjectId blobId;
+					InputStream dbIn = new FileInputStream(scratch);
+					try {
+						blobId = inserter.insert(Constants.OBJ_BLOB,
+								scratch.length(), dbIn);
+					} finally {
+						dbIn.close();
+					}
+					CommitBuilder builder = new CommitBuilder();
+					builder.setTreeId(replaceEntry(repo, inserter,
+							baseCommit.getTree(), VdbCheckoutImpl.SQLITEDB,
+							blobId));
+					builder.setParentId(base);
+					builder.setAuthor(author);
+					builder.setCommitter(new PersonIdent(
+							VdbCheckoutImpl.VERSIONING_DAEMON,
+							VdbCheckoutImpl.VDB_EMAIL));
+					builder.setMessage(message);
+					commitId = inserter.insert(Constants.OBJ_COMMIT,
+							builder.build());
+					inserter.flush();
+				} finally {
+					inserter.release();
+				}
+			} finally {
+				delete(scratch);
+			}
+
+			// Only move the branch if nobody committed meanwhile.
+			update = repo.updateRef(Constants.R_HEADS + branchName);
+			update.setExpectedOldObjectId(base);
+			update.setNewObjectId(commitId);
+			update.setRefLogIdent(author);
+			update.setRefLogMessage("row sync", false);
+			res = update.update();
+		} finally {
+			objectLock.unlock();
+		}
+		if (res != Result.FAST_FORWARD) {
+			throw new IOException("Could not update " + branchName + ": "
+					+ res);
+		}
+		LOG.debug("Committed changed rows on {} as {}", branchName,
+				commitId.name());
+		repository.onCommit(update.getName(), commitId);
+		return commitId;
+	}
+
+	/**
+	 * Finds an entry at the top of a tree.
+	 * @param repo the repository
+	 * @param tree the tree
+	 * @param name the name of the entry
+	 * @return the id of the entry
+	 * @throws IOException if reading fails or there is no such entry
+	 */
+	private static ObjectId findEntry(final Repository repo,
+			final RevTree tree, final String name) throws IOException {
+		TreeWalk walk = TreeWalk.forPath(repo, name, tree);
+		if (walk == null) {
+			throw new IOException("No " + name + " in " + tree.name());
+		}
+		try {
+			return walk.getObjectId(0);
+		} finally {
+			walk.release();
+		}
+	}
+
+	/**
+	 * Writes a tree which is a copy of another with one entry replaced.
+	 * @param repo the repository
+	 * @param inserter the inserter to write the tree with
+	 * @param tree the tree to copy
+	 * @param name the name of the entry to replace
+	 * @param id the new id of the entry
+	 * @return the id of the new tree
+	 * @throws IOException if reading or writing fails
+	 */
+	private static ObjectId replaceEntry(final Repository repo,
+			final ObjectInserter inserter, final RevTree tree,
+			final String name, final ObjectId id) throws IOException {
+		TreeFormatter formatter = new TreeFormatter();
+		TreeWalk walk = new TreeWalk(repo);
+		try {
+			walk.addTree(tree);
+			while (walk.next()) {
+				String entry = walk.getNameString();
+				formatter.append(entry, walk.getFileMode(0),
+						name.equals(entry) ? id : walk.getObjectId(0));
+			}
+		} finally {
+			walk.release();
+		}
+		return formatter.insertTo(inserter);
+	}
+
+	/**
+	 * Copies the database of a tree to a scratch file.
+	 * @param repo the repository
+	 * @param tree the tree
+	 * @return the scratch file, which the caller deletes
+	 * @throws IOException if reading or writing fails
+	 */
+	private static File extractDatabase(final Repository repo,
+			final RevTree tree) throws IOException {
+		ObjectId id = findEntry(repo, tree, VdbCheckoutImpl.SQLITEDB);
+		File scratch = File.createTempFile(SCRATCH_PREFIX, ".db",
+				repo.getDirectory());
+		OutputStream out = new FileOutputStream(scratch);
+		try {
+			repo.open(id, Constants.OBJ_BLOB).copyTo(out);
+		} catch (IOException e) {
+			delete(scratch);
+			throw e;
+		} finally {
+			out.close();
+		}
+		return scratch;
+	}
+
+	/**
+	 * Deletes a scratch file.
+	 * @param file the file
+	 */
+	private static void delete(final File file) {
+		if (!file.delete()) {
+			LOG.warn("Unable to delete: {}", file);
+		}
+	}
+}
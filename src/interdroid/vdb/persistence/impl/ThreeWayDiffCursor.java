@@ -219,4 +219,12 @@ public class ThreeWayDiffCursor {
 	public final Cursor getOursCursor() {
 		return mOurs;
 	}
+
+	/**
+	 * Closes both sides of the diff.
+	 */
+	public final void close() {
+		mTheirs.close();
+		mOurs.close();
+	}
 }
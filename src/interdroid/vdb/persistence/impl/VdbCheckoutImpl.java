@@ -30,8 +30,10 @@
  */
 package interdroid.vdb.persistence.impl;
 
-import interdroid.vdb.content.DatabaseInitializer;
+import interdroid.vdb.content.DatabaseMigrator;
 import interdroid.vdb.content.avro.AvroContentProvider;
+import interdroid.vdb.content.avro.AvroSchemaCache;
+import interdroid.vdb.content.avro.SchemaEvolutionValidator;
 import interdroid.vdb.content.metadata.Metadata;
 import interdroid.vdb.persistence.api.DirtyCheckoutException;
 import interdroid.vdb.persistence.api.MergeInProgressException;
@@ -41,12 +43,12 @@ import interdroid.vdb.persistence.api.VdbInitializer;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.apache.avro.Schema;
@@ -56,7 +58,9 @@ import org.eclipse.jgit.api.Git;
 import org.eclipse.jgit.api.errors.NoFilepatternException;
 import org.eclipse.jgit.lib.AnyObjectId;
 import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
 import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.ProgressMonitor;
 import org.eclipse.jgit.lib.RefUpdate;
 import org.eclipse.jgit.lib.Repository;
 import org.eclipse.jgit.revwalk.RevCommit;
@@ -91,7 +95,19 @@ public class VdbCheckoutImpl implements VdbCheckout {
 	/**
 	 * The name of the file we store the schema in.
 	 */
-	private static final String SCHEMA_FILE = "schema";
+	/* package */ static final String SCHEMA_FILE = "schema";
+
+	/**
+	 * The name of the file we store the fingerprint of the schema in.
+	 * It is derived from the schema file and not committed.
+	 */
+	private static final String FINGERPRINT_FILE = "schema.fingerprint";
+
+	/**
+	 * The number of parts in the fingerprint file: the fingerprint in hex,
+	 * then the length and modification time of the schema file.
+	 */
+	private static final int FINGERPRINT_PARTS = 3;
 
 	/**
 	 * The prefix for a branch reference.
@@ -100,7 +116,7 @@ public class VdbCheckoutImpl implements VdbCheckout {
 	/**
 	 * The name of the database file.
 	 */
-	private static final String SQLITEDB = "sqlite.db";
+	/* package */ static final String SQLITEDB = "sqlite.db";
 	/**
 	 * The name of the merge info file.
 	 */
@@ -156,8 +172,6 @@ public class VdbCheckoutImpl implements VdbCheckout {
 	private final ReentrantReadWriteLock mLock
 	= new ReentrantReadWriteLock();
 
-	private SQLiteDatabase mUpdateDb;
-
 	/**
 	 * Construct a checkout.
 	 * @param parentRepo the repository for this checkout
@@ -251,30 +265,43 @@ public class VdbCheckoutImpl implements VdbCheckout {
 			throw new MergeInProgressException();
 		}
 
+		if (mDb != null && mVdbRepository.isVacuumOnCommit()) {
+			// Holding the write lock so nobody else is using the database
+			LOG.debug("Vacuuming database before commit.");
+			mDb.execSQL("VACUUM");
+		}
+
 		Git git = new Git(mGitRepository);
 		CommitCommand commit = git.commit();
 		AddCommand add = git.add();
 		add.addFilepattern(SQLITEDB);
 		add.addFilepattern(SCHEMA_FILE);
 		commit.setMessage(msg);
-		try {
-			add.call();
-		} catch (NoFilepatternException e) {
-			throw new IOException();
-		}
 		PersonIdent author = new PersonIdent(authorName, authorEmail);
 		commit.setAuthor(author);
 		commit.setCommitter(author);
 		RevCommit revision;
+		RefUpdate update;
+		Lock objectLock = ObjectStoreLock.get(mGitRepository).readLock();
+		objectLock.lock();
 		try {
-			revision = commit.call();
-			RefUpdate update = mGitRepository.updateRef(mCheckoutName);
-			update.setNewObjectId(revision);
-			update.setRefLogIdent(author);
-			update.setRefLogMessage(msg, false);
-			update.update();
-		} catch (Exception e) {
-			throw new IOException(e.getMessage());
+			try {
+				add.call();
+			} catch (NoFilepatternException e) {
+				throw new IOException();
+			}
+			try {
+				revision = commit.call();
+				update = mGitRepository.updateRef(mCheckoutName);
+				update.setNewObjectId(revision);
+				update.setRefLogIdent(author);
+				update.setRefLogMessage(msg, false);
+				update.update();
+			} catch (Exception e) {
+				throw new IOException(e.getMessage());
+			}
+		} finally {
+			objectLock.unlock();
 		}
 
 		if (mMergeInfo != null) {
@@ -284,6 +311,8 @@ public class VdbCheckoutImpl implements VdbCheckout {
 			detachMergeDatabases();
 		}
 
+		mVdbRepository.onCommit(update.getName(), revision);
+
 		if (LOG.isDebugEnabled()) {
 			LOG.debug("Succesfully committed revision "
 					+ revision.getName().toString() + " on branch "
@@ -324,9 +353,7 @@ public class VdbCheckoutImpl implements VdbCheckout {
 			if (!schema.createNewFile()) {
 				throw new RuntimeException("Unable to create schema file");
 			}
-			FileOutputStream fos = new FileOutputStream(schema);
-			fos.write(initializer.getSchema().getBytes("utf8"));
-			fos.close();
+			writeSchema(masterDir, initializer.getSchema());
 
 			branch = new VdbCheckoutImpl(parentRepo, Constants.MASTER);
 			branch.setDb(db);
@@ -450,20 +477,11 @@ public class VdbCheckoutImpl implements VdbCheckout {
 	private synchronized void loadMergeInfo() {
 		File infoFile = new File(mDirectory, MERGEINFO);
 		try {
-			FileInputStream fis = new FileInputStream(infoFile);
-			ObjectInputStream ois = new ObjectInputStream(fis);
-			mMergeInfo = (MergeInfo) ois.readObject();
-			ois.close();
-		} catch (FileNotFoundException e) {
-			mMergeInfo = null;
+			mMergeInfo = new MergeInfoFile(infoFile).read();
 		} catch (IOException e) {
 			throw new RuntimeException(
 					"Error while reading MergeInformation from "
 							+ infoFile, e);
-		} catch (ClassNotFoundException e) {
-			throw new RuntimeException(
-					"Error while reading MergeInformation from "
-							+ infoFile, e);
 		}
 	}
 
@@ -472,27 +490,13 @@ public class VdbCheckoutImpl implements VdbCheckout {
 	 */
 	private synchronized void saveMergeInfo() {
 		File infoFile = new File(mDirectory, MERGEINFO);
-		if (mMergeInfo == null) {
-			if (!infoFile.delete()) {
-				LOG.warn("Error deleting: {}", infoFile);
-			}
-		} else {
-			try {
-				FileOutputStream fos = new FileOutputStream(infoFile);
-				ObjectOutputStream oos = new ObjectOutputStream(fos);
-				oos.writeObject(mMergeInfo);
-				oos.close();
-			} catch (FileNotFoundException e) {
-				throw new RuntimeException("Could not open "
-						+ infoFile.getAbsolutePath()
-						+ " for writing");
-			} catch (IOException e) {
-				throw new RuntimeException(
-						"Error while reading MergeInformation from "
-								+ infoFile, e);
-			}
+		try {
+			new MergeInfoFile(infoFile).write(mMergeInfo);
+		} catch (IOException e) {
+			throw new RuntimeException(
+					"Error while writing MergeInformation to "
+							+ infoFile, e);
 		}
-
 	}
 
 	@Override
@@ -514,6 +518,18 @@ public class VdbCheckoutImpl implements VdbCheckout {
 		saveMergeInfo();
 	}
 
+	@Override
+	public final synchronized void setTableMerged(final String tableName) {
+		checkDeletedState();
+		if (mMergeInfo == null) {
+			throw new IllegalStateException("Branch was not in merge mode.");
+		}
+		if (!mMergeInfo.isTableMerged(tableName)) {
+			mMergeInfo.setTableMerged(tableName);
+			saveMergeInfo();
+		}
+	}
+
 	@Override
 	public final synchronized void revert() throws IOException {
 		checkDeletedState();
@@ -619,86 +635,173 @@ public class VdbCheckoutImpl implements VdbCheckout {
 		if (!schema.canRead()) {
 			throw new RuntimeException("Unable to read schema file");
 		}
-		FileInputStream in = null;
-		StringBuffer schemaBuffer = new StringBuffer();
-		try {
-			in = new FileInputStream(schema);
-			int chr;
-			while ((chr = in.read()) != -1) {
-				schemaBuffer.append((char) chr);
-			}
-		} finally {
-			if (in != null) {
-				in.close();
+		String text = new String(readFile(schema), "utf8");
+		LOG.debug("Read schema: {}", text);
+		return text;
+	}
+
+	@Override
+	public final long getSchemaFingerprint() throws IOException {
+		File schema = new File(mDirectory, SCHEMA_FILE);
+		File fingerprint = new File(mDirectory, FINGERPRINT_FILE);
+		// A checkout made by git or an older version has no fingerprint
+		// yet, and a merge may have replaced the schema under it. File
+		// times are too coarse to tell, so the fingerprint records the
+		// length and time of the schema file it was taken from.
+		if (fingerprint.canRead()) {
+			String text = new String(readFile(fingerprint), "utf8");
+			String[] parts = text.trim().split(" ");
+			try {
+				if (parts.length == FINGERPRINT_PARTS
+						&& Long.parseLong(parts[1]) == schema.length()
+						&& Long.parseLong(parts[2])
+						== schema.lastModified()) {
+					return Long.parseLong(parts[0], 16);
+				}
+			} catch (NumberFormatException e) {
+				LOG.warn("Ignoring corrupt schema fingerprint: {}", text);
 			}
 		}
-		LOG.debug("Read schema: {}", schemaBuffer);
-		return schemaBuffer.toString();
+		LOG.debug("Fingerprinting schema: {}", mDirectory);
+		Schema parsed = AvroSchemaCache.parse(getSchema());
+		long fp = AvroSchemaCache.fingerprint64(parsed);
+		writeFingerprint(mDirectory, fp);
+		return fp;
 	}
 
-	private SQLiteDatabase getUpdateDatabase() throws IOException {
-		if (mUpdateDb == null) {
-			mUpdateDb = SQLiteDatabase.openDatabase(
-					new File(mDirectory, "up_" + SQLITEDB).getAbsolutePath(),
-					null /* cursor factory */,
-					SQLiteDatabase.OPEN_READWRITE);
+	/**
+	 * Writes the fingerprint of the schema file in a checkout directory,
+	 * together with the length and modification time of the schema file
+	 * so a later change to the schema file can be detected.
+	 * @param directory the checkout directory
+	 * @param fp the fingerprint of the schema
+	 * @throws IOException if writing fails
+	 */
+	private static void writeFingerprint(final File directory,
+			final long fp) throws IOException {
+		File schema = new File(directory, SCHEMA_FILE);
+		writeFile(new File(directory, FINGERPRINT_FILE),
+				Long.toHexString(fp) + " " + schema.length() + " "
+				+ schema.lastModified());
+	}
+
+	/**
+	 * Reads a whole file with a single channel read where possible.
+	 * @param file the file to read
+	 * @return the contents of the file
+	 * @throws IOException if reading fails
+	 */
+	private static byte[] readFile(final File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer) < 0) {
+					throw new IOException("Short read: " + file);
+				}
+			}
+			return buffer.array();
+		} finally {
+			in.close();
 		}
-		return mUpdateDb;
 	}
 
-	private void finishUpdate(SQLiteDatabase db, String newSchema)
+	/**
+	 * Replaces the contents of a file.
+	 * @param file the file to write
+	 * @param text the new contents
+	 * @throws IOException if writing fails
+	 */
+	private static void writeFile(final File file, final String text)
 			throws IOException {
-		File upDbFile = new File(mUpdateDb.getPath());
-		File currentDbFile =
-				new File(mDirectory, SQLITEDB);
-
-		if (!currentDbFile.delete()) {
-			throw new RuntimeException("Unable to delete current.");
-		}
-		if (!upDbFile.renameTo(currentDbFile)) {
-			throw new RuntimeException("Unable to move file in place.");
+		FileOutputStream fos = new FileOutputStream(file);
+		try {
+			fos.write(text.getBytes("utf8"));
+		} finally {
+			fos.close();
 		}
+	}
 
-		File schemaFile = new File(mDirectory, SCHEMA_FILE);
+	/**
+	 * Writes a schema in canonical form to a checkout directory, together
+	 * with its fingerprint.
+	 * @param directory the checkout directory
+	 * @param schema the schema as a string, or an empty string if the
+	 * checkout is not Avro based
+	 * @throws IOException if writing fails
+	 */
+	private static void writeSchema(final File directory,
+			final String schema) throws IOException {
+		File schemaFile = new File(directory, SCHEMA_FILE);
 		if (!schemaFile.canWrite()) {
 			throw new RuntimeException("Unable to write schema file");
 		}
+		if (schema.length() == 0) {
+			writeFile(schemaFile, schema);
+			return;
+		}
+
+		Schema parsed = AvroSchemaCache.parse(schema);
+		writeFile(schemaFile, parsed.toString());
+		writeFingerprint(directory, AvroSchemaCache.fingerprint64(parsed));
+	}
+
+	@Override
+	public final void updateDatabase(final Schema newSchema)
+			throws IOException {
+		updateDatabase(newSchema, NullProgressMonitor.INSTANCE);
+	}
+
+	/**
+	 * Builds the migrator from the current schema to a new one.
+	 * @param newSchema the new schema
+	 * @return the migrator
+	 * @throws IOException if reading the current schema fails or the
+	 * new schema can not read the data written with it
+	 */
+	private DatabaseMigrator getMigrator(final Schema newSchema)
+			throws IOException {
+		Schema oldSchema = AvroSchemaCache.parse(getSchema());
+		SchemaEvolutionValidator validator = new SchemaEvolutionValidator();
+		if (!validator.validateProjection(newSchema, oldSchema)) {
+			throw new IOException("Schema does not project: "
+					+ validator.getErrors() + " " + validator.getWarnings());
+		}
+		Metadata oldMetadata = AvroContentProvider.makeMetadata(oldSchema);
+		Metadata newMetadata = AvroContentProvider.makeMetadata(newSchema);
+		return new DatabaseMigrator(newSchema.getNamespace(), oldMetadata,
+				newMetadata, validator.getMigrationPlan());
+	}
 
-		FileOutputStream fos = new FileOutputStream(schemaFile);
-		fos.write(newSchema.getBytes("utf8"));
-		fos.close();
-		db.close();
+	@Override
+	public final DatabaseMigrator.Estimate estimateUpdate(
+			final Schema newSchema) throws IOException {
+		DatabaseMigrator migrator = getMigrator(newSchema);
+		SQLiteDatabase db = getReadOnlyDatabase();
+		try {
+			return migrator.estimate(db);
+		} finally {
+			releaseDatabase();
+		}
 	}
 
 	@Override
-	public void updateDatabase(Schema newSchema) throws IOException {
-		// Get the database
-		SQLiteDatabase updateDb = getUpdateDatabase();
-
-		// Build the initializer for the update db.
-		Metadata updateMetadata =
-				AvroContentProvider.makeMetadata(newSchema);
-		DatabaseInitializer initializer =
-				new DatabaseInitializer(newSchema.getNamespace(),
-						updateMetadata, newSchema.toString());
-
-		// Fill in the schema for the updated database.
-		initializer.onCreate(updateDb);
-
-		// Now attach the old database
-		updateDb.execSQL("ATTACH DATABASE '"
-				+ new File(mDirectory, SQLITEDB).getAbsolutePath()
-				+ "' AS old");
-
-		// Now copy all the data over.
-		Metadata masterMetadata =
-				AvroContentProvider.makeMetadata(Schema.parse(getSchema()));
-		initializer.updateCopy(updateDb, masterMetadata);
-
-		// Now finish
-		finishUpdate(updateDb, newSchema.toString());
-
-		updateDb.close();
+	public final void updateDatabase(final Schema newSchema,
+			final ProgressMonitor monitor) throws IOException {
+		DatabaseMigrator migrator = getMigrator(newSchema);
+
+		// Readers carry on while the tables are migrated in place.
+		// Commits need the checkout exclusively, so they can not
+		// capture a half migrated database.
+		SQLiteDatabase db = getReadWriteDatabase();
+		try {
+			migrator.migrate(db, monitor);
+			writeSchema(mDirectory, newSchema.toString());
+			migrator.finish(db);
+		} finally {
+			releaseDatabase();
+		}
 	}
 
 	/**
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.persistence.impl;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.WindowCache;
+import org.eclipse.jgit.storage.file.WindowCacheConfig;
+import org.eclipse.jgit.storage.pack.PackConfig;
+
+/**
+ * Builds the pack configuration we use for VDB repositories.
+ *
+ * Each commit stores the whole sqlite database as a single blob, so a
+ * repository is mostly a long chain of versions of one large, page
+ * structured file. The jGit defaults use a small search window, which
+ * gives poor packs for this kind of data. Packs kept on disk delta
+ * compress nearly every version of the database, while packs sent to
+ * another device limit deltas to blobs the device can hold in memory,
+ * since resolving a delta needs its base and result inflated whole.
+ * Values set in the pack section of the repository configuration still
+ * take precedence over these defaults.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+public final class VdbPackConfig {
+	/**
+	 * The number of candidate objects to search for a delta base.
+	 * Versions of the database from other branches are interleaved
+	 * with our own so we look further back than the default.
+	 */
+	public static final int DELTA_SEARCH_WINDOW = 20;
+
+	/**
+	 * The maximum depth of a delta chain.
+	 */
+	public static final int MAX_DELTA_DEPTH = 50;
+
+	/**
+	 * Blobs larger than this are stored whole instead of as deltas in
+	 * packs kept on disk.
+	 */
+	public static final int BIG_FILE_THRESHOLD = 512 * 1024 * 1024;
+
+	/**
+	 * Blobs larger than this are sent whole instead of as deltas. The
+	 * receiver of a pack inflates the base and the result of every delta
+	 * whole while indexing it, so this bounds the heap a fetch or push
+	 * needs on the receiving device to about twice this size.
+	 */
+	public static final int TRANSFER_BIG_FILE_THRESHOLD = 16 * 1024 * 1024;
+
+	/**
+	 * The memory the delta search may use, bounded so that a repack on a
+	 * device does not run out of heap.
+	 */
+	public static final long DELTA_SEARCH_MEMORY_LIMIT = 64L * 1024 * 1024;
+
+	/**
+	 * The size of the cache of computed deltas.
+	 */
+	public static final long DELTA_CACHE_SIZE = 16L * 1024 * 1024;
+
+	/**
+	 * The number of threads used to search for deltas.
+	 */
+	public static final int THREADS = 1;
+
+	/**
+	 * Objects larger than this are streamed from the pack instead of
+	 * being loaded into memory whole. A version of the database can be
+	 * hundreds of megabytes, far more than the heap of a device.
+	 */
+	public static final int STREAM_FILE_THRESHOLD = 8 * 1024 * 1024;
+
+	/**
+	 * The memory used to cache delta bases while reading packs.
+	 */
+	public static final int DELTA_BASE_CACHE_LIMIT = 8 * 1024 * 1024;
+
+	/**
+	 * The memory used to map pack files.
+	 */
+	public static final int PACKED_GIT_LIMIT = 16 * 1024 * 1024;
+
+	/**
+	 * True once the window cache has been configured.
+	 */
+	private static final AtomicBoolean WINDOW_CACHE_CONFIGURED =
+			new AtomicBoolean();
+
+	/**
+	 * No construction.
+	 */
+	private VdbPackConfig() {
+		// Utility class
+	}
+
+	/**
+	 * Bounds the memory jGit uses while reading objects and packs. The
+	 * window cache is shared by all repositories in the process, so this
+	 * is done once.
+	 */
+	public static void configureWindowCache() {
+		if (!WINDOW_CACHE_CONFIGURED.compareAndSet(false, true)) {
+			return;
+		}
+		WindowCacheConfig config = new WindowCacheConfig();
+		config.setStreamFileThreshold(STREAM_FILE_THRESHOLD);
+		config.setDeltaBaseCacheLimit(DELTA_BASE_CACHE_LIMIT);
+		config.setPackedGitLimit(PACKED_GIT_LIMIT);
+		WindowCache.reconfigure(config);
+	}
+
+	/**
+	 * Builds a pack configuration for repacking the given repository.
+	 * @param repo the repository the packs are built for, may be null
+	 * @return the pack configuration
+	 */
+	public static PackConfig create(final Repository repo) {
+		return create(repo, BIG_FILE_THRESHOLD, true);
+	}
+
+	/**
+	 * Builds a pack configuration for packs of the given repository which
+	 * are sent to another device. Deltas stored on disk may be against
+	 * blobs larger than the device can inflate, so they are not reused
+	 * and deltas are searched again within the transfer limit.
+	 * @param repo the repository the packs are built from, may be null
+	 * @return the pack configuration
+	 */
+	public static PackConfig createForTransfer(final Repository repo) {
+		return create(repo, TRANSFER_BIG_FILE_THRESHOLD, false);
+	}
+
+	/**
+	 * Builds a pack configuration.
+	 * @param repo the repository the packs are built for, may be null
+	 * @param bigFileThreshold the size above which blobs are not deltified
+	 * @param reuseDeltas true if deltas in existing packs may be reused
+	 * @return the pack configuration
+	 */
+	private static PackConfig create(final Repository repo,
+			final int bigFileThreshold, final boolean reuseDeltas) {
+		PackConfig config = new PackConfig();
+		config.setDeltaCompress(true);
+		config.setReuseDeltas(reuseDeltas);
+		config.setReuseObjects(true);
+		config.setDeltaSearchWindowSize(DELTA_SEARCH_WINDOW);
+		config.setMaxDeltaDepth(MAX_DELTA_DEPTH);
+		config.setBigFileThreshold(bigFileThreshold);
+		config.setDeltaSearchMemoryLimit(DELTA_SEARCH_MEMORY_LIMIT);
+		config.setDeltaCacheSize(DELTA_CACHE_SIZE);
+		config.setThreads(THREADS);
+		if (repo != null) {
+			config.fromConfig(repo.getConfig());
+		}
+		return config;
+	}
+}
@@ -30,28 +30,44 @@
  */
 package interdroid.vdb.persistence.impl;
 
+import interdroid.vdb.content.DatabaseMigrator;
+import interdroid.vdb.content.avro.AvroSchemaCache;
 import interdroid.vdb.content.avro.SchemaEvolutionValidator;
 import interdroid.vdb.persistence.api.RemoteInfo;
 import interdroid.vdb.persistence.api.VdbCheckout;
 import interdroid.vdb.persistence.api.VdbInitializer;
 import interdroid.vdb.persistence.api.VdbRepository;
+import interdroid.vdb.transport.ChangeNotifier;
+import interdroid.vdb.transport.RetryPolicy;
 import interdroid.vdb.transport.SmartSocketsTransport;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
 
 import org.apache.avro.Schema;
 import org.eclipse.jgit.dircache.DirCacheCheckout;
 import org.eclipse.jgit.errors.CheckoutConflictException;
+import org.eclipse.jgit.errors.TransportException;
 import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.CommitBuilder;
 import org.eclipse.jgit.lib.Config;
 import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
 import org.eclipse.jgit.lib.ProgressMonitor;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.RefDatabase;
@@ -64,6 +80,7 @@ import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevTree;
 import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.revwalk.filter.RevFilter;
+import org.eclipse.jgit.transport.RefSpec;
 import org.eclipse.jgit.transport.RemoteConfig;
 import org.eclipse.jgit.transport.Transport;
 import org.eclipse.jgit.treewalk.filter.TreeFilter;
@@ -114,16 +131,84 @@ public class VdbRepositoryImpl implements VdbRepository {
 	 * The prefix for a remote reference.
 	 */
 	private static final String REMOTES_REF_PREFIX = Constants.R_REMOTES;
+	/**
+	 * The prefix for a snapshot of a remote branch.
+	 */
+	private static final String SNAPSHOTS_REF_PREFIX = "refs/snapshots/";
 
 	/**
 	 * The preferences section we store into.
 	 */
-	private static final String VDB_PREFERENCES_SECTION = "vdb";
+	/* package */ static final String VDB_PREFERENCES_SECTION = "vdb";
 
 	/**
 	 * The ispublic preference for this repository.
 	 */
-	private static final String PREF_IS_PUBLIC = "ispublic";
+	/* package */ static final String PREF_IS_PUBLIC = "ispublic";
+
+	/**
+	 * The preference for vacuuming the database before each commit.
+	 */
+	private static final String PREF_VACUUM_ON_COMMIT = "vacuumoncommit";
+
+	/**
+	 * The preference for the number of commits between background
+	 * maintenance passes.
+	 */
+	private static final String PREF_REPACK_INTERVAL = "repackinterval";
+
+	/**
+	 * The default number of commits between maintenance passes.
+	 */
+	private static final int DEFAULT_REPACK_INTERVAL = 20;
+
+	/**
+	 * The preference for the seconds a transfer may wait on the remote.
+	 */
+	private static final String PREF_TRANSFER_TIMEOUT = "transfertimeout";
+
+	/**
+	 * The default seconds a transfer may wait on the remote.
+	 */
+	private static final int DEFAULT_TRANSFER_TIMEOUT = 30;
+
+	/**
+	 * The preference for the number of attempts made for a transfer.
+	 */
+	private static final String PREF_TRANSFER_ATTEMPTS = "transferattempts";
+
+	/**
+	 * The configuration section recording which of our commits the
+	 * branches of remotes match after a row sync.
+	 */
+	private static final String ROW_SYNC_SECTION = "vdbrowsync";
+
+	/**
+	 * Our commit the branch of the remote has the content of.
+	 */
+	private static final String ROW_SYNC_LOCAL = "local";
+
+	/**
+	 * The commit the remote made for it.
+	 */
+	private static final String ROW_SYNC_PEER = "peer";
+
+	/**
+	 * The remote tracking ref when the rows were pushed. The remote made
+	 * commits of its own which we do not have, so the tracking ref stays
+	 * behind until the next fetch, which moves it.
+	 */
+	private static final String ROW_SYNC_TRACKED = "tracked";
+
+	/**
+	 * The number of commits made since the last maintenance pass.
+	 */
+	private final AtomicInteger mCommitsSinceRepack = new AtomicInteger();
+
+	/**
+	 * The maintenance for this repository.
+	 */
+	private final RepositoryMaintenance mMaintenance;
 
 	/**
 	 * Construct a new repository and initialize it.
@@ -135,11 +220,15 @@ public class VdbRepositoryImpl implements VdbRepository {
 	public VdbRepositoryImpl(final String name, final File repoDir,
 			final VdbInitializer initializer)
 					throws IOException {
+		VdbPackConfig.configureWindowCache();
 		mRepoDir = repoDir;
 		mName = name;
 		mInitializer = initializer;
+		mMaintenance = new RepositoryMaintenance(this);
 
 		initializeRepository();
+		updateListing();
+		mMaintenance.start();
 	}
 
 	/**
@@ -396,7 +485,8 @@ public class VdbRepositoryImpl implements VdbRepository {
 	}
 
 	@Override
-	public final VdbCheckout getCommit(final String sha1) throws IOException {
+	public final synchronized VdbCheckout getCommit(final String sha1)
+			throws IOException {
 		if (!mCheckouts.containsKey(sha1)) {
 			checkoutCommit(sha1);
 
@@ -441,6 +531,7 @@ public class VdbRepositoryImpl implements VdbRepository {
 		StoredConfig rc = getGitRepository().getConfig();
 		rc.unsetSection(RemoteInfo.SECTION, remoteName);
 		rc.save();
+		updateListing();
 
 		// now remove all references
 		RefDatabase refDb = getGitRepository().getRefDatabase();
@@ -451,6 +542,7 @@ public class VdbRepositoryImpl implements VdbRepository {
 			RefUpdate update = refDb.newUpdate(fullName, true /* detach */);
 			update.delete();
 		}
+		deleteSnapshots(remoteName);
 	}
 
 	@Override
@@ -491,6 +583,15 @@ public class VdbRepositoryImpl implements VdbRepository {
 			throw new RuntimeException(e);
 		}
 		rc.save();
+		updateListing();
+	}
+
+	/**
+	 * Publishes the sharing state of this repository to the listing.
+	 */
+	private void updateListing() {
+		RepositoryListing.getInstance().update(mName,
+				getGitRepository().getConfig());
 	}
 
 	/**
@@ -507,7 +608,11 @@ public class VdbRepositoryImpl implements VdbRepository {
 			RemoteConfig cfg = new RemoteConfig(
 					getGitRepository().getConfig(), remoteName);
 			Transport.register(SmartSocketsTransport.PROTO);
-			return Transport.open(getGitRepository(), cfg);
+			Transport transport = Transport.open(getGitRepository(), cfg);
+			transport.setPackConfig(
+					VdbPackConfig.createForTransfer(getGitRepository()));
+			transport.setTimeout(getTransferTimeout());
+			return transport;
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		} catch (URISyntaxException e) {
@@ -518,34 +623,228 @@ public class VdbRepositoryImpl implements VdbRepository {
 	@Override
 	public final void pullFromRemote(final String remoteName,
 			final ProgressMonitor monitor)  throws IOException {
-		Transport connection = null;
+		RetryPolicy retry = getRetryPolicy();
+		for (int attempt = 1;; attempt++) {
+			Transport connection = null;
+			try {
+				connection = buildConnection(remoteName);
+				// TODO: (emilian): need to watch for semantics depending on type
+				connection.setRemoveDeletedRefs(true);
+				Lock objectLock =
+						ObjectStoreLock.get(getGitRepository()).readLock();
+				objectLock.lock();
+				try {
+					connection.fetch(monitor, null);
+				} finally {
+					objectLock.unlock();
+				}
+				break;
+			} catch (TransportException e) {
+				if (!retry.backoff(attempt, e)) {
+					throw e;
+				}
+			} finally {
+				if (connection != null) {
+					connection.close();
+				}
+			}
+		}
+		// The full history is here now so snapshots are obsolete.
+		deleteSnapshots(remoteName);
+	}
+
+	/**
+	 * Fetches just the given refs from a remote, as announced by the peer.
+	 * Refs which are not fetched from the remote, or which we already
+	 * have, are skipped.
+	 * @param remoteName the name of the remote
+	 * @param refs the refs by their name on the remote
+	 * @param monitor callback object for monitoring
+	 * @return true if anything was fetched
+	 * @throws IOException if reading or writing fails
+	 */
+	public final boolean fetchRefs(final String remoteName,
+			final Map<String, ObjectId> refs, final ProgressMonitor monitor)
+					throws IOException {
+		RemoteConfig remote;
 		try {
-			connection = buildConnection(remoteName);
-			// TODO: (emilian): need to watch for semantics depending on type
-			connection.setRemoveDeletedRefs(true);
-			connection.fetch(monitor, null);
-		} finally {
-			if (connection != null) {
-				connection.close();
+			remote = new RemoteConfig(getGitRepository().getConfig(),
+					remoteName);
+		} catch (URISyntaxException e) {
+			throw new IOException(e.getMessage());
+		}
+		List<RefSpec> specs = new ArrayList<RefSpec>();
+		for (Entry<String, ObjectId> ref : refs.entrySet()) {
+			for (RefSpec spec : remote.getFetchRefSpecs()) {
+				if (!spec.matchSource(ref.getKey())) {
+					continue;
+				}
+				RefSpec expanded = spec.expandFromSource(ref.getKey());
+				Ref tracking = getGitRepository().getRef(
+						expanded.getDestination());
+				if (tracking == null
+						|| !ref.getValue().equals(tracking.getObjectId())) {
+					specs.add(expanded);
+				}
+				break;
+			}
+		}
+		if (specs.isEmpty()) {
+			return false;
+		}
+		LOG.debug("Fetching {} announced refs from {}", specs.size(),
+				remoteName);
+		RetryPolicy retry = getRetryPolicy();
+		for (int attempt = 1;; attempt++) {
+			Transport connection = null;
+			try {
+				connection = buildConnection(remoteName);
+				Lock objectLock =
+						ObjectStoreLock.get(getGitRepository()).readLock();
+				objectLock.lock();
+				try {
+					connection.fetch(monitor, specs);
+				} finally {
+					objectLock.unlock();
+				}
+				return true;
+			} catch (TransportException e) {
+				if (!retry.backoff(attempt, e)) {
+					throw e;
+				}
+			} finally {
+				if (connection != null) {
+					connection.close();
+				}
 			}
 		}
 	}
 
+	/**
+	 * Drops the snapshots fetched from a remote. This is done once the
+	 * full history of the remote has been fetched.
+	 * @param remoteName the name of the remote
+	 * @throws IOException if reading or writing fails
+	 */
+	public final void deleteSnapshots(final String remoteName)
+			throws IOException {
+		deleteRefs(SNAPSHOTS_REF_PREFIX + remoteName + "/");
+	}
+
 	@Override
-	public final void pushToRemote(final String remoteName,
-			final ProgressMonitor monitor) throws IOException {
-		Transport connection = null;
+	public final VdbCheckout fetchSnapshot(final String remoteName,
+			final String branchName, final ProgressMonitor monitor)
+					throws IOException {
+		SmartSocketsTransport.Snapshot snapshot;
+		RetryPolicy retry = getRetryPolicy();
+		for (int attempt = 1;; attempt++) {
+			Transport connection = null;
+			try {
+				connection = buildConnection(remoteName);
+				if (!(connection instanceof SmartSocketsTransport)) {
+					throw new IOException(
+							"Remote does not support snapshots.");
+				}
+				// Each attempt picks up what earlier attempts spooled.
+				snapshot = ((SmartSocketsTransport) connection)
+						.fetchSnapshot(branchName, monitor);
+				break;
+			} catch (TransportException e) {
+				if (!retry.backoff(attempt, e)) {
+					throw e;
+				}
+			} finally {
+				if (connection != null) {
+					connection.close();
+				}
+			}
+		}
+
+		// The remote commit has parents we do not have, so we record the
+		// tree in a root commit of our own which names the original.
+		String msg = "Snapshot of " + remoteName + "/" + branchName
+				+ " at " + snapshot.getCommitId().name();
+		PersonIdent ident = new PersonIdent(
+				VdbCheckoutImpl.VERSIONING_DAEMON, VdbCheckoutImpl.VDB_EMAIL);
+		CommitBuilder builder = new CommitBuilder();
+		builder.setTreeId(snapshot.getTreeId());
+		builder.setAuthor(ident);
+		builder.setCommitter(ident);
+		builder.setMessage(msg);
+
+		ObjectId commitId;
+		Result res;
+		Lock objectLock = ObjectStoreLock.get(getGitRepository()).readLock();
+		objectLock.lock();
 		try {
-			connection = buildConnection(remoteName);
-			// TODO: (emilian) need to watch semantics for MERGE_POINTs and HUBs
-			connection.setRemoveDeletedRefs(true);
-			connection.push(monitor, null);
-		} finally {
-			if (connection != null) {
-				connection.close();
+			ObjectInserter inserter = getGitRepository().newObjectInserter();
+			try {
+				commitId = inserter.insert(Constants.OBJ_COMMIT,
+						builder.build());
+				inserter.flush();
+			} finally {
+				inserter.release();
 			}
+
+			RefUpdate update = getGitRepository().updateRef(
+					SNAPSHOTS_REF_PREFIX + remoteName + "/" + branchName);
+			update.setNewObjectId(commitId);
+			update.setForceUpdate(true);
+			update.setRefLogIdent(ident);
+			update.setRefLogMessage(msg, false);
+			res = update.update();
+		} finally {
+			objectLock.unlock();
+		}
+		if (res != Result.NEW && res != Result.FORCED
+				&& res != Result.NO_CHANGE && res != Result.FAST_FORWARD) {
+			throw new IOException("Could not store snapshot: " + res);
+		}
+		return getCommit(commitId.name());
+	}
+
+	/**
+	 * Deletes all references with the given prefix.
+	 * @param refsPrefix the prefix of the references to delete
+	 * @throws IOException if reading or writing fails
+	 */
+	private void deleteRefs(final String refsPrefix) throws IOException {
+		RefDatabase refDb = getGitRepository().getRefDatabase();
+		Map<String, Ref> refs = refDb.getRefs(refsPrefix);
+		for (String name : refs.keySet()) {
+			RefUpdate update = refDb.newUpdate(refsPrefix + name,
+					true /* detach */);
+			update.setForceUpdate(true);
+			update.delete();
 		}
+	}
+
+	@Override
+	public final void pushToRemote(final String remoteName,
+			final ProgressMonitor monitor) throws IOException {
+		RetryPolicy retry = getRetryPolicy();
+		for (int attempt = 1;; attempt++) {
+			Transport connection = null;
+			try {
+				connection = buildConnection(remoteName);
+				// TODO: (emilian) need to watch semantics for MERGE_POINTs
+				// and HUBs
+				connection.setRemoveDeletedRefs(true);
+				// Refs are only moved from the values we saw, so pushing
+				// again after a failure is safe.
+				connection.push(monitor, null);
+				return;
+			} catch (TransportException e) {
+				if (!retry.backoff(attempt, e)) {
+					throw e;
+				}
+			} finally {
+				if (connection != null) {
+					connection.close();
+				}
 			}
+		}
+	}
 
 	@Override
 	public final void pushToRemoteExplicit(final String remoteName,
@@ -556,6 +855,159 @@ public class VdbRepositoryImpl implements VdbRepository {
 		throw new RuntimeException("Not implemented");
 	}
 
+	/**
+	 * Pushes a branch to the same branch of a remote as the rows which
+	 * changed, which for small edits is far less than the pack with the
+	 * new database. The remote records the rows as a commit of its own
+	 * with the same author and message as the tip of our branch.
+	 *
+	 * This only works if the branch of the remote has not moved since we
+	 * last fetched it or pushed rows to it and the schema is unchanged.
+	 * Otherwise false is returned and the branch has to be pushed with
+	 * {@link #pushToRemote(String, ProgressMonitor)}.
+	 *
+	 * @param remoteName the name of the remote
+	 * @param branchName the name of the branch
+	 * @return true if the remote has the content of our branch
+	 * @throws IOException if reading or writing fails
+	 */
+	public final boolean pushRows(final String remoteName,
+			final String branchName) throws IOException {
+		final Repository repo = getGitRepository();
+		Ref ref = repo.getRef(BRANCH_REF_PREFIX + branchName);
+		if (ref == null || ref.getObjectId() == null) {
+			return false;
+		}
+
+		// The remote matches our last pushed commit unless it moved since.
+		String subsection = remoteName + "/" + branchName;
+		StoredConfig config = repo.getConfig();
+		ObjectId local = parseId(config.getString(ROW_SYNC_SECTION,
+				subsection, ROW_SYNC_LOCAL));
+		ObjectId peer = parseId(config.getString(ROW_SYNC_SECTION,
+				subsection, ROW_SYNC_PEER));
+		ObjectId lastTracked = parseId(config.getString(ROW_SYNC_SECTION,
+				subsection, ROW_SYNC_TRACKED));
+		Ref tracking = repo.getRef(REMOTES_REF_PREFIX + subsection);
+		ObjectId tracked = tracking == null ? null : tracking.getObjectId();
+		// A fetch since the last row sync moved the tracking ref, so the
+		// remote may have moved as well.
+		if (local == null || peer == null || !repo.hasObject(local)
+				|| (tracked != null && !tracked.equals(lastTracked))) {
+			if (tracked == null) {
+				return false;
+			}
+			local = tracked;
+			peer = tracked;
+		}
+		if (local.equals(ref.getObjectId())) {
+			return true;
+		}
+
+		final RevCommit base = RowSync.parseCommit(repo, local);
+		final RevCommit tip = RowSync.parseCommit(repo, ref.getObjectId());
+		String schema = RowSync.readSchema(repo, tip);
+		if (!schema.equals(RowSync.readSchema(repo, base))) {
+			LOG.debug("Schema of {} changed, rows can not be pushed",
+					branchName);
+			return false;
+		}
+
+		ObjectId result;
+		RetryPolicy retry = getRetryPolicy();
+		for (int attempt = 1;; attempt++) {
+			Transport connection = null;
+			try {
+				connection = buildConnection(remoteName);
+				if (!(connection instanceof SmartSocketsTransport)) {
+					return false;
+				}
+				result = ((SmartSocketsTransport) connection).pushRows(
+						branchName, peer, RowChangeSet.schemaDigest(schema),
+						tip.getAuthorIdent(), tip.getFullMessage(),
+						new SmartSocketsTransport.RowSource() {
+					@Override
+					public void writeRows(final OutputStream out)
+							throws IOException {
+						RowSync.writeChanges(repo, base, tip, out);
+					}
+				});
+				break;
+			} catch (TransportException e) {
+				if (!retry.backoff(attempt, e)) {
+					throw e;
+				}
+			} finally {
+				if (connection != null) {
+					connection.close();
+				}
+			}
+		}
+
+		if (result == null) {
+			config.unsetSection(ROW_SYNC_SECTION, subsection);
+		} else {
+			config.setString(ROW_SYNC_SECTION, subsection, ROW_SYNC_LOCAL,
+					tip.name());
+			config.setString(ROW_SYNC_SECTION, subsection, ROW_SYNC_PEER,
+					result.name());
+			if (tracked == null) {
+				config.unset(ROW_SYNC_SECTION, subsection, ROW_SYNC_TRACKED);
+			} else {
+				config.setString(ROW_SYNC_SECTION, subsection,
+						ROW_SYNC_TRACKED, tracked.name());
+			}
+		}
+		config.save();
+		return result != null;
+	}
+
+	/**
+	 * @param id an object id or null
+	 * @return the parsed id or null if the id is null or invalid
+	 */
+	private static ObjectId parseId(final String id) {
+		if (id == null || !ObjectId.isId(id)) {
+			return null;
+		}
+		return ObjectId.fromString(id);
+	}
+
+	/**
+	 * Applies rows pushed by a peer with {@link #pushRows(String, String)}
+	 * on top of a branch and commits the result to the branch.
+	 * @param branchName the name of the branch
+	 * @param base the tip of the branch the rows were written against
+	 * @param author the author of the commit of the peer
+	 * @param message the message of the commit of the peer
+	 * @param in the stream to read the rows from
+	 * @return the new tip of the branch
+	 * @throws IOException if reading or writing fails or the branch moved
+	 */
+	public final ObjectId applyRows(final String branchName,
+			final ObjectId base, final PersonIdent author,
+			final String message, final InputStream in) throws IOException {
+		return RowSync.applyChanges(this, branchName, base, author,
+				message, in);
+	}
+
+	/**
+	 * @param branchName the name of a branch
+	 * @return the digest of the schema at the tip of the branch, as
+	 * compared when rows are pushed
+	 * @throws IOException if reading fails
+	 */
+	public final String getSchemaDigest(final String branchName)
+			throws IOException {
+		Repository repo = getGitRepository();
+		Ref ref = repo.getRef(BRANCH_REF_PREFIX + branchName);
+		if (ref == null || ref.getObjectId() == null) {
+			throw new IOException("No such branch: " + branchName);
+		}
+		return RowChangeSet.schemaDigest(RowSync.readSchema(repo,
+				RowSync.parseCommit(repo, ref.getObjectId())));
+	}
+
 	@Override
 	public final boolean isPublic() {
 		return mGitRepo.getConfig().getBoolean(
@@ -568,27 +1020,238 @@ public class VdbRepositoryImpl implements VdbRepository {
 		config.setBoolean(VDB_PREFERENCES_SECTION, null,
 				PREF_IS_PUBLIC, isChecked);
 		config.save();
+		updateListing();
+	}
+
+	/**
+	 * @return true if databases are vacuumed before each commit.
+	 */
+	public final boolean isVacuumOnCommit() {
+		return getGitRepository().getConfig().getBoolean(
+				VDB_PREFERENCES_SECTION, PREF_VACUUM_ON_COMMIT, false);
+	}
+
+	/**
+	 * Sets if databases should be vacuumed before each commit. Vacuuming
+	 * keeps the committed database compact at the cost of a slower commit.
+	 * @param vacuum true if databases should be vacuumed
+	 * @throws IOException if writing the configuration fails
+	 */
+	public final void setVacuumOnCommit(final boolean vacuum)
+			throws IOException {
+		StoredConfig config = getGitRepository().getConfig();
+		config.setBoolean(VDB_PREFERENCES_SECTION, null,
+				PREF_VACUUM_ON_COMMIT, vacuum);
+		config.save();
+	}
+
+	/**
+	 * @return the number of commits between maintenance passes,
+	 * 0 if disabled.
+	 */
+	public final int getRepackInterval() {
+		return getGitRepository().getConfig().getInt(
+				VDB_PREFERENCES_SECTION, PREF_REPACK_INTERVAL,
+				DEFAULT_REPACK_INTERVAL);
+	}
+
+	/**
+	 * Sets the number of commits between maintenance passes. A pass
+	 * only repacks when there are too many loose objects or packs.
+	 * @param interval the number of commits, 0 to disable
+	 * @throws IOException if writing the configuration fails
+	 */
+	public final void setRepackInterval(final int interval)
+			throws IOException {
+		StoredConfig config = getGitRepository().getConfig();
+		config.setInt(VDB_PREFERENCES_SECTION, null,
+				PREF_REPACK_INTERVAL, interval);
+		config.save();
+	}
+
+	/**
+	 * @return the seconds a transfer may wait on the remote, 0 for no limit.
+	 */
+	public final int getTransferTimeout() {
+		return getGitRepository().getConfig().getInt(
+				VDB_PREFERENCES_SECTION, PREF_TRANSFER_TIMEOUT,
+				DEFAULT_TRANSFER_TIMEOUT);
+	}
+
+	/**
+	 * Sets the seconds a transfer may wait on the remote before the
+	 * attempt is given up. Slow links need a longer timeout.
+	 * @param seconds the timeout, 0 for no limit
+	 * @throws IOException if writing the configuration fails
+	 */
+	public final void setTransferTimeout(final int seconds)
+			throws IOException {
+		StoredConfig config = getGitRepository().getConfig();
+		config.setInt(VDB_PREFERENCES_SECTION, null,
+				PREF_TRANSFER_TIMEOUT, seconds);
+		config.save();
+	}
+
+	/**
+	 * @return the number of attempts made for a transfer.
+	 */
+	public final int getTransferAttempts() {
+		return Math.max(1, getGitRepository().getConfig().getInt(
+				VDB_PREFERENCES_SECTION, PREF_TRANSFER_ATTEMPTS,
+				RetryPolicy.DEFAULT_ATTEMPTS));
+	}
+
+	/**
+	 * Sets the number of attempts made for a fetch, push or snapshot
+	 * before giving up. Attempts are spaced out with a growing delay.
+	 * @param attempts the number of attempts, 1 to never retry
+	 * @throws IOException if writing the configuration fails
+	 */
+	public final void setTransferAttempts(final int attempts)
+			throws IOException {
+		StoredConfig config = getGitRepository().getConfig();
+		config.setInt(VDB_PREFERENCES_SECTION, null,
+				PREF_TRANSFER_ATTEMPTS, attempts);
+		config.save();
+	}
+
+	/**
+	 * @return the policy for retrying transfers.
+	 */
+	private RetryPolicy getRetryPolicy() {
+		return new RetryPolicy(getTransferAttempts());
+	}
+
+	/**
+	 * Packs all reachable objects in this repository into a single pack,
+	 * removing the loose objects and old packs it replaces. Nothing is
+	 * done while objects are being written, for instance by a transfer.
+	 * @param monitor the monitor to report progress to
+	 * @return the statistics for the repository after the repack, or null
+	 * if the repack was skipped
+	 * @throws IOException if reading or writing fails
+	 */
+	public final RepositoryStatistics repack(
+			final ProgressMonitor monitor) throws IOException {
+		mCommitsSinceRepack.set(0);
+		return mMaintenance.repack(monitor, 0);
+	}
+
+	/**
+	 * Runs a maintenance pass on this repository now. The pass repacks
+	 * when there are too many loose objects or packs and removes commit
+	 * checkouts which are no longer in use.
+	 * @param monitor the monitor to report progress to
+	 * @return the report for the pass
+	 * @throws IOException if reading or writing fails
+	 */
+	public final MaintenanceReport runMaintenance(
+			final ProgressMonitor monitor) throws IOException {
+		mCommitsSinceRepack.set(0);
+		return mMaintenance.run(monitor);
+	}
+
+	/**
+	 * Called by checkouts after a successful commit. Tells subscribed
+	 * peers about the new commit and requests a background maintenance
+	 * pass once enough commits have been made.
+	 * @param refName the name of the ref which was updated
+	 * @param commitId the new commit
+	 */
+	final void onCommit(final String refName, final ObjectId commitId) {
+		ChangeNotifier.getInstance().announce(mName,
+				Collections.singletonMap(refName, commitId));
+
+		int interval = getRepackInterval();
+		if (interval <= 0
+				|| mCommitsSinceRepack.incrementAndGet() < interval) {
+			return;
+		}
+		mCommitsSinceRepack.set(0);
+		mMaintenance.request();
+	}
+
+	/**
+	 * Removes commit checkouts which are not open and have nothing in
+	 * them modified since the given time.
+	 * @param olderThan only checkouts modified before this time are removed
+	 * @param report the report to record removed checkouts in
+	 */
+	/* package */ final synchronized void pruneCommitCheckouts(
+			final long olderThan, final MaintenanceReport report) {
+		File[] dirs = mRepoDir.listFiles();
+		if (dirs == null) {
+			return;
+		}
+		for (File dir : dirs) {
+			String name = dir.getName();
+			if (!dir.isDirectory() || !ObjectId.isId(name)
+					|| mCheckouts.containsKey(name)
+					|| RepositoryMaintenance.lastModified(dir)
+					>= olderThan) {
+				continue;
+			}
+			long size = RepositoryMaintenance.sizeOf(dir);
+			try {
+				RepositoryMaintenance.delete(dir);
+				report.addPrunedCheckout(size);
+				LOG.debug("Removed commit checkout: {}", name);
+			} catch (IOException e) {
+				LOG.warn("Unable to remove commit checkout: " + name, e);
+			}
+		}
 	}
 
 	@Override
 	public void updateDatabase(String branchName, Schema newSchema) throws IOException {
+		updateDatabase(branchName, newSchema, NullProgressMonitor.INSTANCE);
+	}
+
+	@Override
+	public final void updateDatabase(final String branchName,
+			final Schema newSchema, final ProgressMonitor monitor)
+			throws IOException {
+		VdbCheckout branch = getBranch(branchName);
+		if (needsUpdate(branch, newSchema)) {
+			branch.updateDatabase(newSchema, monitor);
+		}
+	}
+
+	@Override
+	public final DatabaseMigrator.Estimate estimateDatabaseUpdate(
+			final String branchName, final Schema newSchema)
+			throws IOException {
 		VdbCheckout branch = getBranch(branchName);
-		String old = branch.getSchema();
+		if (needsUpdate(branch, newSchema)) {
+			return branch.estimateUpdate(newSchema);
+		}
+		return null;
+	}
 
+	/**
+	 * Checks if a branch has to be updated to a new schema.
+	 * @param branch the branch to check
+	 * @param newSchema the new schema
+	 * @return true if the schema changed
+	 * @throws IOException if the new schema does not project
+	 */
+	private boolean needsUpdate(final VdbCheckout branch,
+			final Schema newSchema) throws IOException {
 		// Do we need to run an update?
-		if (!old.equals(newSchema.toString())) {
+		if (branch.getSchemaFingerprint()
+				!= AvroSchemaCache.fingerprint64(newSchema)) {
 			// Need to check projection.
-			Schema oldSchema = Schema.parse(old);
+			Schema oldSchema = AvroSchemaCache.parse(branch.getSchema());
 			SchemaEvolutionValidator validator = new SchemaEvolutionValidator();
 			if (validator.validateProjection(newSchema, oldSchema)) {
 				LOG.debug("Schema projection validated.");
-
-				branch.updateDatabase(newSchema);
+				return true;
 			} else {
 				throw new IOException("Schema does not project.");
 			}
 		} else {
 			LOG.debug("Schema's match. No need to update.");
+			return false;
 		}
 	}
 
@@ -596,6 +1259,7 @@ public class VdbRepositoryImpl implements VdbRepository {
 	 * Close any open checkouts.
 	 */
 	public void close() {
+		mMaintenance.stop();
 		for (Entry<String, VdbCheckoutImpl> checkout : mCheckouts.entrySet()) {
 			checkout.getValue().close();
 		}
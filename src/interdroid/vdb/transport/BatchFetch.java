@@ -0,0 +1,449 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.transport;
+
+import ibis.smartsockets.virtual.InitializationException;
+import interdroid.vdb.persistence.impl.ObjectStoreLock;
+import interdroid.vdb.transport.PeerConnectionPool.PeerConnection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
+
+import org.eclipse.jgit.errors.TransportException;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.lib.RefUpdate.Result;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.PackLock;
+import org.eclipse.jgit.transport.PackParser;
+import org.eclipse.jgit.transport.PacketLineIn;
+import org.eclipse.jgit.transport.PacketLineOut;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.RemoteConfig;
+import org.eclipse.jgit.transport.URIish;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fetches several repositories from one peer in a single exchange.
+ *
+ * All requests are sent up front, each naming the repository, the refs
+ * wanted as given by the fetch specs of the remote, and the tips we
+ * already have. The daemon answers every request in turn with the
+ * matching refs and, if anything changed, a pack. Remote tracking refs
+ * are then updated just as a fetch with removal of deleted refs would.
+ *
+ * The last refs each repository advertised are remembered, so the next
+ * batch only needs to be told about the refs which changed since.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+public final class BatchFetch {
+	/**
+	 * Access to logger.
+	 */
+	private static final Logger LOG = LoggerFactory.getLogger(BatchFetch.class);
+
+	/** The command for the daemon service. */
+	static final String SERVICE = "git-sync-repos";
+	/** Starts a request for a repository. */
+	static final String REPO = "repo ";
+	/** Names refs wanted from the repository. */
+	static final String FETCH = "fetch ";
+	/** Names an object we have. */
+	static final String HAVE = "have ";
+	/** Starts a successful answer. */
+	static final String OK = "ok ";
+	/** Starts a failed answer. */
+	static final String ERR = "ERR ";
+	/** Announces a pack. */
+	static final String PACK = "pack";
+	/** Announces there is nothing to send. */
+	static final String UP_TO_DATE = "uptodate";
+	/** Names the last advertisement seen, or starts a full one. */
+	static final String DIGEST = "digest ";
+	/** Starts an advertisement of only the refs which changed. */
+	static final String DELTA = "delta ";
+
+	/** The number of advertisements remembered. */
+	private static final int ADVERTISEMENT_CACHE_SIZE = 256;
+
+	/**
+	 * The last advertisement of each repository on each peer.
+	 */
+	private static final RefAdvertisement.Cache ADVERTISEMENTS =
+			new RefAdvertisement.Cache(ADVERTISEMENT_CACHE_SIZE);
+
+	/**
+	 * A request to fetch one repository from the peer.
+	 */
+	public static final class Request {
+		/** The local repository. */
+		private final Repository mLocal;
+		/** The remote configuration. */
+		private final RemoteConfig mRemote;
+		/** The name of the repository on the peer. */
+		private final String mPath;
+		/** True if a ref was changed. */
+		private boolean mUpdated;
+		/** The error if the fetch failed. */
+		private String mError;
+		/** True once the peer answered. */
+		private boolean mAnswered;
+		/** The advertisement we told the peer we have. */
+		private SortedMap<String, ObjectId> mLastAdvertised;
+
+		/**
+		 * Construct a request.
+		 * @param local the local repository
+		 * @param remote the remote to fetch, which must point at the peer
+		 */
+		public Request(final Repository local, final RemoteConfig remote) {
+			mLocal = local;
+			mRemote = remote;
+			String path = remote.getURIs().get(0).getPath();
+			if (path.startsWith("/")) {
+				path = path.substring(1);
+			}
+			mPath = path;
+		}
+
+		/** @return the name of the remote. */
+		public String getRemoteName() {
+			return mRemote.getName();
+		}
+
+		/** @return true if any ref was changed. */
+		public boolean isUpdated() {
+			return mUpdated;
+		}
+
+		/** @return true if the peer answered this request. */
+		public boolean isAnswered() {
+			return mAnswered;
+		}
+
+		/** @return the error if this request failed, null otherwise. */
+		public String getError() {
+			return mError;
+		}
+	}
+
+	/**
+	 * The peer we fetch from.
+	 */
+	private final URIish mPeer;
+
+	/**
+	 * The email the peer knows us by.
+	 */
+	private final String mLocalEmail;
+
+	/**
+	 * The requests in the order they are sent.
+	 */
+	private final List<Request> mRequests = new ArrayList<Request>();
+
+	/**
+	 * Construct a batch.
+	 * @param localEmail the email the peer knows us by
+	 * @param peer a uri for the peer, only the user and host are used
+	 */
+	public BatchFetch(final String localEmail, final URIish peer) {
+		mLocalEmail = localEmail;
+		mPeer = peer;
+	}
+
+	/**
+	 * Adds a request to the batch.
+	 * @param request the request
+	 */
+	public void add(final Request request) {
+		mRequests.add(request);
+	}
+
+	/** @return the requests in this batch. */
+	public List<Request> getRequests() {
+		return Collections.unmodifiableList(mRequests);
+	}
+
+	/**
+	 * Runs the batch.
+	 * @param monitor the monitor to report progress to
+	 * @throws IOException if talking to the peer fails
+	 * @throws InitializationException if smartsockets fails to initialize
+	 */
+	public void run(final ProgressMonitor monitor)
+			throws IOException, InitializationException {
+		if (mRequests.isEmpty()) {
+			return;
+		}
+		PeerConnectionPool pool = PeerConnectionPool.getInstance();
+		for (;;) {
+			PeerConnection conn = pool.take(mPeer, SmartSocketsTransport.TIMEOUT);
+			boolean done = false;
+			try {
+				conn.command(SERVICE + " " + mLocalEmail + '\0'
+						+ SmartSocketsDaemonClient.KEEP_ALIVE + '\0');
+				sendRequests(new PacketLineOut(conn.getOutputStream()));
+				InputStream in = conn.getInputStream();
+				PacketLineIn pckIn = new PacketLineIn(in);
+				for (Request request : mRequests) {
+					readAnswer(request, in, pckIn, monitor);
+				}
+				done = true;
+				return;
+			} catch (IOException e) {
+				if (!conn.isReused()) {
+					for (Request request : mRequests) {
+						if (!request.mAnswered) {
+							request.mError = e.getMessage();
+						}
+					}
+					throw e;
+				}
+				LOG.debug("Kept alive connection went stale, retrying.");
+			} finally {
+				pool.release(conn, done);
+			}
+		}
+	}
+
+	/**
+	 * Sends all requests.
+	 * @param out the stream to the peer
+	 * @throws IOException if writing fails
+	 */
+	private void sendRequests(final PacketLineOut out) throws IOException {
+		for (Request request : mRequests) {
+			out.writeString(REPO + request.mPath);
+			for (RefSpec spec : request.mRemote.getFetchRefSpecs()) {
+				out.writeString(FETCH + spec.getSource());
+			}
+			request.mLastAdvertised = ADVERTISEMENTS.get(
+					advertisementKey(request));
+			if (request.mLastAdvertised == null) {
+				request.mLastAdvertised = new TreeMap<String, ObjectId>();
+			}
+			out.writeString(DIGEST
+					+ RefAdvertisement.digest(request.mLastAdvertised));
+			Set<ObjectId> haves = new HashSet<ObjectId>();
+			for (Ref ref : request.mLocal.getAllRefs().values()) {
+				if (ref.getObjectId() != null
+						&& haves.add(ref.getObjectId())) {
+					out.writeString(HAVE + ref.getObjectId().name());
+				}
+			}
+			out.end();
+		}
+		out.end();
+	}
+
+	/**
+	 * Reads the answer to one request and applies it.
+	 * @param request the request
+	 * @param in the raw stream from the peer
+	 * @param pckIn the packet line stream from the peer
+	 * @param monitor the monitor to report progress to
+	 * @throws IOException if reading or writing fails
+	 */
+	private void readAnswer(final Request request, final InputStream in,
+			final PacketLineIn pckIn, final ProgressMonitor monitor)
+					throws IOException {
+		String status = pckIn.readString();
+		request.mAnswered = true;
+		if (status.startsWith(ERR)) {
+			request.mError = status.substring(ERR.length());
+			LOG.warn("Peer refused {}: {}", request.mPath, request.mError);
+			return;
+		}
+		if (!status.equals(OK + request.mPath)) {
+			throw new TransportException(mPeer, "Unexpected answer: " + status);
+		}
+
+		Map<String, ObjectId> advertised = readAdvertisement(request, pckIn);
+
+		Lock objectLock = ObjectStoreLock.get(request.mLocal).readLock();
+		objectLock.lock();
+		try {
+			String body = pckIn.readString();
+			if (PACK.equals(body)) {
+				ChunkedInputStream packIn = new ChunkedInputStream(in);
+				ObjectInserter inserter = request.mLocal.newObjectInserter();
+				try {
+					PackParser parser = inserter.newPackParser(packIn);
+					parser.setAllowThin(false);
+					PackLock lock = parser.parse(monitor);
+					inserter.flush();
+					if (lock != null) {
+						lock.unlock();
+					}
+				} finally {
+					inserter.release();
+				}
+				packIn.drain();
+			} else if (!UP_TO_DATE.equals(body)) {
+				throw new TransportException(mPeer,
+						"Unexpected answer: " + body);
+			}
+
+			updateRefs(request, advertised);
+		} finally {
+			objectLock.unlock();
+		}
+	}
+
+	/**
+	 * Reads the refs advertised for a request. Daemons which do not know
+	 * about digests send all refs without one.
+	 * @param request the request
+	 * @param pckIn the packet line stream from the peer
+	 * @return the refs the peer has
+	 * @throws IOException if reading fails
+	 */
+	private Map<String, ObjectId> readAdvertisement(final Request request,
+			final PacketLineIn pckIn) throws IOException {
+		String key = advertisementKey(request);
+		String digest = null;
+		boolean delta = false;
+		String line = pckIn.readString();
+		if (line.startsWith(DIGEST)) {
+			digest = line.substring(DIGEST.length());
+			line = pckIn.readString();
+		} else if (line.startsWith(DELTA)) {
+			digest = line.substring(DELTA.length());
+			delta = true;
+			line = pckIn.readString();
+		}
+
+		SortedMap<String, ObjectId> refs = new TreeMap<String, ObjectId>();
+		for (; !line.equals(PacketLineIn.END); line = pckIn.readString()) {
+			int space = line.indexOf(' ');
+			refs.put(line.substring(space + 1),
+					ObjectId.fromString(line.substring(0, space)));
+		}
+		if (delta) {
+			LOG.debug("Peer sent {} changed refs for {}", refs.size(),
+					request.mPath);
+			refs = RefAdvertisement.apply(request.mLastAdvertised, refs);
+		}
+		if (digest == null) {
+			ADVERTISEMENTS.remove(key);
+		} else if (digest.equals(RefAdvertisement.digest(refs))) {
+			ADVERTISEMENTS.put(key, refs);
+		} else {
+			// Start over with a full advertisement next time.
+			ADVERTISEMENTS.remove(key);
+			throw new TransportException(mPeer,
+					"Advertised refs do not match digest for "
+							+ request.mPath);
+		}
+		return refs;
+	}
+
+	/**
+	 * @param request the request
+	 * @return the key of the advertisements for the request
+	 */
+	private String advertisementKey(final Request request) {
+		return mPeer.getUser() + "@" + mPeer.getHost() + "/" + request.mPath;
+	}
+
+	/**
+	 * Updates the remote tracking refs of a request.
+	 * @param request the request
+	 * @param advertised the refs the peer has
+	 * @throws IOException if reading or writing fails
+	 */
+	private void updateRefs(final Request request,
+			final Map<String, ObjectId> advertised) throws IOException {
+		Repository local = request.mLocal;
+		for (RefSpec spec : request.mRemote.getFetchRefSpecs()) {
+			for (Map.Entry<String, ObjectId> ref : advertised.entrySet()) {
+				if (!spec.matchSource(ref.getKey())) {
+					continue;
+				}
+				String dest = spec.expandFromSource(ref.getKey())
+						.getDestination();
+				if (dest == null) {
+					continue;
+				}
+				Ref current = local.getRef(dest);
+				if (current != null
+						&& ref.getValue().equals(current.getObjectId())) {
+					continue;
+				}
+				RefUpdate update = local.updateRef(dest);
+				update.setNewObjectId(ref.getValue());
+				update.setForceUpdate(spec.isForceUpdate());
+				update.setRefLogMessage("batch fetch", false);
+				Result res = update.update();
+				if (res == Result.NEW || res == Result.FORCED
+						|| res == Result.FAST_FORWARD) {
+					request.mUpdated = true;
+				} else if (res != Result.NO_CHANGE) {
+					request.mError = "Could not update " + dest + ": " + res;
+					LOG.warn(request.mError);
+				}
+			}
+
+			if (spec.isWildcard() && spec.getDestination() != null) {
+				String destination = spec.getDestination();
+				String prefix = destination.substring(0,
+						destination.length() - 1);
+				for (String name : local.getRefDatabase().getRefs(prefix)
+						.keySet()) {
+					String source = spec.expandFromDestination(prefix + name)
+							.getSource();
+					if (!advertised.containsKey(source)) {
+						RefUpdate update = local.updateRef(prefix + name);
+						update.setForceUpdate(true);
+						update.delete();
+						request.mUpdated = true;
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,562 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.transport;
+
+import ibis.smartsockets.virtual.InitializationException;
+import interdroid.vdb.transport.PeerConnectionPool.PeerConnection;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.transport.PacketLineIn;
+import org.eclipse.jgit.transport.PacketLineOut;
+import org.eclipse.jgit.transport.URIish;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tells peers about ref updates as they happen so they do not have to
+ * poll for them.
+ *
+ * A peer subscribes to repositories it tracks, naming the local
+ * repository and remote the updates should be applied to. When one of
+ * those repositories changes, because of a commit or a received push,
+ * the updated refs are sent to every subscriber, which then fetches just
+ * those refs. Subscriptions are leases which the peer has to renew.
+ * Announcements are only delivered for subscriptions this node made with
+ * the peer which sends them.
+ *
+ * Only peers configured as a remote of a repository may subscribe to it,
+ * and the number of subscribers per repository is bounded.
+ *
+ * Announcements for the same peer are coalesced and sent in the
+ * background over a pooled connection, so a burst of commits costs one
+ * exchange. Received announcements are delivered by a small pool of
+ * their own, since delivering one fetches from the peer.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+public final class ChangeNotifier {
+	/**
+	 * Access to logger.
+	 */
+	private static final Logger LOG =
+			LoggerFactory.getLogger(ChangeNotifier.class);
+
+	/** The command for subscribing. */
+	static final String SUBSCRIBE = "git-subscribe";
+	/** The command for announcing updated refs. */
+	static final String NOTIFY = "git-notify";
+	/** Starts the updates for a repository. */
+	static final String REPO = "repo ";
+	/** Starts a successful answer. */
+	static final String OK = "ok ";
+	/** Starts a failed answer. */
+	static final String ERR = "ERR ";
+
+	/** How long a subscription lasts unless it is renewed. */
+	public static final long SUBSCRIPTION_LEASE = 30 * 60 * 1000L;
+
+	/** The most subscriptions kept for a repository. */
+	public static final int MAX_SUBSCRIBERS = 32;
+
+	/** The number of threads delivering announcements from peers. */
+	private static final int DELIVERY_THREADS = 2;
+
+	/**
+	 * The most announcements from peers waiting to be delivered. More are
+	 * dropped, the peer's changes are picked up on the next sync.
+	 */
+	private static final int DELIVERY_QUEUE = 16;
+
+	/** How long an idle delivery thread is kept in seconds. */
+	private static final long DELIVERY_KEEP_ALIVE = 60;
+
+	/**
+	 * The singleton of this in the system.
+	 */
+	private static final ChangeNotifier INSTANCE = new ChangeNotifier();
+
+	/**
+	 * Receives the updates announced by peers.
+	 *
+	 * @author nick &lt;palmer@cs.vu.nl&gt;
+	 *
+	 */
+	public interface Listener {
+		/**
+		 * Called when a peer announced updated refs.
+		 * @param repositoryName the local repository to update
+		 * @param remoteName the remote the peer is known as
+		 * @param refs the updated refs, by name on the peer
+		 */
+		void onRefsChanged(String repositoryName, String remoteName,
+				Map<String, ObjectId> refs);
+	}
+
+	/**
+	 * A subscription to the updates of a repository on a peer.
+	 *
+	 * @author nick &lt;palmer@cs.vu.nl&gt;
+	 *
+	 */
+	public static final class Subscription {
+		/** The name of the repository on the peer. */
+		private final String mPublished;
+		/** The local repository to apply updates to. */
+		private final String mRepository;
+		/** The remote the peer is known as. */
+		private final String mRemote;
+
+		/**
+		 * Construct a subscription.
+		 * @param published the name of the repository on the peer
+		 * @param repository the local repository to apply updates to
+		 * @param remote the remote the peer is known as
+		 */
+		public Subscription(final String published, final String repository,
+				final String remote) {
+			mPublished = published;
+			mRepository = repository;
+			mRemote = remote;
+		}
+
+		/**
+		 * @return the line sent to the peer for this subscription.
+		 */
+		private String toLine() {
+			return mPublished + " " + mRepository + " " + mRemote;
+		}
+	}
+
+	/**
+	 * The subscribers of each local repository, as
+	 * "email repository remote" with the time the lease expires.
+	 */
+	private final ConcurrentMap<String, ConcurrentMap<String, Long>>
+	mSubscribers = new ConcurrentHashMap<String, ConcurrentMap<String, Long>>();
+
+	/**
+	 * The name each subscriber knows this node by, by subscriber email.
+	 * Announcements are sent under this name so the subscriber can match
+	 * them to its subscriptions.
+	 */
+	private final ConcurrentMap<String, String> mKnownAs =
+			new ConcurrentHashMap<String, String>();
+
+	/**
+	 * The subscriptions this node made, as "peer repository remote" with
+	 * the time the lease expires.
+	 */
+	private final ConcurrentMap<String, Long> mSubscriptions =
+			new ConcurrentHashMap<String, Long>();
+
+	/**
+	 * The announcements waiting to be sent, by peer email and then by
+	 * "repository remote" on the peer. Guarded by itself.
+	 */
+	private final Map<String, Map<String, Map<String, ObjectId>>> mPending =
+			new HashMap<String, Map<String, Map<String, ObjectId>>>();
+
+	/**
+	 * Sends announcements.
+	 */
+	private final ExecutorService mExecutor =
+			Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(final Runnable r) {
+					Thread thread = new Thread(r, "vdb-notify");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	/**
+	 * Delivers received announcements, which fetches from the peer, so a
+	 * slow peer does not hold up sending or other deliveries.
+	 */
+	private final ThreadPoolExecutor mDeliveries;
+
+	/**
+	 * The listener for announcements from peers.
+	 */
+	private volatile Listener mListener;
+
+	/**
+	 * Prevent construction.
+	 */
+	private ChangeNotifier() {
+		mDeliveries = new ThreadPoolExecutor(DELIVERY_THREADS,
+				DELIVERY_THREADS, DELIVERY_KEEP_ALIVE, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(DELIVERY_QUEUE),
+				new ThreadFactory() {
+			private final AtomicInteger mCount = new AtomicInteger();
+
+			@Override
+			public Thread newThread(final Runnable r) {
+				Thread thread = new Thread(r,
+						"vdb-deliver-" + mCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		mDeliveries.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * @return the instance of the notifier.
+	 */
+	public static ChangeNotifier getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Sets the listener for announcements from peers.
+	 * @param listener the listener, or null to ignore announcements
+	 */
+	public void setListener(final Listener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * Records or renews a subscription from a peer. The caller checks the
+	 * peer is a configured remote of the repository.
+	 * @param published the local repository subscribed to
+	 * @param email the email of the peer
+	 * @param knownAs the name the peer knows this node by
+	 * @param repository the repository on the peer
+	 * @param remote the remote we are known as on the peer
+	 * @return false if the repository has too many subscribers
+	 */
+	boolean addSubscriber(final String published, final String email,
+			final String knownAs, final String repository,
+			final String remote) {
+		ConcurrentMap<String, Long> subscribers = mSubscribers.get(published);
+		if (subscribers == null) {
+			ConcurrentMap<String, Long> created =
+					new ConcurrentHashMap<String, Long>();
+			subscribers = mSubscribers.putIfAbsent(published, created);
+			if (subscribers == null) {
+				subscribers = created;
+			}
+		}
+		String key = email + " " + repository + " " + remote;
+		long now = System.currentTimeMillis();
+		if (!subscribers.containsKey(key)
+				&& subscribers.size() >= MAX_SUBSCRIBERS) {
+			dropExpired(subscribers, now);
+			if (subscribers.size() >= MAX_SUBSCRIBERS) {
+				LOG.warn("Too many subscribers to {}, refusing {}",
+						published, email);
+				return false;
+			}
+		}
+		mKnownAs.put(email, knownAs);
+		subscribers.put(key, now + SUBSCRIPTION_LEASE);
+		LOG.debug("{} subscribed to {}", email, published);
+		return true;
+	}
+
+	/**
+	 * Drops the subscriptions whose lease expired.
+	 * @param subscribers the subscriptions to a repository
+	 * @param now the current time
+	 */
+	private static void dropExpired(final Map<String, Long> subscribers,
+			final long now) {
+		for (Iterator<Long> it = subscribers.values().iterator();
+				it.hasNext();) {
+			if (it.next() < now) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Drops all subscriptions to a repository.
+	 * @param published the local repository
+	 */
+	public void removeSubscribers(final String published) {
+		mSubscribers.remove(published);
+	}
+
+	/**
+	 * Announces updated refs of a local repository to its subscribers.
+	 * This returns at once, the peers are told in the background.
+	 * @param published the local repository
+	 * @param refs the updated refs
+	 */
+	public void announce(final String published,
+			final Map<String, ObjectId> refs) {
+		ConcurrentMap<String, Long> subscribers = mSubscribers.get(published);
+		if (subscribers == null || refs.isEmpty()) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		for (Iterator<Map.Entry<String, Long>> it =
+				subscribers.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String, Long> subscriber = it.next();
+			if (subscriber.getValue() < now) {
+				it.remove();
+				continue;
+			}
+			String target = subscriber.getKey();
+			int space = target.indexOf(' ');
+			queue(target.substring(0, space), target.substring(space + 1),
+					refs);
+		}
+	}
+
+	/**
+	 * Queues an announcement for a peer, merging it with one which has not
+	 * been sent yet.
+	 * @param email the email of the peer
+	 * @param target the repository and remote on the peer
+	 * @param refs the updated refs
+	 */
+	private void queue(final String email, final String target,
+			final Map<String, ObjectId> refs) {
+		synchronized (mPending) {
+			Map<String, Map<String, ObjectId>> targets = mPending.get(email);
+			if (targets == null) {
+				targets = new HashMap<String, Map<String, ObjectId>>();
+				mPending.put(email, targets);
+				mExecutor.execute(new Runnable() {
+					@Override
+					public void run() {
+						send(email);
+					}
+				});
+			}
+			Map<String, ObjectId> pending = targets.get(target);
+			if (pending == null) {
+				pending = new HashMap<String, ObjectId>();
+				targets.put(target, pending);
+			}
+			pending.putAll(refs);
+		}
+	}
+
+	/**
+	 * Sends the queued announcements for a peer.
+	 * @param email the email of the peer
+	 */
+	private void send(final String email) {
+		Map<String, Map<String, ObjectId>> targets;
+		synchronized (mPending) {
+			targets = mPending.remove(email);
+		}
+		String knownAs = mKnownAs.get(email);
+		if (targets == null || knownAs == null) {
+			return;
+		}
+		LOG.debug("Notifying {} of {} repositories", email, targets.size());
+		List<String> lines = new ArrayList<String>();
+		for (Map.Entry<String, Map<String, ObjectId>> target
+				: targets.entrySet()) {
+			lines.add(REPO + target.getKey());
+			for (Map.Entry<String, ObjectId> ref
+					: target.getValue().entrySet()) {
+				lines.add(ref.getValue().name() + " " + ref.getKey());
+			}
+			lines.add(PacketLineIn.END);
+		}
+		try {
+			// The peer only accepts refs for subscriptions it made with
+			// the name it knows us by.
+			for (String answer : exchange(email, NOTIFY + " " + knownAs,
+					lines)) {
+				if (answer.startsWith(ERR)) {
+					LOG.warn("{} refused announcement: {}", email, answer);
+				}
+			}
+		} catch (IOException e) {
+			// The peer will pick the changes up on its next sync.
+			LOG.warn("Unable to notify " + email, e);
+		} catch (InitializationException e) {
+			LOG.warn("Unable to notify " + email, e);
+		}
+	}
+
+	/**
+	 * Checks if this node holds a live subscription with a peer.
+	 * @param peer the name of the peer
+	 * @param repository the local repository updates are applied to
+	 * @param remote the remote the peer is known as
+	 * @return true if the subscription was accepted and has not expired
+	 */
+	boolean isSubscribed(final String peer, final String repository,
+			final String remote) {
+		Long expires = mSubscriptions.get(peer + " " + repository + " "
+				+ remote);
+		return expires != null && expires >= System.currentTimeMillis();
+	}
+
+	/**
+	 * Delivers refs announced by a peer to the listener.
+	 * @param repository the local repository to update
+	 * @param remote the remote the peer is known as
+	 * @param refs the updated refs
+	 */
+	void deliver(final String repository, final String remote,
+			final Map<String, ObjectId> refs) {
+		final Listener listener = mListener;
+		if (listener == null) {
+			return;
+		}
+		try {
+			mDeliveries.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						listener.onRefsChanged(repository, remote, refs);
+					} catch (RuntimeException e) {
+						LOG.warn("Listener failed for " + repository, e);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// The changes are picked up on the next sync.
+			LOG.warn("Too many announcements waiting, dropped one for {}",
+					repository);
+		}
+	}
+
+	/**
+	 * Subscribes to repositories on a peer. This should be repeated
+	 * within {@link #SUBSCRIPTION_LEASE} to keep receiving updates.
+	 * @param localEmail the email the peer knows us by
+	 * @param peer the email of the peer
+	 * @param subscriptions the repositories to subscribe to
+	 * @return the answer of the peer for each subscription, which starts
+	 * with "ok" on success
+	 * @throws IOException if talking to the peer fails
+	 * @throws InitializationException if smartsockets fails to initialize
+	 */
+	public static List<String> subscribe(final String localEmail,
+			final String peer, final List<Subscription> subscriptions)
+					throws IOException, InitializationException {
+		List<String> lines = new ArrayList<String>();
+		for (Subscription subscription : subscriptions) {
+			lines.add(subscription.toLine());
+		}
+		lines.add(PacketLineIn.END);
+		long expires = System.currentTimeMillis() + SUBSCRIPTION_LEASE;
+		List<String> answers = exchange(peer,
+				SUBSCRIBE + " " + localEmail + " " + peer, lines);
+		// The peer answers each subscription in order.
+		for (int i = 0; i < answers.size() && i < subscriptions.size();
+				i++) {
+			if (answers.get(i).startsWith(OK)) {
+				Subscription subscription = subscriptions.get(i);
+				INSTANCE.mSubscriptions.put(peer + " "
+						+ subscription.mRepository + " "
+						+ subscription.mRemote, expires);
+			}
+		}
+		return answers;
+	}
+
+	/**
+	 * Sends a command to a peer and reads its answer.
+	 * @param peer the email of the peer
+	 * @param command the command line
+	 * @param lines the lines to send after the command
+	 * @return the lines of the answer up to the first end
+	 * @throws IOException if talking to the peer fails
+	 * @throws InitializationException if smartsockets fails to initialize
+	 */
+	private static List<String> exchange(final String peer,
+			final String command, final List<String> lines)
+					throws IOException, InitializationException {
+		URIish uri;
+		try {
+			uri = new URIish(SmartSocketsTransport.SMARTSOCKETS_TRANSPORT_SCHEME
+					+ "://" + peer + "/");
+		} catch (URISyntaxException e) {
+			throw new IOException("Bad peer address: " + peer);
+		}
+		PeerConnectionPool pool = PeerConnectionPool.getInstance();
+		for (;;) {
+			PeerConnection conn = pool.take(uri, SmartSocketsTransport.TIMEOUT);
+			boolean done = false;
+			try {
+				conn.getSocket().setSoTimeout(SmartSocketsTransport.TIMEOUT);
+				conn.command(command + '\0'
+						+ SmartSocketsDaemonClient.KEEP_ALIVE + '\0');
+				PacketLineOut out = new PacketLineOut(conn.getOutputStream());
+				for (String line : lines) {
+					if (line == PacketLineIn.END) {
+						out.end();
+					} else {
+						out.writeString(line);
+					}
+				}
+				out.flush();
+
+				List<String> answer = new ArrayList<String>();
+				PacketLineIn in = new PacketLineIn(conn.getInputStream());
+				for (String line = in.readString();
+						!line.equals(PacketLineIn.END);
+						line = in.readString()) {
+					answer.add(line);
+				}
+				done = true;
+				return Collections.unmodifiableList(answer);
+			} catch (IOException e) {
+				if (!conn.isReused()) {
+					throw e;
+				}
+				LOG.debug("Kept alive connection went stale, retrying.");
+			} finally {
+				pool.release(conn, done);
+			}
+		}
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.transport;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads a stream written by {@link ChunkedOutputStream}. Reading stops at
+ * the end of the framed stream, leaving whatever follows it unread.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+final class ChunkedInputStream extends InputStream {
+	/**
+	 * The stream we read chunks from.
+	 */
+	private final DataInputStream mIn;
+
+	/**
+	 * The bytes left in the current chunk.
+	 */
+	private int mRemaining;
+
+	/**
+	 * True once the end of the stream was read.
+	 */
+	private boolean mEof;
+
+	/**
+	 * Construct a chunked stream.
+	 * @param in the stream to read chunks from
+	 */
+	ChunkedInputStream(final InputStream in) {
+		mIn = new DataInputStream(in);
+	}
+
+	/**
+	 * Moves to the next chunk if the current one is used up.
+	 * @return false at the end of the stream
+	 * @throws IOException if reading fails
+	 */
+	private boolean nextChunk() throws IOException {
+		while (mRemaining == 0 && !mEof) {
+			int length = mIn.readInt();
+			if (length < 0 || length > ChunkedOutputStream.MAX_CHUNK) {
+				throw new IOException("Invalid chunk length: " + length);
+			}
+			if (length == 0) {
+				mEof = true;
+			}
+			mRemaining = length;
+		}
+		return !mEof;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!nextChunk()) {
+			return -1;
+		}
+		int b = mIn.read();
+		if (b < 0) {
+			throw new IOException("Stream ended inside a chunk.");
+		}
+		mRemaining--;
+		return b;
+	}
+
+	@Override
+	public int read(final byte[] b, final int off, final int len)
+			throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!nextChunk()) {
+			return -1;
+		}
+		int read = mIn.read(b, off, Math.min(len, mRemaining));
+		if (read < 0) {
+			throw new IOException("Stream ended inside a chunk.");
+		}
+		mRemaining -= read;
+		return read;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return Math.min(mRemaining, mIn.available());
+	}
+
+	/**
+	 * Skips to the end of the framed stream.
+	 * @throws IOException if reading fails
+	 */
+	void drain() throws IOException {
+		byte[] buf = new byte[ChunkedOutputStream.MAX_CHUNK];
+		while (read(buf, 0, buf.length) >= 0) {
+			continue;
+		}
+	}
+
+	@Override
+	public void close() {
+		// The underlying stream belongs to the connection.
+	}
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.transport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Frames a stream as length prefixed chunks so that several streams can
+ * follow each other on one connection. Each chunk is a four byte big
+ * endian length followed by that many bytes. An empty chunk ends the
+ * stream.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+final class ChunkedOutputStream extends OutputStream {
+	/**
+	 * The largest chunk we write.
+	 */
+	static final int MAX_CHUNK = 64 * 1024;
+
+	/**
+	 * The stream we write chunks to.
+	 */
+	private final OutputStream mOut;
+
+	/**
+	 * The data of the current chunk.
+	 */
+	private final byte[] mBuffer = new byte[MAX_CHUNK];
+
+	/**
+	 * The bytes in the current chunk.
+	 */
+	private int mCount;
+
+	/**
+	 * True once the end of the stream was written.
+	 */
+	private boolean mFinished;
+
+	/**
+	 * Construct a chunked stream.
+	 * @param out the stream to write chunks to
+	 */
+	ChunkedOutputStream(final OutputStream out) {
+		mOut = out;
+	}
+
+	@Override
+	public void write(final int b) throws IOException {
+		if (mCount == mBuffer.length) {
+			writeChunk();
+		}
+		mBuffer[mCount++] = (byte) b;
+	}
+
+	@Override
+	public void write(final byte[] b, final int off, final int len)
+			throws IOException {
+		int pos = off;
+		int remaining = len;
+		while (remaining > 0) {
+			if (mCount == mBuffer.length) {
+				writeChunk();
+			}
+			int n = Math.min(remaining, mBuffer.length - mCount);
+			System.arraycopy(b, pos, mBuffer, mCount, n);
+			mCount += n;
+			pos += n;
+			remaining -= n;
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		writeChunk();
+		mOut.flush();
+	}
+
+	/**
+	 * Writes the end of the stream. The underlying stream stays open.
+	 * @throws IOException if writing fails
+	 */
+	void finish() throws IOException {
+		if (mFinished) {
+			return;
+		}
+		writeChunk();
+		writeLength(0);
+		mOut.flush();
+		mFinished = true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		finish();
+	}
+
+	/**
+	 * Writes the buffered data as a chunk.
+	 * @throws IOException if writing fails
+	 */
+	private void writeChunk() throws IOException {
+		if (mCount == 0) {
+			return;
+		}
+		writeLength(mCount);
+		mOut.write(mBuffer, 0, mCount);
+		mCount = 0;
+	}
+
+	/**
+	 * Writes a chunk length.
+	 * @param length the length
+	 * @throws IOException if writing fails
+	 */
+	private void writeLength(final int length) throws IOException {
+		mOut.write(length >>> 24);
+		mOut.write(length >>> 16);
+		mOut.write(length >>> 8);
+		mOut.write(length);
+	}
+}
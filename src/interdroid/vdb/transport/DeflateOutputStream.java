@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.transport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses a stream as a series of independent frames, one for each
+ * flush or full buffer. Unlike a plain deflate stream, every flush puts
+ * all data written so far on the wire, which an interactive protocol
+ * needs.
+ *
+ * Each frame is a four byte big endian length of the data, a four byte
+ * length of the payload and the payload. When both lengths are equal the
+ * payload is the data itself, which is used for data that does not
+ * shrink, such as packs.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+final class DeflateOutputStream extends OutputStream {
+	/**
+	 * The default size of a frame.
+	 */
+	static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+	/**
+	 * The largest frame we accept.
+	 */
+	static final int MAX_FRAME = 1024 * 1024;
+
+	/**
+	 * The stream we write frames to.
+	 */
+	private final OutputStream mOut;
+
+	/**
+	 * The compressor.
+	 */
+	private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED);
+
+	/**
+	 * The data of the current frame.
+	 */
+	private final byte[] mBuffer;
+
+	/**
+	 * The compressed data of the current frame.
+	 */
+	private final byte[] mCompressed;
+
+	/**
+	 * The bytes in the current frame.
+	 */
+	private int mCount;
+
+	/**
+	 * Construct a compressing stream.
+	 * @param out the stream to write frames to
+	 * @param bufferSize the largest frame to write
+	 */
+	DeflateOutputStream(final OutputStream out, final int bufferSize) {
+		if (bufferSize <= 0 || bufferSize > MAX_FRAME) {
+			throw new IllegalArgumentException("Invalid buffer size: "
+					+ bufferSize);
+		}
+		mOut = out;
+		mBuffer = new byte[bufferSize];
+		mCompressed = new byte[bufferSize];
+	}
+
+	@Override
+	public void write(final int b) throws IOException {
+		if (mCount == mBuffer.length) {
+			writeFrame();
+		}
+		mBuffer[mCount++] = (byte) b;
+	}
+
+	@Override
+	public void write(final byte[] b, final int off, final int len)
+			throws IOException {
+		int pos = off;
+		int remaining = len;
+		while (remaining > 0) {
+			if (mCount == mBuffer.length) {
+				writeFrame();
+			}
+			int n = Math.min(remaining, mBuffer.length - mCount);
+			System.arraycopy(b, pos, mBuffer, mCount, n);
+			mCount += n;
+			pos += n;
+			remaining -= n;
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		writeFrame();
+		mOut.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			mDeflater.end();
+			mOut.close();
+		}
+	}
+
+	/**
+	 * Writes the buffered data as a frame.
+	 * @throws IOException if writing fails
+	 */
+	private void writeFrame() throws IOException {
+		if (mCount == 0) {
+			return;
+		}
+		mDeflater.reset();
+		mDeflater.setInput(mBuffer, 0, mCount);
+		mDeflater.finish();
+		int length = 0;
+		while (!mDeflater.finished() && length < mCompressed.length) {
+			length += mDeflater.deflate(mCompressed, length,
+					mCompressed.length - length);
+		}
+		writeInt(mCount);
+		if (mDeflater.finished() && length < mCount) {
+			writeInt(length);
+			mOut.write(mCompressed, 0, length);
+		} else {
+			writeInt(mCount);
+			mOut.write(mBuffer, 0, mCount);
+		}
+		mCount = 0;
+	}
+
+	/**
+	 * Writes a frame length.
+	 * @param value the length
+	 * @throws IOException if writing fails
+	 */
+	private void writeInt(final int value) throws IOException {
+		mOut.write(value >>> 24);
+		mOut.write(value >>> 16);
+		mOut.write(value >>> 8);
+		mOut.write(value);
+	}
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.transport;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a stream written by {@link DeflateOutputStream}.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+final class InflateInputStream extends InputStream {
+	/**
+	 * The stream we read frames from.
+	 */
+	private final DataInputStream mIn;
+
+	/**
+	 * The decompressor.
+	 */
+	private final Inflater mInflater = new Inflater();
+
+	/**
+	 * The data of the current frame.
+	 */
+	private byte[] mBuffer = new byte[0];
+
+	/**
+	 * The payload of the current frame.
+	 */
+	private byte[] mPayload = new byte[0];
+
+	/**
+	 * The bytes in the current frame.
+	 */
+	private int mCount;
+
+	/**
+	 * The next byte to read from the current frame.
+	 */
+	private int mPos;
+
+	/**
+	 * Construct a decompressing stream.
+	 * @param in the stream to read frames from
+	 */
+	InflateInputStream(final InputStream in) {
+		mIn = new DataInputStream(in);
+	}
+
+	/**
+	 * Reads the next frame if the current one is used up.
+	 * @return false at the end of the stream
+	 * @throws IOException if reading fails
+	 */
+	private boolean nextFrame() throws IOException {
+		while (mPos == mCount) {
+			int length;
+			int payload;
+			try {
+				length = mIn.readInt();
+			} catch (EOFException e) {
+				return false;
+			}
+			payload = mIn.readInt();
+			if (length <= 0 || length > DeflateOutputStream.MAX_FRAME
+					|| payload <= 0 || payload > length) {
+				throw new IOException("Invalid frame: " + length + " "
+						+ payload);
+			}
+			if (mBuffer.length < length) {
+				mBuffer = new byte[length];
+			}
+			if (payload == length) {
+				mIn.readFully(mBuffer, 0, length);
+			} else {
+				if (mPayload.length < payload) {
+					mPayload = new byte[payload];
+				}
+				mIn.readFully(mPayload, 0, payload);
+				inflate(payload, length);
+			}
+			mCount = length;
+			mPos = 0;
+		}
+		return true;
+	}
+
+	/**
+	 * Inflates the payload into the frame buffer.
+	 * @param payload the length of the payload
+	 * @param length the length of the data
+	 * @throws IOException if the payload is corrupt
+	 */
+	private void inflate(final int payload, final int length)
+			throws IOException {
+		mInflater.reset();
+		mInflater.setInput(mPayload, 0, payload);
+		int n = 0;
+		try {
+			while (n < length) {
+				int inflated = mInflater.inflate(mBuffer, n, length - n);
+				if (inflated == 0 && (mInflater.finished()
+						|| mInflater.needsInput())) {
+					break;
+				}
+				n += inflated;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt frame: " + e.getMessage());
+		}
+		if (n != length) {
+			throw new IOException("Short frame: " + n + " of " + length);
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!nextFrame()) {
+			return -1;
+		}
+		return mBuffer[mPos++] & 0xff;
+	}
+
+	@Override
+	public int read(final byte[] b, final int off, final int len)
+			throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!nextFrame()) {
+			return -1;
+		}
+		int n = Math.min(len, mCount - mPos);
+		System.arraycopy(mBuffer, mPos, b, off, n);
+		mPos += n;
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return mCount - mPos;
+	}
+
+	@Override
+	public void close() throws IOException {
+		mInflater.end();
+		mIn.close();
+	}
+}
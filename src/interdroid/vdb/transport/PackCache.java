@@ -0,0 +1,456 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.transport;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An on disk cache of generated packs.
+ *
+ * Packs are keyed by the objects wanted and the objects the client has,
+ * so every client asking for the same state is sent the same bytes.
+ * Only the first request for a key pays for building the pack, concurrent
+ * requests for the same key wait for it. The least recently used packs
+ * are removed once the cache grows beyond its size limit.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+public final class PackCache {
+	/**
+	 * Access to logger.
+	 */
+	private static final Logger LOG = LoggerFactory.getLogger(PackCache.class);
+
+	/**
+	 * The extension of cached packs.
+	 */
+	private static final String PACK_EXT = ".pack";
+
+	/**
+	 * The size of the buffer used to copy packs.
+	 */
+	private static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * Writes a pack into the cache.
+	 */
+	public interface PackSource {
+		/**
+		 * Writes the pack.
+		 * @param out the stream to write to
+		 * @throws IOException if building the pack fails
+		 */
+		void writePack(OutputStream out) throws IOException;
+	}
+
+	/**
+	 * The directory holding the packs.
+	 */
+	private final File mDirectory;
+
+	/**
+	 * The maximum number of bytes held.
+	 */
+	private final long mMaxBytes;
+
+	/**
+	 * The size of each cached pack in least recently used order.
+	 */
+	private final LinkedHashMap<String, Long> mEntries =
+			new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+	/**
+	 * The bytes currently held.
+	 */
+	private long mBytes;
+
+	/**
+	 * Locks for keys which are being built.
+	 */
+	private final ConcurrentHashMap<String, Object> mBuilding =
+			new ConcurrentHashMap<String, Object>();
+
+	/**
+	 * The number of requests answered from the cache.
+	 */
+	private long mHits;
+
+	/**
+	 * The number of requests which built a pack.
+	 */
+	private long mMisses;
+
+	/**
+	 * Construct a cache in the given directory, picking up packs left
+	 * there by an earlier run.
+	 * @param directory the directory to keep packs in
+	 * @param maxBytes the maximum bytes to keep
+	 * @throws IOException if the directory can not be created
+	 */
+	public PackCache(final File directory, final long maxBytes)
+			throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create: " + directory);
+		}
+		mDirectory = directory;
+		mMaxBytes = maxBytes;
+
+		File[] files = directory.listFiles();
+		if (files != null) {
+			Arrays.sort(files, new Comparator<File>() {
+				@Override
+				public int compare(final File a, final File b) {
+					long diff = a.lastModified() - b.lastModified();
+					if (diff < 0) {
+						return -1;
+					} else if (diff > 0) {
+						return 1;
+					}
+					return 0;
+				}
+			});
+			for (File file : files) {
+				String name = file.getName();
+				if (name.endsWith(PACK_EXT)) {
+					mEntries.put(name.substring(0,
+							name.length() - PACK_EXT.length()),
+							file.length());
+					mBytes += file.length();
+				} else if (!file.delete()) {
+					// Left over from an interrupted build.
+					LOG.warn("Error deleting: {}", file);
+				}
+			}
+		}
+		evict();
+	}
+
+	/**
+	 * Computes the key for a pack.
+	 * @param kind the kind of pack, so different services do not collide
+	 * @param want the objects the client wants
+	 * @param have the objects the client has
+	 * @return the key for the pack
+	 */
+	public static String key(final String kind,
+			final Collection<? extends ObjectId> want,
+			final Collection<? extends ObjectId> have) {
+		MessageDigest md = Constants.newMessageDigest();
+		md.update(Constants.encode(kind));
+		update(md, 'w', want);
+		update(md, 'h', have);
+		return ObjectId.fromRaw(md.digest()).name();
+	}
+
+	/**
+	 * Adds a set of ids to the digest in a stable order.
+	 * @param md the digest
+	 * @param tag the tag separating this set
+	 * @param ids the ids to add
+	 */
+	private static void update(final MessageDigest md, final char tag,
+			final Collection<? extends ObjectId> ids) {
+		List<ObjectId> sorted = new ArrayList<ObjectId>(ids);
+		Collections.sort(sorted, new Comparator<AnyObjectId>() {
+			@Override
+			public int compare(final AnyObjectId a, final AnyObjectId b) {
+				return a.compareTo(b);
+			}
+		});
+		byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+		for (ObjectId id : sorted) {
+			md.update((byte) tag);
+			id.copyRawTo(raw, 0);
+			md.update(raw);
+		}
+	}
+
+	/**
+	 * Sends the pack for the key, building it with the source if it is
+	 * not cached yet.
+	 * @param key the key of the pack
+	 * @param source the source for the pack
+	 * @param out the stream to send the pack to
+	 * @throws IOException if building or sending the pack fails
+	 */
+	public void send(final String key, final PackSource source,
+			final OutputStream out) throws IOException {
+		send(key, source, out, 0);
+	}
+
+	/**
+	 * Makes sure the pack for the key is cached. This is where a request
+	 * is counted as a hit or a miss, so it is called once per request
+	 * before the pack is sent.
+	 * @param key the key of the pack
+	 * @param source the source for the pack
+	 * @return the size of the pack in bytes
+	 * @throws IOException if building the pack fails
+	 */
+	public long prepare(final String key, final PackSource source)
+			throws IOException {
+		File pack = get(key);
+		if (pack == null) {
+			pack = build(key, source);
+		} else {
+			synchronized (this) {
+				mHits++;
+			}
+		}
+		return pack.length();
+	}
+
+	/**
+	 * Sends the pack for the key from the given offset on, building it
+	 * with the source if it is not cached yet. This lets a client which
+	 * lost its connection pick up where it was. Only a pack which has to
+	 * be built here is counted, call {@link #prepare} first to count the
+	 * request.
+	 * @param key the key of the pack
+	 * @param source the source for the pack
+	 * @param out the stream to send the pack to
+	 * @param offset the number of bytes of the pack to skip
+	 * @throws IOException if building or sending the pack fails
+	 */
+	public void send(final String key, final PackSource source,
+			final OutputStream out, final long offset) throws IOException {
+		File pack = get(key);
+		if (pack == null) {
+			pack = build(key, source);
+		}
+		InputStream in;
+		try {
+			in = new FileInputStream(pack);
+		} catch (IOException e) {
+			// Evicted between lookup and open, build it for this client.
+			LOG.debug("Cached pack went away: {}", key);
+			source.writePack(new SkipOutputStream(out, offset));
+			return;
+		}
+		try {
+			long skip = offset;
+			while (skip > 0) {
+				long skipped = in.skip(skip);
+				if (skipped <= 0) {
+					throw new IOException("Offset beyond end of pack: "
+							+ offset);
+				}
+				skip -= skipped;
+			}
+			byte[] buf = new byte[BUFFER_SIZE];
+			int read;
+			while ((read = in.read(buf)) > 0) {
+				out.write(buf, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Drops the first bytes written through it.
+	 */
+	private static final class SkipOutputStream extends FilterOutputStream {
+		/** The bytes still to drop. */
+		private long mSkip;
+
+		/**
+		 * Construct the stream.
+		 * @param out the stream to write to
+		 * @param skip the number of bytes to drop
+		 */
+		private SkipOutputStream(final OutputStream out, final long skip) {
+			super(out);
+			mSkip = skip;
+		}
+
+		@Override
+		public void write(final int b) throws IOException {
+			if (mSkip > 0) {
+				mSkip--;
+			} else {
+				out.write(b);
+			}
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len)
+				throws IOException {
+			int drop = (int) Math.min(mSkip, len);
+			mSkip -= drop;
+			if (drop < len) {
+				out.write(b, off + drop, len - drop);
+			}
+		}
+	}
+
+	/**
+	 * Builds the pack for a key unless another thread beat us to it.
+	 * @param key the key of the pack
+	 * @param source the source for the pack
+	 * @return the cached pack
+	 * @throws IOException if building the pack fails
+	 */
+	private File build(final String key, final PackSource source)
+			throws IOException {
+		Object lock = new Object();
+		Object existing = mBuilding.putIfAbsent(key, lock);
+		if (existing != null) {
+			lock = existing;
+		}
+		synchronized (lock) {
+			try {
+				File pack = get(key);
+				if (pack != null) {
+					// Another request built it while we waited.
+					synchronized (this) {
+						mHits++;
+					}
+					return pack;
+				}
+				synchronized (this) {
+					mMisses++;
+				}
+				File tmp = File.createTempFile("build_", ".tmp", mDirectory);
+				pack = new File(mDirectory, key + PACK_EXT);
+				try {
+					FileOutputStream fos = new FileOutputStream(tmp);
+					try {
+						OutputStream buf = new BufferedOutputStream(fos);
+						source.writePack(buf);
+						buf.flush();
+					} finally {
+						fos.close();
+					}
+					if (!tmp.renameTo(pack)) {
+						throw new IOException("Unable to move pack into place: "
+								+ pack);
+					}
+				} finally {
+					if (tmp.exists() && !tmp.delete()) {
+						LOG.warn("Error deleting: {}", tmp);
+					}
+				}
+				LOG.debug("Cached pack {} ({} bytes)", key, pack.length());
+				synchronized (this) {
+					mEntries.put(key, pack.length());
+					mBytes += pack.length();
+					evict();
+				}
+				return pack;
+			} finally {
+				mBuilding.remove(key, lock);
+			}
+		}
+	}
+
+	/**
+	 * Looks up a pack, marking it as recently used.
+	 * @param key the key of the pack
+	 * @return the pack or null if it is not cached
+	 */
+	private synchronized File get(final String key) {
+		if (mEntries.get(key) == null) {
+			return null;
+		}
+		File pack = new File(mDirectory, key + PACK_EXT);
+		if (!pack.isFile()) {
+			mBytes -= mEntries.remove(key);
+			return null;
+		}
+		return pack;
+	}
+
+	/**
+	 * Removes the least recently used packs until we fit. The most
+	 * recent pack is always kept, even if it is too big on its own.
+	 */
+	private synchronized void evict() {
+		Iterator<Map.Entry<String, Long>> it = mEntries.entrySet().iterator();
+		while (mBytes > mMaxBytes && mEntries.size() > 1 && it.hasNext()) {
+			Map.Entry<String, Long> entry = it.next();
+			File pack = new File(mDirectory, entry.getKey() + PACK_EXT);
+			if (pack.exists() && !pack.delete()) {
+				LOG.warn("Error deleting: {}", pack);
+				continue;
+			}
+			LOG.debug("Evicted pack: {}", entry.getKey());
+			mBytes -= entry.getValue();
+			it.remove();
+		}
+	}
+
+	/**
+	 * @return the bytes currently held
+	 */
+	public synchronized long getBytes() {
+		return mBytes;
+	}
+
+	/**
+	 * @return the number of requests answered from the cache
+	 */
+	public synchronized long getHits() {
+		return mHits;
+	}
+
+	/**
+	 * @return the number of requests which built a pack
+	 */
+	public synchronized long getMisses() {
+		return mMisses;
+	}
+}
@@ -0,0 +1,534 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.transport;
+
+import ibis.smartsockets.naming.NameResolver;
+import ibis.smartsockets.virtual.InitializationException;
+import ibis.smartsockets.virtual.VirtualSocket;
+import ibis.smartsockets.virtual.VirtualSocketAddress;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+import org.eclipse.jgit.transport.PacketLineIn;
+import org.eclipse.jgit.transport.PacketLineOut;
+import org.eclipse.jgit.transport.URIish;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps connections to peers open between operations.
+ *
+ * Resolved peer addresses are cached so that syncing several repositories
+ * with a peer resolves its name once. Connections are handed back after an
+ * operation and reused by the next operation with the same peer, as long
+ * as the daemon confirmed that the exchange completed cleanly. Idle
+ * connections are closed before the daemon gives up on them.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+final class PeerConnectionPool {
+	/**
+	 * Access to logger.
+	 */
+	private static final Logger LOG =
+			LoggerFactory.getLogger(PeerConnectionPool.class);
+
+	/**
+	 * Milliseconds an idle connection is kept. This must stay below
+	 * {@link SmartSocketsDaemonClient#KEEP_ALIVE_TIMEOUT}.
+	 */
+	static final long IDLE_TIMEOUT = 10 * 1000L;
+
+	/**
+	 * Milliseconds a resolved address is trusted.
+	 */
+	static final long ADDRESS_TTL = 5 * 60 * 1000L;
+
+	/**
+	 * The number of stray lines skipped while waiting for the daemon.
+	 */
+	private static final int MAX_STRAY_LINES = 16;
+
+	/**
+	 * The default size of the buffers of a connection.
+	 */
+	static final int DEFAULT_BUFFER_SIZE = 8192;
+
+	/**
+	 * The pool shared by all transports.
+	 */
+	private static final PeerConnectionPool INSTANCE = new PeerConnectionPool();
+
+	/**
+	 * True if new connections ask the daemon to compress.
+	 */
+	private volatile boolean mCompression;
+
+	/**
+	 * The size of the buffers of new connections.
+	 */
+	private volatile int mBufferSize = DEFAULT_BUFFER_SIZE;
+
+	/**
+	 * @return the pool shared by all transports.
+	 */
+	static PeerConnectionPool getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * A resolved address and when it was resolved.
+	 */
+	private static final class CachedAddress {
+		/** The address. */
+		private final VirtualSocketAddress mAddress;
+		/** When it was resolved. */
+		private final long mResolved;
+
+		/**
+		 * Construct a cached address.
+		 * @param address the address
+		 */
+		CachedAddress(final VirtualSocketAddress address) {
+			mAddress = address;
+			mResolved = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * A connection to a peer which may outlive a single operation.
+	 */
+	final class PeerConnection {
+		/** The name of the peer. */
+		private final String mPeer;
+		/** The socket. */
+		private final VirtualSocket mSocket;
+		/** The buffered input of the socket. */
+		private InputStream mIn;
+		/** The buffered output of the socket. */
+		private OutputStream mOut;
+		/** The size of the buffers. */
+		private final int mBufferSize;
+		/** True if this connection was used before. */
+		private boolean mReused;
+		/** When the connection was last handed back. */
+		private long mLastUsed;
+		/** True once the daemon compresses this connection. */
+		private boolean mCompressed;
+		/** True if the daemon can not compress. */
+		private boolean mCompressionRefused;
+
+		/**
+		 * Construct a connection.
+		 * @param peer the name of the peer
+		 * @param socket the connected socket
+		 * @param bufferSize the size of the buffers
+		 * @throws IOException if the streams can not be opened
+		 */
+		PeerConnection(final String peer, final VirtualSocket socket,
+				final int bufferSize) throws IOException {
+			mPeer = peer;
+			mSocket = socket;
+			mBufferSize = bufferSize;
+			mIn = new BufferedInputStream(socket.getInputStream(), bufferSize);
+			mOut = new BufferedOutputStream(socket.getOutputStream(),
+					bufferSize);
+		}
+
+		/**
+		 * Sends a command line to the daemon. The first command on a new
+		 * connection asks the daemon to compress the rest of the
+		 * connection if the pool is configured to. Streams for the
+		 * operation must be taken after this.
+		 * @param command the command with its extras, each ending in a
+		 * NUL byte
+		 * @throws IOException if talking to the daemon fails
+		 */
+		void command(final String command) throws IOException {
+			boolean ask = mCompression && !mCompressed
+					&& !mCompressionRefused;
+			PacketLineOut out = new PacketLineOut(mOut);
+			if (ask) {
+				out.writeString(command + SmartSocketsDaemonClient.DEFLATE
+						+ '\0');
+			} else {
+				out.writeString(command);
+			}
+			out.flush();
+			if (!ask) {
+				return;
+			}
+
+			String line = new PacketLineIn(mIn).readStringRaw();
+			if (SmartSocketsDaemonClient.DEFLATE.equals(line)) {
+				LOG.debug("Compressing connection to {}", mPeer);
+				mIn = new InflateInputStream(mIn);
+				mOut = new DeflateOutputStream(mOut, mBufferSize);
+				mCompressed = true;
+				return;
+			}
+			if (SmartSocketsDaemonClient.NO_DEFLATE.equals(line)) {
+				LOG.debug("{} does not compress", mPeer);
+				mCompressionRefused = true;
+				return;
+			}
+
+			// An older daemon answered the command right away, put the
+			// answer back for the operation to read.
+			mCompressionRefused = true;
+			ByteArrayOutputStream answer = new ByteArrayOutputStream();
+			PacketLineOut pushBack = new PacketLineOut(answer);
+			if (line == PacketLineIn.END) {
+				pushBack.end();
+			} else {
+				pushBack.writeString(line);
+			}
+			PushbackInputStream in = new PushbackInputStream(mIn,
+					answer.size());
+			in.unread(answer.toByteArray());
+			mIn = in;
+		}
+
+		/** @return true if this connection was used before. */
+		boolean isReused() {
+			return mReused;
+		}
+
+		/** @return the socket of the connection. */
+		VirtualSocket getSocket() {
+			return mSocket;
+		}
+
+		/**
+		 * @return the input of the connection. Closing it leaves the
+		 * connection open.
+		 */
+		InputStream getInputStream() {
+			return new FilterInputStream(mIn) {
+				@Override
+				public void close() {
+					// The pool owns the connection
+				}
+			};
+		}
+
+		/**
+		 * @return the output of the connection. Closing it only flushes.
+		 */
+		OutputStream getOutputStream() {
+			return new FilterOutputStream(mOut) {
+				@Override
+				public void write(final byte[] b, final int off,
+						final int len) throws IOException {
+					out.write(b, off, len);
+				}
+
+				@Override
+				public void close() throws IOException {
+					flush();
+				}
+			};
+		}
+
+		/**
+		 * Waits for the daemon to confirm the last exchange is complete,
+		 * skipping anything the operation left unread.
+		 * @return true if the connection can be used again
+		 */
+		private boolean finish() {
+			try {
+				mOut.flush();
+				mSocket.setSoTimeout((int) IDLE_TIMEOUT);
+				PacketLineIn in = new PacketLineIn(mIn);
+				for (int i = 0; i < MAX_STRAY_LINES; i++) {
+					String line = in.readString();
+					if (SmartSocketsDaemonClient.READY.equals(line)) {
+						return true;
+					}
+				}
+			} catch (IOException e) {
+				LOG.debug("Connection to {} not reusable: {}", mPeer,
+						e.getMessage());
+			}
+			return false;
+		}
+
+		/**
+		 * Closes the connection. The streams are closed first so the
+		 * native memory of a compressed connection is freed.
+		 */
+		void close() {
+			if (mCompressed) {
+				try {
+					mOut.close();
+				} catch (IOException e) {
+					LOG.debug("Ignored while closing: {}", e.getMessage());
+				}
+				try {
+					mIn.close();
+				} catch (IOException e) {
+					LOG.debug("Ignored while closing: {}", e.getMessage());
+				}
+			}
+			try {
+				mSocket.close();
+			} catch (IOException e) {
+				LOG.warn("Exception while closing.", e);
+			}
+		}
+	}
+
+	/**
+	 * The resolved addresses by peer name.
+	 */
+	private final Map<String, CachedAddress> mAddresses =
+			new HashMap<String, CachedAddress>();
+
+	/**
+	 * The idle connections by peer name, most recently used last.
+	 */
+	private final Map<String, LinkedList<PeerConnection>> mIdle =
+			new HashMap<String, LinkedList<PeerConnection>>();
+
+	/**
+	 * Use getInstance.
+	 */
+	private PeerConnectionPool() {
+		// Singleton
+	}
+
+	/**
+	 * Sets if new connections ask the daemon to compress. This pays off
+	 * on slow links, mostly for ref advertisements and other protocol
+	 * chatter, packs are compressed already.
+	 * @param compression true to ask for compression
+	 */
+	void setCompression(final boolean compression) {
+		mCompression = compression;
+	}
+
+	/**
+	 * @return true if new connections ask the daemon to compress.
+	 */
+	boolean isCompression() {
+		return mCompression;
+	}
+
+	/**
+	 * Sets the size of the buffers of new connections, which is also the
+	 * largest compressed frame.
+	 * @param bufferSize the size in bytes
+	 */
+	void setBufferSize(final int bufferSize) {
+		if (bufferSize <= 0 || bufferSize > DeflateOutputStream.MAX_FRAME) {
+			throw new IllegalArgumentException("Invalid buffer size: "
+					+ bufferSize);
+		}
+		mBufferSize = bufferSize;
+	}
+
+	/**
+	 * @return the size of the buffers of new connections.
+	 */
+	int getBufferSize() {
+		return mBufferSize;
+	}
+
+	/**
+	 * @param uri the uri of the peer
+	 * @return the name the peer is registered under.
+	 */
+	static String peerName(final URIish uri) {
+		return uri.getUser() + "@" + uri.getHost();
+	}
+
+	/**
+	 * Takes an idle connection to the peer, or opens a new one.
+	 * @param uri the uri of the peer
+	 * @param timeout the timeout for resolving and connecting
+	 * @return the connection
+	 * @throws IOException if connecting fails
+	 * @throws InitializationException if smartsockets fails to initialize
+	 */
+	PeerConnection take(final URIish uri, final int timeout)
+			throws IOException, InitializationException {
+		String peer = peerName(uri);
+		PeerConnection conn = null;
+		synchronized (this) {
+			LinkedList<PeerConnection> idle = mIdle.get(peer);
+			if (idle != null) {
+				expire(idle);
+				if (!idle.isEmpty()) {
+					conn = idle.removeLast();
+				}
+			}
+		}
+		if (conn != null) {
+			LOG.debug("Reusing connection to {}", peer);
+			// Undo the timeout used while waiting for the daemon.
+			conn.mSocket.setSoTimeout(0);
+			return conn;
+		}
+		return new PeerConnection(peer, connect(uri, timeout), mBufferSize);
+	}
+
+	/**
+	 * Hands back a connection after an operation.
+	 * @param conn the connection
+	 * @param reusable false if the operation failed
+	 */
+	void release(final PeerConnection conn, final boolean reusable) {
+		if (!reusable || !conn.finish()) {
+			conn.close();
+			return;
+		}
+		conn.mReused = true;
+		conn.mLastUsed = System.currentTimeMillis();
+		synchronized (this) {
+			LinkedList<PeerConnection> idle = mIdle.get(conn.mPeer);
+			if (idle == null) {
+				idle = new LinkedList<PeerConnection>();
+				mIdle.put(conn.mPeer, idle);
+			}
+			idle.addLast(conn);
+			expire(idle);
+		}
+	}
+
+	/**
+	 * Closes connections which have been idle too long.
+	 * @param idle the idle connections of a peer
+	 */
+	private void expire(final LinkedList<PeerConnection> idle) {
+		long now = System.currentTimeMillis();
+		Iterator<PeerConnection> it = idle.iterator();
+		while (it.hasNext()) {
+			PeerConnection conn = it.next();
+			if (now - conn.mLastUsed > IDLE_TIMEOUT) {
+				it.remove();
+				conn.close();
+			}
+		}
+	}
+
+	/**
+	 * Opens a new socket to the peer using the cached address if there is
+	 * one.
+	 * @param uri the uri of the peer
+	 * @param timeout the timeout for resolving and connecting
+	 * @return the connected socket
+	 * @throws IOException if connecting fails
+	 * @throws InitializationException if smartsockets fails to initialize
+	 */
+	VirtualSocket connect(final URIish uri, final int timeout)
+			throws IOException, InitializationException {
+		String peer = peerName(uri);
+		NameResolver resolver = SmartSocketsTransport.getResolver();
+		VirtualSocketAddress otherSide = resolve(resolver, peer, timeout);
+		try {
+			return resolver.getSocketFactory()
+					.createClientSocket(otherSide, timeout, null);
+		} catch (IOException e) {
+			// The peer may have moved, resolve again next time.
+			forget(peer);
+			throw e;
+		}
+	}
+
+	/**
+	 * Resolves a peer, using the cache when possible.
+	 * @param resolver the resolver
+	 * @param peer the name of the peer
+	 * @param timeout the timeout for resolving
+	 * @return the address of the peer
+	 * @throws IOException if the peer can not be resolved
+	 */
+	private VirtualSocketAddress resolve(final NameResolver resolver,
+			final String peer, final int timeout) throws IOException {
+		synchronized (this) {
+			CachedAddress cached = mAddresses.get(peer);
+			if (cached != null && System.currentTimeMillis()
+					- cached.mResolved < ADDRESS_TTL) {
+				return cached.mAddress;
+			}
+		}
+		LOG.debug("Resolving: {}", peer);
+		VirtualSocketAddress otherSide = resolver.resolve(peer, timeout);
+		LOG.debug("Other side is: {}", otherSide);
+		if (otherSide == null) {
+			throw new IOException("Unable to resolve host: " + peer);
+		}
+		synchronized (this) {
+			mAddresses.put(peer, new CachedAddress(otherSide));
+		}
+		return otherSide;
+	}
+
+	/**
+	 * Forgets the cached address and idle connections of a peer.
+	 * @param peer the name of the peer
+	 */
+	synchronized void forget(final String peer) {
+		mAddresses.remove(peer);
+		LinkedList<PeerConnection> idle = mIdle.remove(peer);
+		if (idle != null) {
+			for (PeerConnection conn : idle) {
+				conn.close();
+			}
+		}
+	}
+
+	/**
+	 * Closes all idle connections and forgets all addresses.
+	 */
+	synchronized void closeAll() {
+		for (LinkedList<PeerConnection> idle : mIdle.values()) {
+			for (PeerConnection conn : idle) {
+				conn.close();
+			}
+		}
+		mIdle.clear();
+		mAddresses.clear();
+	}
+}
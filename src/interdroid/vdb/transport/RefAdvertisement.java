@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.transport;
+
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+
+/**
+ * Helpers for advertising only the refs which changed since the last
+ * advertisement a client saw.
+ *
+ * Both sides name an advertisement by the digest of its refs. A client
+ * sends the digest of the last one it has, and if the daemon still
+ * remembers it the daemon sends only the refs which differ, with a zero
+ * id for refs which were removed. The client applies these to its copy
+ * and checks the result against the digest of the new advertisement.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+final class RefAdvertisement {
+	/**
+	 * No construction.
+	 */
+	private RefAdvertisement() {
+		// Utility class
+	}
+
+	/**
+	 * A bounded cache of advertisements, dropping the least recently
+	 * used when full. Access is synchronized.
+	 */
+	static final class Cache {
+		/** The advertisements. */
+		private final Map<String, SortedMap<String, ObjectId>> mEntries;
+
+		/**
+		 * Construct a cache.
+		 * @param capacity the number of advertisements kept
+		 */
+		Cache(final int capacity) {
+			mEntries = new LinkedHashMap<String,
+					SortedMap<String, ObjectId>>(16, 0.75f, true) {
+				/** Serial version. */
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(final Map.Entry<String,
+						SortedMap<String, ObjectId>> eldest) {
+					return size() > capacity;
+				}
+			};
+		}
+
+		/**
+		 * @param key the key of the advertisement
+		 * @return the advertisement or null if it is not known
+		 */
+		synchronized SortedMap<String, ObjectId> get(final String key) {
+			return mEntries.get(key);
+		}
+
+		/**
+		 * Remembers an advertisement.
+		 * @param key the key of the advertisement
+		 * @param refs the refs advertised, which are copied
+		 */
+		synchronized void put(final String key,
+				final Map<String, ObjectId> refs) {
+			mEntries.put(key, Collections.unmodifiableSortedMap(
+					new TreeMap<String, ObjectId>(refs)));
+		}
+
+		/**
+		 * Forgets an advertisement.
+		 * @param key the key of the advertisement
+		 */
+		synchronized void remove(final String key) {
+			mEntries.remove(key);
+		}
+	}
+
+	/**
+	 * Computes the digest of an advertisement.
+	 * @param refs the refs advertised
+	 * @return the digest
+	 */
+	static String digest(final Map<String, ObjectId> refs) {
+		MessageDigest md = Constants.newMessageDigest();
+		byte[] raw = new byte[Constants.OBJECT_ID_LENGTH];
+		for (Map.Entry<String, ObjectId> ref
+				: new TreeMap<String, ObjectId>(refs).entrySet()) {
+			ref.getValue().copyRawTo(raw, 0);
+			md.update(raw);
+			md.update(Constants.encode(ref.getKey()));
+			md.update((byte) '\n');
+		}
+		return ObjectId.fromRaw(md.digest()).name();
+	}
+
+	/**
+	 * Computes the refs which changed between two advertisements.
+	 * @param previous the advertisement the client has
+	 * @param current the current advertisement
+	 * @return the changed refs, with a zero id for removed refs
+	 */
+	static SortedMap<String, ObjectId> delta(
+			final Map<String, ObjectId> previous,
+			final Map<String, ObjectId> current) {
+		SortedMap<String, ObjectId> delta = new TreeMap<String, ObjectId>();
+		for (Map.Entry<String, ObjectId> ref : current.entrySet()) {
+			if (!ref.getValue().equals(previous.get(ref.getKey()))) {
+				delta.put(ref.getKey(), ref.getValue());
+			}
+		}
+		for (String name : previous.keySet()) {
+			if (!current.containsKey(name)) {
+				delta.put(name, ObjectId.zeroId());
+			}
+		}
+		return delta;
+	}
+
+	/**
+	 * Applies changed refs to an advertisement.
+	 * @param previous the advertisement the changes are against
+	 * @param delta the changed refs, with a zero id for removed refs
+	 * @return the new advertisement
+	 */
+	static SortedMap<String, ObjectId> apply(
+			final Map<String, ObjectId> previous,
+			final Map<String, ObjectId> delta) {
+		SortedMap<String, ObjectId> refs =
+				new TreeMap<String, ObjectId>(previous);
+		for (Map.Entry<String, ObjectId> ref : delta.entrySet()) {
+			if (ObjectId.zeroId().equals(ref.getValue())) {
+				refs.remove(ref.getKey());
+			} else {
+				refs.put(ref.getKey(), ref.getValue());
+			}
+		}
+		return refs;
+	}
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2008-2012 Vrije Universiteit, The Netherlands All rights
+ * reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer.
+ *
+ * Redistributions in binary form must reproduce the above copyright notice,
+ * this list of conditions and the following disclaimer in the documentation
+ * and/or other materials provided with the distribution.
+ *
+ * Neither the name of the Vrije Universiteit nor the names of its contributors
+ * may be used to endorse or promote products derived from this software without
+ * specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS ``AS IS''
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+package interdroid.vdb.transport;
+
+import org.eclipse.jgit.errors.NoRemoteRepositoryException;
+import org.eclipse.jgit.errors.PackProtocolException;
+import org.eclipse.jgit.errors.RemoteRepositoryException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * How often and how patiently a transfer over a flaky link is retried.
+ * The delay between attempts doubles from the initial delay up to the
+ * maximum delay. Only failures of the link are retried: an error the
+ * remote answered with would just be repeated, unless the remote said
+ * it was too busy.
+ *
+ * @author nick &lt;palmer@cs.vu.nl&gt;
+ *
+ */
+public final class RetryPolicy {
+	/**
+	 * Access to logger.
+	 */
+	private static final Logger LOG =
+			LoggerFactory.getLogger(RetryPolicy.class);
+
+	/** The default number of attempts. */
+	public static final int DEFAULT_ATTEMPTS = 4;
+
+	/** The default delay before the first retry in milliseconds. */
+	public static final long DEFAULT_INITIAL_DELAY = 1000;
+
+	/** The default maximum delay between attempts in milliseconds. */
+	public static final long DEFAULT_MAX_DELAY = 30 * 1000;
+
+	/**
+	 * The end of an error message from a remote which is too busy to
+	 * serve a request now.
+	 */
+	public static final String TRY_AGAIN = "try again later";
+
+	/** A policy which never retries. */
+	public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0);
+
+	/** The number of attempts. */
+	private final int mAttempts;
+
+	/** The delay before the first retry. */
+	private final long mInitialDelay;
+
+	/** The maximum delay between attempts. */
+	private final long mMaxDelay;
+
+	/**
+	 * Construct a policy.
+	 * @param attempts the number of attempts, at least one
+	 * @param initialDelay the delay before the first retry in milliseconds
+	 * @param maxDelay the maximum delay between attempts in milliseconds
+	 */
+	public RetryPolicy(final int attempts, final long initialDelay,
+			final long maxDelay) {
+		if (attempts < 1) {
+			throw new IllegalArgumentException("attempts must be positive");
+		}
+		mAttempts = attempts;
+		mInitialDelay = initialDelay;
+		mMaxDelay = maxDelay;
+	}
+
+	/**
+	 * Construct a policy with the default delays.
+	 * @param attempts the number of attempts, at least one
+	 */
+	public RetryPolicy(final int attempts) {
+		this(attempts, DEFAULT_INITIAL_DELAY, DEFAULT_MAX_DELAY);
+	}
+
+	/**
+	 * @return the number of attempts.
+	 */
+	public int getAttempts() {
+		return mAttempts;
+	}
+
+	/**
+	 * @param attempt the attempt which failed, starting at one
+	 * @return the delay before the next attempt in milliseconds
+	 */
+	public long getDelay(final int attempt) {
+		long delay = mInitialDelay;
+		for (int i = 1; i < attempt && delay < mMaxDelay; i++) {
+			delay *= 2;
+		}
+		return Math.min(delay, mMaxDelay);
+	}
+
+	/**
+	 * @param cause why an attempt failed
+	 * @return true if the failure may go away when trying again, false if
+	 * it is an answer from the remote which would just be repeated
+	 */
+	public static boolean isTransient(final Exception cause) {
+		if (cause instanceof RemoteRepositoryException
+				|| cause instanceof NoRemoteRepositoryException
+				|| cause instanceof PackProtocolException) {
+			String message = cause.getMessage();
+			return message != null && message.endsWith(TRY_AGAIN);
+		}
+		return true;
+	}
+
+	/**
+	 * Waits before the next attempt, if there is one and the failure
+	 * is worth retrying.
+	 * @param attempt the attempt which failed, starting at one
+	 * @param cause why the attempt failed
+	 * @return true if another attempt should be made
+	 */
+	public boolean backoff(final int attempt, final Exception cause) {
+		if (attempt >= mAttempts || !isTransient(cause)) {
+			return false;
+		}
+		long delay = getDelay(attempt);
+		LOG.info("Attempt {} failed, retrying in {} ms: {}",
+				new Object[] {attempt, delay, cause.getMessage()});
+		try {
+			Thread.sleep(delay);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		return true;
+	}
+}
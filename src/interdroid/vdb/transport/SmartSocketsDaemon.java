@@ -37,22 +37,54 @@ import ibis.smartsockets.virtual.VirtualSocket;
 import ibis.smartsockets.virtual.VirtualSocketAddress;
 import ibis.smartsockets.virtual.VirtualSocketFactory;
 import interdroid.vdb.content.VdbProviderRegistry;
+import interdroid.vdb.persistence.impl.ObjectStoreLock;
+import interdroid.vdb.persistence.impl.VdbPackConfig;
+import interdroid.vdb.persistence.impl.VdbRepositoryImpl;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 
 import org.eclipse.jgit.JGitText;
 import org.eclipse.jgit.errors.RepositoryNotFoundException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.NullProgressMonitor;
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
 import org.eclipse.jgit.storage.pack.PackConfig;
+import org.eclipse.jgit.storage.pack.PackWriter;
 import org.eclipse.jgit.transport.PacketLineIn;
 import org.eclipse.jgit.transport.PacketLineOut;
+import org.eclipse.jgit.transport.PostReceiveHook;
+import org.eclipse.jgit.transport.ReceiveCommand;
 import org.eclipse.jgit.transport.ReceivePack;
 import org.eclipse.jgit.transport.UploadPack;
 import org.eclipse.jgit.transport.resolver.ReceivePackFactory;
@@ -91,7 +123,13 @@ public class SmartSocketsDaemon {
 			ReceivePack rp = mReceivePackFactory.create(dc, db);
 			InputStream in = dc.getInputStream();
 			OutputStream out = dc.getOutputStream();
-			rp.receive(in, out, null);
+			Lock objectLock = ObjectStoreLock.get(db).readLock();
+			objectLock.lock();
+			try {
+				rp.receive(in, out, null);
+			} finally {
+				objectLock.unlock();
+			}
 		}
 	}
 
@@ -126,12 +164,232 @@ public class SmartSocketsDaemon {
 	}
 
 	/**
-	 * The service which lists repositories for clients.
+	 * The service which sends the current state of a branch to clients
+	 * without any of its history.
+	 *
+	 * The client sends the name of the branch. We answer with the commit
+	 * and tree ids of the tip of the branch, or a line starting with ERR,
+	 * followed by a pack containing just the tree and the blobs in it.
+	 * This lets a new peer read a large repository long before a full
+	 * fetch of the history would have finished.
+	 *
+	 * A client which lost its connection part way may add the tree id and
+	 * the number of bytes of the pack it already has to the branch name.
+	 * The answer then carries a third field with the offset the pack is
+	 * sent from, which is zero if the transfer can not be resumed.
 	 *
 	 * @author nick &lt;palmer@cs.vu.nl&gt;
 	 *
 	 */
-	private final class ListDaemonService extends SmartsocketsDaemonService {
+	private final class SnapshotDaemonService
+	extends SmartsocketsDaemonService {
+		{
+			setEnabled(true);
+		}
+
+		/**
+		 * Construct the service. It is enabled along with upload-pack.
+		 */
+		private SnapshotDaemonService() {
+			super("snapshot-pack", "uploadpack");
+		}
+
+		@Override
+		protected void execute(final SmartSocketsDaemonClient dc,
+				final Repository db) throws IOException,
+				ServiceNotEnabledException,
+				ServiceNotAuthorizedException {
+			PacketLineIn in = new PacketLineIn(dc.getInputStream());
+			OutputStream rawOut = new BufferedOutputStream(
+					dc.getOutputStream());
+			PacketLineOut out = new PacketLineOut(rawOut);
+
+			String[] request = in.readString().split(" ");
+			String branchName = request[0];
+			LOG.debug("Snapshot requested for: {}", branchName);
+			Ref ref = db.getRef(Constants.R_HEADS + branchName);
+			if (ref == null || ref.getObjectId() == null) {
+				out.writeString("ERR no such branch: " + branchName);
+				out.flush();
+				return;
+			}
+
+			RevCommit commit;
+			RevWalk walk = new RevWalk(db);
+			try {
+				commit = walk.parseCommit(ref.getObjectId());
+			} finally {
+				walk.release();
+			}
+			PackConfig config = getPackConfig();
+			if (config == null) {
+				config = VdbPackConfig.createForTransfer(db);
+			}
+			final Set<ObjectId> want =
+					Collections.<ObjectId>singleton(commit.getTree());
+			final Set<ObjectId> have = Collections.<ObjectId>emptySet();
+			final PackConfig packConfig = config;
+			PackCache.PackSource source = new PackCache.PackSource() {
+				@Override
+				public void writePack(final OutputStream packOut)
+						throws IOException {
+					PackWriter writer = new PackWriter(packConfig,
+							db.newObjectReader());
+					try {
+						writer.preparePack(NullProgressMonitor.INSTANCE,
+								want, have);
+						writer.writePack(NullProgressMonitor.INSTANCE,
+								NullProgressMonitor.INSTANCE, packOut);
+					} finally {
+						writer.release();
+					}
+				}
+			};
+
+			// The tree id names the content so the key never goes stale.
+			String key = PackCache.key(getCommandName(), want, have);
+			PackCache cache = getPackCache();
+			String header = commit.name() + " " + commit.getTree().name();
+			long offset = 0;
+			long size = -1;
+			if (cache != null) {
+				size = cache.prepare(key, source);
+			}
+			if (request.length == 3) {
+				// Only cached packs are sent as the same bytes every time.
+				if (cache != null
+						&& request[1].equals(commit.getTree().name())) {
+					try {
+						offset = Long.parseLong(request[2]);
+					} catch (NumberFormatException e) {
+						offset = 0;
+					}
+					if (offset < 0 || offset > size) {
+						offset = 0;
+					}
+				}
+				LOG.debug("Resuming snapshot at: {}", offset);
+				header += " " + offset;
+			}
+			out.writeString(header);
+			out.flush();
+			if (cache != null) {
+				cache.send(key, source, rawOut, offset);
+			} else {
+				source.writePack(rawOut);
+			}
+			rawOut.flush();
+		}
+	}
+
+	/**
+	 * The service which receives commits as the rows they changed, as
+	 * sent by {@link SmartSocketsTransport#pushRows}. It is enabled along
+	 * with receive-pack.
+	 *
+	 * The client names the branch, the tip of the branch it wrote the
+	 * rows against and the digest of the schema, followed by the author
+	 * and message of the commit. If the branch and schema match we ask
+	 * for the rows, which follow framed by {@link ChunkedOutputStream},
+	 * and answer with the commit we made of them.
+	 *
+	 * @author nick &lt;palmer@cs.vu.nl&gt;
+	 *
+	 */
+	private final class RowSyncDaemonService
+	extends SmartsocketsDaemonService {
+		{
+			setEnabled(false);
+		}
+
+		/**
+		 * Construct the service.
+		 */
+		private RowSyncDaemonService() {
+			super(SmartSocketsTransport.ROW_SYNC, "receivepack");
+		}
+
+		@Override
+		protected void execute(final SmartSocketsDaemonClient dc,
+				final Repository db) throws IOException,
+				ServiceNotEnabledException,
+				ServiceNotAuthorizedException {
+			PacketLineIn in = new PacketLineIn(dc.getInputStream());
+			PacketLineOut out = new PacketLineOut(dc.getOutputStream());
+			String[] request = in.readString().split(" ");
+			String name = in.readString();
+			String email = in.readString();
+			String[] when = in.readString().split(" ");
+			String message = in.readString();
+			if (request.length != 3 || when.length != 2
+					|| !ObjectId.isId(request[1])) {
+				out.writeString("ERR invalid request");
+				out.flush();
+				return;
+			}
+			String branchName = request[0];
+			ObjectId base = ObjectId.fromString(request[1]);
+			PersonIdent author;
+			try {
+				author = new PersonIdent(name, email,
+						new Date(Long.parseLong(when[0])),
+						Integer.parseInt(when[1]));
+			} catch (NumberFormatException e) {
+				out.writeString("ERR invalid author date");
+				out.flush();
+				return;
+			}
+
+			VdbRepositoryImpl repository =
+					((VdbRepositoryResolver<SmartSocketsDaemonClient>)
+							mRepositoryResolver).getVdbRepository(
+									dc.getRepositoryName());
+			Ref ref = db.getRef(Constants.R_HEADS + branchName);
+			if (repository == null) {
+				out.writeString("ERR not found");
+			} else if (ref == null || !base.equals(ref.getObjectId())) {
+				out.writeString("ERR stale: " + branchName);
+			} else if (!request[2].equals(
+					repository.getSchemaDigest(branchName))) {
+				out.writeString("ERR schema changed: " + branchName);
+			} else {
+				out.writeString(SmartSocketsTransport.ROW_SYNC_READY);
+				out.flush();
+				ChunkedInputStream rows =
+						new ChunkedInputStream(dc.getInputStream());
+				String answer;
+				try {
+					answer = SmartSocketsTransport.ROW_SYNC_OK
+							+ repository.applyRows(branchName, base,
+									author, message, rows).name();
+				} catch (IOException e) {
+					LOG.warn("Unable to apply rows to " + branchName, e);
+					answer = "ERR " + e.getMessage();
+				}
+				rows.drain();
+				out.writeString(answer);
+			}
+			out.flush();
+		}
+	}
+
+	/**
+	 * The service which answers a {@link BatchFetch} from a client.
+	 *
+	 * The client sends a request for every repository it wants to sync,
+	 * naming the refs it wants and the objects it has. Each request is
+	 * answered in turn with the matching refs and, when something
+	 * changed, a pack framed by {@link ChunkedOutputStream}. Only
+	 * repositories the client could list are served.
+	 *
+	 * A client which names the digest of the last refs it was sent is
+	 * answered with the digest of the current refs and, if we still
+	 * remember what the client has, only the refs which changed.
+	 *
+	 * @author nick &lt;palmer@cs.vu.nl&gt;
+	 *
+	 */
+	private final class SyncDaemonService extends SmartsocketsDaemonService {
 		{
 			setEnabled(true);
 			setOverridable(false);
@@ -140,8 +398,8 @@ public class SmartSocketsDaemon {
 		/**
 		 * Construct the service.
 		 */
-		private ListDaemonService() {
-			super("list-repos", "listrepos");
+		private SyncDaemonService() {
+			super(BatchFetch.SERVICE, "syncrepos");
 		}
 
 		@Override
@@ -149,51 +407,414 @@ public class SmartSocketsDaemon {
 				final String commandLine) throws IOException,
 				ServiceNotEnabledException,
 				ServiceNotAuthorizedException {
-			LOG.debug("List Repos Called");
-			PacketLineIn in = null;
-			PacketLineOut out = null;
 			final String email = commandLine.substring(
 					getCommandName().length() + 1);
-			LOG.debug("Listing repos for: {}", email);
-			try {
-				in = new PacketLineIn(dc.getInputStream());
-				out = new PacketLineOut(dc.getOutputStream());
-				List<Map<String, Object>> repositories =
-						((VdbRepositoryResolver<SmartSocketsDaemonClient>)
-								mRepositoryResolver).getRepositoryList(email);
-				for (int i = 0; i < repositories.size(); i++) {
-					Map<String, Object> repo = repositories.get(i);
-					if (Boolean.TRUE.equals(repo.get(
-							VdbProviderRegistry.REPOSITORY_IS_PUBLIC))
-							|| Boolean.TRUE.equals(repo.get(
-									VdbProviderRegistry.REPOSITORY_IS_PEER))) {
-						LOG.debug("Sending repo: {}", repo.get(
-								VdbProviderRegistry.REPOSITORY_NAME));
-						out.writeString((String) repo.get(
-								VdbProviderRegistry.REPOSITORY_NAME));
-						out.writeString(String.valueOf(repo.get(
-								VdbProviderRegistry.REPOSITORY_IS_PEER)));
-						out.writeString(String.valueOf(repo.get(
-								VdbProviderRegistry.REPOSITORY_IS_PUBLIC)));
+			LOG.debug("Sync requested by: {}", email);
+
+			Set<String> visible = getVisibleRepositories(email);
+
+			PacketLineIn in = new PacketLineIn(dc.getInputStream());
+			List<String> names = new ArrayList<String>();
+			List<List<String>> patterns = new ArrayList<List<String>>();
+			List<Set<ObjectId>> haves = new ArrayList<Set<ObjectId>>();
+			List<String> digests = new ArrayList<String>();
+			for (String line = in.readString();
+					!line.equals(PacketLineIn.END); line = in.readString()) {
+				names.add(line.substring(BatchFetch.REPO.length()));
+				List<String> fetch = new ArrayList<String>();
+				Set<ObjectId> have = new HashSet<ObjectId>();
+				String digest = null;
+				for (String req = in.readString();
+						!req.equals(PacketLineIn.END); req = in.readString()) {
+					if (req.startsWith(BatchFetch.FETCH)) {
+						fetch.add(req.substring(BatchFetch.FETCH.length()));
+					} else if (req.startsWith(BatchFetch.HAVE)) {
+						have.add(ObjectId.fromString(
+								req.substring(BatchFetch.HAVE.length())));
+					} else if (req.startsWith(BatchFetch.DIGEST)) {
+						digest = req.substring(BatchFetch.DIGEST.length());
 					}
 				}
-				out.end();
+				patterns.add(fetch);
+				haves.add(have);
+				digests.add(digest);
+			}
+
+			OutputStream rawOut = new BufferedOutputStream(
+					dc.getOutputStream());
+			PacketLineOut out = new PacketLineOut(rawOut);
+			for (int i = 0; i < names.size(); i++) {
+				String name = names.get(i);
+				Repository db = null;
+				if (visible.contains(name)) {
+					db = openRepository(dc, "/" + name);
+				}
+				if (db == null) {
+					out.writeString(BatchFetch.ERR + "not found: " + name);
+					continue;
+				}
+				try {
+					if (!getService("upload-pack").isEnabledFor(db)) {
+						out.writeString(BatchFetch.ERR
+								+ "not enabled: " + name);
+					} else if (!acquireRepository(name)) {
+						out.writeString(BatchFetch.ERR + "busy: " + name);
+					} else {
+						try {
+							sendRepository(db, name, patterns.get(i),
+									haves.get(i), digests.get(i), rawOut,
+									out);
+						} finally {
+							releaseRepository(name);
+						}
+					}
+				} finally {
+					db.close();
+				}
+			}
+			rawOut.flush();
+		}
+
+		/**
+		 * Answers the request for one repository.
+		 * @param db the repository
+		 * @param name the name of the repository
+		 * @param patterns the refs the client wants
+		 * @param haves the objects the client has
+		 * @param digest the digest of the refs the client was last sent,
+		 * or null if the client does not know about digests
+		 * @param rawOut the stream to the client
+		 * @param out the packet line stream to the client
+		 * @throws IOException if reading or writing fails
+		 */
+		private void sendRepository(final Repository db, final String name,
+				final List<String> patterns, final Set<ObjectId> haves,
+				final String digest, final OutputStream rawOut,
+				final PacketLineOut out) throws IOException {
+			out.writeString(BatchFetch.OK + name);
+			SortedMap<String, ObjectId> refs =
+					new TreeMap<String, ObjectId>();
+			Set<ObjectId> want = new HashSet<ObjectId>();
+			for (Ref ref : db.getAllRefs().values()) {
+				if (ref.getObjectId() == null
+						|| !matchesAny(ref.getName(), patterns)) {
+					continue;
+				}
+				refs.put(ref.getName(), ref.getObjectId());
+				if (!haves.contains(ref.getObjectId())) {
+					want.add(ref.getObjectId());
+				}
+			}
+			advertise(refs, digest, out);
+			out.end();
+
+			if (want.isEmpty()) {
+				out.writeString(BatchFetch.UP_TO_DATE);
+				return;
+			}
+
+			// Only objects we know about can be left out of the pack.
+			Set<ObjectId> common = new HashSet<ObjectId>();
+			for (ObjectId have : haves) {
+				if (db.hasObject(have)) {
+					common.add(have);
+				}
+			}
+			out.writeString(BatchFetch.PACK);
+			PackConfig config = getPackConfig();
+			if (config == null) {
+				config = VdbPackConfig.createForTransfer(db);
+			}
+			ChunkedOutputStream packOut = new ChunkedOutputStream(rawOut);
+			PackWriter writer = new PackWriter(config, db.newObjectReader());
+			try {
+				writer.preparePack(NullProgressMonitor.INSTANCE, want, common);
+				writer.writePack(NullProgressMonitor.INSTANCE,
+						NullProgressMonitor.INSTANCE, packOut);
 			} finally {
-				if (in != null) {
-					try {
-						dc.getInputStream().close();
-					} catch (IOException e) {
-						LOG.warn("Ignoring exception while closing.");
+				writer.release();
+			}
+			packOut.finish();
+			LOG.debug("Sent {} objects for {}", writer.getObjectCount(), name);
+		}
+
+		/**
+		 * Advertises refs to the client, only sending those which changed
+		 * if we remember the refs the client was last sent.
+		 * @param refs the refs to advertise
+		 * @param previous the digest of the refs the client was last
+		 * sent, or null if the client does not know about digests
+		 * @param out the packet line stream to the client
+		 * @throws IOException if writing fails
+		 */
+		private void advertise(final SortedMap<String, ObjectId> refs,
+				final String previous, final PacketLineOut out)
+						throws IOException {
+			Map<String, ObjectId> send = refs;
+			if (previous != null) {
+				String digest = RefAdvertisement.digest(refs);
+				SortedMap<String, ObjectId> base =
+						mAdvertisements.get(previous);
+				if (base != null) {
+					send = RefAdvertisement.delta(base, refs);
+					out.writeString(BatchFetch.DELTA + digest);
+				} else {
+					out.writeString(BatchFetch.DIGEST + digest);
+				}
+				mAdvertisements.put(digest, refs);
+			}
+			for (Map.Entry<String, ObjectId> ref : send.entrySet()) {
+				out.writeString(ref.getValue().name() + " " + ref.getKey());
+			}
+		}
+
+		/**
+		 * @param refName the name of a ref
+		 * @param patterns the ref names and wildcard patterns
+		 * @return true if any of the patterns match the ref
+		 */
+		private boolean matchesAny(final String refName,
+				final List<String> patterns) {
+			for (String pattern : patterns) {
+				if (pattern.endsWith("*")) {
+					if (refName.startsWith(pattern.substring(0,
+							pattern.length() - 1))) {
+						return true;
 					}
+				} else if (refName.equals(pattern)) {
+					return true;
 				}
-				if (out != null) {
-					try {
-						dc.getOutputStream().close();
-					} catch (IOException e) {
-						LOG.warn("Ignoring exception while closing.");
+			}
+			return false;
+		}
+
+		@Override
+		void execute(final SmartSocketsDaemonClient client,
+				final Repository db)
+				throws IOException, ServiceNotEnabledException,
+				ServiceNotAuthorizedException {
+			LOG.error("Got request for non-db enabled request.");
+		}
+	}
+
+	/**
+	 * The service which records subscriptions to the updates of
+	 * repositories. The client sends one line per repository with the
+	 * name of the repository here and the repository and remote the
+	 * updates are for on its side. Each line is answered with ok or ERR.
+	 * Only a client which is configured as a remote of a repository may
+	 * subscribe to it, since each subscription makes us connect to it.
+	 *
+	 * @author nick &lt;palmer@cs.vu.nl&gt;
+	 *
+	 */
+	private final class SubscribeDaemonService
+	extends SmartsocketsDaemonService {
+		{
+			setEnabled(true);
+			setOverridable(false);
+		}
+
+		/**
+		 * Construct the service.
+		 */
+		private SubscribeDaemonService() {
+			super(ChangeNotifier.SUBSCRIBE, "subscribe");
+		}
+
+		@Override
+		protected void execute(final SmartSocketsDaemonClient dc,
+				final String commandLine) throws IOException,
+				ServiceNotEnabledException,
+				ServiceNotAuthorizedException {
+			// The subscriber names itself and the name it knows us by.
+			final String[] names = commandLine.substring(
+					getCommandName().length() + 1).split(" ", 2);
+			final String email = names[0];
+			Set<String> peerOf = getPeerRepositories(email);
+
+			PacketLineIn in = new PacketLineIn(dc.getInputStream());
+			List<String> answers = new ArrayList<String>();
+			for (String line = in.readString();
+					!line.equals(PacketLineIn.END); line = in.readString()) {
+				String[] parts = line.split(" ", 3);
+				if (names.length != 2) {
+					answers.add(ChangeNotifier.ERR + "no peer name");
+					continue;
+				}
+				if (parts.length != 3 || !peerOf.contains(parts[0])) {
+					answers.add(ChangeNotifier.ERR + "not found: " + parts[0]);
+					continue;
+				}
+				if (ChangeNotifier.getInstance().addSubscriber(parts[0],
+						email, names[1], parts[1], parts[2])) {
+					answers.add(ChangeNotifier.OK + parts[0]);
+				} else {
+					answers.add(ChangeNotifier.ERR + "too many subscribers: "
+							+ parts[0]);
+				}
+			}
+
+			PacketLineOut out = new PacketLineOut(dc.getOutputStream());
+			for (String answer : answers) {
+				out.writeString(answer);
+			}
+			out.end();
+		}
+
+		@Override
+		void execute(final SmartSocketsDaemonClient client,
+				final Repository db)
+				throws IOException, ServiceNotEnabledException,
+				ServiceNotAuthorizedException {
+			LOG.error("Got request for non-db enabled request.");
+		}
+	}
+
+	/**
+	 * The service which receives updated refs announced by a peer we
+	 * subscribed to. The refs are handed to the {@link ChangeNotifier}
+	 * which fetches them in the background.
+	 *
+	 * @author nick &lt;palmer@cs.vu.nl&gt;
+	 *
+	 */
+	private final class NotifyDaemonService
+	extends SmartsocketsDaemonService {
+		{
+			setEnabled(true);
+			setOverridable(false);
+		}
+
+		/**
+		 * Construct the service.
+		 */
+		private NotifyDaemonService() {
+			super(ChangeNotifier.NOTIFY, "notify");
+		}
+
+		@Override
+		protected void execute(final SmartSocketsDaemonClient dc,
+				final String commandLine) throws IOException,
+				ServiceNotEnabledException,
+				ServiceNotAuthorizedException {
+			// The peer names itself as we subscribed to it.
+			String peer = null;
+			if (commandLine.length() > getCommandName().length() + 1) {
+				peer = commandLine.substring(getCommandName().length() + 1);
+			}
+			ChangeNotifier notifier = ChangeNotifier.getInstance();
+
+			PacketLineIn in = new PacketLineIn(dc.getInputStream());
+			List<String> answers = new ArrayList<String>();
+			for (String line = in.readString();
+					!line.equals(PacketLineIn.END); line = in.readString()) {
+				String[] target = null;
+				if (line.startsWith(ChangeNotifier.REPO)) {
+					target = line.substring(ChangeNotifier.REPO.length())
+							.split(" ", 2);
+				}
+				// The refs are read even for a bad target to stay in step.
+				Map<String, ObjectId> refs = new HashMap<String, ObjectId>();
+				boolean badRef = false;
+				for (String ref = in.readString();
+						!ref.equals(PacketLineIn.END); ref = in.readString()) {
+					int space = ref.indexOf(' ');
+					if (space != Constants.OBJECT_ID_STRING_LENGTH
+							|| space == ref.length() - 1
+							|| !ObjectId.isId(ref.substring(0, space))) {
+						badRef = true;
+					} else {
+						refs.put(ref.substring(space + 1),
+								ObjectId.fromString(ref.substring(0, space)));
 					}
 				}
+				if (target == null || target.length != 2) {
+					answers.add(ChangeNotifier.ERR + "bad line: " + line);
+				} else if (badRef) {
+					answers.add(ChangeNotifier.ERR + "bad ref for "
+							+ target[0]);
+				} else if (peer == null || !notifier.isSubscribed(peer,
+						target[0], target[1])) {
+					LOG.warn("Ignoring unsubscribed update of {} from {}",
+							target[0], peer);
+					answers.add(ChangeNotifier.ERR + "not subscribed: "
+							+ target[0]);
+				} else {
+					LOG.debug("Peer updated {} refs of {}", refs.size(),
+							target[0]);
+					notifier.deliver(target[0], target[1], refs);
+					answers.add(ChangeNotifier.OK + target[0]);
+				}
+			}
+
+			PacketLineOut out = new PacketLineOut(dc.getOutputStream());
+			for (String answer : answers) {
+				out.writeString(answer);
+			}
+			out.end();
+		}
+
+		@Override
+		void execute(final SmartSocketsDaemonClient client,
+				final Repository db)
+				throws IOException, ServiceNotEnabledException,
+				ServiceNotAuthorizedException {
+			LOG.error("Got request for non-db enabled request.");
+		}
+	}
+
+	/**
+	 * The service which lists repositories for clients.
+	 *
+	 * @author nick &lt;palmer@cs.vu.nl&gt;
+	 *
+	 */
+	private final class ListDaemonService extends SmartsocketsDaemonService {
+		{
+			setEnabled(true);
+			setOverridable(false);
+		}
+
+		/**
+		 * Construct the service.
+		 */
+		private ListDaemonService() {
+			super("list-repos", "listrepos");
+		}
+
+		@Override
+		protected void execute(final SmartSocketsDaemonClient dc,
+				final String commandLine) throws IOException,
+				ServiceNotEnabledException,
+				ServiceNotAuthorizedException {
+			LOG.debug("List Repos Called");
+			final String email = commandLine.substring(
+					getCommandName().length() + 1);
+			LOG.debug("Listing repos for: {}", email);
+			// The connection is closed by the client handler, which may
+			// keep it open for another service.
+			PacketLineOut out = new PacketLineOut(dc.getOutputStream());
+			List<Map<String, Object>> repositories =
+					((VdbRepositoryResolver<SmartSocketsDaemonClient>)
+							mRepositoryResolver).getRepositoryList(email);
+			for (int i = 0; i < repositories.size(); i++) {
+				Map<String, Object> repo = repositories.get(i);
+				if (Boolean.TRUE.equals(repo.get(
+						VdbProviderRegistry.REPOSITORY_IS_PUBLIC))
+						|| Boolean.TRUE.equals(repo.get(
+								VdbProviderRegistry.REPOSITORY_IS_PEER))) {
+					LOG.debug("Sending repo: {}", repo.get(
+							VdbProviderRegistry.REPOSITORY_NAME));
+					out.writeString((String) repo.get(
+							VdbProviderRegistry.REPOSITORY_NAME));
+					out.writeString(String.valueOf(repo.get(
+							VdbProviderRegistry.REPOSITORY_IS_PEER)));
+					out.writeString(String.valueOf(repo.get(
+							VdbProviderRegistry.REPOSITORY_IS_PUBLIC)));
+				}
 			}
+			out.end();
 		}
 
 		@Override
@@ -227,7 +848,11 @@ public class SmartSocketsDaemon {
 				ServiceNotAuthorizedException {
 			UploadPack up = new UploadPack(db);
 			up.setTimeout(getTimeout());
-			up.setPackConfig(getPackConfig());
+			if (getPackConfig() != null) {
+				up.setPackConfig(getPackConfig());
+			} else {
+				up.setPackConfig(VdbPackConfig.createForTransfer(db));
+			}
 			return up;
 		}
 	}
@@ -260,6 +885,29 @@ public class SmartSocketsDaemon {
 			rp.setRefLogIdent(new PersonIdent(name, email));
 			rp.setTimeout(getTimeout());
 
+			// Tell subscribed peers about what was pushed to us.
+			final String repositoryName = req.getRepositoryName();
+			if (repositoryName != null) {
+				rp.setPostReceiveHook(new PostReceiveHook() {
+					@Override
+					public void onPostReceive(final ReceivePack pack,
+							final Collection<ReceiveCommand> commands) {
+						Map<String, ObjectId> refs =
+								new HashMap<String, ObjectId>();
+						for (ReceiveCommand command : commands) {
+							if (command.getResult() == ReceiveCommand.Result.OK
+									&& command.getType()
+									!= ReceiveCommand.Type.DELETE) {
+								refs.put(command.getRefName(),
+										command.getNewId());
+							}
+						}
+						ChangeNotifier.getInstance().announce(
+								repositoryName, refs);
+					}
+				});
+			}
+
 			return rp;
 		}
 	}
@@ -276,6 +924,21 @@ public class SmartSocketsDaemon {
 	/** TCP socket backlog. */
 	private static final int BACKLOG = 5;
 
+	/** The default number of sessions serviced at once. */
+	public static final int DEFAULT_MAX_SESSIONS = 4;
+
+	/** The default number of sessions waiting for a worker. */
+	public static final int DEFAULT_MAX_QUEUED_SESSIONS = 16;
+
+	/** The default number of sessions serviced at once per repository. */
+	public static final int DEFAULT_MAX_REPOSITORY_SESSIONS = 2;
+
+	/** Seconds an idle worker is kept around. */
+	private static final int WORKER_KEEP_ALIVE = 60;
+
+	/** The number of ref advertisements remembered for sync clients. */
+	private static final int ADVERTISEMENT_CACHE_SIZE = 256;
+
 	/** The local address. */
 	private VirtualSocketAddress mLocalAddress;
 
@@ -285,6 +948,31 @@ public class SmartSocketsDaemon {
 	/** The processors handling requests. */
 	private final ThreadGroup mProcessors;
 
+	/** The workers servicing client sessions. */
+	private ThreadPoolExecutor mWorkers;
+
+	/** The number of sessions serviced at once. */
+	private int mMaxSessions = DEFAULT_MAX_SESSIONS;
+
+	/** The number of sessions waiting for a worker. */
+	private int mMaxQueuedSessions = DEFAULT_MAX_QUEUED_SESSIONS;
+
+	/** The number of sessions serviced at once per repository. */
+	private int mMaxRepositorySessions = DEFAULT_MAX_REPOSITORY_SESSIONS;
+
+	/** The permits for sessions on each repository. */
+	private final ConcurrentHashMap<String, Semaphore> mRepositoryPermits =
+			new ConcurrentHashMap<String, Semaphore>();
+
+	/** The number of sessions turned away. */
+	private final AtomicLong mRejectedSessions = new AtomicLong();
+
+	/**
+	 * The number of kept alive connections holding a worker while they
+	 * wait for their next command.
+	 */
+	private final AtomicInteger mIdleSessions = new AtomicInteger();
+
 	/** True if we are running. */
 	private boolean mRun;
 
@@ -294,9 +982,22 @@ public class SmartSocketsDaemon {
 	/** Socket timeout. */
 	private int mTimeout;
 
+	/** True if clients may ask for compressed connections. */
+	private volatile boolean mCompressionEnabled = true;
+
+	/** The size of the buffers of client connections. */
+	private volatile int mBufferSize = PeerConnectionPool.DEFAULT_BUFFER_SIZE;
+
 	/** The pack configuration for exchanging packs. */
 	private PackConfig mPackConfig;
 
+	/** The cache of generated packs, may be null. */
+	private volatile PackCache mPackCache;
+
+	/** The refs recently advertised to sync clients by digest. */
+	private final RefAdvertisement.Cache mAdvertisements =
+			new RefAdvertisement.Cache(ADVERTISEMENT_CACHE_SIZE);
+
 	/** The resolver which converts requests into repositories. */
 	private volatile RepositoryResolver<SmartSocketsDaemonClient>
 	mRepositoryResolver;
@@ -349,7 +1050,12 @@ public class SmartSocketsDaemon {
 
 		mServices = new SmartsocketsDaemonService[] {
 				new ListDaemonService(),
+				new SyncDaemonService(),
+				new SubscribeDaemonService(),
+				new NotifyDaemonService(),
 				new UploadDaemonService(),
+				new SnapshotDaemonService(),
+				new RowSyncDaemonService(),
 				new ReceiveDaemonService() };
 	}
 
@@ -399,6 +1105,137 @@ public class SmartSocketsDaemon {
 		mTimeout = seconds;
 	}
 
+	/** @return the number of sessions serviced at once. */
+	public final int getMaxSessions() {
+		return mMaxSessions;
+	}
+
+	/**
+	 * Set the number of sessions serviced at once. Takes effect when the
+	 * daemon is started.
+	 *
+	 * @param max
+	 *            the number of worker threads, at least one.
+	 */
+	public final void setMaxSessions(final int max) {
+		if (max < 1) {
+			throw new IllegalArgumentException("At least one session needed.");
+		}
+		mMaxSessions = max;
+	}
+
+	/** @return the number of sessions which may wait for a worker. */
+	public final int getMaxQueuedSessions() {
+		return mMaxQueuedSessions;
+	}
+
+	/**
+	 * Set the number of sessions which may wait for a worker. Connections
+	 * arriving when the queue is full are turned away. Takes effect when
+	 * the daemon is started.
+	 *
+	 * @param max
+	 *            the length of the queue, at least one.
+	 */
+	public final void setMaxQueuedSessions(final int max) {
+		if (max < 1) {
+			throw new IllegalArgumentException("Queue must hold a session.");
+		}
+		mMaxQueuedSessions = max;
+	}
+
+	/** @return the number of sessions serviced at once per repository. */
+	public final int getMaxRepositorySessions() {
+		return mMaxRepositorySessions;
+	}
+
+	/**
+	 * Set the number of sessions serviced at once for a single repository.
+	 * Takes effect for repositories which have not been served yet.
+	 *
+	 * @param max
+	 *            the number of sessions, at least one.
+	 */
+	public final void setMaxRepositorySessions(final int max) {
+		if (max < 1) {
+			throw new IllegalArgumentException("At least one session needed.");
+		}
+		mMaxRepositorySessions = max;
+	}
+
+	/** @return the number of sessions being serviced right now. */
+	public final synchronized int getActiveSessions() {
+		if (mWorkers == null) {
+			return 0;
+		}
+		return mWorkers.getActiveCount();
+	}
+
+	/** @return the number of sessions waiting for a worker. */
+	public final synchronized int getQueuedSessions() {
+		if (mWorkers == null) {
+			return 0;
+		}
+		return mWorkers.getQueue().size();
+	}
+
+	/** @return the number of sessions serviced since the daemon started. */
+	public final synchronized long getCompletedSessions() {
+		if (mWorkers == null) {
+			return 0;
+		}
+		return mWorkers.getCompletedTaskCount();
+	}
+
+	/** @return the number of sessions turned away since construction. */
+	public final long getRejectedSessions() {
+		return mRejectedSessions.get();
+	}
+
+	/**
+	 * @param name the name of the repository
+	 * @return the number of sessions being serviced for the repository.
+	 */
+	public final int getRepositorySessions(final String name) {
+		Semaphore permits = mRepositoryPermits.get(permitKey(name));
+		if (permits == null) {
+			return 0;
+		}
+		return mMaxRepositorySessions - permits.availablePermits();
+	}
+
+	/** @return true if clients may ask for compressed connections. */
+	public final boolean isCompressionEnabled() {
+		return mCompressionEnabled;
+	}
+
+	/**
+	 * Sets if clients may ask for compressed connections. A client which
+	 * asks is told it was refused and continues uncompressed.
+	 * @param enabled true to allow compression
+	 */
+	public final void setCompressionEnabled(final boolean enabled) {
+		mCompressionEnabled = enabled;
+	}
+
+	/** @return the size of the buffers of client connections. */
+	public final int getBufferSize() {
+		return mBufferSize;
+	}
+
+	/**
+	 * Sets the size of the buffers of new client connections, which is
+	 * also the largest compressed frame sent.
+	 * @param bufferSize the size in bytes
+	 */
+	public final void setBufferSize(final int bufferSize) {
+		if (bufferSize <= 0 || bufferSize > DeflateOutputStream.MAX_FRAME) {
+			throw new IllegalArgumentException("Invalid buffer size: "
+					+ bufferSize);
+		}
+		mBufferSize = bufferSize;
+	}
+
 	/** @return configuration controlling packing, may be null. */
 	public final PackConfig getPackConfig() {
 		return mPackConfig;
@@ -415,6 +1252,21 @@ public class SmartSocketsDaemon {
 		this.mPackConfig = pc;
 	}
 
+	/** @return the cache of generated packs, may be null. */
+	public final PackCache getPackCache() {
+		return mPackCache;
+	}
+
+	/**
+	 * Set the cache used for generated packs which many clients ask for.
+	 *
+	 * @param cache
+	 *            the cache. If null packs are built for every request.
+	 */
+	public final void setPackCache(final PackCache cache) {
+		mPackCache = cache;
+	}
+
 	/**
 	 * Set the resolver used to locate a repository by name.
 	 *
@@ -477,6 +1329,9 @@ public class SmartSocketsDaemon {
 					JGitText.get().daemonAlreadyRunning);
 		}
 
+		// Pushes of large databases must not be read into memory whole.
+		VdbPackConfig.configureWindowCache();
+
 		// Start the resolver if it isn't already running.
 		mResolver = SmartSocketsTransport.getResolver();
 		mSocketFactory = mResolver.getSocketFactory();
@@ -491,6 +1346,20 @@ public class SmartSocketsDaemon {
 		}
 		mLocalAddress = mListenSock.getLocalSocketAddress();
 
+		mWorkers = new ThreadPoolExecutor(mMaxSessions, mMaxSessions,
+				WORKER_KEEP_ALIVE, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(mMaxQueuedSessions),
+				new ThreadFactory() {
+			private final AtomicInteger mCount = new AtomicInteger();
+
+			@Override
+			public Thread newThread(final Runnable r) {
+				return new Thread(mProcessors, r,
+						"Git-Daemon-Worker-" + mCount.incrementAndGet());
+			}
+		});
+		mWorkers.allowCoreThreadTimeOut(true);
+
 		mRun = true;
 		mAcceptThread = new Thread(mProcessors, "Git-Daemon-Accept") {
 			public void run() {
@@ -526,6 +1395,7 @@ public class SmartSocketsDaemon {
 	/** Stop this daemon. */
 	public final synchronized void stop() {
 		LOG.info("Stopping SmartSocketsDaemon.");
+		PeerConnectionPool.getInstance().closeAll();
 		NameResolver.closeAllResolvers();
 		if (mAcceptThread != null) {
 			synchronized (this) {
@@ -548,10 +1418,16 @@ public class SmartSocketsDaemon {
 			LOG.debug("Joined accept thread.");
 			mAcceptThread = null;
 		}
+		if (mWorkers != null) {
+			// Sessions in progress are allowed to finish.
+			mWorkers.shutdown();
+			mWorkers = null;
+		}
 	}
 
 	/**
-	 * Start a client handler on the given socket.
+	 * Start a client handler on the given socket. The session is queued
+	 * for a worker, or turned away if the queue is full.
 	 * @param virtualSocket the virtual socket for this client.
 	 */
 	private void startClient(final VirtualSocket virtualSocket) {
@@ -561,7 +1437,7 @@ public class SmartSocketsDaemon {
 		final SocketAddress peer = virtualSocket.getRemoteSocketAddress();
 		dc.setRemoteAddress(peer);
 
-		new Thread(mProcessors, "Git-Daemon-Client " + peer.toString()) {
+		Runnable session = new Runnable() {
 			public void run() {
 				try {
 					LOG.debug("Executing client request:{}", dc);
@@ -570,30 +1446,193 @@ public class SmartSocketsDaemon {
 				} catch (Exception e) {
 					LOG.warn("Exception while servicing client ignored.", e);
 				} finally {
-					LOG.debug("Closing streams");
-					try {
-						virtualSocket.getInputStream().close();
-					} catch (IOException e) {
-						LOG.warn("Exception while closing input stream: ", e);
-					}
-					try {
-						virtualSocket.getOutputStream().close();
-					} catch (IOException e) {
-						LOG.warn("Exception while closing output stream: ", e);
-					}
-					LOG.debug("Closing socket.");
-					try {
-						virtualSocket.close();
-					} catch (IOException e) {
-						LOG.warn("Ignored while closing socket",
-								e);
-					}
+					closeClient(virtualSocket);
 				}
-				LOG.debug("Thread is complete.");
+				LOG.debug("Session is complete.");
+			}
+		};
+
+		ThreadPoolExecutor workers;
+		synchronized (this) {
+			workers = mWorkers;
+		}
+		try {
+			if (workers == null) {
+				throw new RejectedExecutionException("Daemon stopped.");
+			}
+			workers.execute(session);
+			LOG.debug("Queued client session.");
+		} catch (RejectedExecutionException e) {
+			mRejectedSessions.incrementAndGet();
+			LOG.warn("Turning away {}: too many sessions.", peer);
+			try {
+				sendError(virtualSocket.getOutputStream(),
+						"server busy, " + RetryPolicy.TRY_AGAIN);
+			} catch (IOException err) {
+				LOG.debug("Ignored while refusing client.", err);
+			}
+			closeClient(virtualSocket);
+		}
+	}
+
+	/**
+	 * Closes the streams and socket for a client.
+	 * @param virtualSocket the socket to close
+	 */
+	private void closeClient(final VirtualSocket virtualSocket) {
+		LOG.debug("Closing streams");
+		try {
+			virtualSocket.getInputStream().close();
+		} catch (IOException e) {
+			LOG.warn("Exception while closing input stream: ", e);
+		}
+		try {
+			virtualSocket.getOutputStream().close();
+		} catch (IOException e) {
+			LOG.warn("Exception while closing output stream: ", e);
+		}
+		LOG.debug("Closing socket.");
+		try {
+			virtualSocket.close();
+		} catch (IOException e) {
+			LOG.warn("Ignored while closing socket",
+					e);
+		}
+	}
+
+	/**
+	 * Sends an error line which git clients report to the user.
+	 * @param out the stream to the client
+	 * @param message the message to send
+	 * @throws IOException if writing fails
+	 */
+	static void sendError(final OutputStream out, final String message)
+			throws IOException {
+		PacketLineOut pckOut = new PacketLineOut(out);
+		pckOut.writeString("ERR " + message + "\n");
+		pckOut.flush();
+	}
+
+	/**
+	 * Takes a session slot on the given repository if one is free. This
+	 * does not wait, since a waiting session would hold a worker other
+	 * clients need; a busy repository is answered as busy instead.
+	 * @param name the name of the repository
+	 * @return true if a slot was acquired and must be released with
+	 * {@link #releaseRepository(String)}.
+	 */
+	final boolean acquireRepository(final String name) {
+		String key = permitKey(name);
+		Semaphore permits = mRepositoryPermits.get(key);
+		if (permits == null) {
+			Semaphore created = new Semaphore(mMaxRepositorySessions, true);
+			permits = mRepositoryPermits.putIfAbsent(key, created);
+			if (permits == null) {
+				permits = created;
+			}
+		}
+		return permits.tryAcquire();
+	}
+
+	/**
+	 * Lets a kept alive connection hold its worker while it waits for the
+	 * next command. At most half the workers wait like this, and none do
+	 * while sessions are queued, so idle peers can not starve busy ones.
+	 * @return true if the connection may wait, in which case
+	 * {@link #endIdle()} must be called once it is done waiting
+	 */
+	final boolean startIdle() {
+		ThreadPoolExecutor workers;
+		synchronized (this) {
+			workers = mWorkers;
+		}
+		if (workers == null || !workers.getQueue().isEmpty()) {
+			return false;
+		}
+		for (;;) {
+			int idle = mIdleSessions.get();
+			if (idle >= workers.getMaximumPoolSize() / 2) {
+				return false;
+			}
+			if (mIdleSessions.compareAndSet(idle, idle + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Ends a wait allowed by {@link #startIdle()}.
+	 */
+	final void endIdle() {
+		mIdleSessions.decrementAndGet();
+	}
+
+	/**
+	 * Releases a session slot on the given repository.
+	 * @param name the name of the repository
+	 */
+	final void releaseRepository(final String name) {
+		Semaphore permits = mRepositoryPermits.get(permitKey(name));
+		if (permits != null) {
+			permits.release();
+		}
+	}
+
+	/**
+	 * Services give repository names with or without a leading slash and
+	 * both have to share the same session slots.
+	 * @param name the name of the repository
+	 * @return the name without leading slashes
+	 */
+	private static String permitKey(final String name) {
+		int start = 0;
+		while (start < name.length() && name.charAt(start) == '/') {
+			start++;
+		}
+		return name.substring(start);
+	}
+
+	/**
+	 * @param email the email of a client
+	 * @return the names of the repositories the client may see.
+	 * @throws IOException if reading the repositories fails
+	 */
+	private Set<String> getVisibleRepositories(final String email)
+			throws IOException {
+		Set<String> visible = new HashSet<String>();
+		for (Map<String, Object> repo
+				: ((VdbRepositoryResolver<SmartSocketsDaemonClient>)
+						mRepositoryResolver).getRepositoryList(email)) {
+			if (Boolean.TRUE.equals(repo.get(
+					VdbProviderRegistry.REPOSITORY_IS_PUBLIC))
+					|| Boolean.TRUE.equals(repo.get(
+							VdbProviderRegistry.REPOSITORY_IS_PEER))) {
+				visible.add((String) repo.get(
+						VdbProviderRegistry.REPOSITORY_NAME));
+			}
+		}
+		return visible;
+	}
+
+	/**
+	 * @param email the email of a client
+	 * @return the names of the repositories which have the client as a
+	 * remote.
+	 * @throws IOException if reading the repositories fails
+	 */
+	private Set<String> getPeerRepositories(final String email)
+			throws IOException {
+		Set<String> peerOf = new HashSet<String>();
+		for (Map<String, Object> repo
+				: ((VdbRepositoryResolver<SmartSocketsDaemonClient>)
+						mRepositoryResolver).getRepositoryList(email)) {
+			if (Boolean.TRUE.equals(repo.get(
+					VdbProviderRegistry.REPOSITORY_IS_PEER))) {
+				peerOf.add((String) repo.get(
+						VdbProviderRegistry.REPOSITORY_NAME));
 			}
 		}
-		.start();
-		LOG.debug("Launched client thread.");
+		return peerOf;
 	}
 
 	/**
@@ -32,12 +32,15 @@ package interdroid.vdb.transport;
 
 import ibis.smartsockets.virtual.VirtualSocket;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.SocketAddress;
 
 import org.eclipse.jgit.transport.PacketLineIn;
+import org.eclipse.jgit.transport.PacketLineOut;
 import org.eclipse.jgit.transport.resolver.ServiceNotAuthorizedException;
 import org.eclipse.jgit.transport.resolver.ServiceNotEnabledException;
 import org.slf4j.Logger;
@@ -54,6 +57,35 @@ public final class SmartSocketsDaemonClient {
 	/** Number of millis in a second.*/
 	private static final int MILLIS_PER_SECOND = 1000;
 
+	/**
+	 * Sent by clients after the host header to keep the connection open
+	 * once the service is done.
+	 */
+	static final String KEEP_ALIVE = "keep-alive";
+
+	/**
+	 * Sent to kept alive clients once a service is done.
+	 */
+	static final String READY = "ready";
+
+	/**
+	 * Sent by clients after the host header to ask for the rest of the
+	 * connection to be compressed. The daemon confirms by sending it back
+	 * before anything else, or refuses with {@link #NO_DEFLATE}.
+	 */
+	static final String DEFLATE = "deflate";
+
+	/**
+	 * Sent in answer to {@link #DEFLATE} when the daemon does not
+	 * compress, so the client does not wait for a confirmation.
+	 */
+	static final String NO_DEFLATE = "no-deflate";
+
+	/**
+	 * Milliseconds a kept alive connection may be idle.
+	 */
+	static final int KEEP_ALIVE_TIMEOUT = 20 * MILLIS_PER_SECOND;
+
 	/**
 	 * The daemon we are working for.
 	 */
@@ -74,6 +106,17 @@ public final class SmartSocketsDaemonClient {
 	 */
 	private OutputStream rawOut;
 
+	/**
+	 * The name of the repository the current service works on.
+	 */
+	private String repositoryName;
+
+	/**
+	 * True while the connection holds its worker waiting for the next
+	 * command, as allowed by {@link SmartSocketsDaemon#startIdle()}.
+	 */
+	private boolean idle;
+
 	/**
 	 * Construct a new client.
 	 * @param d the daemon the client works for.
@@ -100,6 +143,22 @@ public final class SmartSocketsDaemonClient {
 		return peer;
 	}
 
+	/**
+	 * Set the repository the current service works on.
+	 * @param name the name of the repository
+	 */
+	void setRepositoryName(final String name) {
+		repositoryName = name;
+	}
+
+	/**
+	 * @return the name of the repository the current service works on,
+	 * null if it does not work on a repository.
+	 */
+	public String getRepositoryName() {
+		return repositoryName;
+	}
+
 	/** @return input stream to read from the connected client. */
 	public InputStream getInputStream() {
 		return rawIn;
@@ -111,7 +170,10 @@ public final class SmartSocketsDaemonClient {
 	}
 
 	/**
-	 * Execute the client service.
+	 * Execute the client service. Clients which ask for it may run
+	 * several services one after the other on the same connection. After
+	 * each of those we send {@link #READY} so the client knows everything
+	 * belonging to the service has been read.
 	 * @param virtualSocket the virtual socket to talk with
 	 * @throws IOException if reading or writing to the socket fails
 	 * @throws ServiceNotEnabledException if the service is not enabled
@@ -120,33 +182,160 @@ public final class SmartSocketsDaemonClient {
 	void execute(final VirtualSocket virtualSocket) throws IOException,
 			ServiceNotEnabledException, ServiceNotAuthorizedException {
 		LOG.debug("Building streams.");
-		rawIn = virtualSocket.getInputStream();
-		rawOut = virtualSocket.getOutputStream();
-
-		LOG.debug("Setting socket timeout.");
-		if (0 < daemon.getTimeout()) {
-			virtualSocket.setSoTimeout(daemon.getTimeout() * MILLIS_PER_SECOND);
+		rawIn = new BufferedInputStream(virtualSocket.getInputStream(),
+				daemon.getBufferSize());
+		rawOut = new BufferedOutputStream(virtualSocket.getOutputStream(),
+				daemon.getBufferSize());
+		try {
+			executeServices(virtualSocket);
+		} finally {
+			endIdle();
+			releaseStreams();
 		}
-		LOG.debug("Reading string.");
-		String cmd = new PacketLineIn(rawIn).readStringRaw();
-		LOG.debug("Command is: {}", cmd);
-
-		final int nul = cmd.indexOf('\0');
-		if (nul >= 0) {
-			// Newer clients hide a "host" header behind this byte.
-			// Currently we don't use it for anything, so we ignore
-			// this portion of the command.
-			//
-			cmd = cmd.substring(0, nul);
+	}
+
+	/**
+	 * Runs the services the client asks for.
+	 * @param virtualSocket the virtual socket to talk with
+	 * @throws IOException if reading or writing to the socket fails
+	 * @throws ServiceNotEnabledException if the service is not enabled
+	 * @throws ServiceNotAuthorizedException if the user is not authorized
+	 */
+	private void executeServices(final VirtualSocket virtualSocket)
+			throws IOException, ServiceNotEnabledException,
+			ServiceNotAuthorizedException {
+		boolean compressed = false;
+
+		boolean keepAlive = false;
+		do {
+			LOG.debug("Setting socket timeout.");
+			if (keepAlive) {
+				virtualSocket.setSoTimeout(KEEP_ALIVE_TIMEOUT);
+			} else if (0 < daemon.getTimeout()) {
+				virtualSocket.setSoTimeout(
+						daemon.getTimeout() * MILLIS_PER_SECOND);
+			}
+			LOG.debug("Reading string.");
+			String cmd;
+			try {
+				cmd = readCommand();
+			} catch (IOException e) {
+				if (keepAlive) {
+					// The client went away or stayed idle too long.
+					LOG.debug("Kept alive connection done: {}",
+							e.getMessage());
+					return;
+				}
+				throw e;
+			} finally {
+				endIdle();
+			}
+			LOG.debug("Command is: {}", cmd);
+
+			keepAlive = false;
+			boolean deflate = false;
+			final int nul = cmd.indexOf('\0');
+			if (nul >= 0) {
+				// Newer clients hide a "host" header behind this byte.
+				// We only look for the requests to keep the connection
+				// open and to compress it, the rest is ignored.
+				//
+				for (String extra : cmd.substring(nul + 1).split("\0")) {
+					if (KEEP_ALIVE.equals(extra)) {
+						keepAlive = true;
+					} else if (DEFLATE.equals(extra)) {
+						deflate = true;
+					}
+				}
+				cmd = cmd.substring(0, nul);
+			}
+
+			// The client waits for an answer before it goes on, so a
+			// request to compress is always answered.
+			if (deflate && !compressed) {
+				PacketLineOut out = new PacketLineOut(rawOut);
+				if (daemon.isCompressionEnabled()) {
+					out.writeString(DEFLATE);
+					out.flush();
+					rawIn = new InflateInputStream(rawIn);
+					rawOut = new DeflateOutputStream(rawOut,
+							daemon.getBufferSize());
+					compressed = true;
+				} else {
+					out.writeString(NO_DEFLATE);
+					out.flush();
+				}
+			}
+
+			final SmartsocketsDaemonService srv =
+					getDaemon().matchService(cmd);
+			LOG.debug("Servicing with: {}", srv);
+			if (srv == null) {
+				return;
+			}
+			virtualSocket.setSoTimeout(0);
+			srv.execute(this, cmd);
+			rawOut.flush();
+			LOG.debug("Executed service.");
+
+			if (keepAlive) {
+				// Without a ready the client does not reuse the connection.
+				if (!daemon.startIdle()) {
+					LOG.debug("Too many idle connections, closing.");
+					return;
+				}
+				idle = true;
+				PacketLineOut out = new PacketLineOut(rawOut);
+				out.writeString(READY);
+				out.flush();
+			}
+		} while (keepAlive && daemon.isRunning());
+	}
+
+	/**
+	 * Gives back the permission to wait for the next command, if held.
+	 */
+	private void endIdle() {
+		if (idle) {
+			daemon.endIdle();
+			idle = false;
 		}
+	}
 
-		final SmartsocketsDaemonService srv = getDaemon().matchService(cmd);
-		LOG.debug("Servicing with: {}", srv);
-		if (srv == null) {
-			return;
+	/**
+	 * Closes the streams of a compressed connection so the native memory
+	 * of the compressor and decompressor is freed. The socket is closed
+	 * by the daemon.
+	 */
+	private void releaseStreams() {
+		if (rawOut instanceof DeflateOutputStream) {
+			try {
+				rawOut.close();
+			} catch (IOException e) {
+				LOG.debug("Ignored while closing: {}", e.getMessage());
+			}
+		}
+		if (rawIn instanceof InflateInputStream) {
+			try {
+				rawIn.close();
+			} catch (IOException e) {
+				LOG.debug("Ignored while closing: {}", e.getMessage());
+			}
 		}
-		virtualSocket.setSoTimeout(0);
-		srv.execute(this, cmd);
-		LOG.debug("Executed service.");
+	}
+
+	/**
+	 * Reads the next command, skipping flush packets a previous service on
+	 * this connection left behind.
+	 * @return the command line
+	 * @throws IOException if reading fails
+	 */
+	private String readCommand() throws IOException {
+		PacketLineIn in = new PacketLineIn(rawIn);
+		String cmd;
+		do {
+			cmd = in.readStringRaw();
+		} while (cmd.length() == 0);
+		return cmd;
 	}
 }
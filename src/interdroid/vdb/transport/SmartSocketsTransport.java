@@ -35,16 +35,22 @@ import ibis.smartsockets.naming.NameResolver;
 import ibis.smartsockets.util.MalformedAddressException;
 import ibis.smartsockets.virtual.InitializationException;
 import ibis.smartsockets.virtual.VirtualSocket;
-import ibis.smartsockets.virtual.VirtualSocketAddress;
 import interdroid.vdb.content.VdbProviderRegistry;
+import interdroid.vdb.transport.PeerConnectionPool.PeerConnection;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
@@ -55,15 +61,26 @@ import java.util.Set;
 
 import org.eclipse.jgit.JGitText;
 import org.eclipse.jgit.errors.NotSupportedException;
+import org.eclipse.jgit.errors.PackProtocolException;
+import org.eclipse.jgit.errors.RemoteRepositoryException;
 import org.eclipse.jgit.errors.TransportException;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.ProgressMonitor;
+import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.storage.file.PackLock;
 import org.eclipse.jgit.transport.BasePackFetchConnection;
 import org.eclipse.jgit.transport.BasePackPushConnection;
 import org.eclipse.jgit.transport.FetchConnection;
+import org.eclipse.jgit.transport.PackParser;
 import org.eclipse.jgit.transport.PackTransport;
 import org.eclipse.jgit.transport.PacketLineIn;
 import org.eclipse.jgit.transport.PacketLineOut;
 import org.eclipse.jgit.transport.PushConnection;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
 import org.eclipse.jgit.transport.TcpTransport;
 import org.eclipse.jgit.transport.Transport;
 import org.eclipse.jgit.transport.TransportProtocol;
@@ -146,7 +163,29 @@ implements PackTransport {
 
 	// TODO: This should come from a property or something
 	/** The timeout for connections. */
-	private static final int TIMEOUT = 1000 * 30;
+	static final int TIMEOUT = 1000 * 30;
+
+	/** Number of millis in a second. */
+	private static final int MILLIS_PER_SECOND = 1000;
+
+	/** The service which receives commits as changed rows. */
+	static final String ROW_SYNC = "git-row-sync";
+
+	/** Tells a client of the row sync service to send the rows. */
+	static final String ROW_SYNC_READY = "ready";
+
+	/** Starts the answer of the row sync service to the rows sent. */
+	static final String ROW_SYNC_OK = "ok ";
+
+	/** The prefix of files snapshot packs are spooled to. */
+	private static final String SPOOL_PREFIX = "snapshot_";
+
+	/** The length of the header of a spool file: commit, tree, newline. */
+	private static final int SPOOL_HEADER_LENGTH =
+			2 * Constants.OBJECT_ID_STRING_LENGTH + 2;
+
+	/** The size of the buffer used to spool packs. */
+	private static final int SPOOL_BUFFER_SIZE = 8192;
 
 	/**
 	 * Construct a transport for the given repository and URI.
@@ -200,18 +239,7 @@ implements PackTransport {
 			throws IOException,
 			InitializationException {
 		LOG.debug("Opening connection to: {} {}", uri, timeout);
-		LOG.debug("Resolving: {}@{}", uri.getUser(), uri.getHost());
-		NameResolver resolver = getResolver();
-		VirtualSocketAddress otherSide = resolver.resolve(
-				uri.getUser() + "@" + uri.getHost(), timeout);
-		LOG.debug("Other side is: {}", otherSide);
-		if (otherSide == null) {
-			throw new IOException("Unable to resolve host: "
-					+ uri.getUser() + "@" + uri.getHost());
-		}
-		VirtualSocket s = resolver.getSocketFactory()
-				.createClientSocket(otherSide, timeout, null);
-		return s;
+		return PeerConnectionPool.getInstance().connect(uri, timeout);
 	}
 
 	/**
@@ -222,6 +250,31 @@ implements PackTransport {
 	 */
 	final void service(final String name, final PacketLineOut pckOut)
 			throws IOException {
+		service(name, pckOut, false);
+	}
+
+	/**
+	 * Request the given service.
+	 * @param name the name of the service to connect
+	 * @param pckOut the packet line out to send with
+	 * @param keepAlive true to ask the daemon to keep the connection open
+	 * once the service is done
+	 * @throws IOException if reading or writing fails.
+	 */
+	final void service(final String name, final PacketLineOut pckOut,
+			final boolean keepAlive) throws IOException {
+		pckOut.writeString(serviceCommand(name, keepAlive));
+		pckOut.flush();
+	}
+
+	/**
+	 * Builds the command line requesting the given service.
+	 * @param name the name of the service to connect
+	 * @param keepAlive true to ask the daemon to keep the connection open
+	 * once the service is done
+	 * @return the command line
+	 */
+	final String serviceCommand(final String name, final boolean keepAlive) {
 		final StringBuilder cmd = new StringBuilder();
 		cmd.append(name);
 		cmd.append(' ');
@@ -236,8 +289,348 @@ implements PackTransport {
 			cmd.append(uri.getPort());
 		}
 		cmd.append('\0');
-		pckOut.writeString(cmd.toString());
-		pckOut.flush();
+		if (keepAlive) {
+			cmd.append(SmartSocketsDaemonClient.KEEP_ALIVE);
+			cmd.append('\0');
+		}
+		return cmd.toString();
+	}
+
+	/**
+	 * The current state of a remote branch as fetched by
+	 * {@link SmartSocketsTransport#fetchSnapshot(String, ProgressMonitor)}.
+	 *
+	 * @author nick &lt;palmer@cs.vu.nl&gt;
+	 *
+	 */
+	public static final class Snapshot {
+		/** The commit at the tip of the remote branch. */
+		private final ObjectId mCommitId;
+		/** The tree of that commit. */
+		private final ObjectId mTreeId;
+
+		/**
+		 * Construct a snapshot.
+		 * @param commitId the commit at the tip of the remote branch
+		 * @param treeId the tree of the commit
+		 */
+		private Snapshot(final ObjectId commitId, final ObjectId treeId) {
+			mCommitId = commitId;
+			mTreeId = treeId;
+		}
+
+		/**
+		 * @return the commit at the tip of the remote branch. This commit
+		 * is not available locally.
+		 */
+		public ObjectId getCommitId() {
+			return mCommitId;
+		}
+
+		/**
+		 * @return the tree of the remote commit, which is available locally.
+		 */
+		public ObjectId getTreeId() {
+			return mTreeId;
+		}
+	}
+
+	/**
+	 * Fetches the tree at the tip of a remote branch without any of the
+	 * history of the branch. The objects are inserted into the local
+	 * repository but no references are updated.
+	 *
+	 * The pack is spooled to disk as it arrives. If the connection drops,
+	 * the spooled part is kept and the next call for the same branch asks
+	 * the remote to send just the rest, so callers should simply retry.
+	 *
+	 * @param branchName the name of the branch on the remote
+	 * @param monitor the monitor to report progress to
+	 * @return the snapshot which was fetched
+	 * @throws IOException if reading or writing fails
+	 */
+	public final Snapshot fetchSnapshot(final String branchName,
+			final ProgressMonitor monitor) throws IOException {
+		File spool = new File(local.getDirectory(), SPOOL_PREFIX
+				+ ObjectId.fromRaw(Constants.newMessageDigest().digest(
+						Constants.encode(uri.toString() + " " + branchName)))
+						.name());
+		Snapshot spooled = readSpoolHeader(spool);
+		long offset = 0;
+		if (spooled != null) {
+			offset = spool.length() - SPOOL_HEADER_LENGTH;
+		}
+
+		VirtualSocket sock;
+		try {
+			sock = openConnection(uri, getConnectTimeout());
+		} catch (InitializationException e) {
+			throw new TransportException(uri, "Unable to open socket.", e);
+		}
+		Snapshot snapshot;
+		try {
+			if (getTimeout() > 0) {
+				sock.setSoTimeout(getConnectTimeout());
+			}
+			InputStream sIn = new BufferedInputStream(sock.getInputStream());
+			OutputStream sOut = new BufferedOutputStream(
+					sock.getOutputStream());
+			PacketLineOut out = new PacketLineOut(sOut);
+			service("git-snapshot-pack", out);
+			if (spooled != null) {
+				out.writeString(branchName + " " + spooled.getTreeId().name()
+						+ " " + offset);
+			} else {
+				out.writeString(branchName);
+			}
+			out.flush();
+
+			String header;
+			try {
+				header = new PacketLineIn(sIn).readString();
+			} catch (IOException err) {
+				throw new TransportException(uri,
+						JGitText.get().remoteHungUpUnexpectedly, err);
+			}
+			if (header.startsWith("ERR ")) {
+				deleteSpool(spool);
+				throw new RemoteRepositoryException(uri, header.substring(4));
+			}
+			String[] fields = header.split(" ");
+			if (fields.length < 2 || fields.length > 3
+					|| fields[0].length() != Constants.OBJECT_ID_STRING_LENGTH
+					|| fields[1].length()
+					!= Constants.OBJECT_ID_STRING_LENGTH) {
+				throw new PackProtocolException(uri,
+						"Invalid snapshot header: " + header);
+			}
+			snapshot = new Snapshot(ObjectId.fromString(fields[0]),
+					ObjectId.fromString(fields[1]));
+
+			boolean resume = spooled != null && fields.length == 3
+					&& fields[2].equals(String.valueOf(offset))
+					&& spooled.getTreeId().equals(snapshot.getTreeId());
+			if (!resume) {
+				offset = 0;
+			}
+			LOG.debug("Spooling snapshot of {} from {}", branchName, offset);
+			spool(spool, snapshot, resume, sIn);
+		} finally {
+			sock.close();
+		}
+
+		ObjectInserter inserter = local.newObjectInserter();
+		try {
+			InputStream packIn = new FileInputStream(spool);
+			try {
+				if (packIn.skip(SPOOL_HEADER_LENGTH) != SPOOL_HEADER_LENGTH) {
+					throw new EOFException();
+				}
+				PackParser parser = inserter.newPackParser(
+						new BufferedInputStream(packIn));
+				parser.setAllowThin(false);
+				PackLock lock = parser.parse(monitor);
+				inserter.flush();
+				if (lock != null) {
+					lock.unlock();
+				}
+			} finally {
+				packIn.close();
+			}
+		} catch (EOFException e) {
+			// The connection dropped before the whole pack was here.
+			throw new TransportException(uri,
+					JGitText.get().remoteHungUpUnexpectedly, e);
+		} catch (IOException e) {
+			// The spooled pack is bad, start over next time.
+			deleteSpool(spool);
+			throw e;
+		} finally {
+			inserter.release();
+		}
+		deleteSpool(spool);
+		LOG.debug("Fetched snapshot of {} at {}", branchName,
+				snapshot.getCommitId());
+		return snapshot;
+	}
+
+	/**
+	 * Writes the pack arriving from the remote to the spool file.
+	 * @param spool the spool file
+	 * @param snapshot the snapshot being fetched
+	 * @param append true to add to the data already spooled
+	 * @param in the stream from the remote
+	 * @throws IOException if writing fails
+	 */
+	private void spool(final File spool, final Snapshot snapshot,
+			final boolean append, final InputStream in) throws IOException {
+		OutputStream out = new FileOutputStream(spool, append);
+		try {
+			if (!append) {
+				out.write(Constants.encode(snapshot.getCommitId().name() + " "
+						+ snapshot.getTreeId().name() + "\n"));
+			}
+			byte[] buf = new byte[SPOOL_BUFFER_SIZE];
+			int read;
+			try {
+				while ((read = in.read(buf)) > 0) {
+					out.write(buf, 0, read);
+				}
+			} catch (IOException e) {
+				// Whatever arrived is kept for the next attempt. A short
+				// pack is caught when it is parsed.
+				LOG.debug("Snapshot transfer interrupted: {}", e.getMessage());
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads the snapshot a spool file belongs to.
+	 * @param spool the spool file
+	 * @return the snapshot, or null if there is no usable spool file
+	 */
+	private static Snapshot readSpoolHeader(final File spool) {
+		if (spool.length() <= SPOOL_HEADER_LENGTH) {
+			return null;
+		}
+		byte[] header = new byte[SPOOL_HEADER_LENGTH];
+		try {
+			DataInputStream in = new DataInputStream(
+					new FileInputStream(spool));
+			try {
+				in.readFully(header);
+			} finally {
+				in.close();
+			}
+			return new Snapshot(ObjectId.fromString(header, 0),
+					ObjectId.fromString(header,
+							Constants.OBJECT_ID_STRING_LENGTH + 1));
+		} catch (IOException e) {
+			LOG.debug("Ignoring unreadable spool: {}", spool);
+		} catch (IllegalArgumentException e) {
+			LOG.debug("Ignoring corrupt spool: {}", spool);
+		}
+		return null;
+	}
+
+	/**
+	 * Removes a spool file.
+	 * @param spool the spool file
+	 */
+	private static void deleteSpool(final File spool) {
+		if (spool.exists() && !spool.delete()) {
+			LOG.warn("Error deleting: {}", spool);
+		}
+	}
+
+	/**
+	 * Writes the changed rows of a commit for
+	 * {@link SmartSocketsTransport#pushRows}.
+	 *
+	 * @author nick &lt;palmer@cs.vu.nl&gt;
+	 *
+	 */
+	public interface RowSource {
+		/**
+		 * Writes the changed rows.
+		 * @param out the stream to write to
+		 * @throws IOException if reading or writing fails
+		 */
+		void writeRows(OutputStream out) throws IOException;
+	}
+
+	/**
+	 * Sends a commit to a branch of the remote as the rows it changed.
+	 * The remote applies the rows to the tip of its branch and commits
+	 * the result with the given author and message.
+	 *
+	 * @param branchName the name of the branch on the remote
+	 * @param base the tip of the branch on the remote the rows are
+	 * written against
+	 * @param schemaDigest the digest of the schema of the database
+	 * @param author the author of the commit
+	 * @param message the message of the commit
+	 * @param rows writes the rows
+	 * @return the commit made by the remote, or null if the remote
+	 * refused the rows because its branch or schema is not the one the
+	 * rows were written against
+	 * @throws IOException if reading or writing fails
+	 */
+	public final ObjectId pushRows(final String branchName,
+			final ObjectId base, final String schemaDigest,
+			final PersonIdent author, final String message,
+			final RowSource rows) throws IOException {
+		VirtualSocket sock;
+		try {
+			sock = openConnection(uri, getConnectTimeout());
+		} catch (InitializationException e) {
+			throw new TransportException(uri, "Unable to open socket.", e);
+		}
+		try {
+			if (getTimeout() > 0) {
+				sock.setSoTimeout(getConnectTimeout());
+			}
+			InputStream sIn = new BufferedInputStream(sock.getInputStream());
+			OutputStream sOut = new BufferedOutputStream(
+					sock.getOutputStream());
+			PacketLineOut out = new PacketLineOut(sOut);
+			PacketLineIn in = new PacketLineIn(sIn);
+			service(ROW_SYNC, out);
+			out.writeString(branchName + " " + base.name() + " "
+					+ schemaDigest);
+			out.writeString(author.getName());
+			out.writeString(author.getEmailAddress());
+			out.writeString(author.getWhen().getTime() + " "
+					+ author.getTimeZoneOffset());
+			out.writeString(message);
+			out.flush();
+
+			String answer;
+			try {
+				answer = in.readString();
+			} catch (IOException err) {
+				throw new TransportException(uri,
+						JGitText.get().remoteHungUpUnexpectedly, err);
+			}
+			if (!ROW_SYNC_READY.equals(answer)) {
+				LOG.debug("Remote refused rows for {}: {}", branchName,
+						answer);
+				return null;
+			}
+
+			ChunkedOutputStream rowsOut = new ChunkedOutputStream(sOut);
+			rows.writeRows(rowsOut);
+			rowsOut.finish();
+			sOut.flush();
+
+			try {
+				answer = in.readString();
+			} catch (IOException err) {
+				throw new TransportException(uri,
+						JGitText.get().remoteHungUpUnexpectedly, err);
+			}
+			if (!answer.startsWith(ROW_SYNC_OK)) {
+				// Not a transport problem, so sending again will not help.
+				throw new IOException("Remote failed to apply rows: "
+						+ answer);
+			}
+			return ObjectId.fromString(
+					answer.substring(ROW_SYNC_OK.length()));
+		} finally {
+			sock.close();
+		}
+	}
+
+	/**
+	 * @return the timeout for connecting in milliseconds.
+	 */
+	final int getConnectTimeout() {
+		if (getTimeout() > 0) {
+			return getTimeout() * MILLIS_PER_SECOND;
+		}
+		return TIMEOUT;
 	}
 
 	/**
@@ -246,8 +639,11 @@ implements PackTransport {
 	 *
 	 */
 	final class SmartSocketsFetchConnection extends BasePackFetchConnection {
-		/** The socket the connection talks over. */
-		private VirtualSocket sock;
+		/** The pooled connection we talk over. */
+		private PeerConnection mConnection;
+
+		/** True if the fetch failed part way. */
+		private boolean mFailed;
 
 		/**
 		 * Construct a new connection.
@@ -257,36 +653,50 @@ implements PackTransport {
 		SmartSocketsFetchConnection()
 				throws IOException, InitializationException {
 			super(SmartSocketsTransport.this);
-			sock = openConnection(uri, getTimeout());
-			try {
-				InputStream sIn = sock.getInputStream();
-				OutputStream sOut = sock.getOutputStream();
-
-				sIn = new BufferedInputStream(sIn);
-				sOut = new BufferedOutputStream(sOut);
+			for (;;) {
+				mConnection = PeerConnectionPool.getInstance().take(
+						uri, getConnectTimeout());
+				try {
+					mConnection.command(
+							serviceCommand("git-upload-pack", true));
+					init(mConnection.getInputStream(),
+							mConnection.getOutputStream());
+					readAdvertisedRefs();
+					return;
+				} catch (IOException err) {
+					boolean retry = mConnection.isReused();
+					mConnection.close();
+					mConnection = null;
+					if (!retry) {
+						throw new TransportException(uri,
+								JGitText.get().remoteHungUpUnexpectedly, err);
+					}
+					LOG.debug("Kept alive connection went stale, retrying.");
+				}
+			}
+		}
 
-				init(sIn, sOut);
-				service("git-upload-pack", pckOut);
-			} catch (IOException err) {
-				close();
-				throw new TransportException(uri,
-						JGitText.get().remoteHungUpUnexpectedly, err);
+		@Override
+		protected void doFetch(final ProgressMonitor monitor,
+				final Collection<Ref> want, final Set<ObjectId> have)
+						throws TransportException {
+			boolean done = false;
+			try {
+				super.doFetch(monitor, want, have);
+				done = true;
+			} finally {
+				mFailed = !done;
 			}
-			readAdvertisedRefs();
 		}
 
 		@Override
 		public void close() {
 			super.close();
 
-			if (sock != null) {
-				try {
-					sock.close();
-				} catch (IOException err) {
-					LOG.warn("Exception while closing.", err);
-				} finally {
-					sock = null;
-				}
+			if (mConnection != null) {
+				PeerConnectionPool.getInstance().release(mConnection,
+						!mFailed);
+				mConnection = null;
 			}
 		}
 	}
@@ -297,8 +707,11 @@ implements PackTransport {
 	 *
 	 */
 	class SmartSocketsPushConnection extends BasePackPushConnection {
-		/** The virtual socket the connection talks over. */
-		private VirtualSocket sock;
+		/** The pooled connection we talk over. */
+		private PeerConnection mConnection;
+
+		/** True if the push failed part way. */
+		private boolean mFailed;
 
 		/**
 		 * Construct a push connection.
@@ -308,36 +721,50 @@ implements PackTransport {
 		SmartSocketsPushConnection()
 				throws IOException, InitializationException {
 			super(SmartSocketsTransport.this);
-			sock = openConnection(uri, getTimeout());
-			try {
-				InputStream sIn = sock.getInputStream();
-				OutputStream sOut = sock.getOutputStream();
-
-				sIn = new BufferedInputStream(sIn);
-				sOut = new BufferedOutputStream(sOut);
+			for (;;) {
+				mConnection = PeerConnectionPool.getInstance().take(
+						uri, getConnectTimeout());
+				try {
+					mConnection.command(
+							serviceCommand("git-receive-pack", true));
+					init(mConnection.getInputStream(),
+							mConnection.getOutputStream());
+					readAdvertisedRefs();
+					return;
+				} catch (IOException err) {
+					boolean retry = mConnection.isReused();
+					mConnection.close();
+					mConnection = null;
+					if (!retry) {
+						throw new TransportException(uri,
+								JGitText.get().remoteHungUpUnexpectedly, err);
+					}
+					LOG.debug("Kept alive connection went stale, retrying.");
+				}
+			}
+		}
 
-				init(sIn, sOut);
-				service("git-receive-pack", pckOut);
-			} catch (IOException err) {
-				close();
-				throw new TransportException(uri,
-						JGitText.get().remoteHungUpUnexpectedly, err);
+		@Override
+		protected void doPush(final ProgressMonitor monitor,
+				final Map<String, RemoteRefUpdate> refUpdates)
+						throws TransportException {
+			boolean done = false;
+			try {
+				super.doPush(monitor, refUpdates);
+				done = true;
+			} finally {
+				mFailed = !done;
 			}
-			readAdvertisedRefs();
 		}
 
 		@Override
 		public void close() {
 			super.close();
 
-			if (sock != null) {
-				try {
-					sock.close();
-				} catch (IOException err) {
-					LOG.warn("Exception while closing.", err);
-				} finally {
-					sock = null;
-				}
+			if (mConnection != null) {
+				PeerConnectionPool.getInstance().release(mConnection,
+						!mFailed);
+				mConnection = null;
 			}
 		}
 	}
@@ -362,44 +789,81 @@ implements PackTransport {
 		} catch (URISyntaxException e) {
 			throw new MalformedAddressException(e);
 		}
-		VirtualSocket socket = openConnection(uri, TIMEOUT);
-		socket.setSoTimeout(TIMEOUT);
-
-		PacketLineOut out = null;
-		PacketLineIn in = null;
-		try {
-			LOG.debug("Sending Command.");
-			out = new PacketLineOut(socket.getOutputStream());
-			out.writeString("git-list-repos " + localEmail);
-
-			repositories = new ArrayList<Map<String, Object>>();
-			LOG.debug("Reading result.");
-			in = new PacketLineIn(socket.getInputStream());
-			for (String repository = in.readString();
-					!repository.equals(PacketLineIn.END);
-					repository = in.readString()) {
-				LOG.debug("Read repository: {}", repository);
-				Map<String, Object> repoInfo = new HashMap<String, Object>();
-				repoInfo.put(VdbProviderRegistry.REPOSITORY_NAME, repository);
-				repoInfo.put(VdbProviderRegistry.REPOSITORY_IS_PEER,
-						Boolean.valueOf(in.readString()));
-				repoInfo.put(VdbProviderRegistry.REPOSITORY_IS_PUBLIC,
-						Boolean.valueOf(in.readString()));
-				repositories.add(repoInfo);
-			}
-		} finally {
-			if (in != null) {
-				socket.getInputStream().close();
-			}
-			if (out != null) {
-				socket.getOutputStream().close();
+		PeerConnectionPool pool = PeerConnectionPool.getInstance();
+		for (;;) {
+			PeerConnection conn = pool.take(uri, TIMEOUT);
+			boolean done = false;
+			try {
+				conn.getSocket().setSoTimeout(TIMEOUT);
+				LOG.debug("Sending Command.");
+				conn.command("git-list-repos " + localEmail + '\0'
+						+ SmartSocketsDaemonClient.KEEP_ALIVE + '\0');
+
+				repositories = new ArrayList<Map<String, Object>>();
+				LOG.debug("Reading result.");
+				PacketLineIn in = new PacketLineIn(conn.getInputStream());
+				for (String repository = in.readString();
+						!repository.equals(PacketLineIn.END);
+						repository = in.readString()) {
+					LOG.debug("Read repository: {}", repository);
+					Map<String, Object> repoInfo =
+							new HashMap<String, Object>();
+					repoInfo.put(VdbProviderRegistry.REPOSITORY_NAME,
+							repository);
+					repoInfo.put(VdbProviderRegistry.REPOSITORY_IS_PEER,
+							Boolean.valueOf(in.readString()));
+					repoInfo.put(VdbProviderRegistry.REPOSITORY_IS_PUBLIC,
+							Boolean.valueOf(in.readString()));
+					repositories.add(repoInfo);
+				}
+				done = true;
+				break;
+			} catch (IOException e) {
+				if (!conn.isReused()) {
+					throw e;
+				}
+				LOG.debug("Kept alive connection went stale, retrying.");
+			} finally {
+				pool.release(conn, done);
 			}
-			socket.close();
 		}
 		LOG.debug("Done fetching repositories.");
 		return repositories;
 	}
 
+	/**
+	 * Sets if connections to peers ask the daemon to compress the
+	 * protocol stream. Connections already open are not affected.
+	 * @param compression true to ask for compression
+	 */
+	public static void setCompression(final boolean compression) {
+		PeerConnectionPool.getInstance().setCompression(compression);
+	}
+
+	/**
+	 * @return true if connections to peers ask for compression.
+	 */
+	public static boolean isCompression() {
+		return PeerConnectionPool.getInstance().isCompression();
+	}
+
+	/**
+	 * Sets the size of the buffers used for new connections to peers.
+	 * Larger buffers mean fewer, larger writes on the socket and better
+	 * compression.
+	 * @param bufferSize the size in bytes
+	 */
+	public static void setBufferSize(final int bufferSize) {
+		PeerConnectionPool.getInstance().setBufferSize(bufferSize);
+	}
+
+	/**
+	 * @return the size of the buffers used for connections to peers.
+	 */
+	public static int getBufferSize() {
+		return PeerConnectionPool.getInstance().getBufferSize();
+	}
+
 	/**
 	 * @return the name resolver used by the transport
 	 * @throws InitializationException if the name resolver fails to initialize
@@ -174,9 +174,23 @@ public abstract class SmartsocketsDaemonService {
 				return;
 			}
 		}
+		client.setRepositoryName(db == null ? null : name.substring(1));
 		try {
-			if (isEnabledFor(db)) {
+			if (!isEnabledFor(db)) {
+				return;
+			}
+			if (db == null) {
 				execute(client, db);
+			} else if (client.getDaemon().acquireRepository(name)) {
+				try {
+					execute(client, db);
+				} finally {
+					client.getDaemon().releaseRepository(name);
+				}
+			} else {
+				LOG.warn("Too many sessions for: {}", name);
+				SmartSocketsDaemon.sendError(client.getOutputStream(),
+						"repository busy, " + RetryPolicy.TRY_AGAIN);
 			}
 		} finally {
 			if (db != null) {
@@ -189,7 +203,7 @@ public abstract class SmartsocketsDaemonService {
 	 * @param db the repository being checked
 	 * @return true if this service is enabled for this repository.
 	 */
-	private boolean isEnabledFor(final Repository db) {
+	final boolean isEnabledFor(final Repository db) {
 		if (db != null) {
 			if (isOverridable()) {
 				return db.getConfig().get(configKey).enabled;
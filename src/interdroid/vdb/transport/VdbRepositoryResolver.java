@@ -36,6 +36,7 @@ import java.util.Map;
 
 import interdroid.vdb.content.VdbProviderRegistry;
 import interdroid.vdb.persistence.api.VdbRepositoryRegistry;
+import interdroid.vdb.persistence.impl.VdbRepositoryImpl;
 
 import org.eclipse.jgit.errors.RepositoryNotFoundException;
 import org.eclipse.jgit.lib.Repository;
@@ -77,7 +78,7 @@ public class VdbRepositoryResolver<C> implements RepositoryResolver<C> {
 	 */
 	public VdbRepositoryResolver(final Context context) throws IOException {
 		// This ensures that all repositories are registered
-		mProviderRegistry = new VdbProviderRegistry(context);
+		mProviderRegistry = VdbProviderRegistry.getInstance(context);
 		mContext = context;
 	}
 
@@ -101,6 +102,17 @@ public class VdbRepositoryResolver<C> implements RepositoryResolver<C> {
 		return result;
 	}
 
+	/**
+	 * @param name the name of a repository
+	 * @return the repository or null if there is no such repository
+	 * @throws IOException if reading or writing fails.
+	 */
+	public final VdbRepositoryImpl getVdbRepository(final String name)
+			throws IOException {
+		return (VdbRepositoryImpl) VdbRepositoryRegistry.getInstance()
+				.getRepository(mContext, name);
+	}
+
 	/**
 	 * @param email the client email
 	 * @return the list of repositories visible to this email